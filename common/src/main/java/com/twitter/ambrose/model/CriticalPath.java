@@ -0,0 +1,117 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.model;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Critical path of a workflow's DAG at a point in time, along with the schedule of each node. Times
+ * are in ms since the epoch. Times of finished nodes are actual, those of running and pending nodes
+ * are estimates. Skipped nodes will never run since a job they depend on failed; they take no time,
+ * from when that job failed.
+ */
+public class CriticalPath {
+
+  public static enum NodeStatus { PENDING, RUNNING, FINISHED, FAILED, SKIPPED }
+
+  /**
+   * Schedule of one node. Slack is how much later the node could finish without delaying the
+   * expected completion of the workflow; critical nodes are those on the critical path.
+   */
+  public static class NodeSchedule {
+    private final NodeStatus status;
+    private final long earliestStart;
+    private final long earliestFinish;
+    private final long latestStart;
+    private final long latestFinish;
+    private final boolean critical;
+
+    public NodeSchedule(NodeStatus status, long earliestStart, long earliestFinish,
+        long latestStart, long latestFinish, boolean critical) {
+      this.status = status;
+      this.earliestStart = earliestStart;
+      this.earliestFinish = earliestFinish;
+      this.latestStart = latestStart;
+      this.latestFinish = latestFinish;
+      this.critical = critical;
+    }
+
+    public NodeStatus getStatus() {
+      return status;
+    }
+
+    public long getEarliestStart() {
+      return earliestStart;
+    }
+
+    public long getEarliestFinish() {
+      return earliestFinish;
+    }
+
+    public long getLatestStart() {
+      return latestStart;
+    }
+
+    public long getLatestFinish() {
+      return latestFinish;
+    }
+
+    public long getSlack() {
+      return latestFinish - earliestFinish;
+    }
+
+    public boolean isCritical() {
+      return critical;
+    }
+  }
+
+  private final long analyzedAt;
+  private final long expectedCompletionTime;
+  private final List<String> path;
+  private final Map<String, NodeSchedule> nodes;
+
+  /**
+   * @param analyzedAt time of the analysis.
+   * @param expectedCompletionTime expected finish time of the last node.
+   * @param path names of the nodes on the critical path, first to last.
+   * @param nodes schedules by node name.
+   */
+  public CriticalPath(long analyzedAt, long expectedCompletionTime, List<String> path,
+      Map<String, NodeSchedule> nodes) {
+    this.analyzedAt = analyzedAt;
+    this.expectedCompletionTime = expectedCompletionTime;
+    this.path = Collections.unmodifiableList(path);
+    this.nodes = Collections.unmodifiableMap(nodes);
+  }
+
+  public long getAnalyzedAt() {
+    return analyzedAt;
+  }
+
+  public long getExpectedCompletionTime() {
+    return expectedCompletionTime;
+  }
+
+  public List<String> getPath() {
+    return path;
+  }
+
+  public Map<String, NodeSchedule> getNodes() {
+    return nodes;
+  }
+}
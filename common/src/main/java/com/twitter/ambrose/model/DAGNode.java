@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
@@ -42,6 +43,11 @@ import com.twitter.ambrose.util.JSONUtil;
  * String json = om.writeValueAsString(dagNode);
  */
 public class DAGNode<T extends Job> {
+  public static final TypeReference<DAGNode<? extends Job>> TYPE =
+      new TypeReference<DAGNode<? extends Job>>() { };
+  /** type of the DAG as sent to StatsWriteService, nodes keyed by name */
+  public static final TypeReference<Map<String, DAGNode<Job>>> NAME_MAP_TYPE =
+      new TypeReference<Map<String, DAGNode<Job>>>() { };
   private String name;
   private T job;
   @JsonIgnore
@@ -72,6 +78,26 @@ public class DAGNode<T extends Job> {
 
   public synchronized Collection<String> getSuccessorNames() { return successorNames; }
 
+  /**
+   * @return a copy of this node to be used as event payload, holding the compact form of its job
+   * as returned by {@link Job#compact()} and no successors.
+   */
+  public DAGNode<Job> compact() {
+    return new DAGNode<Job>(name, job == null ? null : job.compact());
+  }
+
+  /**
+   * @return a copy of this node holding a {@link Job#copy()} of its job, for writing it after its
+   * owner has moved on. Successors are replaced rather than changed, so they are shared.
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized DAGNode<T> copy() {
+    DAGNode<T> copy = new DAGNode<T>(name, job == null ? null : (T) job.copy());
+    copy.successors = successors;
+    copy.successorNames = successorNames;
+    return copy;
+  }
+
   @Override
   public int hashCode() {
     return Objects.hashCode(name, job, successorNames);
@@ -99,7 +125,7 @@ public class DAGNode<T extends Job> {
   }
 
   public static DAGNode<? extends Job> fromJson(String json) throws IOException {
-    return JSONUtil.toObject(json, new TypeReference<DAGNode<? extends Job>>() { });
+    return JSONUtil.toObject(json, TYPE);
   }
 
   @SuppressWarnings("unchecked")
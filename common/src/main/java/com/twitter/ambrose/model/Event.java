@@ -18,7 +18,7 @@ package com.twitter.ambrose.model;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
@@ -33,6 +33,9 @@ import com.twitter.ambrose.util.JSONUtil;
  * Class that represents a Event of a given Type. Each one of these created will have
  * a unique id that increments up for each object. eventIds will always be >= 0.
  * The data associated with the event currently can be anything.
+ * <p/>
+ * Ids given on creation are only unique within the VM. Stats services shared by several VMs
+ * replace them with ids unique across VMs when events are stored, see {@link #setId}.
  *
  * @author billg
  */
@@ -45,7 +48,8 @@ import com.twitter.ambrose.util.JSONUtil;
     @JsonSubTypes.Type(value=Event.JobFailedEvent.class, name="JOB_FAILED")
 })
 public class Event<T> {
-  private static AtomicInteger NEXT_ID = new AtomicInteger();
+  private static AtomicLong NEXT_ID = new AtomicLong();
+  public static final TypeReference<Event<?>> TYPE = new TypeReference<Event<?>>() { };
 
   public static enum Type { JOB_STARTED, JOB_FINISHED, JOB_FAILED, JOB_PROGRESS, WORKFLOW_PROGRESS }
 
@@ -53,13 +57,13 @@ public class Event<T> {
     workflowProgress
   }
 
-  private int id;
+  private long id;
   @JsonIgnore
   private Type type;
   private long timestamp;
   private T payload;
 
-  public Event(int eventId, Type type, long timestamp, T payload) {
+  public Event(long eventId, Type type, long timestamp, T payload) {
     this.id = eventId;
     this.type = type;
     this.timestamp = timestamp;
@@ -72,17 +76,33 @@ public class Event<T> {
 
   public Event() {}
 
-  public int getId() { return id; }
+  public long getId() { return id; }
   public Type getType() { return type; }
   public long getTimestamp() { return timestamp; }
   public T getPayload() { return payload; }
 
+  /**
+   * Replaces the id given on creation. Used by stats services which allocate ids when events are
+   * stored.
+   *
+   * @param id new id of this event.
+   */
+  public void setId(long id) { this.id = id; }
+
   public String toJson() throws IOException {
     return JSONUtil.toJson(this);
   }
 
   public static Event<?> fromJson(String json) throws IOException {
-    return JSONUtil.toObject(json, new TypeReference<Event<?>>() {});
+    return JSONUtil.toObject(json, TYPE);
+  }
+
+  public byte[] toJsonBytes() throws IOException {
+    return JSONUtil.toJsonBytes(this);
+  }
+
+  public static Event<?> fromJsonBytes(byte[] json) throws IOException {
+    return JSONUtil.fromJsonBytes(json, TYPE);
   }
 
   /**
@@ -21,13 +21,13 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonSubTypes;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import com.fasterxml.jackson.annotation.JsonTypeName;
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.google.common.base.Objects;
 import com.twitter.ambrose.model.hadoop.CounterGroup;
 import com.twitter.ambrose.model.hadoop.MapReduceJobState;
 import com.twitter.ambrose.util.JSONUtil;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 
@@ -101,12 +101,50 @@ public class Job {
         && Objects.equal(metrics, that.metrics);
   }
 
+  /**
+   * Returns a copy of this job holding only its id and a snapshot of its map reduce state, which is
+   * what changes while the job runs. Events carry such copies; aliases and features are part of the
+   * DAG, while configuration, counters and metrics are sent once per job through
+   * {@link com.twitter.ambrose.service.StatsWriteService#sendJob}. Subclasses should return an
+   * instance of their own type so that it is serialized with the same runtime name.
+   */
+  public Job compact() {
+    MapReduceJobState state = getMapReduceJobState();
+    return new Job(getId(), null, null, state == null ? null : new MapReduceJobState(state), null,
+        null, null);
+  }
+
+  /**
+   * Returns a copy of this job which later changes to this one don't show in, for writing it after
+   * its owner has moved on. Its map reduce state, configuration, counters and metrics are copied;
+   * aliases and features are shared. Subclasses should return an instance of their own type.
+   */
+  public Job copy() {
+    MapReduceJobState state = getMapReduceJobState();
+    return new Job(getId(), getAliases(), getFeatures(),
+        state == null ? null : new MapReduceJobState(state), copyOf(getCounterGroupMap()),
+        copyOf(getConfiguration()), copyOf(getMetrics()));
+  }
+
+  protected static <K, V> Map<K, V> copyOf(Map<K, V> map) {
+    return map == null ? null : new HashMap<K, V>(map);
+  }
+
+  protected static Properties copyOf(Properties properties) {
+    if (properties == null) {
+      return null;
+    }
+    Properties copy = new Properties();
+    copy.putAll(properties);
+    return copy;
+  }
+
   public String toJson() throws IOException {
     return JSONUtil.toJson(this);
   }
 
   public static Job fromJson(String json) throws IOException {
-    return JSONUtil.toObject(json, new TypeReference<Job>() { });
+    return JSONUtil.toObject(json, Job.class);
   }
 
 public String[] getAliases() {
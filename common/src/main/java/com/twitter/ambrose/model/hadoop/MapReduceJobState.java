@@ -23,6 +23,21 @@ public class MapReduceJobState {
   @JsonCreator
   public MapReduceJobState() { }
 
+  /**
+   * Copies the state of another job, e.g. to keep a snapshot of a state which is being updated.
+   */
+  public MapReduceJobState(MapReduceJobState other) {
+    jobId = other.jobId;
+    jobName = other.jobName;
+    trackingURL = other.trackingURL;
+    isComplete = other.isComplete;
+    isSuccessful = other.isSuccessful;
+    mapProgress = other.mapProgress;
+    reduceProgress = other.reduceProgress;
+    totalMappers = other.totalMappers;
+    totalReducers = other.totalReducers;
+  }
+
   @SuppressWarnings("deprecation")
   public MapReduceJobState(RunningJob runningJob,
                            TaskReport[] mapTaskReport,
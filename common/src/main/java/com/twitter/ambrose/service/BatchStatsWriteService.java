@@ -0,0 +1,38 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.twitter.ambrose.model.Event;
+import com.twitter.ambrose.model.Job;
+
+/**
+ * StatsWriteService which can accept several events of a workflow at once. Implementations should
+ * make a batch cheaper than the equivalent sequence of {@link #pushEvent} calls, e.g. by writing
+ * it in a single round trip.
+ */
+public interface BatchStatsWriteService<T extends Job> extends StatsWriteService<T> {
+
+  /**
+   * Push several events for a given workflow.
+   *
+   * @param workflowId the id of the workflow being updated
+   * @param events the events bound to the workflow, ordered by eventId ascending
+   */
+  public void pushEvents(String workflowId, List<Event> events) throws IOException;
+}
@@ -0,0 +1,63 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service;
+
+import java.io.IOException;
+import java.util.Collection;
+
+import com.twitter.ambrose.model.Event;
+import com.twitter.ambrose.model.Job;
+
+/**
+ * StatsReadService which can wait for new events, so that clients can long-poll instead of
+ * repeatedly asking for events which don't exist yet.
+ */
+public interface BlockingStatsReadService<T extends Job> extends StatsReadService<T> {
+
+  /**
+   * Get the first maxEvents events for a given workflow since eventId, waiting until there is at
+   * least one such event or until timeout passes.
+   *
+   * @param workflowId the id of the workflow being accessed
+   * @param eventId the eventId that all returned events will be greater than
+   * @param maxEvents max number of events to return
+   * @param timeoutMs max time to wait for new events
+   * @return a Collection of WorkflowEvents ordered by eventId ascending, empty on timeout
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public Collection<Event> waitForEventsSinceId(String workflowId, long eventId, int maxEvents,
+      long timeoutMs) throws IOException, InterruptedException;
+
+  /**
+   * Registers a listener run once when events of the given workflow may have been written after
+   * this call, so that callers can wait for events without holding a thread. Listeners are run on
+   * the writing thread, so they must be quick and must not block. Callers should add the listener
+   * before checking for events, and check again now and then, as a listener may be run late or,
+   * while the service can't tell when events are written, not at all.
+   *
+   * @param workflowId the id of the workflow to listen to
+   * @param listener run when the workflow may have new events
+   */
+  public void addEventListener(String workflowId, Runnable listener);
+
+  /**
+   * Drops a listener added by {@link #addEventListener}, unless it has already been run.
+   *
+   * @param workflowId the id of the workflow passed to {@link #addEventListener}
+   * @param listener the listener passed to {@link #addEventListener}
+   */
+  public void removeEventListener(String workflowId, Runnable listener);
+}
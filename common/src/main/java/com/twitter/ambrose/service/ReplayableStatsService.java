@@ -0,0 +1,51 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+import com.twitter.ambrose.model.DAGNode;
+import com.twitter.ambrose.model.Event;
+import com.twitter.ambrose.model.Job;
+
+/**
+ * Stats service which both collects and serves the stats of a workflow, and can replay the events
+ * and DAGs of earlier workflows into it. Used by reporters that run a script of several workflows
+ * in the same VM as the server showing them.
+ */
+public interface ReplayableStatsService<T extends Job>
+    extends StatsReadService<T>, BatchStatsWriteService<T> {
+
+  /**
+   * Adds events to the event log of a workflow without updating its summary. Replayed events keep
+   * their ids.
+   *
+   * @param workflowId the id of the workflow being updated
+   * @param events the events to add
+   */
+  public void replayEvents(String workflowId, Collection<Event> events) throws IOException;
+
+  /**
+   * Writes the DAG of a workflow without updating its summary.
+   *
+   * @param workflowId the id of the workflow being updated
+   * @param dagNodeNameMap a Map of DAGNodes where the key is the DAGNode name
+   */
+  public void replayDagNodeNameMap(String workflowId, Map<String, DAGNode<T>> dagNodeNameMap)
+      throws IOException;
+}
@@ -0,0 +1,66 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service;
+
+import java.io.IOException;
+
+import com.google.common.hash.Hashing;
+
+import com.twitter.ambrose.model.Job;
+
+/**
+ * StatsReadService which can hand out the DAG already serialized, so that servers can send it
+ * to clients as is instead of serializing it on every request.
+ */
+public interface SerializedDagReadService<T extends Job> extends StatsReadService<T> {
+
+  /**
+   * The nodes of a DAG as a compact JSON array, along with a hash of that JSON which servers can
+   * use as an ETag. Both are computed once per version of the DAG.
+   */
+  public static class SerializedDag {
+    private final byte[] json;
+    private final String hash;
+
+    public SerializedDag(byte[] json) {
+      this.json = json;
+      this.hash = Hashing.murmur3_128().hashBytes(json).toString();
+    }
+
+    /**
+     * @return the JSON bytes, which must not be modified.
+     */
+    public byte[] getJson() {
+      return json;
+    }
+
+    /**
+     * @return hex hash of the JSON bytes.
+     */
+    public String getHash() {
+      return hash;
+    }
+  }
+
+  /**
+   * Get the DAGNodes of a workflow serialized, as returned by {@link #getDagNodeNameMap} without
+   * the keys.
+   *
+   * @param workflowId the id of the workflow being fetched
+   * @return the serialized DAG, or null if the workflow has no DAG
+   */
+  public SerializedDag getSerializedDag(String workflowId) throws IOException;
+}
@@ -47,5 +47,26 @@ public interface StatsReadService<T extends Job> {
    * @param eventId the eventId that all returned events will be greater than
    * @return a Collection of WorkflowEvents, ordered by eventId ascending
    */
-  public Collection<Event> getEventsSinceId(String workflowId, int eventId) throws IOException;
+  public Collection<Event> getEventsSinceId(String workflowId, long eventId) throws IOException;
+
+  /**
+   * Get the first maxEvents events for a given workflow since eventId. Long event logs can be read
+   * in chunks by passing the id of the last event returned as eventId of the next call.
+   *
+   * @param workflowId the id of the workflow being accessed
+   * @param eventId the eventId that all returned events will be greater than
+   * @param maxEvents max number of events to return
+   * @return a Collection of WorkflowEvents, ordered by eventId ascending
+   */
+  public Collection<Event> getEventsSinceId(String workflowId, long eventId, int maxEvents)
+      throws IOException;
+
+  /**
+   * Get the details of a job as sent by {@link StatsWriteService#sendJob}.
+   *
+   * @param workflowId the id of the workflow the job belongs to
+   * @param jobId the id of the job
+   * @return the job, or null if no details were sent for it
+   */
+  public T getJob(String workflowId, String jobId) throws IOException;
 }
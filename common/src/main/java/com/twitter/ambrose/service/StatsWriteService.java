@@ -48,4 +48,14 @@ public interface StatsWriteService<T extends Job> {
    * @param event the event bound to the workflow
    */
   public void pushEvent(String workflowId, Event event) throws IOException;
+
+  /**
+   * Send the details of a job which don't change while it runs or are only known once it is done,
+   * i.e. its configuration, counters and metrics. Events only carry the compact form of a job, see
+   * {@link Job#compact()}, so these are stored once per job instead.
+   *
+   * @param workflowId the id of the workflow the job belongs to
+   * @param job the job, identified by its id
+   */
+  public void sendJob(String workflowId, T job) throws IOException;
 }
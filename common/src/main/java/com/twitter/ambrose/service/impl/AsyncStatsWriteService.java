@@ -0,0 +1,348 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.twitter.ambrose.model.DAGNode;
+import com.twitter.ambrose.model.Event;
+import com.twitter.ambrose.model.Job;
+import com.twitter.ambrose.service.BatchStatsWriteService;
+import com.twitter.ambrose.service.StatsWriteService;
+
+/**
+ * StatsWriteService decorator which queues DAGs, jobs and events and writes them to the wrapped
+ * service from a background thread, so that callers never wait on serialization or I/O. Queued
+ * items are written in order, in batches of up to <code>maxBatchSize</code> items or whatever has
+ * been queued after <code>flushIntervalMs</code>. Consecutive events of a workflow are written with
+ * a single call if the wrapped service is a {@link BatchStatsWriteService}. DAGs and jobs are
+ * queued as copies, see {@link DAGNode#copy()}, so callers can keep changing them.
+ * <p/>
+ * The queue holds at most <code>capacity</code> items. When it is full the oldest queued
+ * <code>JOB_PROGRESS</code> or <code>WORKFLOW_PROGRESS</code> event is dropped to make room, since a
+ * later progress event supersedes it. DAGs, jobs and start, finish and fail events are never
+ * dropped; if no progress event can be dropped they are queued beyond capacity, while a new
+ * progress event is dropped instead. The queue can be sized by setting the following values as
+ * system properties using <code>-D</code>:
+ * <pre>
+ *   <ul>
+ *     <li><code>{@value #QUEUE_CAPACITY_PARAM}</code> - max queued items (default 10000).</li>
+ *     <li><code>{@value #BATCH_SIZE_PARAM}</code> - max items per write (default 100).</li>
+ *     <li><code>{@value #FLUSH_INTERVAL_PARAM}</code> - max ms an item waits for a batch to fill
+ * (default 200).</li>
+ *   </ul>
+ * </pre>
+ */
+public class AsyncStatsWriteService<T extends Job> implements StatsWriteService<T> {
+  private static final Logger LOG = LoggerFactory.getLogger(AsyncStatsWriteService.class);
+  public static final String QUEUE_CAPACITY_PARAM = "ambrose.async.queue.capacity";
+  public static final String BATCH_SIZE_PARAM = "ambrose.async.batch.size";
+  public static final String FLUSH_INTERVAL_PARAM = "ambrose.async.flush.interval.ms";
+  private static final int DEFAULT_QUEUE_CAPACITY = 10000;
+  private static final int DEFAULT_BATCH_SIZE = 100;
+  private static final long DEFAULT_FLUSH_INTERVAL_MS = 200;
+
+  /**
+   * A queued DAG, event or job.
+   */
+  private static class Item<T extends Job> {
+    private final String workflowId;
+    private final Event event;
+    private final Map<String, DAGNode<T>> dagNodeNameMap;
+    private final T job;
+    /** position in the order items were queued, set when queued */
+    private long seq;
+
+    private Item(String workflowId, Event event, Map<String, DAGNode<T>> dagNodeNameMap, T job) {
+      this.workflowId = workflowId;
+      this.event = event;
+      this.dagNodeNameMap = dagNodeNameMap;
+      this.job = job;
+    }
+
+    private boolean isDroppable() {
+      return event != null && (event.getType() == Event.Type.JOB_PROGRESS
+          || event.getType() == Event.Type.WORKFLOW_PROGRESS);
+    }
+  }
+
+  private final StatsWriteService<T> delegate;
+  private final int capacity;
+  private final int maxBatchSize;
+  private final long flushIntervalNanos;
+  private final ArrayDeque<Item<T>> queue = new ArrayDeque<Item<T>>();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition flushed = lock.newCondition();
+  private final AtomicLong droppedEvents = new AtomicLong();
+  private final AtomicLong failedWrites = new AtomicLong();
+  private final Thread flusher;
+  /** sequence number of the last item queued, guarded by lock */
+  private long queuedSeq = 0;
+  /** sequence number up to which all items were written or dropped, guarded by lock */
+  private long writtenSeq = 0;
+  private boolean closed = false;
+
+  public AsyncStatsWriteService(StatsWriteService<T> delegate, int capacity, int maxBatchSize,
+      long flushIntervalMs) {
+    this.delegate = delegate;
+    this.capacity = capacity;
+    this.maxBatchSize = maxBatchSize;
+    this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+    this.flusher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        flushLoop();
+      }
+    }, "ambrose-async-stats-writer");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /**
+   * @return a service wrapping delegate, sized from system properties.
+   */
+  public static <T extends Job> AsyncStatsWriteService<T> fromSystemProperties(
+      StatsWriteService<T> delegate) {
+    return new AsyncStatsWriteService<T>(delegate,
+        Integer.getInteger(QUEUE_CAPACITY_PARAM, DEFAULT_QUEUE_CAPACITY),
+        Integer.getInteger(BATCH_SIZE_PARAM, DEFAULT_BATCH_SIZE),
+        Long.getLong(FLUSH_INTERVAL_PARAM, DEFAULT_FLUSH_INTERVAL_MS));
+  }
+
+  @Override
+  public void sendDagNodeNameMap(String workflowId, Map<String, DAGNode<T>> dagNodeNameMap)
+      throws IOException {
+    Map<String, DAGNode<T>> copy = null;
+    if (dagNodeNameMap != null) {
+      copy = new LinkedHashMap<String, DAGNode<T>>();
+      for (Map.Entry<String, DAGNode<T>> entry : dagNodeNameMap.entrySet()) {
+        copy.put(entry.getKey(), entry.getValue().copy());
+      }
+    }
+    enqueue(new Item<T>(workflowId, null, copy, null));
+  }
+
+  @Override
+  public void pushEvent(String workflowId, Event event) throws IOException {
+    enqueue(new Item<T>(workflowId, event, null, null));
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void sendJob(String workflowId, T job) throws IOException {
+    enqueue(new Item<T>(workflowId, null, null, (T) job.copy()));
+  }
+
+  private void enqueue(Item<T> item) throws IOException {
+    lock.lock();
+    try {
+      if (closed) {
+        throw new IOException("AsyncStatsWriteService is closed");
+      }
+      if (queue.size() >= capacity) {
+        if (!dropOldestProgressEvent() && item.isDroppable()) {
+          droppedEvents.incrementAndGet();
+          return;
+        }
+      }
+      item.seq = ++queuedSeq;
+      queue.addLast(item);
+      if (queue.size() == 1 || queue.size() >= maxBatchSize || !item.isDroppable()) {
+        notEmpty.signal();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes the oldest queued progress event. Must be called with lock held.
+   *
+   * @return true if an event was dropped.
+   */
+  private boolean dropOldestProgressEvent() {
+    Iterator<Item<T>> it = queue.iterator();
+    while (it.hasNext()) {
+      if (it.next().isDroppable()) {
+        it.remove();
+        droppedEvents.incrementAndGet();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void flushLoop() {
+    while (true) {
+      List<Item<T>> batch;
+      lock.lock();
+      try {
+        while (queue.isEmpty() && !closed) {
+          notEmpty.awaitUninterruptibly();
+        }
+        if (queue.isEmpty()) {
+          return;
+        }
+        // give the batch a chance to fill up, unless it's urgent
+        long remaining = flushIntervalNanos;
+        while (queue.size() < maxBatchSize && !closed && remaining > 0
+            && queue.peekLast().isDroppable() && !lock.hasWaiters(flushed)) {
+          try {
+            remaining = notEmpty.awaitNanos(remaining);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+          }
+        }
+        batch = new ArrayList<Item<T>>(Math.min(queue.size(), maxBatchSize));
+        while (!queue.isEmpty() && batch.size() < maxBatchSize) {
+          batch.add(queue.pollFirst());
+        }
+      } finally {
+        lock.unlock();
+      }
+
+      write(batch);
+
+      lock.lock();
+      try {
+        // items are taken in order, so anything queued before the batch's last item was written
+        // or dropped, and everything was once the queue is empty
+        writtenSeq = queue.isEmpty() ? queuedSeq : batch.get(batch.size() - 1).seq;
+        flushed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void write(List<Item<T>> batch) {
+    int i = 0;
+    while (i < batch.size()) {
+      Item<T> item = batch.get(i);
+      try {
+        if (item.job != null) {
+          delegate.sendJob(item.workflowId, item.job);
+          i++;
+        } else if (item.event == null) {
+          delegate.sendDagNodeNameMap(item.workflowId, item.dagNodeNameMap);
+          i++;
+        } else if (delegate instanceof BatchStatsWriteService) {
+          List<Event> events = new ArrayList<Event>();
+          while (i < batch.size() && batch.get(i).event != null
+              && batch.get(i).workflowId.equals(item.workflowId)) {
+            events.add(batch.get(i++).event);
+          }
+          ((BatchStatsWriteService<T>) delegate).pushEvents(item.workflowId, events);
+        } else {
+          delegate.pushEvent(item.workflowId, item.event);
+          i++;
+        }
+      } catch (Exception e) {
+        // skip the failed item, later ones may still succeed
+        failedWrites.incrementAndGet();
+        LOG.error("Couldn't write to StatsWriteService for workflow " + item.workflowId, e);
+        if (item.event == null || !(delegate instanceof BatchStatsWriteService)) {
+          i++;
+        }
+      }
+    }
+  }
+
+  /**
+   * Blocks until everything queued before this call has been written to the wrapped service, or
+   * until timeout passes. Items queued meanwhile aren't waited for.
+   *
+   * @param timeoutMs max time to wait.
+   * @return true if everything queued before the call was written, false on timeout.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public boolean flush(long timeoutMs) throws InterruptedException {
+    long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    lock.lock();
+    try {
+      long seq = queuedSeq;
+      notEmpty.signal();
+      while (writtenSeq < seq) {
+        if (remaining <= 0) {
+          return false;
+        }
+        remaining = flushed.awaitNanos(remaining);
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Writes everything queued and stops the background thread. Subsequent writes fail.
+   *
+   * @param timeoutMs max time to wait for queued items to be written.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public void close(long timeoutMs) throws InterruptedException {
+    lock.lock();
+    try {
+      closed = true;
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+    flusher.join(timeoutMs);
+  }
+
+  /**
+   * @return number of items waiting to be written.
+   */
+  public int getQueueDepth() {
+    lock.lock();
+    try {
+      return queue.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return number of progress events dropped because the queue was full.
+   */
+  public long getDroppedEventCount() {
+    return droppedEvents.get();
+  }
+
+  /**
+   * @return number of calls to the wrapped service which failed.
+   */
+  public long getFailedWriteCount() {
+    return failedWrites.get();
+  }
+}
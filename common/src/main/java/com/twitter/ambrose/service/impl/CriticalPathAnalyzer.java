@@ -0,0 +1,427 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.twitter.ambrose.model.CriticalPath;
+import com.twitter.ambrose.model.DAGNode;
+import com.twitter.ambrose.model.Event;
+import com.twitter.ambrose.model.Job;
+import com.twitter.ambrose.model.hadoop.MapReduceJobState;
+
+/**
+ * Computes the critical path of one workflow from its DAG and the timestamps of its job events.
+ * Events are applied as they arrive, each in constant time; an analysis is one forward and one
+ * backward pass over the DAG in topological order, O(V+E), and is only redone when an event
+ * changed the schedule or, while jobs may still run, when time has passed.
+ * <p/>
+ * Nodes which finished or failed keep their actual times. A running node is expected to take its
+ * elapsed time divided by its map reduce progress, once that's known, and a pending node the mean
+ * time of the finished nodes; pending nodes start when their last predecessor is expected to
+ * finish, but not before now. Nodes which haven't started and follow a failed or skipped node are
+ * skipped, as they will never run: they take no time, from when the first of those failed.
+ * Once no node is running or pending the workflow is over, and its analysis no longer changes.
+ * Edges closing a cycle, which a valid DAG has none of, are ignored.
+ * <p/>
+ * Not thread safe.
+ */
+public class CriticalPathAnalyzer {
+  /** progress below which a running node's estimate falls back to the mean */
+  private static final float MIN_PROGRESS = 0.05f;
+  private static final long UNKNOWN = -1;
+
+  private final String[] names;
+  private final Map<String, Integer> indexes;
+  /** node indexes in topological order */
+  private final int[] order;
+  /** successors of node i are succ[succStart[i]] until succ[succStart[i + 1]], same for pred */
+  private final int[] succStart;
+  private final int[] succ;
+  private final int[] predStart;
+  private final int[] pred;
+  /** distinct edges between known nodes, including those closing cycles, see {@link #edgeKeys} */
+  private final long[] edgeKeys;
+
+  private final long[] started;
+  private final long[] finished;
+  private final boolean[] failed;
+  private final float[] progress;
+  /** nodes skipped as of the last analysis */
+  private final boolean[] skipped;
+  private long lastEventId = -1;
+  private CriticalPath analysis;
+  /** true if no node was running or pending as of the last analysis */
+  private boolean over;
+
+  public CriticalPathAnalyzer(Map<String, ? extends DAGNode<? extends Job>> dagNodeNameMap) {
+    int n = dagNodeNameMap.size();
+    names = dagNodeNameMap.keySet().toArray(new String[n]);
+    indexes = new HashMap<String, Integer>(n * 2);
+    for (int i = 0; i < n; i++) {
+      indexes.put(names[i], i);
+    }
+
+    int maxEdges = maxEdges(dagNodeNameMap);
+    int[] from = new int[maxEdges];
+    int[] to = new int[maxEdges];
+    int edges = collectEdges(dagNodeNameMap, from, to);
+    edgeKeys = edgeKeys(from, to, edges);
+
+    // Kahn's algorithm, then nodes left on cycles in DAG order
+    int[][] all = adjacency(n, from, to, edges);
+    int[] inDegree = new int[n];
+    for (int e = 0; e < edges; e++) {
+      inDegree[to[e]]++;
+    }
+    order = new int[n];
+    boolean[] ordered = new boolean[n];
+    int head = 0;
+    int tail = 0;
+    for (int i = 0; i < n; i++) {
+      if (inDegree[i] == 0) {
+        order[tail++] = i;
+        ordered[i] = true;
+      }
+    }
+    while (head < tail) {
+      int u = order[head++];
+      for (int k = all[0][u]; k < all[0][u + 1]; k++) {
+        int v = all[1][k];
+        if (--inDegree[v] == 0) {
+          order[tail++] = v;
+          ordered[v] = true;
+        }
+      }
+    }
+    for (int i = 0; i < n && tail < n; i++) {
+      if (!ordered[i]) {
+        order[tail++] = i;
+      }
+    }
+
+    // keep the edges going forward in that order
+    int[] position = new int[n];
+    for (int p = 0; p < n; p++) {
+      position[order[p]] = p;
+    }
+    int forward = 0;
+    for (int e = 0; e < edges; e++) {
+      if (position[from[e]] < position[to[e]]) {
+        from[forward] = from[e];
+        to[forward] = to[e];
+        forward++;
+      }
+    }
+    int[][] successors = adjacency(n, from, to, forward);
+    succStart = successors[0];
+    succ = successors[1];
+    int[][] predecessors = adjacency(n, to, from, forward);
+    predStart = predecessors[0];
+    pred = predecessors[1];
+
+    started = new long[n];
+    finished = new long[n];
+    failed = new boolean[n];
+    progress = new float[n];
+    skipped = new boolean[n];
+    Arrays.fill(started, UNKNOWN);
+    Arrays.fill(finished, UNKNOWN);
+    Arrays.fill(progress, -1);
+  }
+
+  private static int maxEdges(Map<String, ? extends DAGNode<? extends Job>> dagNodeNameMap) {
+    int maxEdges = 0;
+    for (DAGNode<? extends Job> node : dagNodeNameMap.values()) {
+      Collection<String> successorNames = node.getSuccessorNames();
+      maxEdges += successorNames == null ? 0 : successorNames.size();
+    }
+    return maxEdges;
+  }
+
+  /**
+   * Collects the edges between known nodes, by node index, into from and to.
+   *
+   * @return number of edges collected.
+   */
+  private int collectEdges(Map<String, ? extends DAGNode<? extends Job>> dagNodeNameMap,
+      int[] from, int[] to) {
+    int edges = 0;
+    for (int i = 0; i < names.length; i++) {
+      Collection<String> successorNames = dagNodeNameMap.get(names[i]).getSuccessorNames();
+      if (successorNames == null) {
+        continue;
+      }
+      for (String successorName : successorNames) {
+        Integer j = indexes.get(successorName);
+        if (j != null && j != i) {
+          from[edges] = i;
+          to[edges] = j;
+          edges++;
+        }
+      }
+    }
+    return edges;
+  }
+
+  /**
+   * @return the distinct edges, each as its from index in the high and its to index in the low
+   * int, sorted.
+   */
+  private static long[] edgeKeys(int[] from, int[] to, int edges) {
+    long[] keys = new long[edges];
+    for (int e = 0; e < edges; e++) {
+      keys[e] = (long) from[e] << 32 | to[e];
+    }
+    Arrays.sort(keys);
+    int distinct = 0;
+    for (int e = 0; e < edges; e++) {
+      if (distinct == 0 || keys[e] != keys[distinct - 1]) {
+        keys[distinct++] = keys[e];
+      }
+    }
+    return Arrays.copyOf(keys, distinct);
+  }
+
+  /**
+   * @return {start, adj} where the targets of node i are adj[start[i]] until adj[start[i + 1]].
+   */
+  private static int[][] adjacency(int n, int[] from, int[] to, int edges) {
+    int[] start = new int[n + 1];
+    for (int e = 0; e < edges; e++) {
+      start[from[e] + 1]++;
+    }
+    for (int i = 0; i < n; i++) {
+      start[i + 1] += start[i];
+    }
+    int[] next = Arrays.copyOf(start, n);
+    int[] adj = new int[edges];
+    for (int e = 0; e < edges; e++) {
+      adj[next[from[e]]++] = to[e];
+    }
+    return new int[][] { start, adj };
+  }
+
+  /**
+   * @return true if this analyzer was built for a DAG of exactly these nodes and edges, so it can
+   * go on analyzing this one.
+   */
+  public boolean isBuiltFor(Map<String, ? extends DAGNode<? extends Job>> dagNodeNameMap) {
+    if (dagNodeNameMap.size() != names.length
+        || !indexes.keySet().equals(dagNodeNameMap.keySet())) {
+      return false;
+    }
+    int maxEdges = maxEdges(dagNodeNameMap);
+    int[] from = new int[maxEdges];
+    int[] to = new int[maxEdges];
+    int edges = collectEdges(dagNodeNameMap, from, to);
+    return Arrays.equals(edgeKeys, edgeKeys(from, to, edges));
+  }
+
+  /**
+   * @return id of the last event applied, or -1 if none was.
+   */
+  public long getLastEventId() {
+    return lastEventId;
+  }
+
+  /**
+   * Applies an event of the workflow. Events of unknown nodes are ignored.
+   */
+  public void apply(Event event) {
+    lastEventId = Math.max(lastEventId, event.getId());
+    Object payload = event.getPayload();
+    if (!(payload instanceof DAGNode)) {
+      return;
+    }
+    DAGNode<?> node = (DAGNode<?>) payload;
+    Integer index = indexes.get(node.getName());
+    if (index == null) {
+      return;
+    }
+    int i = index;
+    long time = event.getTimestamp();
+    switch (event.getType()) {
+      case JOB_STARTED:
+        if (started[i] == UNKNOWN && finished[i] == UNKNOWN) {
+          started[i] = time;
+          analysis = null;
+        }
+        break;
+      case JOB_PROGRESS:
+        if (finished[i] == UNKNOWN) {
+          if (started[i] == UNKNOWN) {
+            started[i] = time;
+          }
+          progress[i] = getProgress(node.getJob());
+          analysis = null;
+        }
+        break;
+      case JOB_FINISHED:
+      case JOB_FAILED:
+        if (finished[i] == UNKNOWN) {
+          // jobs skipped at runtime finish without starting
+          if (started[i] == UNKNOWN) {
+            started[i] = time;
+          }
+          finished[i] = Math.max(time, started[i]);
+          failed[i] = event.getType() == Event.Type.JOB_FAILED;
+          analysis = null;
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  private static float getProgress(Job job) {
+    MapReduceJobState state = job == null ? null : job.getMapReduceJobState();
+    if (state == null) {
+      return -1;
+    }
+    return state.getTotalReducers() > 0
+        ? (state.getMapProgress() + state.getReduceProgress()) / 2
+        : state.getMapProgress();
+  }
+
+  /**
+   * @param now current time in ms since the epoch.
+   * @return the critical path as of now.
+   */
+  public CriticalPath analyze(long now) {
+    if (analysis != null && (over || analysis.getAnalyzedAt() == now)) {
+      return analysis;
+    }
+    int n = names.length;
+    long finishedTime = 0;
+    int finishedCount = 0;
+    for (int i = 0; i < n; i++) {
+      if (finished[i] != UNKNOWN) {
+        finishedTime += finished[i] - started[i];
+        finishedCount++;
+      }
+    }
+    long meanDuration = finishedCount == 0 ? 0 : finishedTime / finishedCount;
+
+    // forward pass: earliest times
+    long[] earliestStart = new long[n];
+    long[] earliestFinish = new long[n];
+    long completion = n == 0 ? now : Long.MIN_VALUE;
+    int last = -1;
+    boolean mayRun = false;
+    for (int p = 0; p < n; p++) {
+      int u = order[p];
+      skipped[u] = false;
+      if (finished[u] != UNKNOWN) {
+        earliestStart[u] = started[u];
+        earliestFinish[u] = finished[u];
+      } else if (started[u] != UNKNOWN) {
+        earliestStart[u] = started[u];
+        earliestFinish[u] = started[u] + estimateDuration(u, now, meanDuration);
+        mayRun = true;
+      } else {
+        long start = now;
+        long skippedAt = Long.MAX_VALUE;
+        for (int k = predStart[u]; k < predStart[u + 1]; k++) {
+          int v = pred[k];
+          start = Math.max(start, earliestFinish[v]);
+          if (failed[v] || skipped[v]) {
+            skipped[u] = true;
+            skippedAt = Math.min(skippedAt, earliestFinish[v]);
+          }
+        }
+        if (skipped[u]) {
+          earliestStart[u] = skippedAt;
+          earliestFinish[u] = skippedAt;
+        } else {
+          earliestStart[u] = start;
+          earliestFinish[u] = earliestStart[u] + meanDuration;
+          mayRun = true;
+        }
+      }
+      if (earliestFinish[u] > completion) {
+        completion = earliestFinish[u];
+        last = u;
+      }
+    }
+
+    // backward pass: latest times
+    long[] latestFinish = new long[n];
+    for (int p = n - 1; p >= 0; p--) {
+      int u = order[p];
+      long finish = completion;
+      for (int k = succStart[u]; k < succStart[u + 1]; k++) {
+        int v = succ[k];
+        finish = Math.min(finish, latestFinish[v] - (earliestFinish[v] - earliestStart[v]));
+      }
+      latestFinish[u] = finish;
+    }
+
+    // the path ends at the last node to finish, each preceded by its last predecessor to finish
+    boolean[] critical = new boolean[n];
+    List<String> path = new ArrayList<String>();
+    int u = last;
+    while (u >= 0) {
+      critical[u] = true;
+      path.add(names[u]);
+      int previous = -1;
+      for (int k = predStart[u]; k < predStart[u + 1]; k++) {
+        if (previous < 0 || earliestFinish[pred[k]] > earliestFinish[previous]) {
+          previous = pred[k];
+        }
+      }
+      u = previous;
+    }
+    Collections.reverse(path);
+
+    Map<String, CriticalPath.NodeSchedule> nodes =
+        new LinkedHashMap<String, CriticalPath.NodeSchedule>(n * 2);
+    for (int p = 0; p < n; p++) {
+      int v = order[p];
+      long duration = earliestFinish[v] - earliestStart[v];
+      nodes.put(names[v], new CriticalPath.NodeSchedule(getStatus(v), earliestStart[v],
+          earliestFinish[v], latestFinish[v] - duration, latestFinish[v], critical[v]));
+    }
+    analysis = new CriticalPath(now, completion, path, nodes);
+    over = !mayRun;
+    return analysis;
+  }
+
+  private long estimateDuration(int u, long now, long meanDuration) {
+    long elapsed = Math.max(0, now - started[u]);
+    long estimate = progress[u] >= MIN_PROGRESS
+        ? (long) (elapsed / Math.min(progress[u], 1f))
+        : meanDuration;
+    return Math.max(estimate, elapsed);
+  }
+
+  private CriticalPath.NodeStatus getStatus(int u) {
+    if (finished[u] != UNKNOWN) {
+      return failed[u] ? CriticalPath.NodeStatus.FAILED : CriticalPath.NodeStatus.FINISHED;
+    }
+    if (started[u] != UNKNOWN) {
+      return CriticalPath.NodeStatus.RUNNING;
+    }
+    return skipped[u] ? CriticalPath.NodeStatus.SKIPPED : CriticalPath.NodeStatus.PENDING;
+  }
+}
@@ -0,0 +1,98 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.twitter.ambrose.model.DAGNode;
+import com.twitter.ambrose.model.Event;
+import com.twitter.ambrose.model.WorkflowSummary;
+
+/**
+ * Drops the events of a finished workflow which later events supersede. Job start, finish and
+ * failure events are kept, along with the last progress event of each job and the last workflow
+ * progress event; earlier progress events only matter while the workflow runs.
+ */
+public class EventCompactor {
+
+  private EventCompactor() { }
+
+  /**
+   * @return true if workflows of this status are finished and can be compacted.
+   */
+  public static boolean isFinal(WorkflowSummary.Status status) {
+    return status == WorkflowSummary.Status.SUCCEEDED || status == WorkflowSummary.Status.FAILED;
+  }
+
+  /**
+   * @param events the events of a workflow, in id order.
+   * @return the events superseded by later ones, in id order.
+   */
+  public static List<Event> getSuperseded(Collection<Event> events) {
+    Map<String, Event> lastJobProgress = new HashMap<String, Event>();
+    Event lastWorkflowProgress = null;
+    for (Event event : events) {
+      String jobName = getJobName(event);
+      if (jobName != null) {
+        lastJobProgress.put(jobName, event);
+      } else if (event.getType() == Event.Type.WORKFLOW_PROGRESS) {
+        lastWorkflowProgress = event;
+      }
+    }
+    List<Event> superseded = new ArrayList<Event>();
+    for (Event event : events) {
+      String jobName = getJobName(event);
+      if (jobName != null ? lastJobProgress.get(jobName) != event
+          : event.getType() == Event.Type.WORKFLOW_PROGRESS && lastWorkflowProgress != event) {
+        superseded.add(event);
+      }
+    }
+    return superseded;
+  }
+
+  /**
+   * @param events the events of a workflow, in id order.
+   * @return the events to keep, in id order.
+   */
+  public static List<Event> compact(Collection<Event> events) {
+    List<Event> superseded = getSuperseded(events);
+    List<Event> kept = new ArrayList<Event>(events.size() - superseded.size());
+    int next = 0;
+    for (Event event : events) {
+      if (next < superseded.size() && superseded.get(next) == event) {
+        next++;
+      } else {
+        kept.add(event);
+      }
+    }
+    return kept;
+  }
+
+  /**
+   * @return the name of the job a job progress event is about, or null for other events.
+   */
+  private static String getJobName(Event event) {
+    if (event.getType() != Event.Type.JOB_PROGRESS) {
+      return null;
+    }
+    DAGNode<?> node = (DAGNode<?>) event.getPayload();
+    return node == null ? null : node.getName();
+  }
+}
@@ -0,0 +1,108 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Allocates event ids which are unique across all VMs sharing a Redis server, from a counter
+ * kept under the <code>{@value #EVENT_ID_KEY}</code> key. Ids start at 1 and stay below 2^53, so
+ * they are exact as Redis scores and in JavaScript.
+ * <p/>
+ * Ids of stored events are allocated by {@link #append}, which increments the counter and adds the
+ * events to their workflow's sorted set in one Lua script. Scripts run one at a time, so a reader
+ * which sees an event of a workflow also sees every event of it with a lower id, whichever VM
+ * wrote them; allocating ids first and adding the events afterwards would let a reader pass an id
+ * whose event is still on its way. This needs Redis 2.6 or later.
+ * <p/>
+ * The script prefixes each event with the id it assigns, see {@link #member}, so identical events
+ * stay apart in the sorted set. Readers take the id of a stored event from its score, and its
+ * encoding from {@link #event}; ids within the encoded events are not kept up to date.
+ */
+public class EventIdAllocator {
+  private static final String EVENT_ID_KEY = "ambrose:event_id";
+  private static final byte[] EVENT_ID_KEY_BYTES = SafeEncoder.encode(EVENT_ID_KEY);
+  /**
+   * KEYS: counter, sorted set. ARGV: channel, message, then the events. Returns the first id.
+   */
+  static final RedisConnectionPool.Script APPEND_SCRIPT = new RedisConnectionPool.Script(
+      "local count = #ARGV - 2\n"
+      + "local first = redis.call('INCRBY', KEYS[1], count) - count + 1\n"
+      + "for i = 1, count do\n"
+      + "  local id = first + i - 1\n"
+      + "  redis.call('ZADD', KEYS[2], id, string.format('%d:', id) .. ARGV[i + 2])\n"
+      + "end\n"
+      + "redis.call('PUBLISH', ARGV[1], ARGV[2])\n"
+      + "return first\n");
+
+  private final RedisConnectionPool redis;
+
+  public EventIdAllocator(RedisConnectionPool redis) {
+    this.redis = redis;
+  }
+
+  /**
+   * Adds events to a sorted set, scored with consecutive ids allocated as they are added, then
+   * publishes a message.
+   *
+   * @param key key of the sorted set.
+   * @param events encoded events, in the order they should get ids.
+   * @param channel channel to publish to.
+   * @param message message to publish.
+   * @return the id of the first event.
+   * @throws IOException if the events couldn't be added.
+   */
+  public long append(byte[] key, List<byte[]> events, String channel, String message)
+      throws IOException {
+    List<byte[]> keys = Arrays.asList(EVENT_ID_KEY_BYTES, key);
+    List<byte[]> args = new ArrayList<byte[]>(events.size() + 2);
+    args.add(SafeEncoder.encode(channel));
+    args.add(SafeEncoder.encode(message));
+    args.addAll(events);
+    return (Long) redis.eval(APPEND_SCRIPT, keys, args);
+  }
+
+  /**
+   * @return the sorted set member of an encoded event with an id, as {@link #append} adds it.
+   */
+  public static byte[] member(long id, byte[] event) {
+    byte[] prefix = SafeEncoder.encode(id + ":");
+    byte[] member = new byte[prefix.length + event.length];
+    System.arraycopy(prefix, 0, member, 0, prefix.length);
+    System.arraycopy(event, 0, member, prefix.length, event.length);
+    return member;
+  }
+
+  /**
+   * @return the encoded event of a sorted set member. Members written without an id prefix are
+   * returned as they are.
+   */
+  public static byte[] event(byte[] member) {
+    int i = 0;
+    while (i < member.length && member[i] >= '0' && member[i] <= '9') {
+      i++;
+    }
+    if (i == 0 || i == member.length || member[i] != ':') {
+      return member;
+    }
+    return Arrays.copyOfRange(member, i + 1, member.length);
+  }
+}
@@ -0,0 +1,607 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.twitter.ambrose.model.Event;
+
+/**
+ * Append-only journal of the events of one workflow, kept in a directory of memory-mapped segment
+ * files. Each record holds its length, the event id and the event encoded with a
+ * {@link StorageCodec}; records are ordered by id. Segments are named after the id of their first
+ * event and are <code>segmentBytes</code> long, or longer if a single event needs it.
+ * <p/>
+ * Every <code>indexInterval</code>th record of a segment is noted in a sparse in-memory index of
+ * ids and offsets. A read seeks to the last noted record at or before its cursor, then scans
+ * forward reading only record headers until it reaches the cursor, so earlier events are never
+ * decoded. Reads share the journal's read lock while they scan; appends, rewrites and
+ * {@link #close} take its write lock.
+ * <p/>
+ * Opening a journal recovers it by scanning the record headers of its segments, so a journal
+ * written by an earlier VM can be read right away. A record is only counted once its length has
+ * been written, which happens last, so a record cut short by a crash is ignored. Journals can be
+ * rewritten as a whole with {@link #rewrite}, which swaps directories so readers either see the old
+ * or the new events.
+ * <p/>
+ * Another VM may be appending to the journal while this one reads it, see {@link #openShared}.
+ * Each read first checks, under the read lock, whether the last segment has records past its end
+ * or the directory changed, i.e. a segment was added or the journal rewritten. Only then does it
+ * take the write lock, to scan the new records or map the segments again. A closed journal unmaps
+ * its segments and maps them again on next use.
+ */
+public class EventJournal {
+  private static final Logger LOG = LoggerFactory.getLogger(EventJournal.class);
+  private static final String SEGMENT_PREFIX = "events-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String NEW_DIR_SUFFIX = ".new";
+  private static final String OLD_DIR_SUFFIX = ".old";
+  /** record length and event id */
+  private static final int HEADER_BYTES = 4 + 8;
+  /** coarsest modification time resolution of the supported file systems */
+  private static final long MODIFIED_TICK_MS = 1000;
+
+  private static final Comparator<File> BY_FIRST_ID = new Comparator<File>() {
+    @Override
+    public int compare(File a, File b) {
+      long aId = firstId(a);
+      long bId = firstId(b);
+      return aId < bId ? -1 : (aId == bId ? 0 : 1);
+    }
+  };
+
+  /**
+   * A mapped segment file, guarded by the journal's lock.
+   */
+  private static class Segment {
+    private final File file;
+    private final MappedByteBuffer buffer;
+    /** end of the last complete record */
+    private int end = 0;
+    /** ids and offsets of every indexInterval-th record */
+    private long[] indexIds = new long[16];
+    private int[] indexOffsets = new int[16];
+    private int indexSize = 0;
+    private int records = 0;
+    private long firstId = -1;
+    private long lastId = -1;
+
+    private Segment(File file, MappedByteBuffer buffer) {
+      this.file = file;
+      this.buffer = buffer;
+    }
+
+    private void note(long id, int offset, int indexInterval) {
+      if (records % indexInterval == 0) {
+        if (indexSize == indexIds.length) {
+          indexIds = Arrays.copyOf(indexIds, indexSize * 2);
+          indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+        }
+        indexIds[indexSize] = id;
+        indexOffsets[indexSize] = offset;
+        indexSize++;
+      }
+      if (records == 0) {
+        firstId = id;
+      }
+      records++;
+      lastId = id;
+    }
+
+    /**
+     * @return offset of the last noted record with an id at or below eventId, or 0.
+     */
+    private int seek(long eventId) {
+      int low = 0;
+      int high = indexSize - 1;
+      int found = -1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        if (indexIds[mid] <= eventId) {
+          found = mid;
+          low = mid + 1;
+        } else {
+          high = mid - 1;
+        }
+      }
+      return found < 0 ? 0 : indexOffsets[found];
+    }
+  }
+
+  private final File dir;
+  private final StorageCodec codec;
+  private final int segmentBytes;
+  private final int indexInterval;
+  /**
+   * Guards the mappings and indexes of the segments. The journal's monitor, which appends and
+   * rewrites hold, is always taken before it.
+   */
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  /** open segments, or null once closed */
+  private List<Segment> segments;
+  /** last modified time of dir when the segments were mapped */
+  private long dirModified;
+  /** whether any later change to dir gets a new modified time */
+  private boolean dirSettled;
+
+  /**
+   * Opens the journal in dir, creating it if needed.
+   *
+   * @param dir directory holding the journal's segments.
+   * @param codec codec of the journaled events.
+   * @param segmentBytes size of new segment files.
+   * @param indexInterval number of records per sparse index entry.
+   * @throws IOException if the journal couldn't be opened.
+   */
+  public EventJournal(File dir, StorageCodec codec, int segmentBytes, int indexInterval)
+      throws IOException {
+    this(dir, codec, segmentBytes, indexInterval, true);
+  }
+
+  private EventJournal(File dir, StorageCodec codec, int segmentBytes, int indexInterval,
+      boolean recover) throws IOException {
+    this.dir = dir;
+    this.codec = codec;
+    this.segmentBytes = Math.max(HEADER_BYTES, segmentBytes);
+    this.indexInterval = Math.max(1, indexInterval);
+    if (recover) {
+      recoverDirectories();
+    }
+    lock.writeLock().lock();
+    try {
+      reopen();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Opens a journal another VM may be writing. Unlike the constructor it leaves interrupted
+   * rewrites alone, since they may still be in progress, and doesn't create the directory.
+   *
+   * @param dir directory holding the journal's segments.
+   * @param codec codec of the journaled events.
+   * @param segmentBytes size of new segment files.
+   * @param indexInterval number of records per sparse index entry.
+   * @return the journal.
+   * @throws IOException if the journal couldn't be opened.
+   */
+  public static EventJournal openShared(File dir, StorageCodec codec, int segmentBytes,
+      int indexInterval) throws IOException {
+    return new EventJournal(dir, codec, segmentBytes, indexInterval, false);
+  }
+
+  /**
+   * Finishes or rolls back a rewrite interrupted by a crash, as the constructor does. For journals
+   * opened with {@link #openShared} that this VM writes from now on.
+   *
+   * @throws IOException if the journal couldn't be recovered.
+   */
+  public synchronized void recover() throws IOException {
+    lock.writeLock().lock();
+    try {
+      recoverDirectories();
+      reopen();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private static long firstId(File segment) {
+    String name = segment.getName();
+    return Long.parseLong(
+        name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  private static boolean isSegment(File file) {
+    String name = file.getName();
+    return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+  }
+
+  private File sibling(String suffix) {
+    return new File(dir.getParentFile(), dir.getName() + suffix);
+  }
+
+  /**
+   * Finishes or rolls back a rewrite interrupted by a crash. The new directory is only moved in
+   * place once complete, so it is used if the journal directory is missing and dropped otherwise.
+   */
+  private void recoverDirectories() throws IOException {
+    File newDir = sibling(NEW_DIR_SUFFIX);
+    if (!dir.exists() && newDir.exists() && !newDir.renameTo(dir)) {
+      throw new IOException("Could not move " + newDir + " to " + dir);
+    }
+    deleteDirectory(newDir);
+    deleteDirectory(sibling(OLD_DIR_SUFFIX));
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create " + dir);
+    }
+  }
+
+  private static void deleteDirectory(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (!file.delete()) {
+          LOG.warn("Could not delete {}", file);
+        }
+      }
+    }
+    if (dir.exists() && !dir.delete()) {
+      LOG.warn("Could not delete {}", dir);
+    }
+  }
+
+  /**
+   * Maps the segments in dir, unmapping those mapped before. Guarded by the write lock.
+   */
+  private void reopen() throws IOException {
+    // read first, so changes made while listing are seen by the next refresh
+    long now = System.currentTimeMillis();
+    dirModified = dir.lastModified();
+    dirSettled = now - dirModified >= MODIFIED_TICK_MS;
+    File[] files = dir.listFiles();
+    List<File> segmentFiles = new ArrayList<File>();
+    if (files != null) {
+      for (File file : files) {
+        if (isSegment(file)) {
+          segmentFiles.add(file);
+        }
+      }
+    }
+    Collections.sort(segmentFiles, BY_FIRST_ID);
+    List<Segment> opened = new ArrayList<Segment>(segmentFiles.size());
+    for (File file : segmentFiles) {
+      Segment segment = new Segment(file, map(file, file.length()));
+      scan(segment);
+      if (segment.records > 0) {
+        opened.add(segment);
+      } else {
+        unmap(segment.buffer);
+      }
+    }
+    if (segments != null) {
+      unmapAll(segments);
+    }
+    segments = opened;
+  }
+
+  /**
+   * Picks up changes made by other VMs and maps the segments again if the journal was closed.
+   * Guarded by the write lock.
+   */
+  private void refresh() throws IOException {
+    // a change within the tick of the last one may keep its modified time
+    if (segments == null || !dirSettled || dir.lastModified() != dirModified) {
+      reopen();
+    } else if (!segments.isEmpty()) {
+      scan(segments.get(segments.size() - 1));
+    }
+  }
+
+  /**
+   * @return true if {@link #refresh} would change anything. Guarded by the read lock.
+   */
+  private boolean isStale() {
+    if (segments == null || !dirSettled || dir.lastModified() != dirModified) {
+      return true;
+    }
+    if (segments.isEmpty()) {
+      return false;
+    }
+    // the same check as the first step of scan
+    Segment last = segments.get(segments.size() - 1);
+    ByteBuffer buffer = last.buffer;
+    if (last.end + HEADER_BYTES > buffer.capacity()) {
+      return false;
+    }
+    int length = buffer.getInt(last.end);
+    return length > 0 && last.end + HEADER_BYTES + length <= buffer.capacity();
+  }
+
+  /**
+   * Takes the read lock on a refreshed journal. The write lock is only taken if the journal
+   * changed since it was last refreshed.
+   */
+  private void lockForRead() throws IOException {
+    lock.readLock().lock();
+    if (!isStale()) {
+      return;
+    }
+    // the read lock can't be upgraded
+    lock.readLock().unlock();
+    lock.writeLock().lock();
+    try {
+      refresh();
+      // downgraded, so no close gets in between
+      lock.readLock().lock();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private static MappedByteBuffer map(File file, long size) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      // the mapping stays valid once the file is closed
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static void unmapAll(List<Segment> segments) {
+    for (Segment segment : segments) {
+      unmap(segment.buffer);
+    }
+  }
+
+  /**
+   * Releases a mapping now rather than when its buffer is collected. The buffer must not be used
+   * afterwards.
+   */
+  private static void unmap(MappedByteBuffer buffer) {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner;
+      try {
+        invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      } catch (NoSuchMethodException e) {
+        // before Java 9
+        Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        Object cleaner = cleanerMethod.invoke(buffer);
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+        return;
+      }
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      invokeCleaner.invoke(theUnsafe.get(null), buffer);
+    } catch (Exception e) {
+      LOG.debug("Could not unmap segment, leaving it to the garbage collector", e);
+    }
+  }
+
+  /**
+   * Adds the records written to a segment past its end to its index.
+   */
+  private void scan(Segment segment) {
+    ByteBuffer buffer = segment.buffer;
+    int offset = segment.end;
+    while (offset + HEADER_BYTES <= buffer.capacity()) {
+      int length = buffer.getInt(offset);
+      if (length <= 0 || offset + HEADER_BYTES + length > buffer.capacity()) {
+        break;
+      }
+      segment.note(buffer.getLong(offset + 4), offset, indexInterval);
+      offset += HEADER_BYTES + length;
+    }
+    segment.end = offset;
+  }
+
+  /**
+   * Appends events, giving each the next id of idSource. Ids are assigned under the journal's
+   * lock, so if idSource is shared between journals events still get appended in id order.
+   *
+   * @param events events to append.
+   * @param idSource source of event ids.
+   * @throws IOException if an event couldn't be encoded or a segment couldn't be created.
+   */
+  public synchronized void append(Collection<Event> events, AtomicLong idSource)
+      throws IOException {
+    lock.writeLock().lock();
+    try {
+      refresh();
+      for (Event event : events) {
+        event.setId(idSource.getAndIncrement());
+        write(event);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Guarded by the write lock.
+   */
+  private void write(Event event) throws IOException {
+    byte[] bytes = codec.encode(event);
+    int recordBytes = HEADER_BYTES + bytes.length;
+    Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    if (segment == null || segment.end + recordBytes > segment.buffer.capacity()) {
+      File file = new File(dir, String.format("%s%020d%s",
+          SEGMENT_PREFIX, event.getId(), SEGMENT_SUFFIX));
+      segment = new Segment(file, map(file, Math.max(segmentBytes, recordBytes)));
+      segments.add(segment);
+      // no other VM writes the journal, so the change is known
+      dirModified = dir.lastModified();
+      dirSettled = true;
+    }
+    int offset = segment.end;
+    ByteBuffer buffer = segment.buffer.duplicate();
+    buffer.putLong(offset + 4, event.getId());
+    buffer.position(offset + HEADER_BYTES);
+    buffer.put(bytes);
+    // length last, so a record cut short is never read
+    buffer.putInt(offset, bytes.length);
+    segment.note(event.getId(), offset, indexInterval);
+    segment.end = offset + recordBytes;
+  }
+
+  /**
+   * @param eventId id of the last event the caller has.
+   * @param maxEvents max number of events to return.
+   * @return the first maxEvents events with an id above eventId, in id order.
+   * @throws IOException if the segments couldn't be mapped.
+   */
+  public List<Event> getEventsSinceId(long eventId, int maxEvents) throws IOException {
+    lockForRead();
+    try {
+      int index = 0;
+      for (int i = segments.size() - 1; i > 0; i--) {
+        if (segments.get(i).firstId <= eventId) {
+          index = i;
+          break;
+        }
+      }
+      int offset = segments.isEmpty() ? 0 : segments.get(index).seek(eventId);
+
+      List<Event> events = new ArrayList<Event>();
+      for (; index < segments.size() && events.size() < maxEvents; index++, offset = 0) {
+        Segment segment = segments.get(index);
+        ByteBuffer buffer = segment.buffer.duplicate();
+        while (offset < segment.end && events.size() < maxEvents) {
+          int length = buffer.getInt(offset);
+          if (buffer.getLong(offset + 4) > eventId) {
+            byte[] bytes = new byte[length];
+            buffer.position(offset + HEADER_BYTES);
+            buffer.get(bytes);
+            try {
+              events.add(codec.decode(bytes, Event.TYPE));
+            } catch (IOException e) {
+              LOG.error("Could not parse " + length + " byte event in " + segment.file, e);
+            }
+          }
+          offset += HEADER_BYTES + length;
+        }
+      }
+      return events;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the id of the last event, or -1 if there is none.
+   * @throws IOException if the segments couldn't be mapped.
+   */
+  public long getLastId() throws IOException {
+    lockForRead();
+    try {
+      return segments.isEmpty() ? -1 : segments.get(segments.size() - 1).lastId;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return total size of the journal's segment files, or 0 if it is closed.
+   */
+  public long getSizeBytes() {
+    lock.readLock().lock();
+    try {
+      long bytes = 0;
+      for (Segment segment : segments == null ? Collections.<Segment>emptyList() : segments) {
+        bytes += segment.buffer.capacity();
+      }
+      return bytes;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Writes changes to the journal's segments through to disk.
+   */
+  public void force() {
+    lock.readLock().lock();
+    try {
+      for (Segment segment : segments == null ? Collections.<Segment>emptyList() : segments) {
+        segment.buffer.force();
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Unmaps the journal's segments. They are mapped again when the journal is next used.
+   */
+  public void close() {
+    lock.writeLock().lock();
+    try {
+      if (segments != null) {
+        unmapAll(segments);
+        segments = null;
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Replaces all events of the journal. A new journal is written next to this one and moved in
+   * place once complete, so a crash leaves either the old or the new events.
+   *
+   * @param events the new events, ordered by id.
+   * @throws IOException if the new journal couldn't be written or moved in place.
+   */
+  public synchronized void rewrite(List<Event> events) throws IOException {
+    File newDir = sibling(NEW_DIR_SUFFIX);
+    File oldDir = sibling(OLD_DIR_SUFFIX);
+    deleteDirectory(newDir);
+    EventJournal rewritten = new EventJournal(newDir, codec, segmentBytes, indexInterval);
+    rewritten.writeAll(events);
+    rewritten.force();
+    rewritten.close();
+    lock.writeLock().lock();
+    try {
+      if (!dir.renameTo(oldDir)) {
+        throw new IOException("Could not move " + dir + " to " + oldDir);
+      }
+      if (!newDir.renameTo(dir)) {
+        throw new IOException("Could not move " + newDir + " to " + dir);
+      }
+      // no reader holds the old mappings
+      reopen();
+      deleteDirectory(oldDir);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Appends events keeping their ids.
+   */
+  private void writeAll(List<Event> events) throws IOException {
+    lock.writeLock().lock();
+    try {
+      for (Event event : events) {
+        write(event);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+}
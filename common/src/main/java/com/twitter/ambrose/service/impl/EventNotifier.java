@@ -0,0 +1,169 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets threads wait for new events of a workflow. Each workflow has a version which writers bump
+ * through {@link #notifyEvents}; readers take the version before checking for events and then wait
+ * for it to change, so a notification arriving between the check and the wait isn't lost.
+ * <p/>
+ * Callers which shouldn't hold a thread while waiting, such as suspended requests, instead add a
+ * listener before checking for events, which is run once by the next notification of the workflow.
+ * <p/>
+ * Only watched workflows are tracked, notifying any other workflow is a no-op.
+ */
+public class EventNotifier {
+
+  private static class Signal {
+    private long version;
+    private int waiters;
+    private final List<Runnable> listeners = new ArrayList<Runnable>();
+  }
+
+  private final Map<String, Signal> signals = new HashMap<String, Signal>();
+
+  /**
+   * Registers interest in a workflow. Must be paired with a call to {@link #unwatch}.
+   *
+   * @param workflowId workflow to watch.
+   * @return the current version of the workflow.
+   */
+  public synchronized long watch(String workflowId) {
+    Signal signal = signals.get(workflowId);
+    if (signal == null) {
+      signal = new Signal();
+      signals.put(workflowId, signal);
+    }
+    signal.waiters++;
+    return signal.version;
+  }
+
+  /**
+   * Releases interest registered by {@link #watch}.
+   *
+   * @param workflowId workflow passed to {@link #watch}.
+   */
+  public synchronized void unwatch(String workflowId) {
+    Signal signal = signals.get(workflowId);
+    if (signal != null && --signal.waiters == 0) {
+      signals.remove(workflowId);
+    }
+  }
+
+  /**
+   * Waits for the version of a watched workflow to move past the given one, or until timeout
+   * passes.
+   *
+   * @param workflowId workflow passed to {@link #watch}.
+   * @param version version returned by {@link #watch}.
+   * @param timeoutMs max time to wait.
+   * @return true if notified, false on timeout.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public synchronized boolean await(String workflowId, long version, long timeoutMs)
+      throws InterruptedException {
+    Signal signal = signals.get(workflowId);
+    if (signal == null) {
+      throw new IllegalStateException("Workflow " + workflowId + " is not watched");
+    }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    long remaining = timeoutMs;
+    while (signal.version == version && remaining > 0) {
+      wait(remaining);
+      remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    }
+    return signal.version != version;
+  }
+
+  /**
+   * Registers a listener run once by the next notification of a workflow, then dropped. Listeners
+   * are run on the notifying thread, so they must be quick and must not block.
+   *
+   * @param workflowId workflow to listen to.
+   * @param listener run when the workflow may have new events.
+   */
+  public synchronized void addListener(String workflowId, Runnable listener) {
+    watch(workflowId);
+    signals.get(workflowId).listeners.add(listener);
+  }
+
+  /**
+   * Drops a listener added by {@link #addListener}, unless it has already been run.
+   *
+   * @param workflowId workflow passed to {@link #addListener}.
+   * @param listener listener passed to {@link #addListener}.
+   */
+  public synchronized void removeListener(String workflowId, Runnable listener) {
+    Signal signal = signals.get(workflowId);
+    if (signal != null && signal.listeners.remove(listener)) {
+      unwatch(workflowId);
+    }
+  }
+
+  /**
+   * Wakes all threads waiting for events of a workflow and runs its listeners.
+   *
+   * @param workflowId workflow which has new events.
+   */
+  public void notifyEvents(String workflowId) {
+    List<Runnable> listeners = new ArrayList<Runnable>();
+    synchronized (this) {
+      Signal signal = signals.get(workflowId);
+      if (signal != null) {
+        signal.version++;
+        takeListeners(workflowId, signal, listeners);
+        notifyAll();
+      }
+    }
+    runListeners(listeners);
+  }
+
+  /**
+   * Wakes all waiting threads and runs all listeners, e.g. when notifications may have been missed.
+   */
+  public void notifyAllEvents() {
+    List<Runnable> listeners = new ArrayList<Runnable>();
+    synchronized (this) {
+      for (Map.Entry<String, Signal> entry : new ArrayList<Map.Entry<String, Signal>>(
+          signals.entrySet())) {
+        entry.getValue().version++;
+        takeListeners(entry.getKey(), entry.getValue(), listeners);
+      }
+      notifyAll();
+    }
+    runListeners(listeners);
+  }
+
+  private void takeListeners(String workflowId, Signal signal, List<Runnable> listeners) {
+    for (Runnable listener : signal.listeners) {
+      listeners.add(listener);
+      unwatch(workflowId);
+    }
+    signal.listeners.clear();
+  }
+
+  private static void runListeners(List<Runnable> listeners) {
+    for (Runnable listener : listeners) {
+      listener.run();
+    }
+  }
+}
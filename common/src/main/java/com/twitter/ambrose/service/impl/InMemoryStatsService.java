@@ -20,21 +20,25 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TimeZone;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Maps;
+import com.google.common.io.BaseEncoding;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,55 +48,219 @@ import com.twitter.ambrose.model.Event;
 import com.twitter.ambrose.model.Job;
 import com.twitter.ambrose.model.PaginatedList;
 import com.twitter.ambrose.model.WorkflowSummary;
-import com.twitter.ambrose.service.StatsReadService;
-import com.twitter.ambrose.service.StatsWriteService;
+import com.twitter.ambrose.service.BlockingStatsReadService;
+import com.twitter.ambrose.service.ReplayableStatsService;
+import com.twitter.ambrose.service.SerializedDagReadService;
+import com.twitter.ambrose.service.SerializedDagReadService.SerializedDag;
 import com.twitter.ambrose.service.WorkflowIndexReadService;
 import com.twitter.ambrose.util.JSONUtil;
 
-import redis.clients.jedis.*;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Tuple;
+import redis.clients.util.SafeEncoder;
 
 /**
  * In-memory implementation of both StatsReadService and StatsWriteService. Used when stats
- * collection and stats serving are happening within the same VM. This class is intended to run in a
- * VM that only handles a single workflow. Hence it ignores workflowId.
+ * collection and stats serving are happening within the same VM.
  * <p/>
- * Upon job completion this class can optionally write all json data to disk. This is useful for
- * debugging. The written files can also be replayed in the Ambrose UI without re-running the Job
- * via the <code>bin/demo</code> script. To write all json data to disk, set the following values as
- * system properties using <code>-D</code>:
- * <pre>
- *   <ul>
- *     <li><code>{@value #DUMP_WORKFLOW_FILE_PARAM}</code> - file in which to write the workflow
- * json.</li>
- *     <li><code>{@value #DUMP_EVENTS_FILE_PARAM}</code> - file in which to write the events
- * json.</li>
- *   </ul>
- * </pre>
+ * Upon job completion this class can optionally write the workflow json to disk, which is useful
+ * for debugging. To do so, set the <code>{@value #DUMP_WORKFLOW_FILE_PARAM}</code> system property
+ * to the file in which to write it using <code>-D</code>. To keep events on disk, so that workflows
+ * can be replayed without re-running them, use {@link JournalStatsService} instead.
+ * <p/>
+ * Workflow data is stored in Redis through a {@link RedisConnectionPool}, see that class for the
+ * connection settings. Job details sent through {@link #sendJob} are kept in a hash per workflow,
+ * named after the workflow id with a <code>{@value #JOBS_KEY_SUFFIX}</code> suffix. Values are
+ * encoded with a {@link StorageCodec}, see that class for how to choose one. Parsed events are
+ * kept in a {@link WorkflowEventCache}, which can be sized with the
+ * <code>{@value #EVENT_CACHE_WORKFLOWS_PARAM}</code>,
+ * <code>{@value #EVENT_CACHE_EVENTS_PARAM}</code>,
+ * <code>{@value #EVENT_CACHE_REFRESH_MS_PARAM}</code> and
+ * <code>{@value #EVENT_CACHE_IDLE_MS_PARAM}</code> system properties. Parsed DAGs and their
+ * serialized nodes are kept in a {@link WorkflowDagCache}, sized with the
+ * <code>{@value #DAG_CACHE_WORKFLOWS_PARAM}</code> and
+ * <code>{@value #DAG_CACHE_REFRESH_MS_PARAM}</code> system properties. Each write of a DAG bumps
+ * its version in the <code>workflow_version</code> hash, so other VMs reload it.
+ * <p/>
+ * Writers publish the id of each workflow they add events to on the
+ * <code>{@value #EVENTS_CHANNEL}</code> Redis channel. Readers waiting in
+ * {@link #waitForEventsSinceId} subscribe to it, so they are woken as soon as events are written
+ * by this or any other VM, as are listeners added through {@link #addEventListener}. While the
+ * subscription is down waiting readers fall back to checking for events every
+ * {@value #UNSUBSCRIBED_POLL_MS} ms.
+ * <p/>
+ * Events pushed to this service get ids from an {@link EventIdAllocator}, so ids are unique and
+ * increasing across all VMs writing to the same Redis server, in the order events are stored, so
+ * readers never pass an id whose event is yet to come. This needs Redis 2.6 or later. Replayed
+ * events keep their ids. Stored events are prefixed with their ids, see
+ * {@link EventIdAllocator#member}.
+ * <p/>
+ * A summary is kept per workflow written to, starting from the stored one if this VM hasn't
+ * written the workflow before. Summaries are only written when their status or progress changes;
+ * progress changes alone are written at most once per
+ * <code>{@value #SUMMARY_WRITE_INTERVAL_MS_PARAM}</code> ms (default
+ * {@value #DEFAULT_SUMMARY_WRITE_INTERVAL_MS}), so the stored progress may lag until the next event
+ * of the workflow. Summaries of finished workflows are dropped from memory once written.
+ * <p/>
+ * Workflow summaries are indexed by creation time in sorted sets, one over all workflows and one
+ * per status, user and user and status, so {@link #getWorkflows} reads only the requested page.
+ * Summaries written before the indexes existed are indexed on the first call to getWorkflows.
+ * <p/>
+ * When a workflow succeeds or fails, the events superseded by later ones are removed from its
+ * sorted set, see {@link EventCompactor}.
+ * <p/>
+ * Workflows older than the time to live of their status are swept out of Redis by a
+ * {@link WorkflowRetention}, see that class for the settings and how to choose the VMs which sweep.
+ * Sweeps of all VMs take turns through the <code>{@value #SWEEP_LOCK_KEY}</code> Redis key. If a
+ * {@link WorkflowArchive} is configured swept workflows are moved into it, and the DAGs, jobs and
+ * events of workflows no longer in Redis are read from it. Whether a workflow read from is still
+ * in Redis is checked at most every {@value #STORED_RECHECK_MS} ms, so a workflow swept by another
+ * VM may read as empty for that long. Swept workflows are no longer listed by
+ * {@link #getWorkflows}.
  */
-public class InMemoryStatsService implements StatsReadService, StatsWriteService<Job>,
-    WorkflowIndexReadService {
+public class InMemoryStatsService implements BlockingStatsReadService<Job>,
+    SerializedDagReadService<Job>, ReplayableStatsService<Job>, WorkflowIndexReadService {
   private static final Logger LOG = LoggerFactory.getLogger(InMemoryStatsService.class);
   private static final String DUMP_WORKFLOW_FILE_PARAM = "ambrose.write.dag.file";
-  private static final String DUMP_EVENTS_FILE_PARAM = "ambrose.write.events.file";
-  private static final int ZRANGEBYSCORE_MAX = 10000;
-  private final WorkflowSummary summary = new WorkflowSummary(null,
-      System.getProperty("user.name", "unknown"), "unknown", null, 0, System.currentTimeMillis());
-  private final PaginatedList<WorkflowSummary> summaries =
-      new PaginatedList<WorkflowSummary>(ImmutableList.of(summary));
-  private boolean jobFailed = false;
-  private Map<String, DAGNode<Job>> dagNodeNameMap = Maps.newHashMap();
-  private Map<String,Map<String, DAGNode<Job>>> wfDagNodeNameMap = Maps.newHashMap();
-  private SortedMap<Integer, Event> eventMap = new ConcurrentSkipListMap<Integer, Event>();
+  private static final String EVENT_CACHE_WORKFLOWS_PARAM = "ambrose.event.cache.workflows";
+  private static final String EVENT_CACHE_EVENTS_PARAM = "ambrose.event.cache.events";
+  private static final String EVENT_CACHE_REFRESH_MS_PARAM = "ambrose.event.cache.refresh.ms";
+  private static final String EVENT_CACHE_IDLE_MS_PARAM = "ambrose.event.cache.idle.ms";
+  private static final String DAG_CACHE_WORKFLOWS_PARAM = "ambrose.dag.cache.workflows";
+  private static final String DAG_CACHE_REFRESH_MS_PARAM = "ambrose.dag.cache.refresh.ms";
+  private static final String SUMMARY_WRITE_INTERVAL_MS_PARAM =
+      "ambrose.summary.write.interval.ms";
+  private static final String EVENTS_CHANNEL = "ambrose:events";
+  private static final String JOBS_KEY_SUFFIX = ":jobs";
+  private static final String SWEEP_LOCK_KEY = "ambrose:sweep_lock";
+  /** sets the lock to ARGV[1] with a ttl of ARGV[2] ms, unless it is set */
+  static final RedisConnectionPool.Script LOCK_SCRIPT = new RedisConnectionPool.Script(
+      "if redis.call('setnx', KEYS[1], ARGV[1]) == 1 then\n"
+      + "  redis.call('pexpire', KEYS[1], ARGV[2])\n"
+      + "  return 1\n"
+      + "end\n"
+      + "return 0\n");
+  /** deletes the lock if it is still set to ARGV[1] */
+  static final RedisConnectionPool.Script UNLOCK_SCRIPT = new RedisConnectionPool.Script(
+      "if redis.call('get', KEYS[1]) == ARGV[1] then\n"
+      + "  return redis.call('del', KEYS[1])\n"
+      + "end\n"
+      + "return 0\n");
+  /**
+   * deletes workflow ARGV[1], given its summary hash, events, dag hash, dag version hash, jobs and
+   * index keys, unless its summary changed from ARGV[2] or its number of events from ARGV[3]
+   */
+  static final RedisConnectionPool.Script REMOVE_SCRIPT = new RedisConnectionPool.Script(
+      "if redis.call('hget', KEYS[1], ARGV[1]) ~= ARGV[2]\n"
+      + "    or redis.call('zcard', KEYS[2]) ~= tonumber(ARGV[3]) then\n"
+      + "  return 0\n"
+      + "end\n"
+      + "redis.call('hdel', KEYS[1], ARGV[1])\n"
+      + "redis.call('del', KEYS[2], KEYS[5])\n"
+      + "redis.call('hdel', KEYS[3], ARGV[1])\n"
+      + "redis.call('hdel', KEYS[4], ARGV[1])\n"
+      + "for i = 6, #KEYS do\n"
+      + "  redis.call('zrem', KEYS[i], ARGV[1])\n"
+      + "end\n"
+      + "return 1\n");
+  private static final byte[] WORKFLOW_KEY = SafeEncoder.encode("workflow");
+  private static final byte[] WORKFLOW_VERSION_KEY = SafeEncoder.encode("workflow_version");
+  private static final byte[] WORKFLOW_SUMMARY_KEY = SafeEncoder.encode("wf_sum");
+  private static final String WORKFLOW_INDEX_KEY = "wf_idx";
+  private static final long UNSUBSCRIBED_POLL_MS = 1000;
+  private static final long DEFAULT_SUMMARY_WRITE_INTERVAL_MS = 1000;
+  private static final long STORED_RECHECK_MS = 60 * 1000;
+  private static final int MAX_STORED_WORKFLOWS = 1000;
+
+  /**
+   * Summary of a workflow written by this VM, and what of it was last written. Summaries are
+   * encoded and written to Redis under the state's lock, so they are stored in the order they were
+   * encoded.
+   */
+  private static class SummaryState {
+    /** guarded by this */
+    private final WorkflowSummaryIndex.Tracker tracker;
+    /** status the workflow is indexed under, or null if not indexed yet */
+    private WorkflowSummary.Status indexedStatus;
+    private long writtenMs = 0;
+    private boolean dirty = false;
+
+    private SummaryState(WorkflowSummaryIndex.Tracker tracker,
+        WorkflowSummary.Status indexedStatus) {
+      this.tracker = tracker;
+      this.indexedStatus = indexedStatus;
+    }
+  }
+
+  private final ConcurrentMap<String, SummaryState> summaryStates =
+      new ConcurrentHashMap<String, SummaryState>();
+  private final long summaryWriteIntervalMs;
+  private final WorkflowEventCache eventCache;
+  private final WorkflowDagCache dagCache;
+  private final EventNotifier notifier = new EventNotifier();
+  private Thread subscriber;
+  private volatile boolean subscribed = false;
+  private volatile boolean indexChecked = false;
   private Writer workflowWriter;
-  private Writer eventsWriter;
-  private boolean eventWritten = false;
-  private Jedis jedis;
+  private final RedisConnectionPool redis;
+  private final StorageCodec codec;
+  private final EventIdAllocator eventIds;
+  private final WorkflowArchive archive;
+  private final WorkflowRetention retention;
+  /** when workflows were last found in Redis by {@link #readRemoved}, guarded by itself */
+  private final Map<String, Long> storedWorkflows =
+      new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+          return size() > MAX_STORED_WORKFLOWS;
+        }
+      };
 
   public InMemoryStatsService() {
+    this(RedisConnectionPool.fromSystemProperties());
+  }
+
+  public InMemoryStatsService(RedisConnectionPool redis) {
+    this(redis, StorageCodec.fromSystemProperties());
+  }
+
+  public InMemoryStatsService(RedisConnectionPool redis, StorageCodec codec) {
     String dumpWorkflowFileName = System.getProperty(DUMP_WORKFLOW_FILE_PARAM);
-    String dumpEventsFileName = System.getProperty(DUMP_EVENTS_FILE_PARAM);
-    
-    jedis = new Jedis("localhost");
+
+    this.redis = redis;
+    this.codec = codec;
+    this.summaryWriteIntervalMs =
+        Long.getLong(SUMMARY_WRITE_INTERVAL_MS_PARAM, DEFAULT_SUMMARY_WRITE_INTERVAL_MS);
+    this.eventIds = new EventIdAllocator(redis);
+    this.eventCache = new WorkflowEventCache(new WorkflowEventCache.Loader() {
+      @Override
+      public List<Event> loadEvents(String workflowId, long minId, int maxEvents)
+          throws IOException {
+        return readEvents(workflowId, minId, maxEvents);
+      }
+
+      @Override
+      public List<Event> loadLatestEvents(String workflowId, int maxEvents) throws IOException {
+        return readLatestEvents(workflowId, maxEvents);
+      }
+    }, Integer.getInteger(EVENT_CACHE_WORKFLOWS_PARAM, 100),
+        Integer.getInteger(EVENT_CACHE_EVENTS_PARAM, 10000),
+        Long.getLong(EVENT_CACHE_REFRESH_MS_PARAM, 500),
+        Long.getLong(EVENT_CACHE_IDLE_MS_PARAM, 10 * 60 * 1000));
+    this.dagCache = new WorkflowDagCache(new WorkflowDagCache.Loader() {
+      @Override
+      public long loadVersion(String workflowId) throws IOException {
+        return readDagVersion(workflowId);
+      }
+
+      @Override
+      public WorkflowDagCache.Dag loadDag(String workflowId) throws IOException {
+        return readDag(workflowId);
+      }
+    }, Integer.getInteger(DAG_CACHE_WORKFLOWS_PARAM, 100),
+        Long.getLong(DAG_CACHE_REFRESH_MS_PARAM, 1000));
 
     if (dumpWorkflowFileName != null) {
       try {
@@ -102,84 +270,727 @@ public class InMemoryStatsService implements StatsReadService, StatsWriteService
       }
     }
 
-    if (dumpEventsFileName != null) {
-      try {
-        eventsWriter = new PrintWriter(dumpEventsFileName);
-      } catch (FileNotFoundException e) {
-        LOG.error("Could not create events PrintWriter at " + dumpEventsFileName, e);
+    WorkflowArchive archive = null;
+    boolean archiveOpened = true;
+    try {
+      archive = WorkflowArchive.fromSystemProperties();
+    } catch (IOException e) {
+      LOG.error("Could not open workflow archive, expired workflows will be kept", e);
+      archiveOpened = false;
+    }
+    this.archive = archive;
+    this.retention = WorkflowRetention.fromSystemProperties(new WorkflowRetention.Store() {
+      @Override
+      public Collection<String> getWorkflowIds(WorkflowSummary.Status status, long createdBefore)
+          throws IOException {
+        return readWorkflowIds(status, createdBefore);
       }
+
+      @Override
+      public long remove(String workflowId, WorkflowSummary.Status status) throws IOException {
+        return removeWorkflow(workflowId, status);
+      }
+
+      @Override
+      public String lock(long ttlMs) throws IOException {
+        return lockSweep(ttlMs);
+      }
+
+      @Override
+      public void unlock(String token) throws IOException {
+        unlockSweep(token);
+      }
+    }, archive);
+    if (archiveOpened && WorkflowRetention.isSweeperConfigured()) {
+      retention.start();
     }
   }
 
+  /**
+   * @return retention of the workflows kept by this service, e.g. to read its metrics.
+   */
+  public WorkflowRetention getRetention() {
+    return retention;
+  }
+
   @Override
-  public synchronized void sendDagNodeNameMap(String workflowId,
+  public void sendDagNodeNameMap(final String workflowId,
       Map<String, DAGNode<Job>> dagNodeNameMap) throws IOException {
-    this.summary.setId(workflowId);
-    this.summary.setStatus(WorkflowSummary.Status.RUNNING);
-    this.summary.setProgress(0);
+    final byte[] dagJson = codec.encode(dagNodeNameMap);
+    final byte[] workflowIdBytes = SafeEncoder.encode(workflowId);
+    SummaryState state = getSummaryState(workflowId);
+    synchronized (state) {
+      state.tracker.start();
+      final WorkflowSummary indexed = state.tracker.getSummary();
+      final byte[] summaryJson = codec.encode(indexed);
+      final WorkflowSummary.Status previousStatus = state.indexedStatus;
+      state.indexedStatus = indexed.getStatus();
+      state.writtenMs = System.currentTimeMillis();
+      state.dirty = false;
+
+      redis.pipelined(new RedisConnectionPool.PipelineCallback() {
+        @Override
+        public void execute(Pipeline pipeline) {
+          pipeline.hset(WORKFLOW_KEY, workflowIdBytes, dagJson);
+          pipeline.hincrBy(WORKFLOW_VERSION_KEY, workflowIdBytes, 1);
+          pipeline.hset(WORKFLOW_SUMMARY_KEY, workflowIdBytes, summaryJson);
+          index(pipeline, indexed, previousStatus);
+        }
+      });
+    }
+    dagCache.invalidate(workflowId);
+  }
+
+  @Override
+  public void pushEvent(String workflowId, Event event) throws IOException {
+    pushEvents(workflowId, Collections.singletonList(event));
+  }
+
+  @Override
+  public void pushEvents(final String workflowId, List<Event> events) throws IOException {
+    // readers take ids from the scores set by append
+    List<byte[]> jsons = new ArrayList<byte[]>(events.size());
+    for (Event event : events) {
+      jsons.add(codec.encode(event));
+    }
+    final byte[] workflowIdBytes = SafeEncoder.encode(workflowId);
+    long eventId = eventIds.append(workflowIdBytes, jsons, EVENTS_CHANNEL, workflowId);
+    for (Event event : events) {
+      event.setId(eventId++);
+    }
+
+    byte[] changedJson = null;
+    WorkflowSummary.Status changedFrom = null;
+    WorkflowSummary changedStatus = null;
+    SummaryState state = getSummaryState(workflowId);
+    synchronized (state) {
+      for (Event event : events) {
+        state.dirty |= state.tracker.update(event);
+      }
+      long now = System.currentTimeMillis();
+      if (state.dirty) {
+        WorkflowSummary summary = state.tracker.getSummary();
+        boolean statusChanged = summary.getStatus() != state.indexedStatus;
+        // progress alone is written at most once per interval, status changes right away
+        if (statusChanged || now - state.writtenMs >= summaryWriteIntervalMs) {
+          changedJson = codec.encode(summary);
+          state.writtenMs = now;
+          state.dirty = false;
+          if (statusChanged) {
+            changedFrom = state.indexedStatus;
+            changedStatus = summary;
+            state.indexedStatus = summary.getStatus();
+          }
+        }
+      }
+      final byte[] summaryJson = changedJson;
+      final WorkflowSummary.Status previousStatus = changedFrom;
+      final WorkflowSummary indexed = changedStatus;
+      if (summaryJson != null) {
+        // still locked, so a summary encoded later by another thread can't be overwritten
+        redis.pipelined(new RedisConnectionPool.PipelineCallback() {
+          @Override
+          public void execute(Pipeline pipeline) {
+            pipeline.hset(WORKFLOW_SUMMARY_KEY, workflowIdBytes, summaryJson);
+            if (indexed != null) {
+              index(pipeline, indexed, previousStatus);
+            }
+          }
+        });
+      }
+      if (state.tracker.isFinished() && !state.dirty) {
+        // nothing left to write, a later event reloads the written summary
+        summaryStates.remove(workflowId, state);
+      }
+    }
+    final WorkflowSummary indexed = changedStatus;
+    eventCache.markStale(workflowId);
+    notifier.notifyEvents(workflowId);
+    if (indexed != null && EventCompactor.isFinal(indexed.getStatus())) {
+      try {
+        compactEvents(workflowId);
+      } catch (IOException e) {
+        LOG.warn("Could not compact events of workflow " + workflowId, e);
+      }
+    }
+  }
+
+  /**
+   * Removes the events of a finished workflow which later events supersede, see
+   * {@link EventCompactor}. They are removed with a single ZREM, so readers see either all or none
+   * of them gone, and events added in the meantime are kept.
+   */
+  private void compactEvents(String workflowId) throws IOException {
+    final byte[] key = SafeEncoder.encode(workflowId);
+    Set<byte[]> members = redis.execute(new RedisConnectionPool.Callback<Set<byte[]>>() {
+      @Override
+      public Set<byte[]> execute(Jedis jedis) {
+        return jedis.zrange(key, 0, -1);
+      }
+    });
+    List<Event> events = new ArrayList<Event>(members.size());
+    Map<Event, byte[]> encoded = new IdentityHashMap<Event, byte[]>();
+    for (byte[] member : members) {
+      try {
+        Event event = codec.decode(EventIdAllocator.event(member), Event.TYPE);
+        events.add(event);
+        encoded.put(event, member);
+      } catch (IOException e) {
+        LOG.error("Could not parse " + member.length + " byte event of workflow " + workflowId, e);
+      }
+    }
+    List<Event> superseded = EventCompactor.getSuperseded(events);
+    if (superseded.isEmpty()) {
+      return;
+    }
+    final byte[][] removed = new byte[superseded.size()][];
+    for (int i = 0; i < removed.length; i++) {
+      removed[i] = encoded.get(superseded.get(i));
+    }
+    redis.execute(new RedisConnectionPool.Callback<Long>() {
+      @Override
+      public Long execute(Jedis jedis) {
+        return jedis.zrem(key, removed);
+      }
+    });
+    LOG.info("Compacted events of workflow {} from {} to {}",
+        new Object[] { workflowId, events.size(), events.size() - removed.length });
+    eventCache.invalidate(workflowId);
+  }
+
+  /**
+   * Adds events to the event log of a workflow without updating its summary. Used to replay the
+   * events of earlier workflows after the last workflow of a script has finished.
+   *
+   * @param workflowId the id of the workflow being updated
+   * @param events the events to add
+   * @throws IOException
+   */
+  @Override
+  public void replayEvents(final String workflowId, Collection<Event> events)
+      throws IOException {
+    final Map<Long, byte[]> eventJsons = encode(events);
+    final byte[] workflowIdBytes = SafeEncoder.encode(workflowId);
+    redis.pipelined(new RedisConnectionPool.PipelineCallback() {
+      @Override
+      public void execute(Pipeline pipeline) {
+        for (Map.Entry<Long, byte[]> entry : eventJsons.entrySet()) {
+          pipeline.zadd(workflowIdBytes, entry.getKey(),
+              EventIdAllocator.member(entry.getKey(), entry.getValue()));
+        }
+        pipeline.publish(EVENTS_CHANNEL, workflowId);
+      }
+    });
+    // replayed ids are below the ones already cached
+    eventCache.invalidate(workflowId);
+    notifier.notifyEvents(workflowId);
+  }
+
+  private Map<Long, byte[]> encode(Collection<Event> events) throws IOException {
+    Map<Long, byte[]> eventJsons = new LinkedHashMap<Long, byte[]>();
+    for (Event event : events) {
+      eventJsons.put(event.getId(), codec.encode(event));
+    }
+    return eventJsons;
+  }
+
+  @Override
+  public void sendJob(final String workflowId, Job job) throws IOException {
+    final byte[] jobId = SafeEncoder.encode(job.getId());
+    final byte[] json = codec.encode(job);
+    redis.execute(new RedisConnectionPool.Callback<Void>() {
+      @Override
+      public Void execute(Jedis jedis) {
+        jedis.hset(SafeEncoder.encode(workflowId + JOBS_KEY_SUFFIX), jobId, json);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * @return the summary state of a workflow, loading the stored summary if this VM hasn't written
+   * it yet.
+   */
+  private SummaryState getSummaryState(String workflowId) throws IOException {
+    SummaryState state = summaryStates.get(workflowId);
+    if (state != null) {
+      return state;
+    }
+    WorkflowSummary stored = readSummary(workflowId);
+    SummaryState loaded = stored == null
+        ? new SummaryState(
+            new WorkflowSummaryIndex.Tracker(workflowId, System.currentTimeMillis()), null)
+        : new SummaryState(new WorkflowSummaryIndex.Tracker(stored), stored.getStatus());
+    state = summaryStates.putIfAbsent(workflowId, loaded);
+    return state == null ? loaded : state;
+  }
+
+  private WorkflowSummary readSummary(final String workflowId) throws IOException {
+    byte[] json = redis.execute(new RedisConnectionPool.Callback<byte[]>() {
+      @Override
+      public byte[] execute(Jedis jedis) {
+        return jedis.hget(WORKFLOW_SUMMARY_KEY, SafeEncoder.encode(workflowId));
+      }
+    });
+    return json == null ? null : codec.decode(json, WorkflowSummary.class);
+  }
+
+  private static byte[] indexKey(String userId, WorkflowSummary.Status status) {
+    StringBuilder key = new StringBuilder(WORKFLOW_INDEX_KEY);
+    if (userId != null) {
+      key.append(":user:").append(userId);
+    }
+    if (status != null) {
+      key.append(":status:").append(status);
+    }
+    return SafeEncoder.encode(key.toString());
+  }
+
+  /**
+   * Adds a workflow to the indexes matching its summary, and removes it from the per status ones
+   * of previousStatus.
+   */
+  private static void index(Pipeline pipeline, WorkflowSummary summary,
+      WorkflowSummary.Status previousStatus) {
+    byte[] member = SafeEncoder.encode(summary.getId());
+    String userId = summary.getUserId();
+    if (previousStatus != null && previousStatus != summary.getStatus()) {
+      pipeline.zrem(indexKey(null, previousStatus), member);
+      pipeline.zrem(indexKey(userId, previousStatus), member);
+    }
+    double score = summary.getCreatedAt();
+    pipeline.zadd(indexKey(null, null), score, member);
+    pipeline.zadd(indexKey(userId, null), score, member);
+    if (summary.getStatus() != null) {
+      pipeline.zadd(indexKey(null, summary.getStatus()), score, member);
+      pipeline.zadd(indexKey(userId, summary.getStatus()), score, member);
+    }
+  }
+
+  /**
+   * Writes the DAG of a workflow without updating its summary. Used to add the DAGs of earlier
+   * workflows after the last workflow of a script has finished.
+   *
+   * @param workflowId the id of the workflow being updated
+   * @param dagNodeNameMap a Map of DAGNodes where the key is the DAGNode name
+   * @throws IOException
+   */
+  @Override
+  public void replayDagNodeNameMap(String workflowId, Map<String, DAGNode<Job>> dagNodeNameMap)
+      throws IOException {
+    final byte[] dagJson = codec.encode(dagNodeNameMap);
+    final byte[] workflowIdBytes = SafeEncoder.encode(workflowId);
+    redis.pipelined(new RedisConnectionPool.PipelineCallback() {
+      @Override
+      public void execute(Pipeline pipeline) {
+        pipeline.hset(WORKFLOW_KEY, workflowIdBytes, dagJson);
+        pipeline.hincrBy(WORKFLOW_VERSION_KEY, workflowIdBytes, 1);
+      }
+    });
+    dagCache.invalidate(workflowId);
+  }
+
+  /**
+   * @return the DAG of a workflow, or an empty map if it has none. The map must not be modified.
+   */
+  @Override
+  public Map<String, DAGNode<Job>> getDagNodeNameMap(String workflowId) {
+    WorkflowDagCache.Dag dag = getDag(workflowId);
+    return dag == null ? Collections.<String, DAGNode<Job>>emptyMap() : dag.getNodeNameMap();
+  }
+
+  @Override
+  public SerializedDag getSerializedDag(String workflowId) {
+    WorkflowDagCache.Dag dag = getDag(workflowId);
+    return dag == null ? null : dag.getSerialized();
+  }
+
+  private WorkflowDagCache.Dag getDag(String workflowId) {
+    try {
+      return dagCache.get(workflowId);
+    } catch (IOException e) {
+      LOG.error("Could not read dag for workflow " + workflowId, e);
+      return null;
+    }
+  }
 
-    jedis.hset("workflow", workflowId, JSONUtil.toJson(dagNodeNameMap));
-    jedis.hset("wf_sum", workflowId, JSONUtil.toJson(summary));
+  private long readDagVersion(final String workflowId) throws IOException {
+    byte[] version = redis.execute(new RedisConnectionPool.Callback<byte[]>() {
+      @Override
+      public byte[] execute(Jedis jedis) {
+        return jedis.hget(WORKFLOW_VERSION_KEY, SafeEncoder.encode(workflowId));
+      }
+    });
+    // dags written before versions were kept have version 0
+    return version == null ? 0 : Long.parseLong(SafeEncoder.encode(version));
+  }
+
+  private WorkflowDagCache.Dag readDag(final String workflowId) throws IOException {
+    // read the version first, so a dag written in between gets reloaded on the next check
+    long version = readDagVersion(workflowId);
+    byte[] json = redis.execute(new RedisConnectionPool.Callback<byte[]>() {
+      @Override
+      public byte[] execute(Jedis jedis) {
+        return jedis.hget(WORKFLOW_KEY, SafeEncoder.encode(workflowId));
+      }
+    });
+    if (json == null) {
+      WorkflowArchive.Entry archived = readRemoved(workflowId);
+      json = archived == null ? null : archived.getDag();
+    }
+    if (json == null) {
+      return null;
+    }
+    Map<String, DAGNode<Job>> dagNodeNameMap = codec.decode(json, DAGNode.NAME_MAP_TYPE);
+    return new WorkflowDagCache.Dag(version, dagNodeNameMap);
+  }
 
+  @Override
+  public Job getJob(final String workflowId, final String jobId) throws IOException {
+    byte[] json = redis.execute(new RedisConnectionPool.Callback<byte[]>() {
+      @Override
+      public byte[] execute(Jedis jedis) {
+        return jedis.hget(SafeEncoder.encode(workflowId + JOBS_KEY_SUFFIX),
+            SafeEncoder.encode(jobId));
+      }
+    });
+    if (json == null) {
+      WorkflowArchive.Entry archived = readRemoved(workflowId);
+      json = archived == null ? null : archived.getJobs().get(jobId);
+    }
+    return json == null ? null : codec.decode(json, Job.class);
   }
 
   @Override
-  public synchronized void pushEvent(String workflowId, Event event) throws IOException {
-    //eventMap.put(event.getId(), event);
-    switch (event.getType()) {
-      case WORKFLOW_PROGRESS:
-        Event.WorkflowProgressEvent workflowProgressEvent = (Event.WorkflowProgressEvent) event;
-        String progressString =
-            workflowProgressEvent.getPayload().get(Event.WorkflowProgressField.workflowProgress);
-        int progress = Integer.parseInt(progressString);
-        summary.setProgress(progress);
-        if (progress == 100) {
-          summary.setStatus(jobFailed
-              ? WorkflowSummary.Status.FAILED
-              : WorkflowSummary.Status.SUCCEEDED);
+  public Collection<Event> getEventsSinceId(String workflowId, long sinceId) {
+    return getEventsSinceId(workflowId, sinceId, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public Collection<Event> getEventsSinceId(String workflowId, long sinceId, int maxEvents) {
+    try {
+      return eventCache.getEventsSinceId(workflowId, sinceId, maxEvents);
+    } catch (IOException e) {
+      LOG.error("Could not read events for workflow " + workflowId, e);
+      return Collections.emptyList();
+    }
+  }
+
+  @Override
+  public Collection<Event> waitForEventsSinceId(String workflowId, long sinceId, int maxEvents,
+      long timeoutMs) throws InterruptedException {
+    startSubscriber();
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while (true) {
+      // watch before reading so that events written in between still wake us
+      long version = notifier.watch(workflowId);
+      try {
+        Collection<Event> events = getEventsSinceId(workflowId, sinceId, maxEvents);
+        long remaining = deadline - System.currentTimeMillis();
+        if (!events.isEmpty() || remaining <= 0) {
+          return events;
         }
-        break;
-      case JOB_FAILED:
-        jobFailed = true;
-      default:
-        // nothing
+        notifier.await(workflowId, version,
+            subscribed ? remaining : Math.min(remaining, UNSUBSCRIBED_POLL_MS));
+      } finally {
+        notifier.unwatch(workflowId);
+      }
+      if (!subscribed) {
+        eventCache.markStale(workflowId);
+      }
     }
-    //writeJsonEventToDisk(event);
-    jedis.hset("wf_sum", workflowId, JSONUtil.toJson(summary));
-    jedis.zadd(workflowId, event.getId() , JSONUtil.toJson(event));
   }
 
   @Override
-  public synchronized Map<String, DAGNode<Job>> getDagNodeNameMap(String workflowId) {
-	String json = jedis.hget("workflow", workflowId);
-	if(json != null) {
-		try {
-			dagNodeNameMap = JSONUtil.toObject(json, new TypeReference<Map<String, DAGNode<Job>>>() {});
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-	}
-    return dagNodeNameMap;
+  public void addEventListener(String workflowId, Runnable listener) {
+    startSubscriber();
+    notifier.addListener(workflowId, listener);
+    if (!subscribed) {
+      // the caller's next check has to see events written by other VMs since the last one
+      eventCache.markStale(workflowId);
+    }
   }
 
   @Override
-  public synchronized Collection<Event> getEventsSinceId(String workflowId, int sinceId) {
-    int minId = sinceId >= 0 ? sinceId + 1 : sinceId;
-    Set<String> events = jedis.zrangeByScore(workflowId, minId, ZRANGEBYSCORE_MAX);
-    Iterator it = events.iterator();
-    while(it.hasNext()) {
-    	String eventStr = (String)it.next();
-    	Event<DAGNode<Job>> event = null;
-		try {
-			event = (Event<DAGNode<Job>>)Event.fromJson(eventStr);
-			//event = JSONUtil.toObject(eventStr, new TypeReference<Event<DAGNode<HiveJob>>>(){});
-			eventMap.put(event.getId(), event);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+  public void removeEventListener(String workflowId, Runnable listener) {
+    notifier.removeListener(workflowId, listener);
+  }
+
+  /**
+   * Starts the thread which listens for events written by other VMs, unless already started.
+   */
+  private synchronized void startSubscriber() {
+    if (subscriber != null) {
+      return;
+    }
+    final JedisPubSub pubSub = new JedisPubSub() {
+      @Override
+      public void onMessage(String channel, String workflowId) {
+        eventCache.markStale(workflowId);
+        notifier.notifyEvents(workflowId);
+      }
+
+      @Override
+      public void onSubscribe(String channel, int subscribedChannels) {
+        subscribed = true;
+      }
+
+      @Override
+      public void onPMessage(String pattern, String channel, String message) { }
+
+      @Override
+      public void onUnsubscribe(String channel, int subscribedChannels) { }
+
+      @Override
+      public void onPSubscribe(String pattern, int subscribedChannels) { }
+
+      @Override
+      public void onPUnsubscribe(String pattern, int subscribedChannels) { }
+    };
+    subscriber = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (true) {
+          try {
+            redis.subscribe(pubSub, EVENTS_CHANNEL);
+          } catch (IOException e) {
+            LOG.warn("Lost subscription to " + EVENTS_CHANNEL + ", resubscribing", e);
+          }
+          subscribed = false;
+          // notifications may have been missed, have waiting readers check for themselves
+          notifier.notifyAllEvents();
+          try {
+            Thread.sleep(UNSUBSCRIBED_POLL_MS);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+    }, "ambrose-event-subscriber");
+    subscriber.setDaemon(true);
+    subscriber.start();
+  }
+
+  private List<Event> readEvents(final String workflowId, final long minId, final int maxEvents)
+      throws IOException {
+    Set<Tuple> tuples = redis.execute(new RedisConnectionPool.Callback<Set<Tuple>>() {
+      @Override
+      public Set<Tuple> execute(Jedis jedis) {
+        return jedis.zrangeByScoreWithScores(
+            SafeEncoder.encode(workflowId), minId, Double.POSITIVE_INFINITY, 0, maxEvents);
+      }
+    });
+    // the id of a stored event is its score
+    SortedMap<Long, byte[]> jsons = new TreeMap<Long, byte[]>();
+    for (Tuple tuple : tuples) {
+      jsons.put((long) tuple.getScore(), EventIdAllocator.event(tuple.getBinaryElement()));
     }
-    
-    return eventMap.tailMap(minId).values();
+    if (jsons.isEmpty()) {
+      WorkflowArchive.Entry archived = readRemoved(workflowId);
+      if (archived != null) {
+        for (Map.Entry<Long, byte[]> entry : archived.getEvents().tailMap(minId).entrySet()) {
+          if (jsons.size() == maxEvents) {
+            break;
+          }
+          jsons.put(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+    return decodeEvents(workflowId, jsons);
+  }
+
+  /**
+   * @return the last maxEvents events of a workflow, ordered by id ascending.
+   */
+  private List<Event> readLatestEvents(final String workflowId, final int maxEvents)
+      throws IOException {
+    Set<Tuple> tuples = redis.execute(new RedisConnectionPool.Callback<Set<Tuple>>() {
+      @Override
+      public Set<Tuple> execute(Jedis jedis) {
+        return jedis.zrevrangeWithScores(SafeEncoder.encode(workflowId), 0, maxEvents - 1);
+      }
+    });
+    SortedMap<Long, byte[]> jsons = new TreeMap<Long, byte[]>();
+    for (Tuple tuple : tuples) {
+      jsons.put((long) tuple.getScore(), EventIdAllocator.event(tuple.getBinaryElement()));
+    }
+    if (jsons.isEmpty()) {
+      WorkflowArchive.Entry archived = readRemoved(workflowId);
+      if (archived != null) {
+        SortedMap<Long, byte[]> all = archived.getEvents();
+        for (Map.Entry<Long, byte[]> entry : all.entrySet()) {
+          jsons.put(entry.getKey(), entry.getValue());
+          if (jsons.size() > maxEvents) {
+            jsons.remove(jsons.firstKey());
+          }
+        }
+      }
+    }
+    return decodeEvents(workflowId, jsons);
+  }
+
+  /**
+   * @param jsons stored events by id.
+   * @return the events which could be decoded, ordered by id ascending.
+   */
+  private List<Event> decodeEvents(String workflowId, SortedMap<Long, byte[]> jsons) {
+    List<Event> events = new ArrayList<Event>(jsons.size());
+    for (Map.Entry<Long, byte[]> entry : jsons.entrySet()) {
+      try {
+        Event event = codec.decode(entry.getValue(), Event.TYPE);
+        event.setId(entry.getKey());
+        events.add(event);
+      } catch (IOException e) {
+        LOG.error("Could not parse " + entry.getValue().length + " byte event of workflow "
+            + workflowId, e);
+      }
+    }
+    return events;
+  }
+
+  /**
+   * Called when a read found nothing in Redis, which mostly means there's nothing new to read.
+   *
+   * @return the archived workflow, or null if there's no archive, the workflow is still in Redis
+   * or it isn't archived.
+   */
+  private WorkflowArchive.Entry readRemoved(final String workflowId) throws IOException {
+    if (archive == null) {
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    synchronized (storedWorkflows) {
+      Long storedMs = storedWorkflows.get(workflowId);
+      if (storedMs != null && now - storedMs < STORED_RECHECK_MS) {
+        return null;
+      }
+    }
+    boolean stored = redis.execute(new RedisConnectionPool.Callback<Boolean>() {
+      @Override
+      public Boolean execute(Jedis jedis) {
+        return jedis.hexists(WORKFLOW_SUMMARY_KEY, SafeEncoder.encode(workflowId));
+      }
+    });
+    if (stored) {
+      synchronized (storedWorkflows) {
+        storedWorkflows.put(workflowId, now);
+      }
+      return null;
+    }
+    return archive.read(workflowId);
+  }
+
+  /**
+   * @return a token to unlock with, or null if the sweep lock is held.
+   */
+  private String lockSweep(long ttlMs) throws IOException {
+    String token = UUID.randomUUID().toString();
+    Object locked = redis.eval(LOCK_SCRIPT,
+        Collections.singletonList(SafeEncoder.encode(SWEEP_LOCK_KEY)),
+        Arrays.asList(SafeEncoder.encode(token), SafeEncoder.encode(String.valueOf(ttlMs))));
+    return Long.valueOf(1).equals(locked) ? token : null;
+  }
+
+  private void unlockSweep(String token) throws IOException {
+    redis.eval(UNLOCK_SCRIPT, Collections.singletonList(SafeEncoder.encode(SWEEP_LOCK_KEY)),
+        Collections.singletonList(SafeEncoder.encode(token)));
+  }
+
+  private Collection<String> readWorkflowIds(WorkflowSummary.Status status,
+      final long createdBefore) throws IOException {
+    final byte[] indexKey = indexKey(null, status);
+    Set<byte[]> ids = redis.execute(new RedisConnectionPool.Callback<Set<byte[]>>() {
+      @Override
+      public Set<byte[]> execute(Jedis jedis) {
+        // scores are creation times
+        return jedis.zrangeByScore(indexKey, Double.NEGATIVE_INFINITY, createdBefore - 1);
+      }
+    });
+    List<String> workflowIds = new ArrayList<String>(ids.size());
+    for (byte[] id : ids) {
+      workflowIds.add(SafeEncoder.encode(id));
+    }
+    return workflowIds;
+  }
+
+  /**
+   * Moves a workflow out of Redis, into the archive if there is one. The workflow is only deleted
+   * if its summary and number of events are still those archived, checked by the same script that
+   * deletes it.
+   *
+   * @return bytes of values removed from Redis, or -1 if the workflow's status isn't status or the
+   * workflow changed while being moved.
+   */
+  private long removeWorkflow(String workflowId, WorkflowSummary.Status status)
+      throws IOException {
+    final byte[] workflowIdBytes = SafeEncoder.encode(workflowId);
+    final byte[] jobsKey = SafeEncoder.encode(workflowId + JOBS_KEY_SUFFIX);
+    final byte[] summaryJson = redis.execute(new RedisConnectionPool.Callback<byte[]>() {
+      @Override
+      public byte[] execute(Jedis jedis) {
+        return jedis.hget(WORKFLOW_SUMMARY_KEY, workflowIdBytes);
+      }
+    });
+    final WorkflowSummary summary =
+        summaryJson == null ? null : codec.decode(summaryJson, WorkflowSummary.class);
+    if (summary == null || summary.getStatus() != status) {
+      return -1;
+    }
+    byte[] dagJson = redis.execute(new RedisConnectionPool.Callback<byte[]>() {
+      @Override
+      public byte[] execute(Jedis jedis) {
+        return jedis.hget(WORKFLOW_KEY, workflowIdBytes);
+      }
+    });
+    Map<byte[], byte[]> jobJsons = redis.execute(
+        new RedisConnectionPool.Callback<Map<byte[], byte[]>>() {
+          @Override
+          public Map<byte[], byte[]> execute(Jedis jedis) {
+            return jedis.hgetAll(jobsKey);
+          }
+        });
+    Set<Tuple> eventJsons = redis.execute(new RedisConnectionPool.Callback<Set<Tuple>>() {
+      @Override
+      public Set<Tuple> execute(Jedis jedis) {
+        return jedis.zrangeWithScores(workflowIdBytes, 0, -1);
+      }
+    });
+
+    long bytes = summaryJson.length + (dagJson == null ? 0 : dagJson.length);
+    Map<String, byte[]> jobs = new LinkedHashMap<String, byte[]>();
+    for (Map.Entry<byte[], byte[]> entry : jobJsons.entrySet()) {
+      jobs.put(SafeEncoder.encode(entry.getKey()), entry.getValue());
+      bytes += entry.getKey().length + entry.getValue().length;
+    }
+    SortedMap<Long, byte[]> events = new TreeMap<Long, byte[]>();
+    for (Tuple tuple : eventJsons) {
+      events.put((long) tuple.getScore(), EventIdAllocator.event(tuple.getBinaryElement()));
+      bytes += tuple.getBinaryElement().length;
+    }
+    if (archive != null) {
+      long archivedBytes = archive.write(workflowId,
+          new WorkflowArchive.Entry(summaryJson, dagJson, jobs, events));
+      LOG.info("Archived workflow {} in {} bytes", workflowId, archivedBytes);
+    }
+
+    String userId = summary.getUserId();
+    List<byte[]> keys = Arrays.asList(WORKFLOW_SUMMARY_KEY, workflowIdBytes, WORKFLOW_KEY,
+        WORKFLOW_VERSION_KEY, jobsKey, indexKey(null, null), indexKey(userId, null),
+        indexKey(null, summary.getStatus()), indexKey(userId, summary.getStatus()));
+    Object removed = redis.eval(REMOVE_SCRIPT, keys, Arrays.asList(workflowIdBytes, summaryJson,
+        SafeEncoder.encode(String.valueOf(eventJsons.size()))));
+    if (!Long.valueOf(1).equals(removed)) {
+      // a later sweep moves it again
+      LOG.info("Kept workflow {}, it changed while being moved", workflowId);
+      return -1;
+    }
+    synchronized (storedWorkflows) {
+      storedWorkflows.remove(workflowId);
+    }
+    summaryStates.remove(workflowId);
+    eventCache.invalidate(workflowId);
+    dagCache.invalidate(workflowId);
+    return bytes;
   }
 
   @Override
@@ -188,17 +999,105 @@ public class InMemoryStatsService implements StatsReadService, StatsWriteService
   }
 
   @Override
-  public synchronized PaginatedList<WorkflowSummary> getWorkflows(String cluster,
+  public PaginatedList<WorkflowSummary> getWorkflows(String cluster,
       WorkflowSummary.Status status, String userId, int numResults, byte[] startKey)
       throws IOException {
-	  
-	  Map<String,String> jsonMap = jedis.hgetAll("wf_sum");
-	  ArrayList<WorkflowSummary> sum = new ArrayList();
-	  for(String key : jsonMap.keySet()) {
-		  WorkflowSummary workflow = JSONUtil.toObject(jsonMap.get(key), WorkflowSummary.class);
-		  sum.add(workflow);
-	  }
-    return new PaginatedList<WorkflowSummary>(ImmutableList.copyOf(sum));
+    if (!indexChecked) {
+      indexExistingSummaries();
+    }
+    final byte[] indexKey = indexKey(userId, status);
+    final String startId;
+    final double startScore;
+    if (startKey == null || startKey.length == 0) {
+      startId = null;
+      startScore = Double.POSITIVE_INFINITY;
+    } else {
+      // "<createdAt>:<workflowId>"
+      String start = SafeEncoder.encode(startKey);
+      int separator = start.indexOf(':');
+      if (separator < 0) {
+        throw new IllegalArgumentException("Invalid start key '" + start + "'");
+      }
+      startScore = Long.parseLong(start.substring(0, separator));
+      startId = start.substring(separator + 1);
+    }
+    // one more than requested, to find the start of the next page
+    final int count = numResults + 1;
+
+    final List<Tuple> page = redis.execute(new RedisConnectionPool.Callback<List<Tuple>>() {
+      @Override
+      public List<Tuple> execute(Jedis jedis) {
+        Long rank = startId == null ? null : jedis.zrevrank(indexKey, SafeEncoder.encode(startId));
+        if (rank != null) {
+          return new ArrayList<Tuple>(
+              jedis.zrevrangeWithScores(indexKey, rank.intValue(), rank.intValue() + count - 1));
+        }
+        // the start workflow left this index, e.g. because its status changed
+        return new ArrayList<Tuple>(jedis.zrevrangeByScoreWithScores(
+            indexKey, startScore, Double.NEGATIVE_INFINITY, 0, count));
+      }
+    });
+
+    final int pageSize = Math.min(page.size(), numResults);
+    List<WorkflowSummary> results = new ArrayList<WorkflowSummary>(pageSize);
+    if (pageSize > 0) {
+      final byte[][] ids = new byte[pageSize][];
+      for (int i = 0; i < pageSize; i++) {
+        ids[i] = page.get(i).getBinaryElement();
+      }
+      List<byte[]> jsons = redis.execute(new RedisConnectionPool.Callback<List<byte[]>>() {
+        @Override
+        public List<byte[]> execute(Jedis jedis) {
+          return jedis.hmget(WORKFLOW_SUMMARY_KEY, ids);
+        }
+      });
+      for (byte[] json : jsons) {
+        if (json != null) {
+          results.add(codec.decode(json, WorkflowSummary.class));
+        }
+      }
+    }
+
+    PaginatedList<WorkflowSummary> list =
+        new PaginatedList<WorkflowSummary>(ImmutableList.copyOf(results));
+    if (page.size() > numResults) {
+      Tuple next = page.get(numResults);
+      list.setNextPageStart(BaseEncoding.base64().encode(SafeEncoder.encode(
+          (long) next.getScore() + ":" + next.getElement())));
+    }
+    return list;
+  }
+
+  /**
+   * Indexes all stored summaries if the index over all workflows doesn't exist yet, e.g. because
+   * they were written by an earlier version.
+   */
+  private void indexExistingSummaries() throws IOException {
+    final Map<byte[], byte[]> jsonMap = redis.execute(
+        new RedisConnectionPool.Callback<Map<byte[], byte[]>>() {
+          @Override
+          public Map<byte[], byte[]> execute(Jedis jedis) {
+            return jedis.exists(indexKey(null, null))
+                ? Collections.<byte[], byte[]>emptyMap()
+                : jedis.hgetAll(WORKFLOW_SUMMARY_KEY);
+          }
+        });
+    final List<WorkflowSummary> summaries = new ArrayList<WorkflowSummary>(jsonMap.size());
+    for (byte[] json : jsonMap.values()) {
+      summaries.add(codec.decode(json, WorkflowSummary.class));
+    }
+    if (!summaries.isEmpty()) {
+      LOG.info("Indexing " + summaries.size() + " existing workflow summaries");
+      redis.pipelined(new RedisConnectionPool.PipelineCallback() {
+        @Override
+        public void execute(Pipeline pipeline) {
+          for (WorkflowSummary summary : summaries) {
+            index(pipeline, summary, null);
+          }
+        }
+      });
+    }
+    indexChecked = true;
   }
 
   private void writeJsonDagNodenameMapToDisk(Map<String, DAGNode<Job>> dagNodeNameMap)
@@ -209,24 +1108,9 @@ public class InMemoryStatsService implements StatsReadService, StatsWriteService
     }
   }
 
-  private void writeJsonEventToDisk(Event event) throws IOException {
-    if (eventsWriter != null && event != null) {
-      eventsWriter.write(!eventWritten ? "[ " : ", ");
-      JSONUtil.writeJson(eventsWriter, event);
-      eventsWriter.flush();
-      eventWritten = true;
-    }
-  }
-
   public void flushJsonToDisk() throws IOException {
     if (workflowWriter != null) {
       workflowWriter.close();
     }
-    if (eventsWriter != null) {
-      if (eventWritten) {
-        eventsWriter.write(" ]\n");
-      }
-      eventsWriter.close();
-    }
   }
 }
@@ -0,0 +1,627 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.twitter.ambrose.model.DAGNode;
+import com.twitter.ambrose.model.Event;
+import com.twitter.ambrose.model.Job;
+import com.twitter.ambrose.model.PaginatedList;
+import com.twitter.ambrose.model.WorkflowSummary;
+import com.twitter.ambrose.service.BlockingStatsReadService;
+import com.twitter.ambrose.service.ReplayableStatsService;
+import com.twitter.ambrose.service.SerializedDagReadService;
+import com.twitter.ambrose.service.SerializedDagReadService.SerializedDag;
+import com.twitter.ambrose.service.WorkflowIndexReadService;
+
+/**
+ * Stats service persisting workflows to local disk, for deployments without Redis that should
+ * keep workflows across restarts. Each workflow gets a directory named after its URL encoded id,
+ * holding an {@link EventJournal} of its events and its summary, DAG and jobs, each in a file
+ * rewritten atomically when it changes. Values are encoded with a {@link StorageCodec}, see that
+ * class for how to choose one.
+ * <p/>
+ * On startup only the summaries are read and the journals' record headers scanned; DAGs and jobs
+ * are read on first use and events straight from the journals, so finished workflows of earlier
+ * runs can be served cheaply. When a workflow finishes its journal is compacted, see
+ * {@link EventCompactor}, and forced to disk.
+ * <p/>
+ * Workflows may be written by another VM sharing the directory, e.g. a Hive client while this VM
+ * serves the web tier. Workflows missing from memory are looked up on disk, the list of workflows
+ * is refreshed at most every {@value #REFRESH_INTERVAL_MS} ms, and the summaries, DAGs and jobs of
+ * workflows this VM doesn't write are read again when their files change. Journals pick up events
+ * appended by the other VM themselves, see {@link EventJournal}, and rewrites interrupted by a
+ * crash are only recovered once this VM writes the workflow.
+ * <p/>
+ * Each open journal maps its segments into memory, so only the most recently used ones are kept
+ * open; the others are closed, unmapping their segments, until used again.
+ * <p/>
+ * The service can be configured by setting the following values as system properties using
+ * <code>-D</code>:
+ * <pre>
+ *   <ul>
+ *     <li><code>{@value #DIR_PARAM}</code> - directory holding the workflows (default
+ * <code>{@value #DEFAULT_DIR}</code>).</li>
+ *     <li><code>{@value #SEGMENT_BYTES_PARAM}</code> - size of journal segment files (default
+ * {@value #DEFAULT_SEGMENT_BYTES}).</li>
+ *     <li><code>{@value #INDEX_INTERVAL_PARAM}</code> - number of events per sparse journal index
+ * entry (default {@value #DEFAULT_INDEX_INTERVAL}).</li>
+ *     <li><code>{@value #OPEN_JOURNALS_PARAM}</code> - max number of journals kept open (default
+ * {@value #DEFAULT_OPEN_JOURNALS}).</li>
+ *   </ul>
+ * </pre>
+ */
+public class JournalStatsService implements BlockingStatsReadService<Job>,
+    SerializedDagReadService<Job>, ReplayableStatsService<Job>, WorkflowIndexReadService {
+  public static final String DIR_PARAM = "ambrose.journal.dir";
+  public static final String SEGMENT_BYTES_PARAM = "ambrose.journal.segment.bytes";
+  public static final String INDEX_INTERVAL_PARAM = "ambrose.journal.index.interval";
+  public static final String OPEN_JOURNALS_PARAM = "ambrose.journal.open";
+  private static final Logger LOG = LoggerFactory.getLogger(JournalStatsService.class);
+  private static final String DEFAULT_DIR = "ambrose-journal";
+  private static final int DEFAULT_SEGMENT_BYTES = 8 * 1024 * 1024;
+  private static final int DEFAULT_INDEX_INTERVAL = 64;
+  private static final int DEFAULT_OPEN_JOURNALS = 16;
+  private static final long REFRESH_INTERVAL_MS = 1000;
+  /** coarsest modification time resolution of the supported file systems */
+  private static final long MODIFIED_TICK_MS = 1000;
+  private static final String EVENTS_DIR = "events";
+  private static final String SUMMARY_FILE = "summary";
+  private static final String DAG_FILE = "dag";
+  private static final String JOBS_FILE = "jobs";
+  private static final String TMP_SUFFIX = ".tmp";
+  private static final TypeReference<Map<String, Job>> JOB_MAP_TYPE =
+      new TypeReference<Map<String, Job>>() { };
+
+  /**
+   * Modified time of a file when it was last read, to tell whether another VM changed it since.
+   */
+  private static class FileStamp {
+    private long modified = -1;
+    /** whether any later change to the file gets a new modified time */
+    private boolean settled = false;
+
+    private boolean isStale(File file) {
+      return !settled || file.lastModified() != modified;
+    }
+
+    /**
+     * Notes that the file is about to be read.
+     */
+    private void read(File file) {
+      long now = System.currentTimeMillis();
+      modified = file.lastModified();
+      settled = now - modified >= MODIFIED_TICK_MS;
+    }
+  }
+
+  /**
+   * Everything kept about one workflow.
+   */
+  private static class Workflow {
+    private final String id;
+    private final File dir;
+    private final EventJournal events;
+    /** guarded by this */
+    private WorkflowSummaryIndex.Tracker summary;
+    private final FileStamp summaryStamp = new FileStamp();
+    private WorkflowDagCache.Dag dag;
+    private final FileStamp dagStamp = new FileStamp();
+    private Map<String, Job> jobs;
+    private final FileStamp jobsStamp = new FileStamp();
+    /** whether this VM writes the workflow, so its files need not be read again */
+    private boolean local = false;
+
+    private Workflow(String id, File dir, EventJournal events) {
+      this.id = id;
+      this.dir = dir;
+      this.events = events;
+    }
+  }
+
+  private final File root;
+  private final StorageCodec codec;
+  private final int segmentBytes;
+  private final int indexInterval;
+  private final int maxOpenJournals;
+  private final ConcurrentMap<String, Workflow> workflows =
+      new ConcurrentHashMap<String, Workflow>();
+  /** open journals by workflow id, least recently used first; guarded by itself */
+  private final LinkedHashMap<String, EventJournal> openJournals =
+      new LinkedHashMap<String, EventJournal>(16, 0.75f, true);
+  private final WorkflowSummaryIndex index = new WorkflowSummaryIndex();
+  private final AtomicLong nextEventId = new AtomicLong(1);
+  private final EventNotifier notifier = new EventNotifier();
+  /** guarded by workflows */
+  private long lastRefresh;
+
+  public JournalStatsService() throws IOException {
+    this(new File(System.getProperty(DIR_PARAM, DEFAULT_DIR)),
+        StorageCodec.fromSystemProperties(),
+        Integer.getInteger(SEGMENT_BYTES_PARAM, DEFAULT_SEGMENT_BYTES),
+        Integer.getInteger(INDEX_INTERVAL_PARAM, DEFAULT_INDEX_INTERVAL));
+  }
+
+  public JournalStatsService(File root, StorageCodec codec, int segmentBytes, int indexInterval)
+      throws IOException {
+    this(root, codec, segmentBytes, indexInterval,
+        Integer.getInteger(OPEN_JOURNALS_PARAM, DEFAULT_OPEN_JOURNALS));
+  }
+
+  /**
+   * Opens the workflows kept in root, creating it if needed.
+   */
+  public JournalStatsService(File root, StorageCodec codec, int segmentBytes, int indexInterval,
+      int maxOpenJournals) throws IOException {
+    this.root = root;
+    this.codec = codec;
+    this.segmentBytes = segmentBytes;
+    this.indexInterval = indexInterval;
+    this.maxOpenJournals = Math.max(1, maxOpenJournals);
+    if (!root.isDirectory() && !root.mkdirs()) {
+      throw new IOException("Could not create " + root);
+    }
+    File[] dirs = root.listFiles();
+    long lastId = 0;
+    for (File dir : dirs == null ? new File[0] : dirs) {
+      if (!new File(dir, SUMMARY_FILE).isFile()) {
+        continue;
+      }
+      // another VM may still be writing it, see find
+      Workflow workflow = load(decodeId(dir.getName()), dir, EventJournal.openShared(
+          new File(dir, EVENTS_DIR), codec, segmentBytes, indexInterval));
+      workflows.put(workflow.id, workflow);
+      lastId = Math.max(lastId, workflow.events.getLastId());
+      workflow.events.close();
+    }
+    nextEventId.set(lastId + 1);
+    LOG.info("Opened {} workflows in {}", workflows.size(), root);
+  }
+
+  /**
+   * Reads the summary of a workflow kept on disk and indexes it.
+   */
+  private Workflow load(String workflowId, File dir, EventJournal events) throws IOException {
+    Workflow workflow = new Workflow(workflowId, dir, events);
+    synchronized (workflow) {
+      readSummary(workflow);
+    }
+    return workflow;
+  }
+
+  /**
+   * Guarded by workflow.
+   */
+  private void readSummary(Workflow workflow) throws IOException {
+    File file = new File(workflow.dir, SUMMARY_FILE);
+    workflow.summaryStamp.read(file);
+    WorkflowSummary summary = codec.decode(read(file), WorkflowSummary.class);
+    workflow.summary = new WorkflowSummaryIndex.Tracker(summary);
+    index.put(workflow.summary.getSummary());
+  }
+
+  /**
+   * @return the workflow, looked up on disk if it isn't known yet, or null if there is none.
+   */
+  private Workflow find(String workflowId) throws IOException {
+    Workflow workflow = workflows.get(workflowId);
+    if (workflow != null) {
+      return workflow;
+    }
+    File dir = new File(root, encodeId(workflowId));
+    if (!new File(dir, SUMMARY_FILE).isFile()) {
+      return null;
+    }
+    synchronized (workflows) {
+      workflow = workflows.get(workflowId);
+      if (workflow == null) {
+        // another VM writes it, so leave its journal's recovery to that VM
+        workflow = load(workflowId, dir, EventJournal.openShared(new File(dir, EVENTS_DIR),
+            codec, segmentBytes, indexInterval));
+        workflows.put(workflowId, workflow);
+      }
+      return workflow;
+    }
+  }
+
+  /**
+   * Picks up workflows added by other VMs, and summaries they changed.
+   */
+  private void refreshWorkflows() throws IOException {
+    synchronized (workflows) {
+      long now = System.currentTimeMillis();
+      if (now - lastRefresh < REFRESH_INTERVAL_MS) {
+        return;
+      }
+      lastRefresh = now;
+    }
+    File[] dirs = root.listFiles();
+    for (File dir : dirs == null ? new File[0] : dirs) {
+      Workflow workflow = find(decodeId(dir.getName()));
+      if (workflow == null) {
+        continue;
+      }
+      synchronized (workflow) {
+        if (!workflow.local && workflow.summaryStamp.isStale(new File(dir, SUMMARY_FILE))) {
+          readSummary(workflow);
+        }
+      }
+    }
+  }
+
+  /**
+   * Marks a journal as used, closing the least recently used ones past the limit.
+   *
+   * @return the journal of workflow.
+   */
+  private EventJournal getJournal(Workflow workflow) {
+    List<EventJournal> evicted = new ArrayList<EventJournal>();
+    synchronized (openJournals) {
+      openJournals.put(workflow.id, workflow.events);
+      Iterator<EventJournal> eldest = openJournals.values().iterator();
+      while (openJournals.size() > maxOpenJournals) {
+        evicted.add(eldest.next());
+        eldest.remove();
+      }
+    }
+    // outside the lock, as closing waits for the journal's readers
+    for (EventJournal journal : evicted) {
+      journal.close();
+    }
+    return workflow.events;
+  }
+
+  /**
+   * @return a file name which no other workflow id maps to.
+   */
+  static String encodeId(String workflowId) {
+    try {
+      // dots too, so no id maps to "." or ".."
+      return URLEncoder.encode(workflowId, "UTF-8").replace(".", "%2E");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String decodeId(String name) {
+    try {
+      return URLDecoder.decode(name, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static byte[] read(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      return ByteStreams.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Replaces the contents of a file, so that readers and crashes see either the old or the new
+   * contents.
+   */
+  private static void write(File file, byte[] data) throws IOException {
+    File tmp = new File(file.getParentFile(), file.getName() + TMP_SUFFIX);
+    FileOutputStream out = new FileOutputStream(tmp);
+    try {
+      out.write(data);
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(file)) {
+      // some platforms don't rename over existing files
+      if (!file.delete() || !tmp.renameTo(file)) {
+        throw new IOException("Could not move " + tmp + " to " + file);
+      }
+    }
+  }
+
+  /**
+   * @return the workflow, created if there is none, marked as written by this VM.
+   */
+  private Workflow getOrCreate(String workflowId) throws IOException {
+    Workflow workflow = find(workflowId);
+    if (workflow == null) {
+      synchronized (workflows) {
+        workflow = workflows.get(workflowId);
+        if (workflow == null) {
+          File dir = new File(root, encodeId(workflowId));
+          workflow = new Workflow(workflowId, dir,
+              new EventJournal(new File(dir, EVENTS_DIR), codec, segmentBytes, indexInterval));
+          synchronized (workflow) {
+            workflow.summary =
+                new WorkflowSummaryIndex.Tracker(workflowId, System.currentTimeMillis());
+            writeSummary(workflow);
+            workflow.local = true;
+          }
+          workflows.put(workflowId, workflow);
+        }
+      }
+    }
+    synchronized (workflow) {
+      if (!workflow.local) {
+        // this VM writes it from now on, so finish any rewrite interrupted by a crash
+        workflow.events.recover();
+        workflow.local = true;
+      }
+    }
+    return workflow;
+  }
+
+  /**
+   * Writes and indexes the summary of a workflow. Guarded by workflow.
+   */
+  private void writeSummary(Workflow workflow) throws IOException {
+    WorkflowSummary summary = workflow.summary.getSummary();
+    write(new File(workflow.dir, SUMMARY_FILE), codec.encode(summary));
+    index.put(summary);
+  }
+
+  @Override
+  public void sendDagNodeNameMap(String workflowId, Map<String, DAGNode<Job>> dagNodeNameMap)
+      throws IOException {
+    Workflow workflow = getOrCreate(workflowId);
+    synchronized (workflow) {
+      setDag(workflow, dagNodeNameMap);
+      workflow.summary.start();
+      writeSummary(workflow);
+    }
+  }
+
+  @Override
+  public void replayDagNodeNameMap(String workflowId, Map<String, DAGNode<Job>> dagNodeNameMap)
+      throws IOException {
+    Workflow workflow = getOrCreate(workflowId);
+    synchronized (workflow) {
+      setDag(workflow, dagNodeNameMap);
+    }
+  }
+
+  /**
+   * Guarded by workflow.
+   */
+  private void setDag(Workflow workflow, Map<String, DAGNode<Job>> dagNodeNameMap)
+      throws IOException {
+    // copied, since the caller may keep changing its map
+    Map<String, DAGNode<Job>> copy = new LinkedHashMap<String, DAGNode<Job>>(dagNodeNameMap);
+    write(new File(workflow.dir, DAG_FILE), codec.encode(copy));
+    long version = workflow.dag == null ? 1 : workflow.dag.getVersion() + 1;
+    workflow.dag = new WorkflowDagCache.Dag(version, copy);
+  }
+
+  @Override
+  public void pushEvent(String workflowId, Event event) throws IOException {
+    pushEvents(workflowId, Collections.singletonList(event));
+  }
+
+  @Override
+  public void pushEvents(String workflowId, List<Event> events) throws IOException {
+    Workflow workflow = getOrCreate(workflowId);
+    getJournal(workflow).append(events, nextEventId);
+    synchronized (workflow) {
+      boolean changed = false;
+      for (Event event : events) {
+        changed |= workflow.summary.update(event);
+      }
+      if (changed) {
+        writeSummary(workflow);
+        if (workflow.summary.isFinished()) {
+          compactEvents(workflow);
+        }
+      }
+    }
+    notifier.notifyEvents(workflowId);
+  }
+
+  /**
+   * Rewrites the journal of a finished workflow without the events later ones supersede, see
+   * {@link EventCompactor}. The rewritten journal is forced to disk.
+   */
+  private void compactEvents(Workflow workflow) throws IOException {
+    EventJournal journal = getJournal(workflow);
+    synchronized (journal) {
+      List<Event> events = journal.getEventsSinceId(-1, Integer.MAX_VALUE);
+      List<Event> kept = EventCompactor.compact(events);
+      if (kept.size() < events.size()) {
+        journal.rewrite(kept);
+        LOG.info("Compacted events of workflow {} from {} to {}",
+            new Object[] { workflow.id, events.size(), kept.size() });
+      } else {
+        journal.force();
+      }
+    }
+  }
+
+  @Override
+  public void replayEvents(String workflowId, Collection<Event> events) throws IOException {
+    EventJournal journal = getJournal(getOrCreate(workflowId));
+    synchronized (journal) {
+      // events already journaled win, as they may have been updated since
+      Map<Long, Event> byId = new TreeMap<Long, Event>();
+      for (Event event : events) {
+        byId.put(event.getId(), event);
+      }
+      for (Event event : journal.getEventsSinceId(-1, Integer.MAX_VALUE)) {
+        byId.put(event.getId(), event);
+      }
+      journal.rewrite(new ArrayList<Event>(byId.values()));
+    }
+    notifier.notifyEvents(workflowId);
+  }
+
+  @Override
+  public void sendJob(String workflowId, Job job) throws IOException {
+    Workflow workflow = getOrCreate(workflowId);
+    synchronized (workflow) {
+      Map<String, Job> jobs = new HashMap<String, Job>(getJobs(workflow));
+      jobs.put(job.getId(), job);
+      write(new File(workflow.dir, JOBS_FILE), codec.encode(jobs));
+      workflow.jobs = jobs;
+    }
+  }
+
+  /**
+   * Guarded by workflow.
+   */
+  private Map<String, Job> getJobs(Workflow workflow) throws IOException {
+    File file = new File(workflow.dir, JOBS_FILE);
+    if (workflow.jobs == null || (!workflow.local && workflow.jobsStamp.isStale(file))) {
+      workflow.jobsStamp.read(file);
+      workflow.jobs = file.isFile()
+          ? codec.decode(read(file), JOB_MAP_TYPE)
+          : Collections.<String, Job>emptyMap();
+    }
+    return workflow.jobs;
+  }
+
+  @Override
+  public Job getJob(String workflowId, String jobId) throws IOException {
+    Workflow workflow = find(workflowId);
+    if (workflow == null) {
+      return null;
+    }
+    synchronized (workflow) {
+      return getJobs(workflow).get(jobId);
+    }
+  }
+
+  /**
+   * @return the DAG of a workflow, or an empty map if it has none. The map must not be modified.
+   */
+  @Override
+  public Map<String, DAGNode<Job>> getDagNodeNameMap(String workflowId) throws IOException {
+    WorkflowDagCache.Dag dag = getDag(workflowId);
+    return dag == null ? Collections.<String, DAGNode<Job>>emptyMap() : dag.getNodeNameMap();
+  }
+
+  @Override
+  public SerializedDag getSerializedDag(String workflowId) throws IOException {
+    WorkflowDagCache.Dag dag = getDag(workflowId);
+    return dag == null ? null : dag.getSerialized();
+  }
+
+  private WorkflowDagCache.Dag getDag(String workflowId) throws IOException {
+    Workflow workflow = find(workflowId);
+    if (workflow == null) {
+      return null;
+    }
+    synchronized (workflow) {
+      File file = new File(workflow.dir, DAG_FILE);
+      if ((workflow.dag == null || !workflow.local) && workflow.dagStamp.isStale(file)) {
+        workflow.dagStamp.read(file);
+        try {
+          if (file.isFile()) {
+            long version = workflow.dag == null ? 1 : workflow.dag.getVersion() + 1;
+            workflow.dag = new WorkflowDagCache.Dag(version,
+                codec.decode(read(file), DAGNode.NAME_MAP_TYPE));
+          }
+        } catch (IOException e) {
+          LOG.error("Could not read dag for workflow " + workflowId, e);
+        }
+      }
+      return workflow.dag;
+    }
+  }
+
+  @Override
+  public Collection<Event> getEventsSinceId(String workflowId, long sinceId) throws IOException {
+    return getEventsSinceId(workflowId, sinceId, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public Collection<Event> getEventsSinceId(String workflowId, long sinceId, int maxEvents)
+      throws IOException {
+    Workflow workflow = find(workflowId);
+    if (workflow == null) {
+      return Collections.emptyList();
+    }
+    return getJournal(workflow).getEventsSinceId(sinceId, maxEvents);
+  }
+
+  @Override
+  public Collection<Event> waitForEventsSinceId(String workflowId, long sinceId, int maxEvents,
+      long timeoutMs) throws IOException, InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while (true) {
+      // watch before reading so that events written in between still wake us
+      long version = notifier.watch(workflowId);
+      try {
+        Collection<Event> events = getEventsSinceId(workflowId, sinceId, maxEvents);
+        long remaining = deadline - System.currentTimeMillis();
+        if (!events.isEmpty() || remaining <= 0) {
+          return events;
+        }
+        notifier.await(workflowId, version, remaining);
+      } finally {
+        notifier.unwatch(workflowId);
+      }
+    }
+  }
+
+  @Override
+  public void addEventListener(String workflowId, Runnable listener) {
+    notifier.addListener(workflowId, listener);
+  }
+
+  @Override
+  public void removeEventListener(String workflowId, Runnable listener) {
+    notifier.removeListener(workflowId, listener);
+  }
+
+  @Override
+  public Map<String, String> getClusters() {
+    return ImmutableMap.of("default", "default");
+  }
+
+  @Override
+  public PaginatedList<WorkflowSummary> getWorkflows(String cluster,
+      WorkflowSummary.Status status, String userId, int numResults, byte[] startKey)
+      throws IOException {
+    refreshWorkflows();
+    return index.getWorkflows(status, userId, numResults, startKey);
+  }
+}
@@ -0,0 +1,223 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.google.common.hash.Hashing;
+
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Pool of Redis connections shared by the Redis backed stats services. Callers borrow a connection
+ * for the duration of a {@link Callback} or {@link PipelineCallback}, so concurrent readers and
+ * writers no longer queue on a single connection. The pool can be configured by setting the
+ * following values as system properties using <code>-D</code>:
+ * <pre>
+ *   <ul>
+ *     <li><code>{@value #REDIS_HOST_PARAM}</code> - Redis host (default localhost).</li>
+ *     <li><code>{@value #REDIS_PORT_PARAM}</code> - Redis port (default 6379).</li>
+ *     <li><code>{@value #REDIS_POOL_SIZE_PARAM}</code> - max number of connections (default
+ * 16).</li>
+ *     <li><code>{@value #REDIS_TIMEOUT_PARAM}</code> - socket timeout in ms (default 2000).</li>
+ *   </ul>
+ * </pre>
+ */
+public class RedisConnectionPool {
+  public static final String REDIS_HOST_PARAM = "ambrose.redis.host";
+  public static final String REDIS_PORT_PARAM = "ambrose.redis.port";
+  public static final String REDIS_POOL_SIZE_PARAM = "ambrose.redis.pool.size";
+  public static final String REDIS_TIMEOUT_PARAM = "ambrose.redis.timeout.ms";
+  private static final String DEFAULT_HOST = "localhost";
+  private static final int DEFAULT_PORT = 6379;
+  private static final int DEFAULT_POOL_SIZE = 16;
+  private static final int DEFAULT_TIMEOUT_MS = 2000;
+
+  /**
+   * Work to be done with a connection borrowed from the pool.
+   */
+  public interface Callback<T> {
+    T execute(Jedis jedis) throws IOException;
+  }
+
+  /**
+   * Commands to be queued on a pipeline. All queued commands are sent in a single round trip.
+   */
+  public interface PipelineCallback {
+    void execute(Pipeline pipeline) throws IOException;
+  }
+
+  /**
+   * A Lua script, run with {@link #eval}. Needs Redis 2.6 or later.
+   */
+  public static class Script {
+    private final byte[] body;
+    private final byte[] sha;
+
+    public Script(String body) {
+      this.body = SafeEncoder.encode(body);
+      this.sha = SafeEncoder.encode(Hashing.sha1().hashBytes(this.body).toString());
+    }
+
+    public byte[] getBody() {
+      return body;
+    }
+  }
+
+  private final JedisPool pool;
+
+  public RedisConnectionPool(String host, int port, int poolSize, int timeoutMs) {
+    JedisPoolConfig config = new JedisPoolConfig();
+    config.setMaxActive(poolSize);
+    config.setMaxIdle(poolSize);
+    this.pool = new JedisPool(config, host, port, timeoutMs);
+  }
+
+  /**
+   * @return a pool configured from system properties, falling back to a local Redis server.
+   */
+  public static RedisConnectionPool fromSystemProperties() {
+    return new RedisConnectionPool(
+        System.getProperty(REDIS_HOST_PARAM, DEFAULT_HOST),
+        Integer.getInteger(REDIS_PORT_PARAM, DEFAULT_PORT),
+        Integer.getInteger(REDIS_POOL_SIZE_PARAM, DEFAULT_POOL_SIZE),
+        Integer.getInteger(REDIS_TIMEOUT_PARAM, DEFAULT_TIMEOUT_MS));
+  }
+
+  /**
+   * Runs callback with a pooled connection. Connections which fail with a connection error are
+   * discarded rather than returned to the pool.
+   *
+   * @param callback work to do.
+   * @param <T> type of result.
+   * @return result of callback.
+   * @throws IOException if Redis can't be reached or rejects a command.
+   */
+  public <T> T execute(Callback<T> callback) throws IOException {
+    Jedis jedis;
+    try {
+      jedis = pool.getResource();
+    } catch (JedisException e) {
+      throw new IOException("Could not get Redis connection from pool", e);
+    }
+    boolean broken = false;
+    try {
+      return callback.execute(jedis);
+    } catch (JedisConnectionException e) {
+      broken = true;
+      throw new IOException("Redis connection failed", e);
+    } catch (JedisException e) {
+      throw new IOException("Redis command failed", e);
+    } finally {
+      if (broken) {
+        pool.returnBrokenResource(jedis);
+      } else {
+        pool.returnResource(jedis);
+      }
+    }
+  }
+
+  /**
+   * Queues the commands issued by callback on a pipeline and sends them in one round trip.
+   *
+   * @param callback commands to pipeline.
+   * @throws IOException if Redis can't be reached or rejects a command.
+   */
+  public void pipelined(final PipelineCallback callback) throws IOException {
+    execute(new Callback<Void>() {
+      @Override
+      public Void execute(Jedis jedis) throws IOException {
+        Pipeline pipeline = jedis.pipelined();
+        callback.execute(pipeline);
+        pipeline.sync();
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Runs a script by its SHA1 digest with <code>EVALSHA</code>, so its body is only sent the first
+   * time a Redis server runs it, with <code>EVAL</code>.
+   *
+   * @param script script to run.
+   * @param keys keys the script accesses.
+   * @param args other arguments of the script.
+   * @return what the script returns.
+   * @throws IOException if Redis can't be reached or the script fails.
+   */
+  public Object eval(final Script script, final List<byte[]> keys, final List<byte[]> args)
+      throws IOException {
+    return execute(new Callback<Object>() {
+      @Override
+      public Object execute(Jedis jedis) {
+        byte[][] params = new byte[keys.size() + args.size()][];
+        for (int i = 0; i < keys.size(); i++) {
+          params[i] = keys.get(i);
+        }
+        for (int i = 0; i < args.size(); i++) {
+          params[keys.size() + i] = args.get(i);
+        }
+        // Jedis only sends EVALSHA with string arguments, which would mangle binary ones
+        Client client = jedis.getClient();
+        client.evalsha(script.sha, Protocol.toByteArray(keys.size()), params);
+        try {
+          return client.getOne();
+        } catch (JedisDataException e) {
+          if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) {
+            throw e;
+          }
+        }
+        return jedis.eval(script.body, keys, args);
+      }
+    });
+  }
+
+  /**
+   * Subscribes to channels and blocks until pubSub unsubscribes. The connection is held for the
+   * whole subscription.
+   *
+   * @param pubSub listener to receive messages.
+   * @param channels channels to subscribe to.
+   * @throws IOException if Redis can't be reached or the connection is lost.
+   */
+  public void subscribe(final JedisPubSub pubSub, final String... channels) throws IOException {
+    execute(new Callback<Void>() {
+      @Override
+      public Void execute(Jedis jedis) {
+        jedis.subscribe(pubSub, channels);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Closes all pooled connections.
+   */
+  public void close() {
+    pool.destroy();
+  }
+}
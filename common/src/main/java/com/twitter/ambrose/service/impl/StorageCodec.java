@@ -0,0 +1,123 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+
+import com.twitter.ambrose.util.JSONUtil;
+
+/**
+ * Encoding of the values stored by the Redis backed stats services. Codecs only differ in how they
+ * write values: every codec reads both JSON and Smile, telling them apart by the header Smile
+ * values start with. Data written with one codec therefore stays readable after switching to the
+ * other, e.g. while rolling out a change of codec.
+ * <p/>
+ * The codec can be chosen by setting <code>{@value #STORAGE_CODEC_PARAM}</code> as a system
+ * property using <code>-D</code> to either <code>json</code> (default) or <code>smile</code>.
+ */
+public abstract class StorageCodec {
+  public static final String STORAGE_CODEC_PARAM = "ambrose.storage.codec";
+
+  /**
+   * Writes values as compact JSON text.
+   */
+  public static final StorageCodec JSON = new StorageCodec("json") {
+    @Override
+    public byte[] encode(Object value) throws IOException {
+      return JSONUtil.toJsonBytes(value);
+    }
+  };
+
+  /**
+   * Writes values as Smile, which is smaller and faster to parse than JSON.
+   */
+  public static final StorageCodec SMILE = new StorageCodec("smile") {
+    @Override
+    public byte[] encode(Object value) throws IOException {
+      return JSONUtil.toSmileBytes(value);
+    }
+  };
+
+  private final String name;
+
+  protected StorageCodec(String name) {
+    this.name = name;
+  }
+
+  /**
+   * @return the codec named by the <code>{@value #STORAGE_CODEC_PARAM}</code> system property.
+   */
+  public static StorageCodec fromSystemProperties() {
+    return forName(System.getProperty(STORAGE_CODEC_PARAM, JSON.getName()));
+  }
+
+  /**
+   * @param name name of codec.
+   * @return the codec with the given name.
+   * @throws IllegalArgumentException if there's no such codec.
+   */
+  public static StorageCodec forName(String name) {
+    if (JSON.getName().equalsIgnoreCase(name)) {
+      return JSON;
+    }
+    if (SMILE.getName().equalsIgnoreCase(name)) {
+      return SMILE;
+    }
+    throw new IllegalArgumentException("Unknown storage codec '" + name + "'");
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @param value value to encode.
+   * @return the encoded value.
+   * @throws IOException if value can't be serialized.
+   */
+  public abstract byte[] encode(Object value) throws IOException;
+
+  /**
+   * @param data value encoded by any codec.
+   * @param type type of value.
+   * @return the decoded value.
+   * @throws IOException if data can't be parsed.
+   */
+  public <T> T decode(byte[] data, TypeReference<T> type) throws IOException {
+    return JSONUtil.isSmile(data)
+        ? JSONUtil.fromSmileBytes(data, type)
+        : JSONUtil.fromJsonBytes(data, type);
+  }
+
+  /**
+   * @param data value encoded by any codec.
+   * @param type type of value.
+   * @return the decoded value.
+   * @throws IOException if data can't be parsed.
+   */
+  public <T> T decode(byte[] data, Class<T> type) throws IOException {
+    return JSONUtil.isSmile(data)
+        ? JSONUtil.fromSmileBytes(data, type)
+        : JSONUtil.fromJsonBytes(data, type);
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
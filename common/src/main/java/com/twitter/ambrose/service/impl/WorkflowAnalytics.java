@@ -0,0 +1,91 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.twitter.ambrose.model.CriticalPath;
+import com.twitter.ambrose.model.DAGNode;
+import com.twitter.ambrose.model.Event;
+import com.twitter.ambrose.model.Job;
+import com.twitter.ambrose.service.StatsReadService;
+
+/**
+ * Critical path analytics of the workflows of a {@link StatsReadService}. Each analyzed workflow
+ * keeps a {@link CriticalPathAnalyzer}, which is fed only the events written since it was last
+ * asked, so repeated requests for a running workflow cost one O(V+E) analysis plus its new events.
+ * An analyzer is rebuilt if the nodes or edges of its workflow's DAG change.
+ * <p/>
+ * Up to <code>{@value #MAX_WORKFLOWS_PARAM}</code> (default {@value #DEFAULT_MAX_WORKFLOWS})
+ * analyzers are kept, set as a system property using <code>-D</code>; the least recently asked
+ * one is dropped first.
+ */
+public class WorkflowAnalytics {
+  public static final String MAX_WORKFLOWS_PARAM = "ambrose.analytics.workflows";
+  private static final int DEFAULT_MAX_WORKFLOWS = 64;
+  private static final int EVENTS_CHUNK_SIZE = 1000;
+
+  private final StatsReadService<? extends Job> service;
+  /** guarded by itself */
+  private final Map<String, CriticalPathAnalyzer> analyzers;
+
+  public WorkflowAnalytics(StatsReadService<? extends Job> service) {
+    this(service, Integer.getInteger(MAX_WORKFLOWS_PARAM, DEFAULT_MAX_WORKFLOWS));
+  }
+
+  public WorkflowAnalytics(StatsReadService<? extends Job> service, final int maxWorkflows) {
+    this.service = service;
+    this.analyzers = new LinkedHashMap<String, CriticalPathAnalyzer>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CriticalPathAnalyzer> eldest) {
+        return size() > maxWorkflows;
+      }
+    };
+  }
+
+  /**
+   * @param workflowId workflow to analyze.
+   * @return the workflow's critical path as of now, or null if it has no DAG.
+   */
+  public CriticalPath getCriticalPath(String workflowId) throws IOException {
+    Map<String, ? extends DAGNode<? extends Job>> dag = service.getDagNodeNameMap(workflowId);
+    if (dag == null || dag.isEmpty()) {
+      return null;
+    }
+    CriticalPathAnalyzer analyzer;
+    synchronized (analyzers) {
+      analyzer = analyzers.get(workflowId);
+      if (analyzer == null || !analyzer.isBuiltFor(dag)) {
+        analyzer = new CriticalPathAnalyzer(dag);
+        analyzers.put(workflowId, analyzer);
+      }
+    }
+    synchronized (analyzer) {
+      Collection<Event> events;
+      do {
+        events = service.getEventsSinceId(workflowId, analyzer.getLastEventId(),
+            EVENTS_CHUNK_SIZE);
+        for (Event event : events) {
+          analyzer.apply(event);
+        }
+      } while (events.size() >= EVENTS_CHUNK_SIZE);
+      return analyzer.analyze(System.currentTimeMillis());
+    }
+  }
+}
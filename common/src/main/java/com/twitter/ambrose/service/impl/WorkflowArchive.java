@@ -0,0 +1,266 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compressed on-disk archive of workflows moved out of a stats service's hot storage. Each
+ * workflow is kept in one gzipped file named after its URL encoded id, holding its summary, DAG,
+ * jobs and events as encoded by the service's {@link StorageCodec}. Archived workflows are never
+ * modified, so the most recently read ones are cached in memory.
+ * <p/>
+ * The archive is enabled by setting <code>{@value #DIR_PARAM}</code> as a system property using
+ * <code>-D</code> to the directory holding it. Up to <code>{@value #CACHE_WORKFLOWS_PARAM}</code>
+ * (default {@value #DEFAULT_CACHE_WORKFLOWS}) workflows read from it are cached.
+ */
+public class WorkflowArchive {
+  public static final String DIR_PARAM = "ambrose.archive.dir";
+  public static final String CACHE_WORKFLOWS_PARAM = "ambrose.archive.cache.workflows";
+  private static final Logger LOG = LoggerFactory.getLogger(WorkflowArchive.class);
+  private static final int DEFAULT_CACHE_WORKFLOWS = 16;
+  private static final String SUFFIX = ".gz";
+  private static final String TMP_SUFFIX = ".tmp";
+  private static final int FORMAT_VERSION = 1;
+
+  /**
+   * An archived workflow. Values are encoded, and must not be modified.
+   */
+  public static class Entry {
+    private final byte[] summary;
+    private final byte[] dag;
+    private final Map<String, byte[]> jobs;
+    private final SortedMap<Long, byte[]> events;
+
+    /**
+     * @param summary encoded summary.
+     * @param dag encoded DAG, or null if the workflow has none.
+     * @param jobs encoded jobs by id.
+     * @param events encoded events by id.
+     */
+    public Entry(byte[] summary, byte[] dag, Map<String, byte[]> jobs,
+        SortedMap<Long, byte[]> events) {
+      this.summary = summary;
+      this.dag = dag;
+      this.jobs = Collections.unmodifiableMap(jobs);
+      this.events = Collections.unmodifiableSortedMap(events);
+    }
+
+    public byte[] getSummary() {
+      return summary;
+    }
+
+    public byte[] getDag() {
+      return dag;
+    }
+
+    public Map<String, byte[]> getJobs() {
+      return jobs;
+    }
+
+    public SortedMap<Long, byte[]> getEvents() {
+      return events;
+    }
+  }
+
+  private final File dir;
+  /** guarded by itself */
+  private final Map<String, Entry> cache;
+
+  public WorkflowArchive(File dir, final int cacheWorkflows) throws IOException {
+    this.dir = dir;
+    this.cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > cacheWorkflows;
+      }
+    };
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create " + dir);
+    }
+  }
+
+  /**
+   * @return the archive configured by system properties, or null if none is.
+   * @throws IOException if the archive directory can't be created.
+   */
+  public static WorkflowArchive fromSystemProperties() throws IOException {
+    String dir = System.getProperty(DIR_PARAM);
+    return dir == null ? null
+        : new WorkflowArchive(new File(dir),
+            Integer.getInteger(CACHE_WORKFLOWS_PARAM, DEFAULT_CACHE_WORKFLOWS));
+  }
+
+  private File file(String workflowId) {
+    return new File(dir, JournalStatsService.encodeId(workflowId) + SUFFIX);
+  }
+
+  /**
+   * Archives a workflow, replacing any earlier archive of it.
+   *
+   * @return size of the archived workflow in bytes.
+   */
+  public long write(String workflowId, Entry entry) throws IOException {
+    File file = file(workflowId);
+    File tmp = new File(dir, file.getName() + TMP_SUFFIX);
+    FileOutputStream fileOut = new FileOutputStream(tmp);
+    try {
+      GZIPOutputStream gzipOut = new GZIPOutputStream(new BufferedOutputStream(fileOut));
+      DataOutputStream out = new DataOutputStream(gzipOut);
+      out.writeInt(FORMAT_VERSION);
+      writeBytes(out, entry.getSummary());
+      writeBytes(out, entry.getDag());
+      out.writeInt(entry.getJobs().size());
+      for (Map.Entry<String, byte[]> job : entry.getJobs().entrySet()) {
+        out.writeUTF(job.getKey());
+        writeBytes(out, job.getValue());
+      }
+      out.writeInt(entry.getEvents().size());
+      for (Map.Entry<Long, byte[]> event : entry.getEvents().entrySet()) {
+        out.writeLong(event.getKey());
+        writeBytes(out, event.getValue());
+      }
+      out.flush();
+      gzipOut.finish();
+      gzipOut.flush();
+      fileOut.getFD().sync();
+    } finally {
+      fileOut.close();
+    }
+    if (!tmp.renameTo(file)) {
+      // some platforms don't rename over existing files
+      if (!file.delete() || !tmp.renameTo(file)) {
+        throw new IOException("Could not move " + tmp + " to " + file);
+      }
+    }
+    synchronized (cache) {
+      cache.remove(workflowId);
+    }
+    return file.length();
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] data) throws IOException {
+    if (data == null) {
+      out.writeInt(-1);
+    } else {
+      out.writeInt(data.length);
+      out.write(data);
+    }
+  }
+
+  /**
+   * @return the archived workflow, or null if it isn't archived.
+   * @throws IOException if the archive can't be read.
+   */
+  public Entry read(String workflowId) throws IOException {
+    synchronized (cache) {
+      Entry entry = cache.get(workflowId);
+      if (entry != null) {
+        return entry;
+      }
+    }
+    File file = file(workflowId);
+    if (!file.isFile()) {
+      return null;
+    }
+    Entry entry;
+    DataInputStream in = new DataInputStream(
+        new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))));
+    try {
+      int version = in.readInt();
+      if (version != FORMAT_VERSION) {
+        throw new IOException("Unknown archive format " + version + " of " + file);
+      }
+      byte[] summary = readBytes(in);
+      byte[] dag = readBytes(in);
+      int jobCount = in.readInt();
+      Map<String, byte[]> jobs = new LinkedHashMap<String, byte[]>();
+      for (int i = 0; i < jobCount; i++) {
+        jobs.put(in.readUTF(), readBytes(in));
+      }
+      int eventCount = in.readInt();
+      SortedMap<Long, byte[]> events = new TreeMap<Long, byte[]>();
+      for (int i = 0; i < eventCount; i++) {
+        events.put(in.readLong(), readBytes(in));
+      }
+      entry = new Entry(summary, dag, jobs, events);
+    } catch (EOFException e) {
+      throw new IOException("Truncated archive " + file, e);
+    } finally {
+      in.close();
+    }
+    synchronized (cache) {
+      cache.put(workflowId, entry);
+    }
+    return entry;
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] data = new byte[length];
+    in.readFully(data);
+    return data;
+  }
+
+  /**
+   * Deletes the workflows archived before a given time.
+   *
+   * @param time time in ms since the epoch.
+   * @return bytes freed.
+   */
+  public long removeArchivedBefore(long time) {
+    File[] files = dir.listFiles();
+    long freed = 0;
+    for (File file : files == null ? new File[0] : files) {
+      if (!file.getName().endsWith(SUFFIX) || file.lastModified() >= time) {
+        continue;
+      }
+      long length = file.length();
+      if (file.delete()) {
+        freed += length;
+      } else {
+        LOG.warn("Could not delete " + file);
+      }
+    }
+    if (freed > 0) {
+      synchronized (cache) {
+        cache.clear();
+      }
+    }
+    return freed;
+  }
+}
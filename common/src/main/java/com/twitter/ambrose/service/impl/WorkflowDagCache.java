@@ -0,0 +1,167 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.twitter.ambrose.model.DAGNode;
+import com.twitter.ambrose.model.Job;
+import com.twitter.ambrose.service.SerializedDagReadService.SerializedDag;
+import com.twitter.ambrose.util.JSONUtil;
+
+/**
+ * Bounded cache of parsed DAGs, kept per workflow along with the compact JSON of their nodes as
+ * served to clients. Each DAG carries a version stamp which changes whenever the DAG of its
+ * workflow is written. Within <code>refreshMs</code> of the last check reads are served without
+ * loading at all; after that only the version is loaded, and the DAG itself only if its version
+ * changed.
+ * <p/>
+ * At most <code>maxWorkflows</code> DAGs are cached; the least recently read one is evicted first.
+ */
+public class WorkflowDagCache {
+
+  /**
+   * Source of DAGs to cache.
+   */
+  public interface Loader {
+    /**
+     * @param workflowId workflow to load the DAG version of.
+     * @return current version of the workflow's DAG.
+     */
+    long loadVersion(String workflowId) throws IOException;
+
+    /**
+     * @param workflowId workflow to load the DAG of.
+     * @return the workflow's DAG, or null if it has none.
+     */
+    Dag loadDag(String workflowId) throws IOException;
+  }
+
+  /**
+   * An immutable DAG and its version, along with its serialized nodes and their hash.
+   */
+  public static class Dag {
+    private final long version;
+    private final Map<String, DAGNode<Job>> nodeNameMap;
+    private final SerializedDag serialized;
+
+    public Dag(long version, Map<String, DAGNode<Job>> nodeNameMap) throws IOException {
+      this.version = version;
+      this.nodeNameMap = Collections.unmodifiableMap(nodeNameMap);
+      this.serialized = new SerializedDag(JSONUtil.toJsonBytes(nodeNameMap.values()));
+    }
+
+    public long getVersion() {
+      return version;
+    }
+
+    public Map<String, DAGNode<Job>> getNodeNameMap() {
+      return nodeNameMap;
+    }
+
+    /**
+     * @return compact JSON array of the DAG's nodes. Must not be modified.
+     */
+    public byte[] getNodesJson() {
+      return serialized.getJson();
+    }
+
+    /**
+     * @return the DAG's nodes serialized, with their hash.
+     */
+    public SerializedDag getSerialized() {
+      return serialized;
+    }
+  }
+
+  private static class Entry {
+    private final Dag dag;
+    private volatile long lastCheckNanos;
+
+    private Entry(Dag dag, long lastCheckNanos) {
+      this.dag = dag;
+      this.lastCheckNanos = lastCheckNanos;
+    }
+  }
+
+  private final Loader loader;
+  private final long refreshNanos;
+  private final LinkedHashMap<String, Entry> entries;
+
+  public WorkflowDagCache(Loader loader, final int maxWorkflows, long refreshMs) {
+    this.loader = loader;
+    this.refreshNanos = TimeUnit.MILLISECONDS.toNanos(refreshMs);
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxWorkflows;
+      }
+    };
+  }
+
+  /**
+   * @param workflowId the id of the workflow being accessed
+   * @return the workflow's DAG, or null if it has none
+   * @throws IOException if the DAG had to be loaded and loading failed
+   */
+  public Dag get(String workflowId) throws IOException {
+    Entry entry;
+    synchronized (entries) {
+      entry = entries.get(workflowId);
+    }
+    long now = System.nanoTime();
+    if (entry != null) {
+      if (now - entry.lastCheckNanos < refreshNanos) {
+        return entry.dag;
+      }
+      if (loader.loadVersion(workflowId) == entry.dag.getVersion()) {
+        entry.lastCheckNanos = now;
+        return entry.dag;
+      }
+    }
+    Dag dag = loader.loadDag(workflowId);
+    if (dag != null) {
+      synchronized (entries) {
+        entries.put(workflowId, new Entry(dag, now));
+      }
+    }
+    return dag;
+  }
+
+  /**
+   * Drops the cached DAG of a workflow, e.g. after a new one was written.
+   *
+   * @param workflowId workflow to drop.
+   */
+  public void invalidate(String workflowId) {
+    synchronized (entries) {
+      entries.remove(workflowId);
+    }
+  }
+
+  /**
+   * @return number of workflows currently cached.
+   */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+}
@@ -0,0 +1,228 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import com.twitter.ambrose.model.Event;
+
+/**
+ * Bounded cache of parsed events, kept per workflow and keyed by event id. The first read of a
+ * workflow loads its newest <code>maxEventsPerWorkflow</code> events only. Each later refresh only
+ * loads events with ids above the highest one already cached, at most
+ * <code>maxEventsPerWorkflow</code> of them; if there are that many, the cache starts over from the
+ * newest events. Within <code>refreshMs</code> of the last refresh reads are served without
+ * loading at all unless the workflow has been marked stale.
+ * <p/>
+ * At most <code>maxWorkflows</code> workflows are cached; the least recently read one is evicted
+ * first, and workflows not read for <code>idleMs</code> are evicted as well. Each workflow keeps
+ * its newest <code>maxEventsPerWorkflow</code> events. Reads reaching further back than that are
+ * passed through to the loader uncached.
+ */
+public class WorkflowEventCache {
+
+  /**
+   * Source of events to cache.
+   */
+  public interface Loader {
+    /**
+     * @param workflowId workflow to load events of.
+     * @param minId lowest event id to load.
+     * @param maxEvents max number of events to load.
+     * @return the first maxEvents events with id >= minId, ordered by id ascending.
+     */
+    List<Event> loadEvents(String workflowId, long minId, int maxEvents) throws IOException;
+
+    /**
+     * @param workflowId workflow to load events of.
+     * @param maxEvents max number of events to load.
+     * @return the last maxEvents events, ordered by id ascending.
+     */
+    List<Event> loadLatestEvents(String workflowId, int maxEvents) throws IOException;
+  }
+
+  private static class Entry {
+    private final ConcurrentSkipListMap<Long, Event> events =
+        new ConcurrentSkipListMap<Long, Event>();
+    /** lowest id not loaded yet */
+    private long nextId = Long.MIN_VALUE;
+    /** events with ids up to and including this one may have been trimmed */
+    private long floorId = Long.MIN_VALUE;
+    private long lastRefreshNanos;
+    private boolean stale = true;
+    private volatile long lastReadNanos;
+  }
+
+  private final Loader loader;
+  private final int maxEventsPerWorkflow;
+  private final long refreshNanos;
+  private final long idleNanos;
+  private final LinkedHashMap<String, Entry> entries;
+
+  public WorkflowEventCache(Loader loader, final int maxWorkflows, int maxEventsPerWorkflow,
+      long refreshMs, long idleMs) {
+    this.loader = loader;
+    this.maxEventsPerWorkflow = maxEventsPerWorkflow;
+    this.refreshNanos = TimeUnit.MILLISECONDS.toNanos(refreshMs);
+    this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMs);
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxWorkflows;
+      }
+    };
+  }
+
+  /**
+   * Returns all events of a workflow with an id greater than sinceId.
+   *
+   * @param workflowId the id of the workflow being accessed
+   * @param sinceId the eventId that all returned events will be greater than
+   * @return events ordered by eventId ascending
+   * @throws IOException if events had to be loaded and loading failed
+   */
+  public Collection<Event> getEventsSinceId(String workflowId, long sinceId) throws IOException {
+    return getEventsSinceId(workflowId, sinceId, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Returns the first maxEvents events of a workflow with an id greater than sinceId.
+   *
+   * @param workflowId the id of the workflow being accessed
+   * @param sinceId the eventId that all returned events will be greater than
+   * @param maxEvents max number of events to return
+   * @return events ordered by eventId ascending
+   * @throws IOException if events had to be loaded and loading failed
+   */
+  public Collection<Event> getEventsSinceId(String workflowId, long sinceId, int maxEvents)
+      throws IOException {
+    Entry entry = getEntry(workflowId);
+    synchronized (entry) {
+      long now = System.nanoTime();
+      if (entry.stale || now - entry.lastRefreshNanos >= refreshNanos) {
+        refresh(workflowId, entry);
+        entry.lastRefreshNanos = now;
+        entry.stale = false;
+      }
+      if (sinceId >= entry.floorId) {
+        List<Event> events = new ArrayList<Event>(Math.min(maxEvents, entry.events.size()));
+        for (Event event : entry.events.tailMap(sinceId, false).values()) {
+          if (events.size() >= maxEvents) {
+            break;
+          }
+          events.add(event);
+        }
+        return events;
+      }
+    }
+    // older than what's cached
+    return loader.loadEvents(workflowId, sinceId + 1, maxEvents);
+  }
+
+  private void refresh(String workflowId, Entry entry) throws IOException {
+    if (entry.nextId != Long.MIN_VALUE) {
+      List<Event> loaded = loader.loadEvents(workflowId, entry.nextId, maxEventsPerWorkflow);
+      if (loaded.size() < maxEventsPerWorkflow) {
+        add(entry, loaded);
+        while (entry.events.size() > maxEventsPerWorkflow) {
+          entry.floorId = entry.events.pollFirstEntry().getKey();
+        }
+        return;
+      }
+      // a full chunk may be followed by more than are kept, so start over from the newest
+      entry.events.clear();
+    }
+    List<Event> latest = loader.loadLatestEvents(workflowId, maxEventsPerWorkflow);
+    add(entry, latest);
+    // fewer than asked for are all there is
+    entry.floorId = latest.isEmpty() || latest.size() < maxEventsPerWorkflow
+        ? Long.MIN_VALUE
+        : latest.get(0).getId() - 1;
+  }
+
+  private static void add(Entry entry, List<Event> loaded) {
+    for (Event event : loaded) {
+      entry.events.put(event.getId(), event);
+      if (event.getId() >= entry.nextId) {
+        entry.nextId = event.getId() + 1;
+      }
+    }
+  }
+
+  private Entry getEntry(String workflowId) {
+    long now = System.nanoTime();
+    synchronized (entries) {
+      // entries are in read order, so idle ones are at the head
+      Iterator<Entry> it = entries.values().iterator();
+      while (it.hasNext() && now - it.next().lastReadNanos >= idleNanos) {
+        it.remove();
+      }
+      Entry entry = entries.get(workflowId);
+      if (entry == null) {
+        entry = new Entry();
+        entries.put(workflowId, entry);
+      }
+      entry.lastReadNanos = now;
+      return entry;
+    }
+  }
+
+  /**
+   * Forces the next read of a workflow to check for new events, e.g. after events were written.
+   *
+   * @param workflowId workflow to mark.
+   */
+  public void markStale(String workflowId) {
+    Entry entry;
+    synchronized (entries) {
+      entry = entries.get(workflowId);
+    }
+    if (entry != null) {
+      synchronized (entry) {
+        entry.stale = true;
+      }
+    }
+  }
+
+  /**
+   * Drops all cached events of a workflow, e.g. after events were written with ids lower than the
+   * highest cached one.
+   *
+   * @param workflowId workflow to drop.
+   */
+  public void invalidate(String workflowId) {
+    synchronized (entries) {
+      entries.remove(workflowId);
+    }
+  }
+
+  /**
+   * @return number of workflows currently cached.
+   */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+}
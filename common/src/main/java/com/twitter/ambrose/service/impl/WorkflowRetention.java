@@ -0,0 +1,297 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.twitter.ambrose.model.WorkflowSummary;
+
+/**
+ * Sweeps workflows out of a stats service's hot storage once they are older than the time to live
+ * configured for their status, and archived workflows out of its {@link WorkflowArchive} once
+ * they have been archived for longer than the archive's time to live. Sweeps run from a background
+ * thread, and can also be run with {@link #sweep}. Each sweep holds the store's sweep lock, so VMs
+ * sharing a store take turns. Counts of sweeps, removed workflows and bytes reclaimed are kept for
+ * monitoring.
+ * <p/>
+ * The background thread should only run in the VMs meant to sweep, e.g. those of the web tier
+ * rather than every workflow client; services start it only if the
+ * <code>{@value #SWEEPER_PARAM}</code> system property is set to true using <code>-D</code>.
+ * <p/>
+ * Times to live can be set in ms as system properties using <code>-D</code>. Workflows of a status
+ * without one, and archived workflows if the archive has none, are kept forever:
+ * <pre>
+ *   <ul>
+ *     <li><code>{@value #RUNNING_TTL_PARAM}</code> - running workflows, by creation time. Should
+ * exceed the run time of the longest workflow, since events written after the workflow was swept
+ * are lost.</li>
+ *     <li><code>{@value #SUCCEEDED_TTL_PARAM}</code> - succeeded workflows, by creation time.</li>
+ *     <li><code>{@value #FAILED_TTL_PARAM}</code> - failed workflows, by creation time.</li>
+ *     <li><code>{@value #ARCHIVE_TTL_PARAM}</code> - archived workflows, by archival time.</li>
+ *     <li><code>{@value #SWEEP_INTERVAL_PARAM}</code> - ms between sweeps (default
+ * {@value #DEFAULT_SWEEP_INTERVAL_MS}), also the time after which the sweep lock of a VM which
+ * died sweeping expires.</li>
+ *   </ul>
+ * </pre>
+ */
+public class WorkflowRetention {
+  public static final String RUNNING_TTL_PARAM = "ambrose.retention.running.ms";
+  public static final String SUCCEEDED_TTL_PARAM = "ambrose.retention.succeeded.ms";
+  public static final String FAILED_TTL_PARAM = "ambrose.retention.failed.ms";
+  public static final String ARCHIVE_TTL_PARAM = "ambrose.retention.archive.ms";
+  public static final String SWEEP_INTERVAL_PARAM = "ambrose.retention.sweep.interval.ms";
+  public static final String SWEEPER_PARAM = "ambrose.retention.sweeper";
+  private static final Logger LOG = LoggerFactory.getLogger(WorkflowRetention.class);
+  private static final long DEFAULT_SWEEP_INTERVAL_MS = 10 * 60 * 1000;
+
+  /**
+   * Hot storage of workflows.
+   */
+  public interface Store {
+    /**
+     * @param status status of workflows to find.
+     * @param createdBefore time in ms since the epoch.
+     * @return ids of the stored workflows of this status created before createdBefore.
+     */
+    Collection<String> getWorkflowIds(WorkflowSummary.Status status, long createdBefore)
+        throws IOException;
+
+    /**
+     * Moves a workflow out of the store, into the archive if there is one.
+     *
+     * @param workflowId workflow to remove.
+     * @param status status the workflow was found with.
+     * @return bytes reclaimed, or -1 if the workflow wasn't removed because it changed, e.g. its
+     * status.
+     */
+    long remove(String workflowId, WorkflowSummary.Status status) throws IOException;
+
+    /**
+     * Takes the sweep lock of the store, unless another sweep holds it.
+     *
+     * @param ttlMs ms after which the lock is released if not unlocked before.
+     * @return a token to unlock with, or null if the lock is held by another sweep.
+     */
+    String lock(long ttlMs) throws IOException;
+
+    /**
+     * Releases the sweep lock, unless it expired and was taken by another sweep since.
+     *
+     * @param token token returned by {@link #lock}.
+     */
+    void unlock(String token) throws IOException;
+  }
+
+  private final Store store;
+  private final WorkflowArchive archive;
+  private final Map<WorkflowSummary.Status, Long> ttlMs;
+  private final long archiveTtlMs;
+  private final long sweepIntervalMs;
+  private final AtomicLong sweepCount = new AtomicLong();
+  private final AtomicLong removedWorkflowCount = new AtomicLong();
+  private final AtomicLong bytesReclaimed = new AtomicLong();
+  private final AtomicLong archiveBytesReclaimed = new AtomicLong();
+  private Thread sweeper;
+
+  /**
+   * @param store store to sweep.
+   * @param archive archive to sweep, or null if there is none.
+   * @param ttlMs time to live by status; workflows of other statuses are kept.
+   * @param archiveTtlMs time to live of archived workflows, or 0 to keep them.
+   * @param sweepIntervalMs ms between sweeps of the background thread.
+   */
+  public WorkflowRetention(Store store, WorkflowArchive archive,
+      Map<WorkflowSummary.Status, Long> ttlMs, long archiveTtlMs, long sweepIntervalMs) {
+    this.store = store;
+    this.archive = archive;
+    this.ttlMs = new EnumMap<WorkflowSummary.Status, Long>(WorkflowSummary.Status.class);
+    this.ttlMs.putAll(ttlMs);
+    this.archiveTtlMs = archiveTtlMs;
+    this.sweepIntervalMs = sweepIntervalMs;
+  }
+
+  /**
+   * @return retention of store and archive configured by system properties.
+   */
+  public static WorkflowRetention fromSystemProperties(Store store, WorkflowArchive archive) {
+    Map<WorkflowSummary.Status, Long> ttlMs =
+        new EnumMap<WorkflowSummary.Status, Long>(WorkflowSummary.Status.class);
+    putTtl(ttlMs, WorkflowSummary.Status.RUNNING, RUNNING_TTL_PARAM);
+    putTtl(ttlMs, WorkflowSummary.Status.SUCCEEDED, SUCCEEDED_TTL_PARAM);
+    putTtl(ttlMs, WorkflowSummary.Status.FAILED, FAILED_TTL_PARAM);
+    return new WorkflowRetention(store, archive, ttlMs, Long.getLong(ARCHIVE_TTL_PARAM, 0),
+        Long.getLong(SWEEP_INTERVAL_PARAM, DEFAULT_SWEEP_INTERVAL_MS));
+  }
+
+  private static void putTtl(Map<WorkflowSummary.Status, Long> ttlMs,
+      WorkflowSummary.Status status, String param) {
+    Long ttl = Long.getLong(param);
+    if (ttl != null && ttl > 0) {
+      ttlMs.put(status, ttl);
+    }
+  }
+
+  /**
+   * @return true if this VM is configured to run the background sweeper.
+   */
+  public static boolean isSweeperConfigured() {
+    return Boolean.getBoolean(SWEEPER_PARAM);
+  }
+
+  /**
+   * @return true if anything is ever swept.
+   */
+  public boolean isEnabled() {
+    return !ttlMs.isEmpty() || (archive != null && archiveTtlMs > 0);
+  }
+
+  /**
+   * Starts the background sweeper, unless already started or nothing is ever swept.
+   */
+  public synchronized void start() {
+    if (sweeper != null || !isEnabled()) {
+      return;
+    }
+    sweeper = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (true) {
+          try {
+            Thread.sleep(sweepIntervalMs);
+          } catch (InterruptedException e) {
+            return;
+          }
+          sweep();
+        }
+      }
+    }, "ambrose-retention-sweeper");
+    sweeper.setDaemon(true);
+    sweeper.start();
+  }
+
+  /**
+   * Stops the background sweeper, if started.
+   */
+  public synchronized void stop() {
+    if (sweeper != null) {
+      sweeper.interrupt();
+      sweeper = null;
+    }
+  }
+
+  /**
+   * Removes all expired workflows, unless another VM is sweeping the store. Workflows which can't
+   * be removed are logged and skipped.
+   *
+   * @return bytes reclaimed from the store.
+   */
+  public synchronized long sweep() {
+    String token;
+    try {
+      token = store.lock(sweepIntervalMs);
+    } catch (IOException e) {
+      LOG.warn("Could not take the sweep lock", e);
+      return 0;
+    }
+    if (token == null) {
+      LOG.debug("Skipping sweep, another one holds the lock");
+      return 0;
+    }
+    try {
+      return sweepLocked();
+    } finally {
+      try {
+        store.unlock(token);
+      } catch (IOException e) {
+        LOG.warn("Could not release the sweep lock", e);
+      }
+    }
+  }
+
+  private long sweepLocked() {
+    long now = System.currentTimeMillis();
+    long removed = 0;
+    long reclaimed = 0;
+    for (Map.Entry<WorkflowSummary.Status, Long> entry : ttlMs.entrySet()) {
+      Collection<String> workflowIds;
+      try {
+        workflowIds = store.getWorkflowIds(entry.getKey(), now - entry.getValue());
+      } catch (IOException e) {
+        LOG.warn("Could not find expired " + entry.getKey() + " workflows", e);
+        continue;
+      }
+      for (String workflowId : workflowIds) {
+        try {
+          long bytes = store.remove(workflowId, entry.getKey());
+          if (bytes >= 0) {
+            removed++;
+            reclaimed += bytes;
+          }
+        } catch (IOException e) {
+          LOG.warn("Could not remove workflow " + workflowId, e);
+        }
+      }
+    }
+    long archiveReclaimed = archive != null && archiveTtlMs > 0
+        ? archive.removeArchivedBefore(now - archiveTtlMs)
+        : 0;
+
+    sweepCount.incrementAndGet();
+    removedWorkflowCount.addAndGet(removed);
+    bytesReclaimed.addAndGet(reclaimed);
+    archiveBytesReclaimed.addAndGet(archiveReclaimed);
+    if (removed > 0 || archiveReclaimed > 0) {
+      LOG.info("Swept {} workflows, reclaiming {} bytes of storage and {} bytes of archive",
+          new Object[] { removed, reclaimed, archiveReclaimed });
+    }
+    return reclaimed;
+  }
+
+  /**
+   * @return number of sweeps run.
+   */
+  public long getSweepCount() {
+    return sweepCount.get();
+  }
+
+  /**
+   * @return number of workflows removed from the store.
+   */
+  public long getRemovedWorkflowCount() {
+    return removedWorkflowCount.get();
+  }
+
+  /**
+   * @return total bytes reclaimed from the store.
+   */
+  public long getBytesReclaimed() {
+    return bytesReclaimed.get();
+  }
+
+  /**
+   * @return total bytes reclaimed from the archive.
+   */
+  public long getArchiveBytesReclaimed() {
+    return archiveBytesReclaimed.get();
+  }
+}
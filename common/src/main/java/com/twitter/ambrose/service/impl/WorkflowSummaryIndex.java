@@ -0,0 +1,187 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.BaseEncoding;
+
+import com.twitter.ambrose.model.Event;
+import com.twitter.ambrose.model.PaginatedList;
+import com.twitter.ambrose.model.WorkflowSummary;
+
+/**
+ * Concurrent index of workflow summaries ordered newest first, for backends keeping summaries in
+ * the heap. Pages are read like those of the Redis backed indexes of {@link InMemoryStatsService},
+ * with the same start keys. Summaries put in the index must not be modified afterwards.
+ */
+public class WorkflowSummaryIndex {
+
+  /**
+   * Tracks the summary of one workflow as its events arrive. Not thread-safe.
+   */
+  public static class Tracker {
+    private final WorkflowSummary summary;
+    private boolean jobFailed = false;
+
+    public Tracker(String workflowId, long createdAt) {
+      this.summary = new WorkflowSummary(workflowId, System.getProperty("user.name", "unknown"),
+          "unknown", WorkflowSummary.Status.RUNNING, 0, createdAt);
+    }
+
+    public Tracker(WorkflowSummary summary) {
+      this.summary = copyOf(summary);
+    }
+
+    /**
+     * Marks the workflow as started, e.g. when its DAG is sent.
+     */
+    public void start() {
+      summary.setStatus(WorkflowSummary.Status.RUNNING);
+      summary.setProgress(0);
+    }
+
+    /**
+     * @return true if the summary changed.
+     */
+    public boolean update(Event event) {
+      switch (event.getType()) {
+        case WORKFLOW_PROGRESS:
+          Event.WorkflowProgressEvent workflowProgressEvent = (Event.WorkflowProgressEvent) event;
+          String progressString =
+              workflowProgressEvent.getPayload().get(Event.WorkflowProgressField.workflowProgress);
+          int progress = Integer.parseInt(progressString);
+          int previousProgress = summary.getProgress();
+          WorkflowSummary.Status previousStatus = summary.getStatus();
+          summary.setProgress(progress);
+          if (progress == 100) {
+            summary.setStatus(jobFailed
+                ? WorkflowSummary.Status.FAILED
+                : WorkflowSummary.Status.SUCCEEDED);
+          }
+          return progress != previousProgress || summary.getStatus() != previousStatus;
+        case JOB_FAILED:
+          jobFailed = true;
+          return false;
+        default:
+          return false;
+      }
+    }
+
+    public boolean isFinished() {
+      return summary.getStatus() == WorkflowSummary.Status.SUCCEEDED
+          || summary.getStatus() == WorkflowSummary.Status.FAILED;
+    }
+
+    /**
+     * @return a copy of the current summary.
+     */
+    public WorkflowSummary getSummary() {
+      return copyOf(summary);
+    }
+  }
+
+  private static class Key {
+    private final long createdAt;
+    private final String workflowId;
+
+    private Key(long createdAt, String workflowId) {
+      this.createdAt = createdAt;
+      this.workflowId = workflowId;
+    }
+  }
+
+  /**
+   * Orders summaries newest first, then by id.
+   */
+  private static final Comparator<Key> NEWEST_FIRST = new Comparator<Key>() {
+    @Override
+    public int compare(Key a, Key b) {
+      if (a.createdAt != b.createdAt) {
+        return a.createdAt > b.createdAt ? -1 : 1;
+      }
+      return a.workflowId.compareTo(b.workflowId);
+    }
+  };
+
+  private final ConcurrentSkipListMap<Key, WorkflowSummary> summaries =
+      new ConcurrentSkipListMap<Key, WorkflowSummary>(NEWEST_FIRST);
+
+  public static WorkflowSummary copyOf(WorkflowSummary summary) {
+    return new WorkflowSummary(summary.getId(), summary.getUserId(), summary.getName(),
+        summary.getStatus(), summary.getProgress(), summary.getCreatedAt());
+  }
+
+  /**
+   * Adds a summary, replacing the one of the same workflow and creation time.
+   */
+  public void put(WorkflowSummary summary) {
+    summaries.put(new Key(summary.getCreatedAt(), summary.getId()), summary);
+  }
+
+  public void remove(WorkflowSummary summary) {
+    summaries.remove(new Key(summary.getCreatedAt(), summary.getId()));
+  }
+
+  public int size() {
+    return summaries.size();
+  }
+
+  /**
+   * @see com.twitter.ambrose.service.WorkflowIndexReadService#getWorkflows
+   */
+  public PaginatedList<WorkflowSummary> getWorkflows(WorkflowSummary.Status status,
+      String userId, int numResults, byte[] startKey) {
+    Map<Key, WorkflowSummary> candidates = summaries;
+    if (startKey != null && startKey.length > 0) {
+      // "<createdAt>:<workflowId>"
+      String start = new String(startKey, Charsets.UTF_8);
+      int separator = start.indexOf(':');
+      if (separator < 0) {
+        throw new IllegalArgumentException("Invalid start key '" + start + "'");
+      }
+      Key startIndexKey = new Key(
+          Long.parseLong(start.substring(0, separator)), start.substring(separator + 1));
+      candidates = summaries.tailMap(startIndexKey, true);
+    }
+
+    List<WorkflowSummary> results = new ArrayList<WorkflowSummary>(numResults);
+    String nextPageStart = null;
+    for (WorkflowSummary summary : candidates.values()) {
+      if ((status != null && status != summary.getStatus())
+          || (userId != null && !userId.equals(summary.getUserId()))) {
+        continue;
+      }
+      if (results.size() == numResults) {
+        nextPageStart = BaseEncoding.base64().encode(
+            (summary.getCreatedAt() + ":" + summary.getId()).getBytes(Charsets.UTF_8));
+        break;
+      }
+      results.add(summary);
+    }
+
+    PaginatedList<WorkflowSummary> list =
+        new PaginatedList<WorkflowSummary>(ImmutableList.copyOf(results));
+    list.setNextPageStart(nextPageStart);
+    return list;
+  }
+}
@@ -18,37 +18,54 @@ package com.twitter.ambrose.util;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.io.Writer;
+import java.lang.reflect.Type;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 
 
 /**
  * Helper method for dealing with JSON in a common way.
+ * <p/>
+ * JSON stored or sent over the wire is written without indentation by {@link #toJson},
+ * {@link #toJsonBytes} and {@link #writeCompactJson}. The {@link #writeJson} methods indent their
+ * output and are meant for debug dumps and other files read by people. Readers are built once per
+ * type and reused, so callers should pass <code>TypeReference</code> constants rather than new
+ * instances, e.g. {@link com.twitter.ambrose.model.Event#TYPE}.
+ * <p/>
+ * The same objects can also be written in Smile, Jackson's binary JSON format, through
+ * {@link #toSmileBytes} and {@link #fromSmileBytes}. Smile output starts with a header which
+ * {@link #isSmile} detects, so stored values of both formats can be told apart.
  *
  * @author billg
  */
 public class JSONUtil {
   /**
-   * Writes object to the writer as JSON using Jackson and adds a new-line before flushing.
+   * Writes object to the writer as indented JSON using Jackson.
    *
    * @param writer the writer to write the JSON to
    * @param object the object to write as JSON
    * @throws IOException if the object can't be serialized as JSON or written to the writer
    */
   public static void writeJson(Writer writer, Object object) throws IOException {
-    mapper.writeValue(writer, object);
+    prettyWriter.writeValue(writer, object);
   }
 
   public static void writeJson(String fileName, Object object) throws IOException {
@@ -61,16 +78,60 @@ public class JSONUtil {
   }
 
   /**
-   * Serializes object to JSON string.
+   * Writes object to the writer as JSON without indentation.
+   *
+   * @param writer the writer to write the JSON to
+   * @param object the object to write as JSON
+   * @throws IOException if the object can't be serialized as JSON or written to the writer
+   */
+  public static void writeCompactJson(Writer writer, Object object) throws IOException {
+    compactWriter.writeValue(writer, object);
+  }
+
+  /**
+   * Writes object to the stream as UTF-8 encoded JSON without indentation.
+   *
+   * @param out the stream to write the JSON to
+   * @param object the object to write as JSON
+   * @throws IOException if the object can't be serialized as JSON or written to the stream
+   */
+  public static void writeCompactJson(OutputStream out, Object object) throws IOException {
+    compactWriter.writeValue(out, object);
+  }
+
+  /**
+   * Serializes object to JSON string without indentation.
    *
    * @param object object to serialize.
    * @return json string.
    * @throws IOException
    */
   public static String toJson(Object object) throws IOException {
-    StringWriter writer = new StringWriter();
-    writeJson(writer, object);
-    return writer.toString();
+    return compactWriter.writeValueAsString(object);
+  }
+
+  /**
+   * Serializes object to UTF-8 encoded JSON without indentation.
+   *
+   * @param object object to serialize.
+   * @return json bytes.
+   * @throws IOException
+   */
+  public static byte[] toJsonBytes(Object object) throws IOException {
+    return compactWriter.writeValueAsBytes(object);
+  }
+
+  /**
+   * Creates a generator writing UTF-8 encoded JSON without indentation to the stream, for output
+   * too large to build in memory first. Objects passed to its <code>writeObject</code> are
+   * serialized as by {@link #toJson}. Closing the generator flushes it but leaves the stream open.
+   *
+   * @param out the stream to write the JSON to
+   * @return a new generator.
+   * @throws IOException if the generator can't be created
+   */
+  public static JsonGenerator newCompactGenerator(OutputStream out) throws IOException {
+    return mapper.getFactory().createGenerator(out, JsonEncoding.UTF8);
   }
 
   /**
@@ -83,16 +144,69 @@ public class JSONUtil {
    * @throws IOException
    */
   public static <T> T toObject(String json, TypeReference<T> type) throws IOException {
-    return mapper.readValue(json, type);
+    return reader(mapper, readers, type.getType()).readValue(json);
   }
 
   public static <T> T toObject(String json, JavaType type) throws IOException {
-    return mapper.readValue(json, type);
+    return reader(mapper, readers, type).readValue(json);
   }
   
   public static <T> T toObject(String json, Class<T> type) throws IOException {
-	    return mapper.readValue(json, type);
-	  }
+    return reader(mapper, readers, type).readValue(json);
+  }
+
+  /**
+   * Parse UTF-8 encoded JSON to object.
+   *
+   * @param json bytes containing JSON.
+   * @param type type reference describing type of object to parse from json.
+   * @param <T> type of object to parse from json.
+   * @return object parsed from json.
+   * @throws IOException
+   */
+  public static <T> T fromJsonBytes(byte[] json, TypeReference<T> type) throws IOException {
+    return reader(mapper, readers, type.getType()).readValue(json);
+  }
+
+  public static <T> T fromJsonBytes(byte[] json, Class<T> type) throws IOException {
+    return reader(mapper, readers, type).readValue(json);
+  }
+
+  /**
+   * Serializes object to Smile.
+   *
+   * @param object object to serialize.
+   * @return smile bytes, starting with the Smile header.
+   * @throws IOException
+   */
+  public static byte[] toSmileBytes(Object object) throws IOException {
+    return smileWriter.writeValueAsBytes(object);
+  }
+
+  /**
+   * Parse Smile to object.
+   *
+   * @param smile bytes containing Smile, starting with the Smile header.
+   * @param type type reference describing type of object to parse from smile.
+   * @param <T> type of object to parse from smile.
+   * @return object parsed from smile.
+   * @throws IOException
+   */
+  public static <T> T fromSmileBytes(byte[] smile, TypeReference<T> type) throws IOException {
+    return reader(smileMapper, smileReaders, type.getType()).readValue(smile);
+  }
+
+  public static <T> T fromSmileBytes(byte[] smile, Class<T> type) throws IOException {
+    return reader(smileMapper, smileReaders, type).readValue(smile);
+  }
+
+  /**
+   * @return true if data starts with the Smile header, i.e. was written by {@link #toSmileBytes}.
+   * JSON text never does since the header isn't valid JSON.
+   */
+  public static boolean isSmile(byte[] data) {
+    return data.length >= 3 && data[0] == ':' && data[1] == ')' && data[2] == '\n';
+  }
 
   public static String readFile(String path) throws IOException {
     FileInputStream stream = new FileInputStream(new File(path));
@@ -106,10 +220,27 @@ public class JSONUtil {
   }
 
   private static final ObjectMapper mapper = new ObjectMapper();
+  private static final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+  /**
+   * readers are immutable and thread-safe, so one is built per type and shared. Keyed by both
+   * java.lang.reflect.Type and JavaType, whichever the caller has.
+   */
+  private static final ConcurrentMap<Object, ObjectReader> readers =
+      new ConcurrentHashMap<Object, ObjectReader>();
+  private static final ConcurrentMap<Object, ObjectReader> smileReaders =
+      new ConcurrentHashMap<Object, ObjectReader>();
+  private static volatile ObjectWriter compactWriter;
+  private static volatile ObjectWriter prettyWriter;
+  private static volatile ObjectWriter smileWriter;
 
   static {
+    configure(mapper);
+    configure(smileMapper);
+    initWriters();
+  }
+
+  private static void configure(ObjectMapper mapper) {
     mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
-    mapper.enable(SerializationFeature.INDENT_OUTPUT);
     mapper.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
     mapper.configure(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT, false);
     mapper.disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
@@ -118,7 +249,38 @@ public class JSONUtil {
     mapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
   }
 
+  private static void initWriters() {
+    compactWriter = mapper.writer();
+    prettyWriter = mapper.writer(SerializationFeature.INDENT_OUTPUT);
+    smileWriter = smileMapper.writer();
+  }
+
+  private static ObjectReader reader(ObjectMapper mapper,
+      ConcurrentMap<Object, ObjectReader> readers, Type type) {
+    ObjectReader reader = readers.get(type);
+    if (reader == null) {
+      reader = mapper.reader(mapper.getTypeFactory().constructType(type));
+      readers.putIfAbsent(type, reader);
+    }
+    return reader;
+  }
+
+  private static ObjectReader reader(ObjectMapper mapper,
+      ConcurrentMap<Object, ObjectReader> readers, JavaType type) {
+    ObjectReader reader = readers.get(type);
+    if (reader == null) {
+      reader = mapper.reader(type);
+      readers.putIfAbsent(type, reader);
+    }
+    return reader;
+  }
+
   public static void mixinAnnotatons(Class<?> target, Class<?> mixinSource) {
     mapper.addMixInAnnotations(target, mixinSource);
+    smileMapper.addMixInAnnotations(target, mixinSource);
+    // readers and writers hold a copy of the configuration they were built with
+    initWriters();
+    readers.clear();
+    smileReaders.clear();
   }
 }
@@ -1,14 +1,21 @@
 package com.twitter.ambrose.model;
 
 import java.io.IOException;
+import java.util.Properties;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 
 import org.junit.Ignore;
 import org.junit.Test;
 
+import com.twitter.ambrose.model.hadoop.MapReduceJobState;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Unit tests for {@link DAGNodeTest}.
@@ -30,4 +37,32 @@ public class DAGNodeTest {
     node.setSuccessors(ImmutableList.<DAGNode<? extends Job>>of(child));
     testRoundTrip(node);
   }
+
+  @Test
+  public void testCompact() throws IOException {
+    MapReduceJobState state = new MapReduceJobState();
+    state.setMapProgress(0.5f);
+    Properties configuration = new Properties();
+    configuration.setProperty("mapred.job.name", "job-1");
+    Job job = new Job("job-1", new String[] { "a" }, new String[] { "GROUP_BY" }, state, null,
+        configuration, ImmutableMap.<String, Number>of("numberMaps", 2));
+    DAGNode<Job> node = new DAGNode<Job>("scope-1", job);
+    node.setSuccessors(ImmutableList.<DAGNode<? extends Job>>of(
+        new DAGNode<Job>("scope-2", null)));
+
+    DAGNode<Job> compact = node.compact();
+    assertEquals("scope-1", compact.getName());
+    assertEquals("job-1", compact.getJob().getId());
+    assertNull(compact.getJob().getAliases());
+    assertNull(compact.getJob().getConfiguration());
+    assertNull(compact.getJob().getMetrics());
+    assertNull(compact.getSuccessorNames());
+    String json = compact.toJson();
+    assertFalse(json.contains("mapred.job.name"));
+    assertTrue(json.contains("mapProgress"));
+
+    // later updates to the job don't change the snapshot
+    state.setMapProgress(1.0f);
+    assertEquals(0.5f, compact.getJob().getMapReduceJobState().getMapProgress(), 0.0f);
+  }
 }
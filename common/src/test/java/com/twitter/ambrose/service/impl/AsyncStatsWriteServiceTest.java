@@ -0,0 +1,215 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.twitter.ambrose.model.DAGNode;
+import com.twitter.ambrose.model.Event;
+import com.twitter.ambrose.model.Job;
+import com.twitter.ambrose.model.hadoop.MapReduceJobState;
+import com.twitter.ambrose.service.StatsWriteService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link AsyncStatsWriteService}.
+ */
+public class AsyncStatsWriteServiceTest {
+  private static final String WORKFLOW_ID = "id1";
+
+  /**
+   * Records written events, DAGs and jobs. The first event write blocks until released, which lets
+   * tests fill the queue.
+   */
+  private static class RecordingService implements StatsWriteService<Job> {
+    private final List<Event> events = new CopyOnWriteArrayList<Event>();
+    private final List<Map<String, DAGNode<Job>>> dags =
+        new CopyOnWriteArrayList<Map<String, DAGNode<Job>>>();
+    private final List<Job> jobs = new CopyOnWriteArrayList<Job>();
+    private final CountDownLatch writing = new CountDownLatch(1);
+    private final CountDownLatch release;
+
+    private RecordingService(boolean blockFirstWrite) {
+      this.release = new CountDownLatch(blockFirstWrite ? 1 : 0);
+    }
+
+    @Override
+    public void sendDagNodeNameMap(String workflowId, Map<String, DAGNode<Job>> dagNodeNameMap) {
+      dags.add(dagNodeNameMap);
+    }
+
+    @Override
+    public void pushEvent(String workflowId, Event event) {
+      writing.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      events.add(event);
+    }
+
+    @Override
+    public void sendJob(String workflowId, Job job) {
+      jobs.add(job);
+    }
+  }
+
+  private AsyncStatsWriteService<Job> service;
+
+  @After
+  public void tearDown() throws InterruptedException {
+    service.close(1000);
+  }
+
+  private static Event progressEvent() {
+    return new Event.JobProgressEvent(new DAGNode<Job>("progress", null));
+  }
+
+  @Test
+  public void testEventsWrittenInOrder() throws Exception {
+    RecordingService recorder = new RecordingService(false);
+    service = new AsyncStatsWriteService<Job>(recorder, 100, 10, 50);
+    List<Event> sent = ImmutableList.of(
+        new Event.JobStartedEvent(new DAGNode<Job>("started", null)),
+        progressEvent(),
+        new Event.WorkflowProgressEvent(
+            ImmutableMap.of(Event.WorkflowProgressField.workflowProgress, "50")),
+        new Event.JobFinishedEvent(new DAGNode<Job>("finished", null)));
+    for (Event event : sent) {
+      service.pushEvent(WORKFLOW_ID, event);
+    }
+
+    assertTrue("Queue not flushed", service.flush(5000));
+    assertEquals(sent, recorder.events);
+    assertEquals(0, service.getQueueDepth());
+    assertEquals(0, service.getDroppedEventCount());
+  }
+
+  @Test
+  public void testQueuedDagsAndJobsUnaffectedByLaterChanges() throws Exception {
+    RecordingService recorder = new RecordingService(true);
+    service = new AsyncStatsWriteService<Job>(recorder, 100, 10, 0);
+    service.pushEvent(WORKFLOW_ID, progressEvent());
+    recorder.writing.await();
+
+    MapReduceJobState state = new MapReduceJobState();
+    state.setMapProgress(0.5f);
+    Job job = new Job("job-1", null, null, state, null, null, null);
+    DAGNode<Job> node = new DAGNode<Job>("node", job);
+    service.sendDagNodeNameMap(WORKFLOW_ID, ImmutableMap.of("node", node));
+    service.sendJob(WORKFLOW_ID, job);
+    // the caller moves on while both are queued
+    state.setMapProgress(1f);
+    job.setId("job-2");
+
+    recorder.release.countDown();
+    assertTrue("Queue not flushed", service.flush(5000));
+    Job written = recorder.jobs.get(0);
+    assertEquals("job-1", written.getId());
+    assertEquals(0.5f, written.getMapReduceJobState().getMapProgress(), 0);
+    Job writtenNode = recorder.dags.get(0).get("node").getJob();
+    assertEquals("job-1", writtenNode.getId());
+    assertEquals(0.5f, writtenNode.getMapReduceJobState().getMapProgress(), 0);
+  }
+
+  @Test
+  public void testOverflowDropsOldestProgressEvents() throws Exception {
+    RecordingService recorder = new RecordingService(true);
+    service = new AsyncStatsWriteService<Job>(recorder, 2, 1, 0);
+    Event inFlight = progressEvent();
+    service.pushEvent(WORKFLOW_ID, inFlight);
+    recorder.writing.await();
+
+    Event started = new Event.JobStartedEvent(new DAGNode<Job>("started", null));
+    Event finished = new Event.JobFinishedEvent(new DAGNode<Job>("finished", null));
+    Event failed = new Event.JobFailedEvent(new DAGNode<Job>("failed", null));
+    service.pushEvent(WORKFLOW_ID, progressEvent());
+    service.pushEvent(WORKFLOW_ID, progressEvent());
+    service.pushEvent(WORKFLOW_ID, started);
+    service.pushEvent(WORKFLOW_ID, finished);
+    // queue is full of events which must not be dropped
+    service.pushEvent(WORKFLOW_ID, progressEvent());
+    service.pushEvent(WORKFLOW_ID, failed);
+    assertEquals(3, service.getQueueDepth());
+    assertEquals(3, service.getDroppedEventCount());
+
+    recorder.release.countDown();
+    assertTrue("Queue not flushed", service.flush(5000));
+    assertEquals(ImmutableList.of(inFlight, started, finished, failed), recorder.events);
+  }
+
+  @Test
+  public void testFlushUnderSteadyTraffic() throws Exception {
+    final RecordingService recorder = new RecordingService(false) {
+      @Override
+      public void pushEvent(String workflowId, Event event) {
+        super.pushEvent(workflowId, event);
+        try {
+          Thread.sleep(1);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    service = new AsyncStatsWriteService<Job>(recorder, 10000, 1, 0);
+    final AtomicBoolean stop = new AtomicBoolean();
+    Thread producer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (!stop.get()) {
+            service.pushEvent(WORKFLOW_ID, progressEvent());
+          }
+        } catch (IOException e) {
+          // closed
+        }
+      }
+    });
+    producer.start();
+    try {
+      Event finished = new Event.JobFinishedEvent(new DAGNode<Job>("finished", null));
+      service.pushEvent(WORKFLOW_ID, finished);
+      // the queue never drains, but everything queued before the flush gets written
+      assertTrue("Flush timed out", service.flush(5000));
+      assertTrue(recorder.events.contains(finished));
+      assertTrue(service.getQueueDepth() > 0);
+    } finally {
+      stop.set(true);
+      producer.join();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testPushAfterClose() throws Exception {
+    service = new AsyncStatsWriteService<Job>(new RecordingService(false), 10, 10, 0);
+    service.close(1000);
+    service.pushEvent(WORKFLOW_ID, progressEvent());
+  }
+}
@@ -0,0 +1,197 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.twitter.ambrose.model.CriticalPath;
+import com.twitter.ambrose.model.DAGNode;
+import com.twitter.ambrose.model.Event;
+import com.twitter.ambrose.model.Job;
+import com.twitter.ambrose.model.hadoop.MapReduceJobState;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link CriticalPathAnalyzer}.
+ */
+public class CriticalPathAnalyzerTest {
+  private Map<String, DAGNode<Job>> dag;
+  private long nextEventId;
+
+  /**
+   * Adds nodes to dag, each followed by its successors.
+   */
+  private void addNode(String name, String... successorNames) {
+    DAGNode<Job> node = getNode(name);
+    List<DAGNode<? extends Job>> successors = new ArrayList<DAGNode<? extends Job>>();
+    for (String successorName : successorNames) {
+      successors.add(getNode(successorName));
+    }
+    node.setSuccessors(successors);
+  }
+
+  private DAGNode<Job> getNode(String name) {
+    DAGNode<Job> node = dag.get(name);
+    if (node == null) {
+      node = new DAGNode<Job>(name, null);
+      dag.put(name, node);
+    }
+    return node;
+  }
+
+  private Event event(Event.Type type, long timestamp, String name, float mapProgress) {
+    MapReduceJobState state = new MapReduceJobState();
+    state.setMapProgress(mapProgress);
+    Job job = new Job(null, null, null, state, null, null, null);
+    return new Event<DAGNode<Job>>(++nextEventId, type, timestamp, new DAGNode<Job>(name, job));
+  }
+
+  private Event event(Event.Type type, long timestamp, String name) {
+    return event(type, timestamp, name, 0);
+  }
+
+  @Before
+  public void setUp() {
+    dag = new LinkedHashMap<String, DAGNode<Job>>();
+    addNode("a", "c");
+    addNode("b", "c");
+    addNode("c", "d");
+    addNode("d");
+  }
+
+  @Test
+  public void testFinishedAndPendingNodes() {
+    CriticalPathAnalyzer analyzer = new CriticalPathAnalyzer(dag);
+    analyzer.apply(event(Event.Type.JOB_STARTED, 0, "a"));
+    analyzer.apply(event(Event.Type.JOB_STARTED, 0, "b"));
+    analyzer.apply(event(Event.Type.JOB_FINISHED, 50, "b"));
+    analyzer.apply(event(Event.Type.JOB_FINISHED, 100, "a"));
+    analyzer.apply(event(Event.Type.JOB_STARTED, 100, "c"));
+    analyzer.apply(event(Event.Type.JOB_FINISHED, 340, "c"));
+    assertEquals(6, analyzer.getLastEventId());
+
+    // d is expected to take the mean of 100, 50 and 240 ms
+    CriticalPath path = analyzer.analyze(340);
+    assertEquals(470, path.getExpectedCompletionTime());
+    assertEquals(ImmutableList.of("a", "c", "d"), path.getPath());
+
+    CriticalPath.NodeSchedule b = path.getNodes().get("b");
+    assertEquals(CriticalPath.NodeStatus.FINISHED, b.getStatus());
+    assertEquals(100, b.getLatestFinish());
+    assertEquals(50, b.getSlack());
+    assertFalse(b.isCritical());
+
+    CriticalPath.NodeSchedule d = path.getNodes().get("d");
+    assertEquals(CriticalPath.NodeStatus.PENDING, d.getStatus());
+    assertEquals(340, d.getEarliestStart());
+    assertEquals(0, d.getSlack());
+    assertTrue(d.isCritical());
+  }
+
+  @Test
+  public void testRunningNodeEstimatedFromProgress() {
+    CriticalPathAnalyzer analyzer = new CriticalPathAnalyzer(dag);
+    analyzer.apply(event(Event.Type.JOB_STARTED, 0, "a"));
+    analyzer.apply(event(Event.Type.JOB_STARTED, 0, "b"));
+    analyzer.apply(event(Event.Type.JOB_FINISHED, 100, "a"));
+    analyzer.apply(event(Event.Type.JOB_PROGRESS, 200, "b", 0.5f));
+
+    // b is half done after 400 ms
+    CriticalPath path = analyzer.analyze(400);
+    CriticalPath.NodeSchedule b = path.getNodes().get("b");
+    assertEquals(CriticalPath.NodeStatus.RUNNING, b.getStatus());
+    assertEquals(800, b.getEarliestFinish());
+    assertEquals(ImmutableList.of("b", "c", "d"), path.getPath());
+    assertEquals(1000, path.getExpectedCompletionTime());
+    assertEquals(700, path.getNodes().get("a").getSlack());
+
+    assertSame(path, analyzer.analyze(400));
+  }
+
+  @Test
+  public void testFinishedWorkflowCached() {
+    CriticalPathAnalyzer analyzer = new CriticalPathAnalyzer(dag);
+    for (String name : dag.keySet()) {
+      analyzer.apply(event(Event.Type.JOB_STARTED, 0, name));
+      analyzer.apply(event(Event.Type.JOB_FAILED, 10, name));
+    }
+    CriticalPath path = analyzer.analyze(100);
+    assertEquals(10, path.getExpectedCompletionTime());
+    assertEquals(CriticalPath.NodeStatus.FAILED, path.getNodes().get("d").getStatus());
+    assertSame(path, analyzer.analyze(200));
+    assertTrue(analyzer.isBuiltFor(dag));
+  }
+
+  @Test
+  public void testPartiallyFailedWorkflowStabilizes() {
+    CriticalPathAnalyzer analyzer = new CriticalPathAnalyzer(dag);
+    analyzer.apply(event(Event.Type.JOB_STARTED, 0, "a"));
+    analyzer.apply(event(Event.Type.JOB_STARTED, 0, "b"));
+    analyzer.apply(event(Event.Type.JOB_FAILED, 100, "a"));
+
+    // c and d will never run, but b still is
+    CriticalPath path = analyzer.analyze(200);
+    CriticalPath.NodeSchedule c = path.getNodes().get("c");
+    assertEquals(CriticalPath.NodeStatus.SKIPPED, c.getStatus());
+    assertEquals(100, c.getEarliestStart());
+    assertEquals(100, c.getEarliestFinish());
+    assertEquals(CriticalPath.NodeStatus.SKIPPED, path.getNodes().get("d").getStatus());
+    assertEquals(CriticalPath.NodeStatus.RUNNING, path.getNodes().get("b").getStatus());
+    assertFalse(path == analyzer.analyze(300));
+
+    analyzer.apply(event(Event.Type.JOB_FINISHED, 400, "b"));
+    path = analyzer.analyze(500);
+    assertEquals(400, path.getExpectedCompletionTime());
+    assertEquals(ImmutableList.of("b"), path.getPath());
+    assertEquals(100, path.getNodes().get("d").getEarliestFinish());
+    assertSame(path, analyzer.analyze(600));
+    assertSame(path, analyzer.analyze(100000));
+  }
+
+  @Test
+  public void testBuiltForSameNodesAndEdgesOnly() {
+    CriticalPathAnalyzer analyzer = new CriticalPathAnalyzer(dag);
+    assertTrue(analyzer.isBuiltFor(dag));
+    // same nodes, but b now precedes d
+    addNode("b", "d");
+    assertFalse(analyzer.isBuiltFor(dag));
+    addNode("b", "c");
+    assertTrue(analyzer.isBuiltFor(dag));
+    getNode("e");
+    assertFalse(analyzer.isBuiltFor(dag));
+  }
+
+  @Test
+  public void testCycleIgnored() {
+    addNode("d", "a");
+    CriticalPathAnalyzer analyzer = new CriticalPathAnalyzer(dag);
+    CriticalPath path = analyzer.analyze(0);
+    assertEquals(4, path.getNodes().size());
+    assertEquals(0, path.getExpectedCompletionTime());
+  }
+}
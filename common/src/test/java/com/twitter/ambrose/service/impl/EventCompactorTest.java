@@ -0,0 +1,80 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Test;
+
+import com.twitter.ambrose.model.DAGNode;
+import com.twitter.ambrose.model.Event;
+import com.twitter.ambrose.model.Job;
+import com.twitter.ambrose.model.WorkflowSummary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link EventCompactor}.
+ */
+public class EventCompactorTest {
+
+  private static DAGNode<Job> node(String name) {
+    return new DAGNode<Job>(name, null);
+  }
+
+  private static Event workflowProgress(int percent) {
+    return new Event.WorkflowProgressEvent(
+        ImmutableMap.of(Event.WorkflowProgressField.workflowProgress, String.valueOf(percent)));
+  }
+
+  @Test
+  public void testKeepsLastProgressPerJob() {
+    Event started1 = new Event.JobStartedEvent(node("scope-1"));
+    Event progress1a = new Event.JobProgressEvent(node("scope-1"));
+    Event started2 = new Event.JobStartedEvent(node("scope-2"));
+    Event progress2 = new Event.JobProgressEvent(node("scope-2"));
+    Event workflow50 = workflowProgress(50);
+    Event progress1b = new Event.JobProgressEvent(node("scope-1"));
+    Event finished1 = new Event.JobFinishedEvent(node("scope-1"));
+    Event failed2 = new Event.JobFailedEvent(node("scope-2"));
+    Event workflow100 = workflowProgress(100);
+    List<Event> events = ImmutableList.of(started1, progress1a, started2, progress2, workflow50,
+        progress1b, finished1, failed2, workflow100);
+
+    assertEquals(ImmutableList.of(progress1a, workflow50), EventCompactor.getSuperseded(events));
+    assertEquals(ImmutableList.of(started1, started2, progress2, progress1b, finished1, failed2,
+        workflow100), EventCompactor.compact(events));
+  }
+
+  @Test
+  public void testNothingSuperseded() {
+    List<Event> events = ImmutableList.<Event>of(
+        new Event.JobStartedEvent(node("scope-1")), new Event.JobProgressEvent(node("scope-1")));
+    assertEquals(events, EventCompactor.compact(events));
+  }
+
+  @Test
+  public void testIsFinal() {
+    assertTrue(EventCompactor.isFinal(WorkflowSummary.Status.SUCCEEDED));
+    assertTrue(EventCompactor.isFinal(WorkflowSummary.Status.FAILED));
+    assertFalse(EventCompactor.isFinal(WorkflowSummary.Status.RUNNING));
+  }
+}
@@ -0,0 +1,147 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.twitter.ambrose.model.DAGNode;
+import com.twitter.ambrose.model.Event;
+import com.twitter.ambrose.model.Job;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link EventJournal}.
+ */
+public class EventJournalTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File dir;
+  private AtomicLong ids;
+
+  @Before
+  public void setUp() {
+    dir = new File(folder.getRoot(), "events");
+    ids = new AtomicLong(1);
+  }
+
+  private static List<Event> events(int count) {
+    List<Event> events = new ArrayList<Event>();
+    for (int i = 0; i < count; i++) {
+      events.add(new Event.JobProgressEvent(new DAGNode<Job>("node-" + i, null)));
+    }
+    return events;
+  }
+
+  private static List<Long> ids(Collection<Event> events) {
+    List<Long> ids = new ArrayList<Long>();
+    for (Event event : events) {
+      ids.add(event.getId());
+    }
+    return ids;
+  }
+
+  private static List<Long> range(long first, long last) {
+    List<Long> ids = new ArrayList<Long>();
+    for (long id = first; id <= last; id++) {
+      ids.add(id);
+    }
+    return ids;
+  }
+
+  private EventJournal open() throws Exception {
+    // small segments and a sparse index, so reads cross both
+    return new EventJournal(dir, StorageCodec.JSON, 512, 3);
+  }
+
+  @Test
+  public void testReadsAcrossSegments() throws Exception {
+    EventJournal journal = open();
+    journal.append(events(20), ids);
+    journal.append(events(5), ids);
+    assertTrue(dir.listFiles().length > 1);
+    assertEquals(range(1, 25), ids(journal.getEventsSinceId(-1, 100)));
+    assertEquals(range(8, 11), ids(journal.getEventsSinceId(7, 4)));
+    assertEquals(range(25, 25), ids(journal.getEventsSinceId(24, 4)));
+    assertEquals(0, journal.getEventsSinceId(25, 4).size());
+    assertEquals(25, journal.getLastId());
+  }
+
+  @Test
+  public void testRecoveredAfterReopen() throws Exception {
+    EventJournal journal = open();
+    journal.append(events(20), ids);
+    journal.force();
+
+    EventJournal reopened = open();
+    assertEquals(20, reopened.getLastId());
+    assertEquals(range(14, 20), ids(reopened.getEventsSinceId(13, 100)));
+    reopened.append(events(2), ids);
+    assertEquals(range(19, 22), ids(reopened.getEventsSinceId(18, 100)));
+  }
+
+  @Test
+  public void testRewrite() throws Exception {
+    EventJournal journal = open();
+    journal.append(events(10), ids);
+    List<Event> kept = new ArrayList<Event>(journal.getEventsSinceId(-1, 100)).subList(0, 3);
+    journal.rewrite(new ArrayList<Event>(kept));
+    assertEquals(range(1, 3), ids(journal.getEventsSinceId(-1, 100)));
+    assertEquals(range(1, 3), ids(open().getEventsSinceId(-1, 100)));
+    assertEquals(1, folder.getRoot().listFiles().length);
+  }
+
+  @Test
+  public void testSharedJournalFollowsWriter() throws Exception {
+    EventJournal journal = open();
+    EventJournal shared = EventJournal.openShared(dir, StorageCodec.JSON, 512, 3);
+    assertEquals(-1, shared.getLastId());
+    journal.append(events(3), ids);
+    assertEquals(range(1, 3), ids(shared.getEventsSinceId(-1, 100)));
+    // new segments too
+    journal.append(events(20), ids);
+    assertEquals(range(2, 23), ids(shared.getEventsSinceId(1, 100)));
+    assertEquals(23, shared.getLastId());
+
+    List<Event> kept = new ArrayList<Event>(journal.getEventsSinceId(-1, 100)).subList(0, 2);
+    journal.rewrite(new ArrayList<Event>(kept));
+    assertEquals(range(1, 2), ids(shared.getEventsSinceId(-1, 100)));
+  }
+
+  @Test
+  public void testClosedJournalReopened() throws Exception {
+    EventJournal journal = open();
+    journal.append(events(20), ids);
+    journal.close();
+    assertEquals(0, journal.getSizeBytes());
+    assertEquals(range(18, 20), ids(journal.getEventsSinceId(17, 100)));
+    assertTrue(journal.getSizeBytes() > 0);
+    journal.close();
+    journal.append(events(2), ids);
+    assertEquals(range(19, 22), ids(journal.getEventsSinceId(18, 100)));
+  }
+}
@@ -0,0 +1,107 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link EventNotifier}.
+ */
+public class EventNotifierTest {
+  private static final String WORKFLOW_ID = "id1";
+
+  private final EventNotifier notifier = new EventNotifier();
+
+  @Test
+  public void testAwaitTimesOut() throws Exception {
+    long version = notifier.watch(WORKFLOW_ID);
+    notifier.notifyEvents("other");
+    assertFalse(notifier.await(WORKFLOW_ID, version, 10));
+    notifier.unwatch(WORKFLOW_ID);
+  }
+
+  @Test
+  public void testNotificationBeforeAwaitNotLost() throws Exception {
+    long version = notifier.watch(WORKFLOW_ID);
+    notifier.notifyEvents(WORKFLOW_ID);
+    assertTrue(notifier.await(WORKFLOW_ID, version, 0));
+    notifier.unwatch(WORKFLOW_ID);
+  }
+
+  @Test
+  public void testNotifyWakesWaiter() throws Exception {
+    long version = notifier.watch(WORKFLOW_ID);
+    Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          return;
+        }
+        notifier.notifyEvents(WORKFLOW_ID);
+      }
+    });
+    writer.start();
+    assertTrue(notifier.await(WORKFLOW_ID, version, 10000));
+    notifier.unwatch(WORKFLOW_ID);
+    writer.join();
+  }
+
+  @Test
+  public void testListenerRunOnce() throws Exception {
+    final AtomicInteger runs = new AtomicInteger();
+    Runnable listener = new Runnable() {
+      @Override
+      public void run() {
+        runs.incrementAndGet();
+      }
+    };
+    notifier.addListener(WORKFLOW_ID, listener);
+    notifier.notifyEvents("other");
+    assertEquals(0, runs.get());
+    notifier.notifyEvents(WORKFLOW_ID);
+    notifier.notifyAllEvents();
+    assertEquals(1, runs.get());
+
+    // removed listeners aren't run, and no longer keep the workflow watched
+    notifier.addListener(WORKFLOW_ID, listener);
+    notifier.removeListener(WORKFLOW_ID, listener);
+    notifier.removeListener(WORKFLOW_ID, listener);
+    notifier.notifyAllEvents();
+    assertEquals(1, runs.get());
+    try {
+      notifier.await(WORKFLOW_ID, 0, 0);
+      fail("Workflow still watched");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testAwaitUnwatched() throws Exception {
+    long version = notifier.watch(WORKFLOW_ID);
+    notifier.unwatch(WORKFLOW_ID);
+    notifier.await(WORKFLOW_ID, version, 10);
+  }
+}
@@ -0,0 +1,458 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Charsets;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Tuple;
+
+/**
+ * {@link RedisConnectionPool} backed by an in-heap store, for testing the Redis backed services
+ * without a Redis server. Supports the hash, sorted set and counter commands those services use,
+ * with Redis' ordering of sorted sets; pipelined commands are applied as they are queued. Scripts
+ * run through {@link #eval} are emulated, the sweep lock scripts of {@link InMemoryStatsService}
+ * without expiring locks. Subscriptions never receive messages.
+ */
+public class FakeRedisConnectionPool extends RedisConnectionPool {
+
+  /**
+   * Sorted set members ordered by score, then bytewise.
+   */
+  private static final Comparator<Map.Entry<String, Double>> BY_SCORE =
+      new Comparator<Map.Entry<String, Double>>() {
+        @Override
+        public int compare(Map.Entry<String, Double> a, Map.Entry<String, Double> b) {
+          int c = a.getValue().compareTo(b.getValue());
+          return c != 0 ? c : a.getKey().compareTo(b.getKey());
+        }
+      };
+
+  private final Map<String, Map<String, byte[]>> hashes =
+      new HashMap<String, Map<String, byte[]>>();
+  private final Map<String, Map<String, Double>> sortedSets =
+      new HashMap<String, Map<String, Double>>();
+  private final Map<String, Long> counters = new HashMap<String, Long>();
+  private final Map<String, String> strings = new HashMap<String, String>();
+  private final FakeJedis jedis = new FakeJedis();
+
+  public FakeRedisConnectionPool() {
+    super("localhost", 6379, 1, 1000);
+  }
+
+  /** Latin-1 maps each byte to one char, so strings compare like the bytes they hold. */
+  private static String string(byte[] bytes) {
+    return new String(bytes, Charsets.ISO_8859_1);
+  }
+
+  private static byte[] bytes(String string) {
+    return string.getBytes(Charsets.ISO_8859_1);
+  }
+
+  @Override
+  public <T> T execute(Callback<T> callback) throws IOException {
+    return callback.execute(jedis);
+  }
+
+  @Override
+  public Object eval(Script script, List<byte[]> keys, List<byte[]> args) throws IOException {
+    synchronized (this) {
+      String key = string(keys.get(0));
+      if (script == InMemoryStatsService.LOCK_SCRIPT) {
+        if (strings.containsKey(key)) {
+          return 0L;
+        }
+        strings.put(key, string(args.get(0)));
+        return 1L;
+      }
+      if (script == InMemoryStatsService.UNLOCK_SCRIPT) {
+        return string(args.get(0)).equals(strings.get(key)) && strings.remove(key) != null
+            ? 1L
+            : 0L;
+      }
+      if (script == EventIdAllocator.APPEND_SCRIPT) {
+        int count = args.size() - 2;
+        long first = jedis.incrBy(keys.get(0), count) - count + 1;
+        for (int i = 0; i < count; i++) {
+          jedis.zadd(keys.get(1), first + i, EventIdAllocator.member(first + i, args.get(i + 2)));
+        }
+        return first;
+      }
+      if (script == InMemoryStatsService.REMOVE_SCRIPT) {
+        byte[] workflowId = args.get(0);
+        if (!Arrays.equals(args.get(1), jedis.hget(keys.get(0), workflowId))
+            || jedis.zcard(keys.get(1)) != Long.parseLong(string(args.get(2)))) {
+          return 0L;
+        }
+        jedis.hdel(keys.get(0), workflowId);
+        jedis.del(keys.get(1), keys.get(4));
+        jedis.hdel(keys.get(2), workflowId);
+        jedis.hdel(keys.get(3), workflowId);
+        for (byte[] indexKey : keys.subList(5, keys.size())) {
+          jedis.zrem(indexKey, workflowId);
+        }
+        return 1L;
+      }
+      throw new UnsupportedOperationException("Unknown script " + string(script.getBody()));
+    }
+  }
+
+  @Override
+  public void subscribe(JedisPubSub pubSub, String... channels) throws IOException {
+    try {
+      Thread.sleep(Long.MAX_VALUE);
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted", e);
+    }
+  }
+
+  @Override
+  public void close() { }
+
+  private synchronized Map<String, byte[]> hash(byte[] key) {
+    Map<String, byte[]> hash = hashes.get(string(key));
+    if (hash == null) {
+      hash = new HashMap<String, byte[]>();
+      hashes.put(string(key), hash);
+    }
+    return hash;
+  }
+
+  private synchronized Map<String, Double> sortedSet(byte[] key) {
+    Map<String, Double> sortedSet = sortedSets.get(string(key));
+    if (sortedSet == null) {
+      sortedSet = new HashMap<String, Double>();
+      sortedSets.put(string(key), sortedSet);
+    }
+    return sortedSet;
+  }
+
+  /**
+   * @return members of a sorted set with scores within min and max, lowest first.
+   */
+  private synchronized List<Map.Entry<String, Double>> range(byte[] key, double min, double max) {
+    List<Map.Entry<String, Double>> range = new ArrayList<Map.Entry<String, Double>>();
+    for (Map.Entry<String, Double> entry : sortedSet(key).entrySet()) {
+      if (entry.getValue() >= min && entry.getValue() <= max) {
+        range.add(new AbstractMap.SimpleImmutableEntry<String, Double>(entry));
+      }
+    }
+    Collections.sort(range, BY_SCORE);
+    return range;
+  }
+
+  private static List<Map.Entry<String, Double>> slice(List<Map.Entry<String, Double>> range,
+      int start, int end) {
+    int size = range.size();
+    start = start < 0 ? Math.max(size + start, 0) : start;
+    end = end < 0 ? size + end : Math.min(end, size - 1);
+    return start > end
+        ? Collections.<Map.Entry<String, Double>>emptyList()
+        : range.subList(start, end + 1);
+  }
+
+  private static Set<byte[]> members(List<Map.Entry<String, Double>> range) {
+    Set<byte[]> members = new LinkedHashSet<byte[]>();
+    for (Map.Entry<String, Double> entry : range) {
+      members.add(bytes(entry.getKey()));
+    }
+    return members;
+  }
+
+  private static Set<Tuple> tuples(List<Map.Entry<String, Double>> range) {
+    Set<Tuple> tuples = new LinkedHashSet<Tuple>();
+    for (Map.Entry<String, Double> entry : range) {
+      tuples.add(new Tuple(bytes(entry.getKey()), entry.getValue()));
+    }
+    return tuples;
+  }
+
+  private class FakeJedis extends Jedis {
+    private FakeJedis() {
+      super("localhost");
+    }
+
+    @Override
+    public Boolean exists(byte[] key) {
+      synchronized (FakeRedisConnectionPool.this) {
+        return hashes.containsKey(string(key)) || sortedSets.containsKey(string(key))
+            || counters.containsKey(string(key)) || strings.containsKey(string(key));
+      }
+    }
+
+    @Override
+    public Long del(byte[]... keys) {
+      synchronized (FakeRedisConnectionPool.this) {
+        long removed = 0;
+        for (byte[] key : keys) {
+          if (hashes.remove(string(key)) != null | sortedSets.remove(string(key)) != null
+              | counters.remove(string(key)) != null | strings.remove(string(key)) != null) {
+            removed++;
+          }
+        }
+        return removed;
+      }
+    }
+
+    @Override
+    public Long incrBy(byte[] key, long increment) {
+      synchronized (FakeRedisConnectionPool.this) {
+        Long value = counters.get(string(key));
+        long incremented = (value == null ? 0 : value) + increment;
+        counters.put(string(key), incremented);
+        return incremented;
+      }
+    }
+
+    @Override
+    public Long hset(byte[] key, byte[] field, byte[] value) {
+      synchronized (FakeRedisConnectionPool.this) {
+        return hash(key).put(string(field), value) == null ? 1L : 0L;
+      }
+    }
+
+    @Override
+    public byte[] hget(byte[] key, byte[] field) {
+      synchronized (FakeRedisConnectionPool.this) {
+        Map<String, byte[]> hash = hashes.get(string(key));
+        return hash == null ? null : hash.get(string(field));
+      }
+    }
+
+    @Override
+    public List<byte[]> hmget(byte[] key, byte[]... fields) {
+      synchronized (FakeRedisConnectionPool.this) {
+        List<byte[]> values = new ArrayList<byte[]>(fields.length);
+        for (byte[] field : fields) {
+          values.add(hget(key, field));
+        }
+        return values;
+      }
+    }
+
+    @Override
+    public Boolean hexists(byte[] key, byte[] field) {
+      synchronized (FakeRedisConnectionPool.this) {
+        return hash(key).containsKey(string(field));
+      }
+    }
+
+    @Override
+    public Long hincrBy(byte[] key, byte[] field, long increment) {
+      synchronized (FakeRedisConnectionPool.this) {
+        byte[] value = hget(key, field);
+        long incremented = (value == null ? 0 : Long.parseLong(string(value))) + increment;
+        hset(key, field, bytes(String.valueOf(incremented)));
+        return incremented;
+      }
+    }
+
+    @Override
+    public Long hdel(byte[] key, byte[]... fields) {
+      synchronized (FakeRedisConnectionPool.this) {
+        Map<String, byte[]> hash = hashes.get(string(key));
+        long removed = 0;
+        for (byte[] field : fields) {
+          if (hash != null && hash.remove(string(field)) != null) {
+            removed++;
+          }
+        }
+        if (hash != null && hash.isEmpty()) {
+          hashes.remove(string(key));
+        }
+        return removed;
+      }
+    }
+
+    @Override
+    public Map<byte[], byte[]> hgetAll(byte[] key) {
+      synchronized (FakeRedisConnectionPool.this) {
+        Map<byte[], byte[]> all = new LinkedHashMap<byte[], byte[]>();
+        Map<String, byte[]> hash = hashes.get(string(key));
+        if (hash != null) {
+          for (Map.Entry<String, byte[]> entry : hash.entrySet()) {
+            all.put(bytes(entry.getKey()), entry.getValue());
+          }
+        }
+        return all;
+      }
+    }
+
+    @Override
+    public Long zadd(byte[] key, double score, byte[] member) {
+      synchronized (FakeRedisConnectionPool.this) {
+        return sortedSet(key).put(string(member), score) == null ? 1L : 0L;
+      }
+    }
+
+    @Override
+    public Long zrem(byte[] key, byte[]... members) {
+      synchronized (FakeRedisConnectionPool.this) {
+        Map<String, Double> sortedSet = sortedSets.get(string(key));
+        long removed = 0;
+        for (byte[] member : members) {
+          if (sortedSet != null && sortedSet.remove(string(member)) != null) {
+            removed++;
+          }
+        }
+        if (sortedSet != null && sortedSet.isEmpty()) {
+          sortedSets.remove(string(key));
+        }
+        return removed;
+      }
+    }
+
+    @Override
+    public Long zcard(byte[] key) {
+      synchronized (FakeRedisConnectionPool.this) {
+        Map<String, Double> sortedSet = sortedSets.get(string(key));
+        return sortedSet == null ? 0L : (long) sortedSet.size();
+      }
+    }
+
+    @Override
+    public Set<byte[]> zrange(byte[] key, int start, int end) {
+      return members(slice(range(key, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY),
+          start, end));
+    }
+
+    @Override
+    public Set<Tuple> zrangeWithScores(byte[] key, int start, int end) {
+      return tuples(slice(range(key, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY),
+          start, end));
+    }
+
+    @Override
+    public Set<Tuple> zrevrangeWithScores(byte[] key, int start, int end) {
+      List<Map.Entry<String, Double>> range =
+          range(key, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+      Collections.reverse(range);
+      return tuples(slice(range, start, end));
+    }
+
+    @Override
+    public Set<byte[]> zrangeByScore(byte[] key, double min, double max) {
+      return members(range(key, min, max));
+    }
+
+    @Override
+    public Set<byte[]> zrangeByScore(byte[] key, double min, double max, int offset,
+        int count) {
+      return members(slice(range(key, min, max), offset, offset + count - 1));
+    }
+
+    @Override
+    public Set<Tuple> zrevrangeByScoreWithScores(byte[] key, double max, double min, int offset,
+        int count) {
+      List<Map.Entry<String, Double>> range = range(key, min, max);
+      Collections.reverse(range);
+      return tuples(slice(range, offset, offset + count - 1));
+    }
+
+    @Override
+    public Set<Tuple> zrangeByScoreWithScores(byte[] key, double min, double max, int offset,
+        int count) {
+      return tuples(slice(range(key, min, max), offset, offset + count - 1));
+    }
+
+    @Override
+    public Long zrevrank(byte[] key, byte[] member) {
+      synchronized (FakeRedisConnectionPool.this) {
+        List<Map.Entry<String, Double>> range =
+            range(key, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+        for (int i = 0; i < range.size(); i++) {
+          if (range.get(i).getKey().equals(string(member))) {
+            return (long) (range.size() - 1 - i);
+          }
+        }
+        return null;
+      }
+    }
+
+    @Override
+    public Pipeline pipelined() {
+      return new FakePipeline(this);
+    }
+  }
+
+  private static class FakePipeline extends Pipeline {
+    private final FakeJedis jedis;
+
+    private FakePipeline(FakeJedis jedis) {
+      this.jedis = jedis;
+    }
+
+    @Override
+    public Response<Long> del(byte[]... keys) {
+      jedis.del(keys);
+      return null;
+    }
+
+    @Override
+    public Response<Long> hset(byte[] key, byte[] field, byte[] value) {
+      jedis.hset(key, field, value);
+      return null;
+    }
+
+    @Override
+    public Response<Long> hincrBy(byte[] key, byte[] field, long increment) {
+      jedis.hincrBy(key, field, increment);
+      return null;
+    }
+
+    @Override
+    public Response<Long> hdel(byte[] key, byte[] field) {
+      jedis.hdel(key, field);
+      return null;
+    }
+
+    @Override
+    public Response<Long> zadd(byte[] key, double score, byte[] member) {
+      jedis.zadd(key, score, member);
+      return null;
+    }
+
+    @Override
+    public Response<Long> zrem(byte[] key, byte[] member) {
+      jedis.zrem(key, member);
+      return null;
+    }
+
+    @Override
+    public Response<Long> publish(String channel, String message) {
+      return null;
+    }
+
+    @Override
+    public void sync() { }
+  }
+}
@@ -15,20 +15,36 @@ limitations under the License.
 */
 package com.twitter.ambrose.service.impl;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.BaseEncoding;
 import com.twitter.ambrose.model.DAGNode;
 import com.twitter.ambrose.model.Event;
 import com.twitter.ambrose.model.Job;
+import com.twitter.ambrose.model.PaginatedList;
+import com.twitter.ambrose.model.WorkflowSummary;
+import com.twitter.ambrose.model.WorkflowSummary.Status;
 
 import org.junit.Before;
 import org.junit.Ignore;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.util.SafeEncoder;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -36,6 +52,13 @@ import static org.junit.Assert.assertTrue;
  */
 public class InMemoryStatsServiceTest {
 
+  private static final Status[] STATUSES = { Status.RUNNING, Status.SUCCEEDED, Status.FAILED };
+  private static final int WORKFLOWS = 25;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private FakeRedisConnectionPool redis;
   private InMemoryStatsService service;
 
   private final String workflowId = "id1";
@@ -47,7 +70,218 @@ public class InMemoryStatsServiceTest {
 
   @Before
   public void setup() {
-    service = new InMemoryStatsService();
+    redis = new FakeRedisConnectionPool();
+    service = new InMemoryStatsService(redis, StorageCodec.JSON);
+  }
+
+  /**
+   * Writes summaries the way versions without indexes did, workflow i being created at 1000 + i
+   * by alice if i is even and bob if odd, with status STATUSES[i % 3].
+   */
+  private void writeUnindexedSummaries() throws IOException {
+    for (int i = 0; i < WORKFLOWS; i++) {
+      final WorkflowSummary summary = new WorkflowSummary(getWorkflowId(i),
+          i % 2 == 0 ? "alice" : "bob", "name", STATUSES[i % 3], 0, 1000 + i);
+      final byte[] json = StorageCodec.JSON.encode(summary);
+      redis.execute(new RedisConnectionPool.Callback<Void>() {
+        @Override
+        public Void execute(Jedis jedis) {
+          jedis.hset(SafeEncoder.encode("wf_sum"), SafeEncoder.encode(summary.getId()), json);
+          return null;
+        }
+      });
+    }
+  }
+
+  private static String getWorkflowId(int i) {
+    return String.format("wf%02d", i);
+  }
+
+  /**
+   * @return ids of the workflows listed, following start keys until the last page, checking that
+   * pages are full except for the last one.
+   */
+  private List<String> getAllWorkflowIds(Status status, String userId, int pageSize)
+      throws IOException {
+    List<String> ids = new ArrayList<String>();
+    byte[] startKey = null;
+    while (true) {
+      PaginatedList<WorkflowSummary> page =
+          service.getWorkflows(null, status, userId, pageSize, startKey);
+      for (WorkflowSummary summary : page.getResults()) {
+        ids.add(summary.getId());
+      }
+      if (page.getNextPageStart() == null) {
+        return ids;
+      }
+      assertEquals(pageSize, page.getResults().size());
+      startKey = BaseEncoding.base64().decode(page.getNextPageStart());
+    }
+  }
+
+  /**
+   * @return ids of workflows i from WORKFLOWS - 1 down to 0 matching status and user.
+   */
+  private static List<String> getExpectedIds(Status status, String userId) {
+    List<String> ids = new ArrayList<String>();
+    for (int i = WORKFLOWS - 1; i >= 0; i--) {
+      if ((status == null || STATUSES[i % 3] == status)
+          && (userId == null || userId.equals(i % 2 == 0 ? "alice" : "bob"))) {
+        ids.add(getWorkflowId(i));
+      }
+    }
+    return ids;
+  }
+
+  @Test
+  public void testGetWorkflowsIndexesExistingSummaries() throws IOException {
+    writeUnindexedSummaries();
+    PaginatedList<WorkflowSummary> page = service.getWorkflows(null, null, null, 10, null);
+    assertEquals(10, page.getResults().size());
+    assertEquals("wf24", page.getResults().get(0).getId());
+    assertEquals("1014:wf14",
+        SafeEncoder.encode(BaseEncoding.base64().decode(page.getNextPageStart())));
+    assertEquals(getExpectedIds(null, null), getAllWorkflowIds(null, null, 10));
+  }
+
+  @Test
+  public void testGetWorkflowsByStatusAndUser() throws IOException {
+    writeUnindexedSummaries();
+    for (Status status : STATUSES) {
+      assertEquals(getExpectedIds(status, null), getAllWorkflowIds(status, null, 3));
+      assertEquals(getExpectedIds(status, "bob"), getAllWorkflowIds(status, "bob", 2));
+    }
+    assertEquals(getExpectedIds(null, "alice"), getAllWorkflowIds(null, "alice", 4));
+    assertTrue(getAllWorkflowIds(null, "carol", 4).isEmpty());
+  }
+
+  @Test
+  public void testGetWorkflowsStartKeyLeftIndex() throws IOException {
+    writeUnindexedSummaries();
+    List<String> running = getExpectedIds(Status.RUNNING, null);
+    PaginatedList<WorkflowSummary> first =
+        service.getWorkflows(null, Status.RUNNING, null, 2, null);
+    assertEquals(running.subList(0, 2), getIds(first));
+
+    // the workflow the next page starts at succeeds, so it's no longer in the running index
+    String next = running.get(2);
+    assertEquals("1018:" + next,
+        SafeEncoder.encode(BaseEncoding.base64().decode(first.getNextPageStart())));
+    service.pushEvent(next, new Event.WorkflowProgressEvent(
+        ImmutableMap.of(Event.WorkflowProgressField.workflowProgress, "100")));
+
+    PaginatedList<WorkflowSummary> second = service.getWorkflows(null, Status.RUNNING, null, 2,
+        BaseEncoding.base64().decode(first.getNextPageStart()));
+    assertEquals(running.subList(3, 5), getIds(second));
+    assertTrue(getAllWorkflowIds(Status.SUCCEEDED, null, 10).contains(next));
+  }
+
+  @Test
+  public void testGetWorkflowsListsNewWorkflowFirst() throws IOException {
+    writeUnindexedSummaries();
+    assertEquals(getExpectedIds(null, null), getAllWorkflowIds(null, null, 10));
+
+    // written after the indexes were built
+    service.sendDagNodeNameMap("new", Collections.<String, DAGNode<Job>>emptyMap());
+    PaginatedList<WorkflowSummary> page = service.getWorkflows(null, Status.RUNNING, null, 1, null);
+    assertEquals(Collections.singletonList("new"), getIds(page));
+    assertEquals(WORKFLOWS + 1, getAllWorkflowIds(null, null, 10).size());
+    assertNull(service.getWorkflows(null, Status.FAILED, "nobody", 1, null).getNextPageStart());
+  }
+
+  @Test
+  public void testEventIdsFollowStorageOrder() throws IOException {
+    // another VM sharing the Redis server
+    InMemoryStatsService other = new InMemoryStatsService(redis, StorageCodec.JSON);
+    Event first = new Event.JobStartedEvent(new DAGNode<Job>("first", null));
+    Event second = new Event.JobStartedEvent(new DAGNode<Job>("second", null));
+    Event third = new Event.JobStartedEvent(new DAGNode<Job>("third", null));
+    service.pushEvent(workflowId, first);
+    other.pushEvent(workflowId, second);
+    service.pushEvent(workflowId, third);
+    assertTrue(first.getId() < second.getId());
+    assertTrue(second.getId() < third.getId());
+
+    // a reader which has seen the second event still gets the third
+    Collection<Event> events = other.getEventsSinceId(workflowId, second.getId());
+    assertEquals(1, events.size());
+    Event read = events.iterator().next();
+    assertEquals(third.getId(), read.getId());
+    assertEquals("third", ((DAGNode<?>) read.getPayload()).getName());
+  }
+
+  @Test
+  public void testIdenticalEventsStoredApart() throws IOException {
+    Event first = new Event.JobProgressEvent(new DAGNode<Job>("same", null));
+    Event second = new Event.JobProgressEvent(new DAGNode<Job>("same", null));
+    service.pushEvents(workflowId, Arrays.asList(first, second));
+    Event third = new Event.JobProgressEvent(new DAGNode<Job>("same", null));
+    service.pushEvent(workflowId, third);
+
+    // no ids are skipped
+    assertEquals(1, first.getId());
+    assertEquals(2, second.getId());
+    assertEquals(3, third.getId());
+    List<Event> events = new ArrayList<Event>(service.getEventsSinceId(workflowId, -1));
+    assertEquals(3, events.size());
+    for (int i = 0; i < events.size(); i++) {
+      assertEquals(i + 1, events.get(i).getId());
+      assertEquals("same", ((DAGNode<?>) events.get(i).getPayload()).getName());
+    }
+  }
+
+  @Test
+  public void testSummaryWritesKeepEncodingOrder() throws Exception {
+    final CountDownLatch writing = new CountDownLatch(1);
+    final Thread[] slowWriter = new Thread[1];
+    // holds up the summary write of the slow writer once it has encoded its summary
+    FakeRedisConnectionPool slowRedis = new FakeRedisConnectionPool() {
+      @Override
+      public void pipelined(PipelineCallback callback) throws IOException {
+        if (Thread.currentThread() == slowWriter[0]) {
+          writing.countDown();
+          try {
+            Thread.sleep(200);
+          } catch (InterruptedException e) {
+            throw new IOException(e);
+          }
+        }
+        super.pipelined(callback);
+      }
+    };
+    service = new InMemoryStatsService(slowRedis, StorageCodec.JSON);
+    slowWriter[0] = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          service.pushEvent(workflowId, new Event.WorkflowProgressEvent(
+              ImmutableMap.of(Event.WorkflowProgressField.workflowProgress, "50")));
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    slowWriter[0].start();
+    writing.await();
+    service.pushEvent(workflowId, new Event.WorkflowProgressEvent(
+        ImmutableMap.of(Event.WorkflowProgressField.workflowProgress, "100")));
+    slowWriter[0].join();
+
+    // a service reading what was written, rather than what it wrote
+    InMemoryStatsService reader = new InMemoryStatsService(slowRedis, StorageCodec.JSON);
+    List<WorkflowSummary> succeeded =
+        reader.getWorkflows(null, Status.SUCCEEDED, null, 10, null).getResults();
+    assertEquals(1, succeeded.size());
+    assertEquals(100, succeeded.get(0).getProgress());
+    assertTrue(reader.getWorkflows(null, Status.RUNNING, null, 10, null).getResults().isEmpty());
+  }
+
+  private static List<String> getIds(PaginatedList<WorkflowSummary> page) {
+    List<String> ids = new ArrayList<String>();
+    for (WorkflowSummary summary : page.getResults()) {
+      ids.add(summary.getId());
+    }
+    return ids;
   }
 
   @Ignore
@@ -74,7 +308,7 @@ public class InMemoryStatsServiceTest {
 
     // first, peek at the first eventId
     Collection<Event> allEvents = service.getEventsSinceId(workflowId, -1);
-    int sinceId = allEvents.iterator().next().getId();
+    long sinceId = allEvents.iterator().next().getId();
 
     // get all events since the first
     Collection<Event> events = service.getEventsSinceId(workflowId, sinceId);
@@ -93,4 +327,66 @@ public class InMemoryStatsServiceTest {
     assertEquals("Wrong eventId found", expected.getId(), found.getId());
     assertEquals("Wrong eventData found", expected.getPayload(), found.getPayload());
   }
+
+  /**
+   * @return a service archiving succeeded workflows 1 ms after their creation.
+   */
+  private InMemoryStatsService openArchiving() {
+    System.setProperty(WorkflowArchive.DIR_PARAM, folder.getRoot().getPath());
+    System.setProperty(WorkflowRetention.SUCCEEDED_TTL_PARAM, "1");
+    try {
+      return new InMemoryStatsService(redis, StorageCodec.JSON);
+    } finally {
+      System.clearProperty(WorkflowArchive.DIR_PARAM);
+      System.clearProperty(WorkflowRetention.SUCCEEDED_TTL_PARAM);
+    }
+  }
+
+  private static Event progress(String percent) {
+    return new Event.WorkflowProgressEvent(
+        ImmutableMap.of(Event.WorkflowProgressField.workflowProgress, percent));
+  }
+
+  @Test
+  public void testArchiveReadOnlyOnceRemoved() throws Exception {
+    InMemoryStatsService archiving = openArchiving();
+    archiving.sendJob(workflowId, new Job("job-1", null, null, null, null, null, null));
+    archiving.pushEvent(workflowId, progress("100"));
+    Thread.sleep(10);
+    assertTrue(archiving.getRetention().sweep() > 0);
+    assertEquals("job-1", archiving.getJob(workflowId, "job-1").getId());
+    assertEquals(1, archiving.getEventsSinceId(workflowId, -1).size());
+
+    // run again under the same id, so it's back in Redis
+    archiving.sendDagNodeNameMap(workflowId, Collections.<String, DAGNode<Job>>emptyMap());
+    assertNull(archiving.getJob(workflowId, "job-1"));
+
+    // the sweep lock was released
+    archiving.getRetention().sweep();
+    assertEquals(2, archiving.getRetention().getSweepCount());
+  }
+
+  @Test
+  public void testWorkflowChangedWhileArchivedKept() throws Exception {
+    final InMemoryStatsService[] writer = new InMemoryStatsService[1];
+    redis = new FakeRedisConnectionPool() {
+      @Override
+      public Object eval(Script script, List<byte[]> keys, List<byte[]> args)
+          throws IOException {
+        if (script == InMemoryStatsService.REMOVE_SCRIPT) {
+          // written after the workflow was read for archiving
+          writer[0].pushEvent(workflowId, progress("100"));
+        }
+        return super.eval(script, keys, args);
+      }
+    };
+    writer[0] = new InMemoryStatsService(redis, StorageCodec.JSON);
+    InMemoryStatsService archiving = openArchiving();
+    archiving.pushEvent(workflowId, progress("100"));
+    Thread.sleep(10);
+    archiving.getRetention().sweep();
+    assertEquals(0, archiving.getRetention().getRemovedWorkflowCount());
+    assertEquals(2, archiving.getEventsSinceId(workflowId, -1).size());
+    assertEquals(1, archiving.getWorkflows(null, null, null, 10, null).getResults().size());
+  }
 }
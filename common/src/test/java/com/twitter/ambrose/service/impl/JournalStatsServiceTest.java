@@ -0,0 +1,162 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.twitter.ambrose.model.DAGNode;
+import com.twitter.ambrose.model.Event;
+import com.twitter.ambrose.model.Job;
+import com.twitter.ambrose.model.WorkflowSummary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link JournalStatsService}.
+ */
+public class JournalStatsServiceTest {
+  private static final String WORKFLOW_ID = "workflow/1.2";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private JournalStatsService open() throws Exception {
+    return new JournalStatsService(folder.getRoot(), StorageCodec.SMILE, 4096, 4);
+  }
+
+  private static List<Long> ids(Collection<Event> events) {
+    List<Long> ids = new ArrayList<Long>();
+    for (Event event : events) {
+      ids.add(event.getId());
+    }
+    return ids;
+  }
+
+  private static Event progress(int percent) {
+    return new Event.WorkflowProgressEvent(
+        ImmutableMap.of(Event.WorkflowProgressField.workflowProgress, String.valueOf(percent)));
+  }
+
+  @Test
+  public void testWorkflowSurvivesReopen() throws Exception {
+    JournalStatsService service = open();
+    service.sendDagNodeNameMap(WORKFLOW_ID,
+        ImmutableMap.of("scope-1", new DAGNode<Job>("scope-1", null)));
+    List<Event> sent = ImmutableList.of(
+        new Event.JobStartedEvent(new DAGNode<Job>("scope-1", null)), progress(100));
+    service.pushEvents(WORKFLOW_ID, sent);
+
+    JournalStatsService reopened = open();
+    assertEquals(2, reopened.getEventsSinceId(WORKFLOW_ID, -1).size());
+    assertEquals(1, reopened.getEventsSinceId(WORKFLOW_ID, sent.get(0).getId()).size());
+    assertTrue(reopened.getDagNodeNameMap(WORKFLOW_ID).containsKey("scope-1"));
+    WorkflowSummary summary =
+        reopened.getWorkflows(null, null, null, 10, null).getResults().get(0);
+    assertEquals(WORKFLOW_ID, summary.getId());
+    assertEquals(WorkflowSummary.Status.SUCCEEDED, summary.getStatus());
+
+    // ids continue after those of the earlier run
+    Event next = progress(100);
+    reopened.pushEvent("other", next);
+    assertTrue(next.getId() > sent.get(1).getId());
+  }
+
+  @Test
+  public void testReplayedEventsMerged() throws Exception {
+    JournalStatsService service = open();
+    Event late = progress(50);
+    service.pushEvent(WORKFLOW_ID, late);
+    Event early = progress(10);
+    early.setId(late.getId() - 1);
+    service.replayEvents(WORKFLOW_ID, ImmutableList.of(early));
+    List<Event> events = ImmutableList.copyOf(service.getEventsSinceId(WORKFLOW_ID, -1));
+    assertEquals(2, events.size());
+    assertEquals(early.getId(), events.get(0).getId());
+    assertEquals(late.getId(), events.get(1).getId());
+  }
+
+  @Test
+  public void testWorkflowWrittenByOtherService() throws Exception {
+    JournalStatsService reader = open();
+    JournalStatsService writer = open();
+    writer.sendDagNodeNameMap(WORKFLOW_ID,
+        ImmutableMap.of("scope-1", new DAGNode<Job>("scope-1", null)));
+    writer.pushEvent(WORKFLOW_ID, progress(10));
+
+    WorkflowSummary summary = reader.getWorkflows(null, null, null, 10, null).getResults().get(0);
+    assertEquals(WORKFLOW_ID, summary.getId());
+    assertEquals(WorkflowSummary.Status.RUNNING, summary.getStatus());
+    assertTrue(reader.getDagNodeNameMap(WORKFLOW_ID).containsKey("scope-1"));
+    assertEquals(1, reader.getEventsSinceId(WORKFLOW_ID, -1).size());
+
+    // later writes are seen too
+    writer.sendDagNodeNameMap(WORKFLOW_ID,
+        ImmutableMap.of("scope-2", new DAGNode<Job>("scope-2", null)));
+    writer.pushEvent(WORKFLOW_ID, progress(50));
+    assertTrue(reader.getDagNodeNameMap(WORKFLOW_ID).containsKey("scope-2"));
+    assertEquals(2, reader.getEventsSinceId(WORKFLOW_ID, -1).size());
+  }
+
+  @Test
+  public void testRewriteOfOtherServiceLeftAlone() throws Exception {
+    JournalStatsService writer = open();
+    writer.pushEvent(WORKFLOW_ID, progress(10));
+    File workflowDir = new File(folder.getRoot(), JournalStatsService.encodeId(WORKFLOW_ID));
+    File rewriting = new File(workflowDir, "events.new");
+    assertTrue(rewriting.mkdir());
+
+    JournalStatsService reader = open();
+    assertTrue(rewriting.isDirectory());
+    assertEquals(1, reader.getEventsSinceId(WORKFLOW_ID, -1).size());
+
+    // once it writes the workflow itself the rewrite can only have been interrupted
+    reader.pushEvent(WORKFLOW_ID, progress(20));
+    assertFalse(rewriting.exists());
+    assertEquals(2, reader.getEventsSinceId(WORKFLOW_ID, -1).size());
+  }
+
+  @Test
+  public void testJournalsClosedPastLimit() throws Exception {
+    JournalStatsService service =
+        new JournalStatsService(folder.getRoot(), StorageCodec.SMILE, 4096, 4, 1);
+    List<Event> first = new ArrayList<Event>();
+    List<Event> second = new ArrayList<Event>();
+    for (int i = 0; i < 10; i++) {
+      Event event = progress(i);
+      service.pushEvent("a", event);
+      first.add(event);
+      event = progress(i);
+      service.pushEvent("b", event);
+      second.add(event);
+    }
+    assertEquals(ids(first), ids(service.getEventsSinceId("a", -1)));
+    assertEquals(ids(second), ids(service.getEventsSinceId("b", -1)));
+    assertEquals(ids(first.subList(5, 10)),
+        ids(service.getEventsSinceId("a", first.get(4).getId())));
+  }
+}
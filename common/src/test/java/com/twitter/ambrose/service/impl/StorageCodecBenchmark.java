@@ -0,0 +1,107 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.twitter.ambrose.model.DAGNode;
+import com.twitter.ambrose.model.Event;
+import com.twitter.ambrose.model.Job;
+
+/**
+ * Compares encoded size and encode/decode time of the {@link StorageCodec}s on synthetic events
+ * and DAGs. Not run as part of the test suite; run the main method by hand, optionally passing the
+ * number of jobs in the synthetic workflow (default 200).
+ */
+public class StorageCodecBenchmark {
+  private static final int WARMUP_ROUNDS = 20;
+  private static final int MEASURED_ROUNDS = 50;
+
+  private static Map<String, DAGNode<Job>> dag(int numJobs) {
+    Map<String, DAGNode<Job>> dag = new LinkedHashMap<String, DAGNode<Job>>();
+    for (int i = 0; i < numJobs; i++) {
+      Job job = new Job("job_201301010000_" + i, new String[] { "alias" + i, "subquery" + i },
+          new String[] { "GROUP_BY", "JOIN" }, null, null, null, null);
+      DAGNode<Job> node = new DAGNode<Job>("scope-" + i, job);
+      dag.put(node.getName(), node);
+    }
+    return dag;
+  }
+
+  private static List<Event> events(Map<String, DAGNode<Job>> dag) {
+    List<Event> events = new ArrayList<Event>();
+    for (DAGNode<Job> node : dag.values()) {
+      events.add(new Event.JobStartedEvent(node));
+      for (int i = 0; i < 10; i++) {
+        events.add(new Event.JobProgressEvent(node));
+      }
+      events.add(new Event.JobFinishedEvent(node));
+    }
+    return events;
+  }
+
+  private static void run(StorageCodec codec, Map<String, DAGNode<Job>> dag, List<Event> events,
+      boolean print) throws IOException {
+    int rounds = print ? MEASURED_ROUNDS : WARMUP_ROUNDS;
+    long bytes = 0;
+    long encodeNanos = 0;
+    long decodeNanos = 0;
+    for (int round = 0; round < rounds; round++) {
+      long start = System.nanoTime();
+      List<byte[]> encoded = new ArrayList<byte[]>(events.size());
+      for (Event event : events) {
+        encoded.add(codec.encode(event));
+      }
+      byte[] encodedDag = codec.encode(dag);
+      encodeNanos += System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (byte[] data : encoded) {
+        codec.decode(data, Event.TYPE);
+      }
+      codec.decode(encodedDag, DAGNode.NAME_MAP_TYPE);
+      decodeNanos += System.nanoTime() - start;
+
+      bytes = encodedDag.length;
+      for (byte[] data : encoded) {
+        bytes += data.length;
+      }
+    }
+    if (print) {
+      long ops = (long) rounds * (events.size() + 1);
+      System.out.println(String.format("%-6s %10d bytes %8d ns/encode %8d ns/decode",
+          codec.getName(), bytes, encodeNanos / ops, decodeNanos / ops));
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    int numJobs = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    Map<String, DAGNode<Job>> dag = dag(numJobs);
+    List<Event> events = events(dag);
+    StorageCodec[] codecs = { StorageCodec.JSON, StorageCodec.SMILE };
+    for (StorageCodec codec : codecs) {
+      run(codec, dag, events, false);
+    }
+    System.out.println(numJobs + " jobs, " + events.size() + " events");
+    for (StorageCodec codec : codecs) {
+      run(codec, dag, events, true);
+    }
+  }
+}
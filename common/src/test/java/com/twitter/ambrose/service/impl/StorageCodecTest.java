@@ -0,0 +1,91 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Test;
+
+import com.twitter.ambrose.model.DAGNode;
+import com.twitter.ambrose.model.Event;
+import com.twitter.ambrose.model.Job;
+import com.twitter.ambrose.model.WorkflowSummary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Unit tests for {@link StorageCodec}.
+ */
+public class StorageCodecTest {
+  private static final StorageCodec[] CODECS = { StorageCodec.JSON, StorageCodec.SMILE };
+
+  private static void assertEvent(Event<?> expected, Event<?> actual) {
+    assertEquals(expected.getId(), actual.getId());
+    assertEquals(expected.getType(), actual.getType());
+    assertEquals(((DAGNode<?>) expected.getPayload()).getName(),
+        ((DAGNode<?>) actual.getPayload()).getName());
+  }
+
+  @Test
+  public void testEventReadableByAllCodecs() throws IOException {
+    Event<?> event = new Event.JobStartedEvent(new DAGNode<Job>("scope-1", null));
+    for (StorageCodec writer : CODECS) {
+      byte[] data = writer.encode(event);
+      for (StorageCodec reader : CODECS) {
+        assertEvent(event, reader.decode(data, Event.TYPE));
+      }
+    }
+  }
+
+  @Test
+  public void testDagRoundTrip() throws IOException {
+    Map<String, DAGNode<Job>> dag = ImmutableMap.of(
+        "scope-1", new DAGNode<Job>("scope-1", null),
+        "scope-2", new DAGNode<Job>("scope-2", null));
+    for (StorageCodec codec : CODECS) {
+      Map<String, DAGNode<Job>> read = codec.decode(codec.encode(dag), DAGNode.NAME_MAP_TYPE);
+      assertEquals(dag.keySet(), read.keySet());
+      assertEquals("scope-2", read.get("scope-2").getName());
+    }
+  }
+
+  @Test
+  public void testSummaryRoundTrip() throws IOException {
+    WorkflowSummary summary = new WorkflowSummary("wf-1", "user", "name",
+        WorkflowSummary.Status.RUNNING, 42, 1000L);
+    for (StorageCodec codec : CODECS) {
+      WorkflowSummary read = codec.decode(codec.encode(summary), WorkflowSummary.class);
+      assertEquals("wf-1", read.getId());
+      assertEquals(42, read.getProgress());
+      assertEquals(1000L, read.getCreatedAt());
+    }
+  }
+
+  @Test
+  public void testForName() {
+    assertSame(StorageCodec.JSON, StorageCodec.forName("json"));
+    assertSame(StorageCodec.SMILE, StorageCodec.forName("SMILE"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownName() {
+    StorageCodec.forName("xml");
+  }
+}
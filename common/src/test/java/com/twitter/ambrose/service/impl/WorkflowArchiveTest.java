@@ -0,0 +1,79 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.io.File;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link WorkflowArchive}.
+ */
+public class WorkflowArchiveTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(Charsets.UTF_8);
+  }
+
+  private static WorkflowArchive.Entry entry() {
+    SortedMap<Long, byte[]> events = new TreeMap<Long, byte[]>();
+    events.put(3L, bytes("event-3"));
+    events.put(7L, bytes("event-7"));
+    return new WorkflowArchive.Entry(bytes("summary"), null,
+        ImmutableMap.of("job_1", bytes("job")), events);
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    File dir = folder.getRoot();
+    new WorkflowArchive(dir, 0).write("workflow/1.2", entry());
+    assertNull(new WorkflowArchive(dir, 0).read("workflow/1"));
+
+    WorkflowArchive.Entry read = new WorkflowArchive(dir, 0).read("workflow/1.2");
+    assertArrayEquals(bytes("summary"), read.getSummary());
+    assertNull(read.getDag());
+    assertArrayEquals(bytes("job"), read.getJobs().get("job_1"));
+    assertEquals(2, read.getEvents().size());
+    assertArrayEquals(bytes("event-7"), read.getEvents().get(7L));
+  }
+
+  @Test
+  public void testRemoveArchivedBefore() throws Exception {
+    WorkflowArchive archive = new WorkflowArchive(folder.getRoot(), 4);
+    long size = archive.write("old", entry());
+    archive.write("new", entry());
+    archive.read("old");
+    assertTrue(new File(folder.getRoot(), "old.gz").setLastModified(1000));
+
+    assertEquals(size, archive.removeArchivedBefore(2000));
+    assertNull(archive.read("old"));
+    assertArrayEquals(bytes("summary"), archive.read("new").getSummary());
+  }
+}
@@ -0,0 +1,129 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.io.IOException;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.twitter.ambrose.model.DAGNode;
+import com.twitter.ambrose.model.Job;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link WorkflowDagCache}.
+ */
+public class WorkflowDagCacheTest {
+  private static final String WORKFLOW_ID = "id1";
+  private static final long NEVER = 60 * 60 * 1000;
+
+  /**
+   * Serves a single-node DAG named after the current version, and counts loads.
+   */
+  private static class CountingLoader implements WorkflowDagCache.Loader {
+    private long version = 1;
+    private int versionLoads;
+    private int dagLoads;
+
+    @Override
+    public long loadVersion(String workflowId) {
+      versionLoads++;
+      return version;
+    }
+
+    @Override
+    public WorkflowDagCache.Dag loadDag(String workflowId) throws IOException {
+      dagLoads++;
+      if (version == 0) {
+        return null;
+      }
+      String name = "v" + version;
+      return new WorkflowDagCache.Dag(version,
+          ImmutableMap.of(name, new DAGNode<Job>(name, null)));
+    }
+  }
+
+  private CountingLoader loader;
+
+  @Before
+  public void setUp() {
+    loader = new CountingLoader();
+  }
+
+  @Test
+  public void testServedFromMemoryWithinRefresh() throws Exception {
+    WorkflowDagCache cache = new WorkflowDagCache(loader, 10, NEVER);
+    WorkflowDagCache.Dag dag = cache.get(WORKFLOW_ID);
+    assertSame(dag, cache.get(WORKFLOW_ID));
+    assertEquals(1, loader.dagLoads);
+    assertEquals(0, loader.versionLoads);
+    String json = new String(dag.getNodesJson(), Charsets.UTF_8.name());
+    assertEquals('[', json.charAt(0));
+    assertTrue(json.contains("\"v1\""));
+  }
+
+  @Test
+  public void testReloadedOnlyWhenVersionChanges() throws Exception {
+    WorkflowDagCache cache = new WorkflowDagCache(loader, 10, 0);
+    WorkflowDagCache.Dag dag = cache.get(WORKFLOW_ID);
+    assertSame(dag, cache.get(WORKFLOW_ID));
+    assertEquals(1, loader.dagLoads);
+    assertEquals(1, loader.versionLoads);
+
+    loader.version = 2;
+    assertEquals(2, cache.get(WORKFLOW_ID).getVersion());
+    assertEquals(2, loader.dagLoads);
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    WorkflowDagCache cache = new WorkflowDagCache(loader, 10, NEVER);
+    cache.get(WORKFLOW_ID);
+    loader.version = 2;
+    cache.invalidate(WORKFLOW_ID);
+    assertEquals(2, cache.get(WORKFLOW_ID).getVersion());
+  }
+
+  @Test
+  public void testMissingDagNotCached() throws Exception {
+    WorkflowDagCache cache = new WorkflowDagCache(loader, 10, NEVER);
+    loader.version = 0;
+    assertNull(cache.get(WORKFLOW_ID));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testLeastRecentlyReadWorkflowEvicted() throws Exception {
+    WorkflowDagCache cache = new WorkflowDagCache(loader, 2, NEVER);
+    cache.get("a");
+    cache.get("b");
+    cache.get("a");
+    cache.get("c");
+    assertEquals(2, cache.size());
+    cache.get("a");
+    assertEquals(3, loader.dagLoads);
+    cache.get("b");
+    assertEquals(4, loader.dagLoads);
+  }
+}
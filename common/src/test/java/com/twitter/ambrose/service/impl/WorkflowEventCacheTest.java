@@ -0,0 +1,192 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.twitter.ambrose.model.DAGNode;
+import com.twitter.ambrose.model.Event;
+import com.twitter.ambrose.model.Job;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for {@link WorkflowEventCache}.
+ */
+public class WorkflowEventCacheTest {
+  private static final String WORKFLOW_ID = "id1";
+  private static final long NEVER = 60 * 60 * 1000;
+
+  /**
+   * Serves events 1..numEvents of any workflow and records the requested min ids, with
+   * {@link #LATEST} for loads of the newest events, and the number of events loaded.
+   */
+  private static class CountingLoader implements WorkflowEventCache.Loader {
+    private static final long LATEST = Long.MAX_VALUE;
+
+    private final List<Long> requests = new ArrayList<Long>();
+    private int numEvents;
+    private int loaded;
+
+    @Override
+    public List<Event> loadEvents(String workflowId, long minId, int maxEvents) {
+      requests.add(minId);
+      return load(Math.max(minId, 1), maxEvents);
+    }
+
+    @Override
+    public List<Event> loadLatestEvents(String workflowId, int maxEvents) {
+      requests.add(LATEST);
+      return load(Math.max(numEvents - maxEvents + 1, 1), maxEvents);
+    }
+
+    private List<Event> load(long minId, int maxEvents) {
+      List<Event> events = new ArrayList<Event>();
+      for (long id = minId; id <= numEvents && events.size() < maxEvents; id++) {
+        events.add(event(id));
+      }
+      loaded += events.size();
+      return events;
+    }
+  }
+
+  private static Event event(long id) {
+    return new Event<DAGNode<Job>>(id, Event.Type.JOB_PROGRESS, 0, null);
+  }
+
+  private static void assertIds(Collection<Event> events, long... ids) {
+    List<Long> found = new ArrayList<Long>();
+    for (Event event : events) {
+      found.add(event.getId());
+    }
+    List<Long> expected = new ArrayList<Long>();
+    for (long id : ids) {
+      expected.add(id);
+    }
+    assertEquals(expected, found);
+  }
+
+  private CountingLoader loader;
+
+  @Before
+  public void setUp() {
+    loader = new CountingLoader();
+  }
+
+  @Test
+  public void testServedFromCacheUntilStale() throws Exception {
+    WorkflowEventCache cache = new WorkflowEventCache(loader, 10, 100, NEVER, NEVER);
+    loader.numEvents = 3;
+    assertIds(cache.getEventsSinceId(WORKFLOW_ID, -1), 1, 2, 3);
+    assertIds(cache.getEventsSinceId(WORKFLOW_ID, 1), 2, 3);
+    assertEquals(1, loader.requests.size());
+    assertEquals(CountingLoader.LATEST, (long) loader.requests.get(0));
+
+    // only ids above the highest cached one are loaded
+    loader.numEvents = 5;
+    cache.markStale(WORKFLOW_ID);
+    assertIds(cache.getEventsSinceId(WORKFLOW_ID, 3), 4, 5);
+    assertEquals(2, loader.requests.size());
+    assertEquals(4, (long) loader.requests.get(1));
+  }
+
+  @Test
+  public void testRefreshInterval() throws Exception {
+    WorkflowEventCache cache = new WorkflowEventCache(loader, 10, 100, 0, NEVER);
+    loader.numEvents = 1;
+    assertIds(cache.getEventsSinceId(WORKFLOW_ID, -1), 1);
+    loader.numEvents = 2;
+    assertIds(cache.getEventsSinceId(WORKFLOW_ID, -1), 1, 2);
+  }
+
+  @Test
+  public void testReadsBeyondTrimmedEventsPassThrough() throws Exception {
+    WorkflowEventCache cache = new WorkflowEventCache(loader, 10, 2, NEVER, NEVER);
+    loader.numEvents = 4;
+    assertIds(cache.getEventsSinceId(WORKFLOW_ID, 2), 3, 4);
+    assertEquals(1, loader.requests.size());
+    assertIds(cache.getEventsSinceId(WORKFLOW_ID, -1), 1, 2, 3, 4);
+    assertEquals(2, loader.requests.size());
+    assertEquals(0, (long) loader.requests.get(1));
+  }
+
+  @Test
+  public void testMaxEvents() throws Exception {
+    WorkflowEventCache cache = new WorkflowEventCache(loader, 10, 100, NEVER, NEVER);
+    loader.numEvents = 5;
+    assertIds(cache.getEventsSinceId(WORKFLOW_ID, -1, 2), 1, 2);
+    assertIds(cache.getEventsSinceId(WORKFLOW_ID, 2, 2), 3, 4);
+    assertIds(cache.getEventsSinceId(WORKFLOW_ID, 4, 2), 5);
+    assertEquals(1, loader.requests.size());
+  }
+
+  @Test
+  public void testColdReadLoadsNewestEventsOnly() throws Exception {
+    WorkflowEventCache cache = new WorkflowEventCache(loader, 10, 100, NEVER, NEVER);
+    loader.numEvents = 100000;
+    assertIds(cache.getEventsSinceId(WORKFLOW_ID, 99997), 99998, 99999, 100000);
+    assertEquals(1, loader.requests.size());
+    assertEquals(100, loader.loaded);
+
+    // a catch-up read from the start loads one page, not the whole workflow
+    assertEquals(1000, cache.getEventsSinceId(WORKFLOW_ID, -1, 1000).size());
+    assertEquals(2, loader.requests.size());
+    assertEquals(1100, loader.loaded);
+  }
+
+  @Test
+  public void testRefreshStartsOverAfterFullChunk() throws Exception {
+    WorkflowEventCache cache = new WorkflowEventCache(loader, 10, 2, NEVER, NEVER);
+    loader.numEvents = 1;
+    assertIds(cache.getEventsSinceId(WORKFLOW_ID, -1), 1);
+
+    loader.numEvents = 5;
+    cache.markStale(WORKFLOW_ID);
+    assertIds(cache.getEventsSinceId(WORKFLOW_ID, 3), 4, 5);
+    // latest, 2-3, then latest again
+    assertEquals(3, loader.requests.size());
+    assertEquals(CountingLoader.LATEST, (long) loader.requests.get(2));
+    assertIds(cache.getEventsSinceId(WORKFLOW_ID, 1), 2, 3, 4, 5);
+  }
+
+  @Test
+  public void testLeastRecentlyReadWorkflowEvicted() throws Exception {
+    WorkflowEventCache cache = new WorkflowEventCache(loader, 2, 100, NEVER, NEVER);
+    cache.getEventsSinceId("a", -1);
+    cache.getEventsSinceId("b", -1);
+    cache.getEventsSinceId("a", -1);
+    cache.getEventsSinceId("c", -1);
+    assertEquals(2, cache.size());
+    assertEquals(3, loader.requests.size());
+    cache.getEventsSinceId("a", -1);
+    assertEquals(3, loader.requests.size());
+    cache.getEventsSinceId("b", -1);
+    assertEquals(4, loader.requests.size());
+  }
+
+  @Test
+  public void testIdleWorkflowsEvicted() throws Exception {
+    WorkflowEventCache cache = new WorkflowEventCache(loader, 10, 100, NEVER, 0);
+    cache.getEventsSinceId("a", -1);
+    cache.getEventsSinceId("b", -1);
+    assertEquals(1, cache.size());
+  }
+}
@@ -0,0 +1,127 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.service.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Test;
+
+import com.twitter.ambrose.model.WorkflowSummary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link WorkflowRetention}.
+ */
+public class WorkflowRetentionTest {
+
+  /**
+   * Store of workflows taking 100 bytes each.
+   */
+  private static class TestStore implements WorkflowRetention.Store {
+    private final Map<String, WorkflowSummary> workflows =
+        new LinkedHashMap<String, WorkflowSummary>();
+    private boolean locked = false;
+
+    private void add(String id, WorkflowSummary.Status status, long createdAt) {
+      workflows.put(id, new WorkflowSummary(id, "user", "name", status, 0, createdAt));
+    }
+
+    @Override
+    public Collection<String> getWorkflowIds(WorkflowSummary.Status status, long createdBefore) {
+      List<String> ids = new ArrayList<String>();
+      for (WorkflowSummary summary : workflows.values()) {
+        if (summary.getStatus() == status && summary.getCreatedAt() < createdBefore) {
+          ids.add(summary.getId());
+        }
+      }
+      return ids;
+    }
+
+    @Override
+    public long remove(String workflowId, WorkflowSummary.Status status) {
+      return workflows.remove(workflowId) == null ? -1 : 100;
+    }
+
+    @Override
+    public String lock(long ttlMs) {
+      if (locked) {
+        return null;
+      }
+      locked = true;
+      return "token";
+    }
+
+    @Override
+    public void unlock(String token) {
+      assertEquals("token", token);
+      locked = false;
+    }
+  }
+
+  @Test
+  public void testSweepsByStatus() {
+    long now = System.currentTimeMillis();
+    TestStore store = new TestStore();
+    store.add("old-succeeded", WorkflowSummary.Status.SUCCEEDED, now - 10000);
+    store.add("new-succeeded", WorkflowSummary.Status.SUCCEEDED, now);
+    store.add("old-failed", WorkflowSummary.Status.FAILED, now - 10000);
+    store.add("old-running", WorkflowSummary.Status.RUNNING, now - 10000);
+    WorkflowRetention retention = new WorkflowRetention(store, null,
+        ImmutableMap.of(WorkflowSummary.Status.SUCCEEDED, 5000L,
+            WorkflowSummary.Status.FAILED, 20000L), 0, 1000);
+
+    assertEquals(100, retention.sweep());
+    assertEquals(ImmutableList.of("new-succeeded", "old-failed", "old-running"),
+        ImmutableList.copyOf(store.workflows.keySet()));
+    assertEquals(0, retention.sweep());
+    assertEquals(2, retention.getSweepCount());
+    assertEquals(1, retention.getRemovedWorkflowCount());
+    assertEquals(100, retention.getBytesReclaimed());
+  }
+
+  @Test
+  public void testSweepSkippedWhileLocked() {
+    TestStore store = new TestStore();
+    store.add("old-succeeded", WorkflowSummary.Status.SUCCEEDED, 0);
+    WorkflowRetention retention = new WorkflowRetention(store, null,
+        ImmutableMap.of(WorkflowSummary.Status.SUCCEEDED, 5000L), 0, 1000);
+    store.locked = true;
+    assertEquals(0, retention.sweep());
+    assertEquals(0, retention.getSweepCount());
+    assertTrue(store.workflows.containsKey("old-succeeded"));
+
+    store.locked = false;
+    assertEquals(100, retention.sweep());
+    assertFalse(store.locked);
+  }
+
+  @Test
+  public void testDisabledWithoutTtls() {
+    WorkflowRetention retention = new WorkflowRetention(new TestStore(), null,
+        ImmutableMap.<WorkflowSummary.Status, Long>of(), 1000, 1000);
+    assertFalse(retention.isEnabled());
+  }
+}
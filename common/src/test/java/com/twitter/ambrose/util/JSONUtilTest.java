@@ -9,6 +9,10 @@ import com.google.common.collect.ImmutableMap;
 import org.apache.hadoop.io.DataOutputBuffer;
 import org.junit.Test;
 
+import com.twitter.ambrose.model.DAGNode;
+import com.twitter.ambrose.model.Event;
+import com.twitter.ambrose.model.Job;
+
 import static org.junit.Assert.assertEquals;
 
 /**
@@ -28,4 +32,20 @@ public class JSONUtilTest {
     test("Testing", "\"Testing\"");
     test(ImmutableMap.of("key", "value"), "{\n  \"key\" : \"value\"\n}");
   }
+
+  @Test
+  public void testCompact() throws IOException {
+    assertEquals("{\"key\":\"value\"}", JSONUtil.toJson(ImmutableMap.of("key", "value")));
+    assertEquals("{\"key\":\"value\"}",
+        new String(JSONUtil.toJsonBytes(ImmutableMap.of("key", "value")), Charsets.UTF_8.name()));
+  }
+
+  @Test
+  public void testEventBytesRoundTrip() throws IOException {
+    Event<?> event = new Event.JobStartedEvent(new DAGNode<Job>("scope-1", null));
+    Event<?> read = Event.fromJsonBytes(event.toJsonBytes());
+    assertEquals(event.getId(), read.getId());
+    assertEquals(Event.Type.JOB_STARTED, read.getType());
+    assertEquals("scope-1", ((DAGNode<?>) read.getPayload()).getName());
+  }
 }
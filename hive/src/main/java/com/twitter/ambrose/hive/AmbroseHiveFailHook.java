@@ -55,6 +55,10 @@ public class AmbroseHiveFailHook implements ExecuteWithHookContext {
     Properties allConfProps = conf.getAllProperties();
     String queryId = AmbroseHiveUtil.getHiveQueryId(conf);
 
+    // so the failure is reported after whatever the monitor reports
+    if (!HiveJobMonitor.getInstance(conf).awaitCompletion(HiveJobMonitor.MONITOR_TIMEOUT_MS)) {
+      LOG.warn("Timed out waiting for jobs to be reported");
+    }
     EmbeddedAmbroseHiveProgressReporter reporter = getEmbeddedProgressReporter();
 
     List<TaskRunner> completeTaskList = hookContext.getCompleteTaskList();
@@ -72,10 +76,12 @@ public class AmbroseHiveFailHook implements ExecuteWithHookContext {
         MapReduceJobState mrJobState = getJobState(job);
         mrJobState.setSuccessful(false);
         reporter.addJob((Job) job);
-        reporter.pushEvent(queryId, new Event.JobFailedEvent(dagNode));
+        reporter.sendJob(queryId, job);
+        reporter.pushEvent(queryId, new Event.JobFailedEvent(dagNode.compact()));
       }
     }
 
+    reporter.flushEvents();
     reporter.restoreEventStack();
   }
 
@@ -105,6 +111,7 @@ public class AmbroseHiveFailHook implements ExecuteWithHookContext {
     // if job fails immediately after its submission
     jobState = new MapReduceJobState();
     jobState.setJobId(job.getId());
+    job.setMapReduceJobState(jobState);
     return jobState;
   }
 
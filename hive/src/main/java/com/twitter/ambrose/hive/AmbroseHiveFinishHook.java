@@ -150,6 +150,10 @@ public void run(SessionState sess, Set<ReadEntity> inputs,
 		throws Exception {
 	Configuration conf = sess.getConf();
 
+    HiveJobMonitor monitor = HiveJobMonitor.getInstance(sess.getConf());
+    if (!monitor.awaitCompletion(HiveJobMonitor.MONITOR_TIMEOUT_MS)) {
+      LOG.warn("Timed out waiting for jobs to be reported");
+    }
     EmbeddedAmbroseHiveProgressReporter reporter = getEmbeddedProgressReporter();
     String workflowVersion = reporter.getWorkflowVersion();
 
@@ -160,6 +164,7 @@ public void run(SessionState sess, Set<ReadEntity> inputs,
     else {
       Workflow workflow = new Workflow(queryId, workflowVersion, reporter.getJobs());
       outputStatsData(workflow);
+      reporter.flushEvents();
       reporter.flushJsonToDisk();
     }
         
@@ -169,6 +174,7 @@ public void run(SessionState sess, Set<ReadEntity> inputs,
       return;
     }
 
+    reporter.flushEvents();
     reporter.restoreEventStack(queryId);
 	
 }
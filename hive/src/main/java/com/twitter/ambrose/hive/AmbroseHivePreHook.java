@@ -34,9 +34,12 @@ import org.apache.hadoop.hive.ql.Context;
 import org.apache.hadoop.hive.ql.QueryPlan;
 import org.apache.hadoop.hive.ql.exec.TaskFactory;
 import org.apache.hadoop.hive.ql.exec.Utilities;
+import org.apache.hadoop.hive.ql.hooks.ExecuteWithHookContext;
+import org.apache.hadoop.hive.ql.hooks.HookContext;
 import org.apache.hadoop.hive.ql.hooks.PreExecute;
 import org.apache.hadoop.hive.ql.hooks.ReadEntity;
 import org.apache.hadoop.hive.ql.hooks.WriteEntity;
+import org.apache.hadoop.hive.ql.log.PerfLogger;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.metadata.HiveUtils;
 import org.apache.hadoop.hive.ql.parse.ASTNode;
@@ -49,6 +52,7 @@ import org.apache.hadoop.hive.ql.parse.ParseUtils;
 import org.apache.hadoop.hive.ql.parse.SemanticAnalyzerFactory;
 import org.apache.hadoop.hive.ql.session.SessionState;
 import org.apache.hadoop.security.UserGroupInformation;
+import com.twitter.ambrose.hive.reporter.AmbroseHiveProgressReporter;
 import com.twitter.ambrose.hive.reporter.EmbeddedAmbroseHiveProgressReporter;
 import com.twitter.ambrose.model.DAGNode;
 import com.twitter.ambrose.model.Event;
@@ -59,36 +63,78 @@ import com.twitter.ambrose.model.Job;
  * Hook invoked before running a workflow. <br>
  * Constructs DAGNode representation and initializes
  * {@link com.twitter.ambrose.hive.HiveProgressReporter HiveProgressReporter} <br>
+ * The query plan is taken from the {@link HookContext} when available, otherwise it's recompiled
+ * from the current command. <br>
  * Called by the main thread
  * 
  * @author Lorand Bendig <lbendig@gmail.com>
  * 
  */
-public class AmbroseHivePreHook implements PreExecute {
+public class AmbroseHivePreHook implements PreExecute, ExecuteWithHookContext {
 
     private static final Log LOG = LogFactory.getLog(AmbroseHivePreHook.class);
 
-    /** Timeout in seconds for waiting between two workflows */
-    private static final String WF_BETWEEN_SLEEP_SECS_PARAM = "ambrose.wf.between.sleep.seconds";
     private static final String SCRIPT_STARTED_PARAM = "ambrose.script.started";
-    
+
+    /**
+     * Entry point for Drivers passing a HookContext. Reuses the query plan the Driver has already
+     * compiled, and only recompiles if the context doesn't carry one.
+     */
+    @Override
+    public void run(HookContext hookContext) throws Exception {
+        SessionState session = SessionState.get();
+        QueryPlan queryPlan = hookContext.getQueryPlan();
+        if (queryPlan == null) {
+            queryPlan = recompileQueryPlan(session);
+        }
+        else {
+            long compileMs = getCompileTimeMs();
+            LOG.info("Reused Driver's query plan for " + queryPlan.getQueryId()
+                + (compileMs < 0 ? "" : ", saving the " + compileMs + " ms it took to compile"));
+        }
+        run(session, queryPlan);
+    }
+
+    /**
+     * @return how long the Driver took to compile the current query as timed by Hive's
+     * PerfLogger, or -1 if it wasn't timed.
+     */
+    private static long getCompileTimeMs() {
+        PerfLogger perfLogger = PerfLogger.getPerfLogger();
+        long start = perfLogger.getStartTime(PerfLogger.COMPILE);
+        long end = perfLogger.getEndTime(PerfLogger.COMPILE);
+        return start > 0 && end >= start ? end - start : -1;
+    }
+
+    /**
+     * Entry point for Drivers only supporting PreExecute hooks, which don't expose the query plan.
+     * The plan has to be recompiled.
+     */
     @Override
 	public void run(SessionState session, Set<ReadEntity> inputs,
 			Set<WriteEntity> outputs, UserGroupInformation ugi)
 			throws Exception {
+        run(session, recompileQueryPlan(session));
+    }
+
+    void run(SessionState session, QueryPlan queryPlan) {
     	String queryId = AmbroseHiveUtil.getHiveQueryId(session.getConf());
         EmbeddedAmbroseHiveProgressReporter reporter = getEmbeddedProgressReporter();
-        HiveDAGTransformer transformer = new HiveDAGTransformer(session, getQueryPlan(session.getConf(),session.getCmd()));
         //conditional tasks may be filtered out by Hive at runtime. We them as
         //'complete'
         Map<String, DAGNode<Job>> nodeIdToDAGNode = reporter.getNodeIdToDAGNode();
         sendFilteredJobsStatus(queryId, reporter, nodeIdToDAGNode);
+        if (queryPlan == null) {
+            LOG.warn("No query plan for " + queryId + ", not sending DAG");
+            return;
+        }
+        HiveDAGTransformer transformer = new HiveDAGTransformer(session, queryPlan);
         if (transformer.getTotalMRJobs() == 0) {
             return;
         }
     	
 
-        waitBetween(session, reporter, queryId);
+        finishPreviousWorkflow(session.getConf(), reporter, queryId);
         
         nodeIdToDAGNode = transformer.getNodeIdToDAGNode();
         reporter.setNodeIdToDAGNode(nodeIdToDAGNode);
@@ -97,47 +143,47 @@ public class AmbroseHivePreHook implements PreExecute {
 		
 	}
 
+    QueryPlan recompileQueryPlan(SessionState session) {
+        long start = System.nanoTime();
+        QueryPlan queryPlan = getQueryPlan(session.getConf(), session.getCmd());
+        long elapsed = System.nanoTime() - start;
+        LOG.info("Recompiled query plan in " + (elapsed / 1000000L) + " ms");
+        return queryPlan;
+    }
+
     /**
-     * Waiting <tt>ambrose.wf.between.sleep.seconds</tt> before processing the
-     * next statement (workflow) in the submitted script
+     * Wraps up the previous statement (workflow) in the submitted script, if
+     * any, before processing the next one. Only waits until its events have
+     * been written to the stats service: clients play back the events they
+     * haven't shown yet, so the script doesn't need to pause for them.
      * 
-     * @param hookContext
+     * @param conf configuration of the session running the script
      * @param reporter
      * @param queryId
      */
-    private void waitBetween(SessionState session, EmbeddedAmbroseHiveProgressReporter reporter, String queryId) {
+    void finishPreviousWorkflow(Configuration conf, AmbroseHiveProgressReporter reporter,
+        String queryId) {
 
-        Configuration conf = session.getConf();
         boolean justStarted = conf.getBoolean(SCRIPT_STARTED_PARAM, true);
         if (justStarted) {
             conf.setBoolean(SCRIPT_STARTED_PARAM, false);
+            return;
         }
-        else {
-            // sleeping between workflows
-            int sleepTimeMs = conf.getInt(WF_BETWEEN_SLEEP_SECS_PARAM, 10);
-            try {
-
-                LOG.info("One workflow complete, sleeping for " + sleepTimeMs
-                        + " sec(s) before moving to the next one if exists. Hit ctrl-c to exit.");
-                Thread.sleep(sleepTimeMs * 1000L);
-                
-                //send progressbar reset event
-                Map<WorkflowProgressField, String> eventData = 
-                  new HashMap<WorkflowProgressField, String>(1);
-                eventData.put(WorkflowProgressField.workflowProgress, "0");
-                reporter.pushEvent(queryId, new Event.WorkflowProgressEvent(eventData));
-                
-                reporter.saveEventStack(queryId);
-                reporter.reset();
-            }
-            catch (InterruptedException e) {
-                LOG.warn("Sleep interrupted", e);
-            }
-        }
+        LOG.info("One workflow complete, moving to the next one if exists.");
+
+        //send progressbar reset event
+        Map<WorkflowProgressField, String> eventData = 
+          new HashMap<WorkflowProgressField, String>(1);
+        eventData.put(WorkflowProgressField.workflowProgress, "0");
+        reporter.pushEvent(queryId, new Event.WorkflowProgressEvent(eventData));
+
+        reporter.flushEvents();
+        reporter.saveEventStack(queryId);
+        reporter.reset();
     }
 
     private void sendFilteredJobsStatus(String queryId, 
-        EmbeddedAmbroseHiveProgressReporter reporter, Map<String, DAGNode<Job>> nodeIdToDAGNode) {
+        AmbroseHiveProgressReporter reporter, Map<String, DAGNode<Job>> nodeIdToDAGNode) {
         
         if (nodeIdToDAGNode == null) {
             return;
@@ -156,20 +202,17 @@ public class AmbroseHivePreHook implements PreExecute {
             String nodeId = dagNode.getName();
             job.setId(AmbroseHiveUtil.asDisplayId(queryId, "filtered out", nodeId));
             reporter.addJobIdToProgress(nodeId, 100);
-            reporter.pushEvent(queryId, new Event.JobFinishedEvent(dagNode));
+            reporter.pushEvent(queryId, new Event.JobFinishedEvent(dagNode.compact()));
             skipped++;
         }
-        // sleep so that all these events will be visible on GUI before going on
-        try {
-            Thread.sleep(skipped * 1000L);
-        }
-        catch (InterruptedException e) {
-            LOG.warn("Sleep interrupted", e);
-        }
 
         eventData.put(WorkflowProgressField.workflowProgress,
                 Integer.toString(reporter.getOverallProgress()));
         reporter.pushEvent(queryId, new Event.WorkflowProgressEvent(eventData));
+        // clients play these back one by one, no need to wait for them to be seen
+        if (skipped > 0) {
+            reporter.flushEvents();
+        }
 
     }
     
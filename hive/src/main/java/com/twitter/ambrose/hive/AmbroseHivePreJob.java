@@ -24,9 +24,6 @@ public class AmbroseHivePreJob implements PreJobHook {
 
 	  private static final Log LOG = LogFactory.getLog(AmbroseHiveStatPublisher.class);
 
-	  private final Map<WorkflowProgressField, String> eventData = 
-	    new HashMap<WorkflowProgressField, String>(1);
-
 	  public AmbroseHivePreJob() throws IOException {
 	    Configuration conf = SessionState.get().getConf();
 	  }
@@ -68,8 +65,8 @@ public class AmbroseHivePreJob implements PreJobHook {
 		    // a job has been started
 		    if (job.getId() == null) {
 		      // job identifier on GUI
-		      reporter.pushEvent(queryId, new Event.JobStartedEvent(dagNode));
-		      Event<DAGNode<? extends Job>> event = new Event.JobProgressEvent(dagNode);
+		      reporter.pushEvent(queryId, new Event.JobStartedEvent(dagNode.compact()));
+		      Event<DAGNode<? extends Job>> event = new Event.JobProgressEvent(dagNode.compact());
 		      pushWorkflowProgress(queryId, reporter);
 		      reporter.pushEvent(queryId, event);
 		    }
@@ -77,6 +74,8 @@ public class AmbroseHivePreJob implements PreJobHook {
 		  }
 
 	  private void pushWorkflowProgress(String queryId, EmbeddedAmbroseHiveProgressReporter reporter) {
+	    // events are written asynchronously, so each one needs its own payload
+	    Map<WorkflowProgressField, String> eventData = new HashMap<WorkflowProgressField, String>(1);
 	    eventData.put(WorkflowProgressField.workflowProgress,
 	        Integer.toString(reporter.getOverallProgress()));
 	    reporter.pushEvent(queryId, new Event.WorkflowProgressEvent(eventData));
@@ -120,6 +120,23 @@ public class AmbroseHiveUtil {
     return getNodeIdFromJobName(conf, runningJob.getJobName());
   }
 
+  /**
+   * Returns the nodeId of the given running job of the given query, for
+   * callers which may run after the session moved on to another query <br>
+   * E.g: Stage-1_[queryId]
+   * 
+   * @param queryId
+   * @param runningJob
+   * @return
+   */
+  public static String getNodeIdFromJob(String queryId, RunningJob runningJob) {
+    Matcher matcher = STAGEID_PATTERN.matcher(runningJob.getJobName());
+    if (matcher.find()) {
+      return matcher.group(1) + "_" + queryId;
+    }
+    return null;
+  }
+
   /**
    * Retrieves the nodeId from the Hive SQL command <br>
    * 
@@ -0,0 +1,167 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.hive;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.ql.session.SessionState;
+
+/**
+ * Turns the aliases of a MR job's input paths into the aliases displayed on the GUI:
+ * <pre>
+ * - paths in the scratch directories become 'temp. intermediate data'
+ * - subquery aliases (e.g. 'null-subquery1:a-subquery1:t') become the dot separated names of
+ *   their subqueries ('a.t')
+ * - 'id:alias' becomes 'alias', other aliases containing ':' are pending jobs
+ * </pre>
+ *
+ * The same aliases repeat across the stages of a query and the statements of a script, so each
+ * session has one normalizer caching the most recently normalized aliases. The number of cached
+ * aliases can be set in the Hive configuration with <code>{@value #CACHE_SIZE_PARAM}</code>
+ * (default {@value #DEFAULT_CACHE_SIZE}).
+ */
+public class HiveAliasNormalizer {
+
+  public static final String CACHE_SIZE_PARAM = "ambrose.alias.cache.size";
+  static final String PENDING_JOB = "N/A";
+  static final String TEMP_JOB_ID = "temp. intermediate data";
+  private static final int DEFAULT_CACHE_SIZE = 4096;
+  private static final String SUBQUERY_PREFIX = "-subquery";
+
+  /** guarded by itself */
+  private static final Map<SessionState, HiveAliasNormalizer> normalizers =
+      new WeakHashMap<SessionState, HiveAliasNormalizer>();
+
+  private final String tmpDir;
+  private final String localTmpDir;
+  /** guarded by itself */
+  private final Map<String, String> cache;
+
+  public HiveAliasNormalizer(String tmpDir, String localTmpDir, final int cacheSize) {
+    this.tmpDir = tmpDir;
+    this.localTmpDir = localTmpDir;
+    this.cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  /**
+   * Gets the normalizer of a session, replacing it if the session's scratch directories have
+   * changed since it was created
+   *
+   * @param session
+   * @return
+   */
+  public static HiveAliasNormalizer get(SessionState session) {
+    Configuration conf = session.getConf();
+    String tmpDir = AmbroseHiveUtil.getJobTmpDir(conf);
+    String localTmpDir = AmbroseHiveUtil.getJobTmpLocalDir(conf);
+    synchronized (normalizers) {
+      HiveAliasNormalizer normalizer = normalizers.get(session);
+      if (normalizer == null || !normalizer.tmpDir.equals(tmpDir)
+          || !normalizer.localTmpDir.equals(localTmpDir)) {
+        normalizer = new HiveAliasNormalizer(tmpDir, localTmpDir,
+            conf.getInt(CACHE_SIZE_PARAM, DEFAULT_CACHE_SIZE));
+        normalizers.put(session, normalizer);
+      }
+      return normalizer;
+    }
+  }
+
+  /**
+   * Gets the displayed alias of a job alias
+   *
+   * @param alias
+   * @return
+   */
+  public String normalize(String alias) {
+    synchronized (cache) {
+      String result = cache.get(alias);
+      if (result != null) {
+        return result;
+      }
+    }
+    String result = normalizeUncached(alias);
+    synchronized (cache) {
+      cache.put(alias, result);
+    }
+    return result;
+  }
+
+  private String normalizeUncached(String alias) {
+    if (alias.startsWith(tmpDir) || alias.startsWith(localTmpDir)) {
+      return TEMP_JOB_ID;
+    }
+    if (alias.contains("subquery")) {
+      return getSubqueryNames(alias);
+    }
+    if (alias.indexOf(':') < 0) {
+      return alias;
+    }
+    String[] parts = alias.split(":");
+    return parts.length == 2 ? parts[1] : PENDING_JOB;
+  }
+
+  /**
+   * Joins with '.' the names following each '-subquery&lt;digits&gt;:' of an alias, up to the
+   * next '-'. Equivalent to finding all matches of <code>-subquery\d+:([^-]+)</code>.
+   *
+   * @param alias
+   * @return
+   */
+  static String getSubqueryNames(String alias) {
+    StringBuilder sb = new StringBuilder();
+    int length = alias.length();
+    int from = 0;
+    int start;
+    while ((start = alias.indexOf(SUBQUERY_PREFIX, from)) >= 0) {
+      int pos = start + SUBQUERY_PREFIX.length();
+      int digitsEnd = pos;
+      while (digitsEnd < length && isDigit(alias.charAt(digitsEnd))) {
+        digitsEnd++;
+      }
+      if (digitsEnd == pos || digitsEnd == length || alias.charAt(digitsEnd) != ':') {
+        from = start + 1;
+        continue;
+      }
+      int nameStart = digitsEnd + 1;
+      int nameEnd = alias.indexOf('-', nameStart);
+      if (nameEnd < 0) {
+        nameEnd = length;
+      }
+      if (nameEnd == nameStart) {
+        from = start + 1;
+        continue;
+      }
+      if (sb.length() > 0) {
+        sb.append('.');
+      }
+      sb.append(alias, nameStart, nameEnd);
+      from = nameEnd;
+    }
+    return sb.toString();
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+}
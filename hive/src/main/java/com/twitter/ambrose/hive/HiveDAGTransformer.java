@@ -18,6 +18,7 @@ package com.twitter.ambrose.hive;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -26,8 +27,6 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -64,25 +63,23 @@ import com.twitter.ambrose.model.Job;
 public class HiveDAGTransformer {
 
   private static final Log LOG = LogFactory.getLog(HiveDAGTransformer.class);
-  private static final Pattern SUBQUERY_ALIAS = Pattern.compile("-subquery\\d+\\:([^\\-]+)");
-  private static final String PENDING_JOB = "N/A";
-  private static final String TEMP_JOB_ID = "temp. intermediate data";
+  private static final Set<String> SKIPPED_OPERATOR_TYPES = new HashSet<String>(
+      Arrays.asList("FILESINK", "REDUCESINK", "TABLESCAN"));
 
-  private final String tmpDir;
-  private final String localTmpDir;
+  private final HiveAliasNormalizer aliasNormalizer;
   private final QueryPlan queryPlan;
   private final List<ExecDriver> allTasks;
   private Map<String, DAGNode<Job>> nodeIdToDAGNode;
 
   private final Configuration conf;
+  private final HiveOperatorWalker walker = new HiveOperatorWalker();
 
   private static final String[] EMPTY_ARR = {};
 
   public HiveDAGTransformer(SessionState sess, QueryPlan queryPlan) {
 
 	conf = sess.getConf();
-    tmpDir = AmbroseHiveUtil.getJobTmpDir(conf);
-    localTmpDir = AmbroseHiveUtil.getJobTmpLocalDir(conf);
+    aliasNormalizer = HiveAliasNormalizer.get(sess);
     this.queryPlan = queryPlan;
     allTasks = Utilities.getMRTasks(queryPlan.getRootTasks());
     if (!allTasks.isEmpty()) {
@@ -137,51 +134,34 @@ public class HiveDAGTransformer {
   }
 
   /**
-   * Converts job properties to a DAGNode representation
+   * Collects all operators of a MR job, in breadth first order
    * 
-   * @param task
+   * @param myWork
    * @return
    * hive 1.1.4 no MapredWork.getAllOperators function, so add it here
    */
-  
   public List<Operator<?>> getAllOperators(MapredWork myWork) {
-	    ArrayList<Operator<?>> opList = new ArrayList<Operator<?>>();
-	    ArrayList<Operator<?>> returnList = new ArrayList<Operator<?>>();
-
-	    if (myWork.getReducer() != null) {
-	      opList.add(myWork.getReducer());
-	    }
-
-	    Map<String, ArrayList<String>> pa = myWork.getPathToAliases();
-	    if (pa != null) {
-	      for (List<String> ls : pa.values()) {
-	        for (String a : ls) {
-	          Operator<?> op = myWork.getAliasToWork().get(a);
-	          if (op != null ) {
-	            opList.add(op);
-	          }
-	        }
-	      }
-	    }
-
-	    //recursively add all children
-	    while (!opList.isEmpty()) {
-	      Operator<?> op = opList.remove(0);
-	      if (op.getChildOperators() != null) {
-	        opList.addAll(op.getChildOperators());
-	      }
-	      returnList.add(op);
-	    }
+    final List<Operator<?>> result = new ArrayList<Operator<?>>();
+    walker.walk(myWork, new HiveOperatorWalker.Visitor() {
+      @Override
+      public void visit(Operator<?> op) {
+        result.add(op);
+      }
+    });
+    return result;
+  }
 
-	    return returnList;
-	  }
-  
+  /**
+   * Converts job properties to a DAGNode representation
+   * 
+   * @param task
+   * @return
+   */
   private DAGNode<Job> asDAGNode(Task<? extends Serializable> task) {
 
     MapredWork mrWork = (MapredWork) task.getWork();
     List<String> indexTableAliases = getAllJobAliases(mrWork.getPathToAliases());
-    //String[] features = getFeatures(mrWork.getAllOperators(), task.getTaskTag());
-    String[] features = getFeatures(getAllOperators(mrWork), task.getTaskTag());
+    String[] features = getFeatures(walker, mrWork, task.getTaskTag());
     String[] displayAliases = getDisplayAliases(indexTableAliases);
 
     // DAGNode's name of a workflow is unique among all workflows
@@ -204,56 +184,32 @@ public class HiveDAGTransformer {
     }
     Set<String> result = new HashSet<String>();
     for (String alias : indexTableAliases) {
-      if (alias.startsWith(tmpDir) || alias.startsWith(localTmpDir)) {
-        result.add(TEMP_JOB_ID);
-      }
-      else if (alias.contains("subquery")) {
-        Matcher m = SUBQUERY_ALIAS.matcher(alias);
-        String dot = "";
-        StringBuilder sb = new StringBuilder();
-        while (m.find()) {
-          sb.append(dot);
-          dot = ".";
-          sb.append(m.group(1));
-        }
-        result.add(sb.toString());
-      }
-      else if (!alias.contains(":")) {
-        result.add(alias);
-      }
-      else {
-        String[] parts = alias.split(":");
-        if (parts.length == 2) {
-          result.add(parts[1]);
-        }
-        else {
-          result.add(PENDING_JOB);
-        }
-      }
+      result.add(aliasNormalizer.normalize(alias));
     }
     return result.toArray(new String[result.size()]);
   }
 
   /**
-   * Creates job feature list: consists of a tasktag and a set of operators
+   * Creates job feature list: consists of a tasktag and a set of operators, collected in a single
+   * walk of the job's operators
    * 
-   * @param ops
+   * @param walker walker to reuse for the walk
+   * @param mrWork
    * @param taskTagId
    * @return
    */
-  private String[] getFeatures(List<Operator<?>> ops, int taskTagId) {
-    if (ops == null) {
-      return EMPTY_ARR;
-    }
-    Set<String> features = new HashSet<String>();
-    for (Operator<?> op : ops) {
-      //OperatorType opType = op.getType();
-      String opType = OperatorType.VALUES_TO_NAMES.get(op.getType());
-      // some operators are discarded
-      if (!skipType(opType)) {
-        features.add(opType);
+  static String[] getFeatures(HiveOperatorWalker walker, MapredWork mrWork, int taskTagId) {
+    final Set<String> features = new HashSet<String>();
+    walker.walk(mrWork, new HiveOperatorWalker.Visitor() {
+      @Override
+      public void visit(Operator<?> op) {
+        String opType = OperatorType.VALUES_TO_NAMES.get(op.getType());
+        // some operators are discarded
+        if (opType != null && !SKIPPED_OPERATOR_TYPES.contains(opType)) {
+          features.add(opType);
+        }
       }
-    }
+    });
 
     // if taskTag is other than 'NO_TAG', include it in the feature list
     if (taskTagId == Task.NO_TAG) {
@@ -264,10 +220,6 @@ public class HiveDAGTransformer {
     return result;
   }
 
-  private boolean skipType(String opType) {
-    return (opType == "FILESINK" || opType == "REDUCESINK" || opType == "TABLESCAN");
-  }
-
   /**
    * Gets all job aliases
    * 
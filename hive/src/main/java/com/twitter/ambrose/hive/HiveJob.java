@@ -85,6 +85,23 @@ public class HiveJob extends Job {
     this.mapReduceJobState = mapReduceJobState;
   }
 
+  @Override
+  public Job compact() {
+    MapReduceJobState state = getMapReduceJobState();
+    return new HiveJob(getId(), null, null,
+        state == null ? null : new MapReduceJobState(state), null);
+  }
+
+  @Override
+  public Job copy() {
+    MapReduceJobState state = getMapReduceJobState();
+    HiveJob copy = new HiveJob(getId(), aliases, features,
+        state == null ? null : new MapReduceJobState(state), copyOf(counterGroupMap));
+    copy.setConfiguration(copyOf(getConfiguration()));
+    copy.setMetrics(copyOf(getMetrics()));
+    return copy;
+  }
+
   public CounterGroup getCounterGroupInfo(String name) {
     return counterGroupMap == null ? null : counterGroupMap.get(name);
   }
@@ -0,0 +1,415 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.hive;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.conf.HiveConf;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.Counters.Counter;
+import org.apache.hadoop.mapred.Counters.Group;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RunningJob;
+
+import com.twitter.ambrose.hive.reporter.AmbroseHiveProgressReporter;
+import com.twitter.ambrose.hive.reporter.EmbeddedAmbroseHiveProgressReporter;
+import com.twitter.ambrose.model.DAGNode;
+import com.twitter.ambrose.model.Event;
+import com.twitter.ambrose.model.Event.WorkflowProgressField;
+import com.twitter.ambrose.model.Job;
+import com.twitter.ambrose.model.hadoop.MapReduceJobState;
+
+import static com.twitter.ambrose.hive.reporter.AmbroseHiveReporterFactory.getEmbeddedProgressReporter;
+
+/**
+ * Polls the MapReduce jobs of a Hive script from a scheduler thread of its own and reports their
+ * progress to the {@link EmbeddedAmbroseHiveProgressReporter}. Hooks only register jobs through
+ * {@link #monitor}, so Hive's execution thread never waits on JobTracker/ResourceManager calls made
+ * for Ambrose.
+ * <p/>
+ * The state of each running job is polled every
+ * <code>{@value #POLL_INTERVAL_MS_PARAM}</code> ms (default {@value #DEFAULT_POLL_INTERVAL_MS}).
+ * Its counters are fetched when it completes, and while it runs at most once every
+ * <code>{@value #COUNTERS_INTERVAL_MS_PARAM}</code> ms (default
+ * {@value #DEFAULT_COUNTERS_INTERVAL_MS}, 0 to only fetch them on completion). A job whose state
+ * can't be read <code>{@value #MAX_POLL_FAILURES_PARAM}</code> times in a row (default
+ * {@value #DEFAULT_MAX_POLL_FAILURES}) is reported with what is known of it and no longer monitored.
+ * All are read from the Hive configuration of the first monitored job.
+ */
+public class HiveJobMonitor {
+
+  private static final Log LOG = LogFactory.getLog(HiveJobMonitor.class);
+
+  static final String POLL_INTERVAL_MS_PARAM = "ambrose.monitor.poll.interval.ms";
+  static final String COUNTERS_INTERVAL_MS_PARAM = "ambrose.monitor.counters.interval.ms";
+  static final String MAX_POLL_FAILURES_PARAM = "ambrose.monitor.max.poll.failures";
+  private static final long DEFAULT_POLL_INTERVAL_MS = 1000;
+  private static final long DEFAULT_COUNTERS_INTERVAL_MS = 30000;
+  private static final int DEFAULT_MAX_POLL_FAILURES = 10;
+
+  /** Max time hooks wait for the jobs of a query to be reported */
+  static final long MONITOR_TIMEOUT_MS = 30000;
+
+  private static HiveJobMonitor instance;
+
+  private final AmbroseHiveProgressReporter reporter;
+  private final long pollIntervalMs;
+  private final long countersIntervalMs;
+  private final int maxPollFailures;
+  private final ScheduledExecutorService scheduler;
+  private final ConcurrentMap<String, MonitoredJob> jobs =
+      new ConcurrentHashMap<String, MonitoredJob>();
+  private final List<MapRedStats> mapRedStats = new CopyOnWriteArrayList<MapRedStats>();
+
+  private HiveJobMonitor(HiveConf conf) {
+    this(conf, getEmbeddedProgressReporter());
+  }
+
+  /**
+   * @param conf Hive configuration to read the intervals from.
+   * @param reporter reporter of the jobs' progress.
+   */
+  HiveJobMonitor(HiveConf conf, AmbroseHiveProgressReporter reporter) {
+    this.reporter = reporter;
+    this.pollIntervalMs = conf.getLong(POLL_INTERVAL_MS_PARAM, DEFAULT_POLL_INTERVAL_MS);
+    this.countersIntervalMs =
+        conf.getLong(COUNTERS_INTERVAL_MS_PARAM, DEFAULT_COUNTERS_INTERVAL_MS);
+    this.maxPollFailures = conf.getInt(MAX_POLL_FAILURES_PARAM, DEFAULT_MAX_POLL_FAILURES);
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "ambrose-hive-job-monitor");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * @return the monitor of this VM, created with conf if there is none yet.
+   */
+  public static synchronized HiveJobMonitor getInstance(HiveConf conf) {
+    if (instance == null) {
+      instance = new HiveJobMonitor(conf);
+    }
+    return instance;
+  }
+
+  /**
+   * Starts monitoring a job, unless it is already monitored or has completed. Returns without
+   * making any remote calls.
+   *
+   * @param queryConf configuration of the Hive query which started the job.
+   * @param jobConf configuration of the job.
+   * @param runningJob the job.
+   */
+  public void monitor(HiveConf queryConf, JobConf jobConf, RunningJob runningJob) {
+    String jobId = runningJob.getJobID();
+    if (reporter.getCompletedJobIds().contains(jobId)) {
+      return;
+    }
+    MonitoredJob job = new MonitoredJob(queryConf, jobId, runningJob,
+        reporter.getNodeIdToDAGNode(), jobConf.getNumMapTasks(), jobConf.getNumReduceTasks());
+    if (jobs.putIfAbsent(jobId, job) == null) {
+      scheduler.execute(job);
+    }
+  }
+
+  /**
+   * Waits until all monitored jobs have been reported as completed. Hooks call this once Hive has
+   * run all jobs of a query, before reading what has been reported.
+   *
+   * @return true if all jobs were reported within timeoutMs.
+   */
+  public boolean awaitCompletion(long timeoutMs) {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    synchronized (jobs) {
+      while (!jobs.isEmpty()) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return false;
+        }
+        try {
+          jobs.wait(remaining);
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return stats of the jobs completed so far.
+   */
+  public List<MapRedStats> getMapRedStats() {
+    return mapRedStats;
+  }
+
+  private static Map<String, Double> getCounterValues(Counters counters) {
+    Map<String, Double> counterValues = new HashMap<String, Double>();
+    if (counters == null) {
+      return counterValues;
+    }
+    Iterator<Group> groups = counters.iterator();
+    while (groups.hasNext()) {
+      Group group = groups.next();
+      Iterator<Counter> it = group.iterator();
+      while (it.hasNext()) {
+        Counter counter = it.next();
+        counterValues.put(group.getName() + "::" + counter.getName(),
+            new Double(counter.getValue()));
+      }
+    }
+    return counterValues;
+  }
+
+  /**
+   * @return the number of tasks counted by counter, or configured if the job has no such counter.
+   */
+  private static int getTaskCount(Map<String, Double> counterValues, MetricsCounter counter,
+      int configured) {
+    for (String key : MetricsCounter.get(counter)) {
+      Double value = counterValues.get(key);
+      if (value != null) {
+        return value.intValue();
+      }
+    }
+    return configured;
+  }
+
+  private static class HiveMapReduceJobState extends MapReduceJobState {
+
+    public HiveMapReduceJobState(String jobIdStr, RunningJob rj, int totalMapTasks,
+        int totalReduceTasks) throws IOException {
+
+      setJobId(jobIdStr);
+      setJobName(rj.getJobName());
+      setTrackingURL(rj.getTrackingURL());
+      setComplete(rj.isComplete());
+      setSuccessful(rj.isSuccessful());
+      setMapProgress(rj.mapProgress());
+      setReduceProgress(rj.reduceProgress());
+      setTotalMappers(totalMapTasks);
+      setTotalReducers(totalReduceTasks);
+    }
+
+    public boolean update(RunningJob rj) throws IOException {
+
+      boolean complete = rj.isComplete();
+      boolean successful = rj.isSuccessful();
+      float mapProgress = rj.mapProgress();
+      float reduceProgress = rj.reduceProgress();
+
+      boolean update = !(isComplete() == complete && isSuccessful() == successful
+          && AmbroseHiveUtil.isEqual(getMapProgress(), mapProgress) && AmbroseHiveUtil.isEqual(
+          getReduceProgress(), reduceProgress));
+
+      if (update) {
+        setComplete(complete);
+        setSuccessful(successful);
+        setMapProgress(mapProgress);
+        setReduceProgress(reduceProgress);
+      }
+      return update;
+    }
+
+    public int getProgress() {
+      float result = ((getMapProgress() + getReduceProgress()) * 100) / 2;
+      return (int) result;
+    }
+
+  }
+
+  /**
+   * A job being monitored. Only run on the scheduler thread, which reschedules it until the job
+   * completes or its state can't be read {@link #maxPollFailures} times in a row.
+   */
+  private class MonitoredJob implements Runnable {
+    private final HiveConf queryConf;
+    private final String queryId;
+    private final String jobId;
+    private final RunningJob runningJob;
+    private final Map<String, DAGNode<Job>> nodeIdToDAGNode;
+    private final int numMapTasks;
+    private final int numReduceTasks;
+    private String nodeId;
+    private HiveMapReduceJobState jobProgress;
+    private long countersFetchedMs = System.currentTimeMillis();
+    private int pollFailures;
+
+    private MonitoredJob(HiveConf queryConf, String jobId, RunningJob runningJob,
+        Map<String, DAGNode<Job>> nodeIdToDAGNode, int numMapTasks, int numReduceTasks) {
+      this.queryConf = queryConf;
+      this.queryId = AmbroseHiveUtil.getHiveQueryId(queryConf);
+      this.jobId = jobId;
+      this.runningJob = runningJob;
+      this.nodeIdToDAGNode = nodeIdToDAGNode;
+      this.numMapTasks = numMapTasks;
+      this.numReduceTasks = numReduceTasks;
+    }
+
+    @Override
+    public void run() {
+      boolean done = true;
+      try {
+        done = poll();
+        pollFailures = 0;
+      }
+      catch (IOException e) {
+        if (++pollFailures < maxPollFailures) {
+          LOG.error("Error getting job info for " + jobId + ", retrying", e);
+          done = false;
+        }
+        else {
+          LOG.error("Error getting job info for " + jobId + ", giving up after " + pollFailures
+              + " attempts", e);
+          reportLastKnown();
+        }
+      }
+      catch (RuntimeException e) {
+        LOG.error("Error reporting job " + jobId + ", no longer monitoring it", e);
+      }
+      if (!done) {
+        scheduler.schedule(this, pollIntervalMs, TimeUnit.MILLISECONDS);
+        return;
+      }
+      synchronized (jobs) {
+        jobs.remove(jobId);
+        jobs.notifyAll();
+      }
+    }
+
+    /**
+     * @return true if the job is done and no longer needs to be polled.
+     */
+    private boolean poll() throws IOException {
+      if (nodeId == null) {
+        nodeId = AmbroseHiveUtil.getNodeIdFromJob(queryId, runningJob);
+      }
+      DAGNode<Job> dagNode = nodeId == null ? null : nodeIdToDAGNode.get(nodeId);
+      if (dagNode == null) {
+        LOG.warn("jobStartedNotification - unrecorgnized operator name found for " + "jobId "
+            + jobId);
+        return true;
+      }
+      HiveJob job = (HiveJob) dagNode.getJob();
+      // a job has been started
+      if (job.getId() == null) {
+        // job identifier on GUI
+        job.setId(AmbroseHiveUtil.asDisplayId(queryId, jobId, nodeId));
+        reporter.addJobIdToNodeId(jobId, nodeId);
+        reporter.pushEvent(queryId, new Event.JobStartedEvent(dagNode.compact()));
+      }
+
+      boolean update = false;
+      if (jobProgress == null) {
+        jobProgress = new HiveMapReduceJobState(jobId, runningJob, numMapTasks, numReduceTasks);
+        update = true;
+      }
+      else {
+        update = jobProgress.update(runningJob);
+      }
+      if (reporter.getCompletedJobIds().contains(jobId)) {
+        return true;
+      }
+
+      if (jobProgress.isComplete()) {
+        reportCompleted(dagNode, job);
+        return true;
+      }
+      if (countersIntervalMs > 0
+          && System.currentTimeMillis() - countersFetchedMs >= countersIntervalMs) {
+        // counters so far, for the job details of running jobs
+        countersFetchedMs = System.currentTimeMillis();
+        job.setJobStats(getCounterValues(runningJob.getCounters()), numMapTasks, numReduceTasks);
+        reporter.sendJob(queryId, job);
+      }
+      if (update) {
+        job.setMapReduceJobState(jobProgress);
+        reporter.addJobIdToProgress(jobId, jobProgress.getProgress());
+        pushWorkflowProgress();
+        reporter.pushEvent(queryId, new Event.JobProgressEvent(dagNode.compact()));
+      }
+      return false;
+    }
+
+    private void reportCompleted(DAGNode<Job> dagNode, HiveJob job) throws IOException {
+      // task counts of the completed job, without asking the cluster for its task reports
+      Map<String, Double> counterValues = getCounterValues(runningJob.getCounters());
+      int mappers = getTaskCount(counterValues, MetricsCounter.TOTAL_LAUNCHED_MAPS, numMapTasks);
+      int reducers =
+          getTaskCount(counterValues, MetricsCounter.TOTAL_LAUNCHED_REDUCES, numReduceTasks);
+      jobProgress.setTotalMappers(mappers);
+      jobProgress.setTotalReducers(reducers);
+      if (reducers == 0) {
+        jobProgress.setReduceProgress(1.0f);
+      }
+      mapRedStats.add(new MapRedStats(mappers, reducers, 0, jobProgress.isSuccessful(), jobId));
+
+      job.setMapReduceJobState(jobProgress);
+      reporter.addCompletedJobIds(jobId);
+      job.setJobStats(counterValues, mappers, reducers);
+      job.setConfiguration(queryConf.getAllProperties());
+      reporter.addJob(job);
+      // stored once per job, events only carry its id and state
+      reporter.sendJob(queryId, job);
+      reporter.addJobIdToProgress(jobId, jobProgress.getProgress());
+      pushWorkflowProgress();
+      reporter.pushEvent(queryId, new Event.JobFinishedEvent(dagNode.compact()));
+    }
+
+    /**
+     * Sends the job with the state it was last polled in, if it has been started.
+     */
+    private void reportLastKnown() {
+      DAGNode<Job> dagNode = nodeId == null ? null : nodeIdToDAGNode.get(nodeId);
+      if (dagNode == null || dagNode.getJob().getId() == null) {
+        return;
+      }
+      HiveJob job = (HiveJob) dagNode.getJob();
+      if (jobProgress != null) {
+        job.setMapReduceJobState(jobProgress);
+      }
+      job.setConfiguration(queryConf.getAllProperties());
+      reporter.addJob(job);
+      reporter.sendJob(queryId, job);
+    }
+
+    private void pushWorkflowProgress() {
+      // events are written asynchronously, so each one needs its own payload
+      Map<WorkflowProgressField, String> eventData = new HashMap<WorkflowProgressField, String>(1);
+      eventData.put(WorkflowProgressField.workflowProgress,
+          Integer.toString(reporter.getOverallProgress()));
+      reporter.pushEvent(queryId, new Event.WorkflowProgressEvent(eventData));
+    }
+  }
+}
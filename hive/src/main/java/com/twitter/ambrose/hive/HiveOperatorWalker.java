@@ -0,0 +1,116 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.hive;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.hive.ql.exec.Operator;
+import org.apache.hadoop.hive.ql.plan.MapredWork;
+
+/**
+ * Breadth first traversal of Hive operator trees. Each operator reachable from the roots is visited
+ * exactly once, even when it is shared by several parents as with joins and unions, in the order
+ * of a plain breadth first search.
+ * <p/>
+ * A walker keeps its frontier and visited set between walks so that walking many plans doesn't
+ * reallocate them. It is not thread safe.
+ */
+public class HiveOperatorWalker {
+
+  /**
+   * Called once for each operator of a walk.
+   */
+  public interface Visitor {
+    void visit(Operator<?> op);
+  }
+
+  private final ArrayDeque<Operator<?>> frontier = new ArrayDeque<Operator<?>>();
+  private final Set<Operator<?>> visited =
+      Collections.newSetFromMap(new IdentityHashMap<Operator<?>, Boolean>());
+
+  /**
+   * Walks the operators of a MR job: its reducer, then the operators of the map side aliases.
+   *
+   * @param work work of the MR job.
+   * @param visitor visitor of the operators.
+   */
+  public void walk(MapredWork work, Visitor visitor) {
+    try {
+      offer(work.getReducer());
+      Map<String, ? extends List<String>> pathToAliases = work.getPathToAliases();
+      if (pathToAliases != null) {
+        Map<String, ? extends Operator<?>> aliasToWork = work.getAliasToWork();
+        for (List<String> aliases : pathToAliases.values()) {
+          for (String alias : aliases) {
+            offer(aliasToWork.get(alias));
+          }
+        }
+      }
+      drain(visitor);
+    }
+    finally {
+      reset();
+    }
+  }
+
+  /**
+   * Walks the operators reachable from the given roots.
+   *
+   * @param roots operators to start from, in order.
+   * @param visitor visitor of the operators.
+   */
+  public void walk(Collection<? extends Operator<?>> roots, Visitor visitor) {
+    try {
+      for (Operator<?> root : roots) {
+        offer(root);
+      }
+      drain(visitor);
+    }
+    finally {
+      reset();
+    }
+  }
+
+  private void offer(Operator<?> op) {
+    if (op != null && visited.add(op)) {
+      frontier.addLast(op);
+    }
+  }
+
+  private void drain(Visitor visitor) {
+    Operator<?> op;
+    while ((op = frontier.pollFirst()) != null) {
+      List<? extends Operator<?>> children = op.getChildOperators();
+      if (children != null) {
+        for (int i = 0, n = children.size(); i < n; i++) {
+          offer(children.get(i));
+        }
+      }
+      visitor.visit(op);
+    }
+  }
+
+  private void reset() {
+    frontier.clear();
+    visited.clear();
+  }
+}
@@ -28,9 +28,11 @@ import java.util.Map;
  */
 public enum MetricsCounter {
 
-  // Task counters
+  // Job counters
   SLOTS_MILLIS_MAPS(1),
   SLOTS_MILLIS_REDUCES(1),
+  TOTAL_LAUNCHED_MAPS(1),
+  TOTAL_LAUNCHED_REDUCES(1),
 
   // Filesystem counters
   FILE_BYTES_WRITTEN(2),
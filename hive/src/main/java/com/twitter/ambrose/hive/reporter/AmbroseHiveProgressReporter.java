@@ -62,14 +62,14 @@ public abstract class AmbroseHiveProgressReporter {
   private String workflowVersion;
 
   /** holds all events within a script (for all workflows) */
-  protected SortedMap<Integer, Event<?>> allEvents = new ConcurrentSkipListMap<Integer, Event<?>>();
+  protected SortedMap<Long, Event<?>> allEvents = new ConcurrentSkipListMap<Long, Event<?>>();
 
   /** holds all dagNodes within a script (for all workflows) */
   protected SortedMap<String, DAGNode<Job>> allDagNodes = new ConcurrentSkipListMap<String, DAGNode<Job>>();
  
   private StatsWriteService statsWriteService;
 
-  AmbroseHiveProgressReporter(StatsWriteService statsWriteService) {
+  protected AmbroseHiveProgressReporter(StatsWriteService statsWriteService) {
     this.statsWriteService = statsWriteService; 
     init();
   }
@@ -102,6 +102,12 @@ public abstract class AmbroseHiveProgressReporter {
   public abstract void restoreEventStack(String workflowId);
   
   public abstract void restoreEventStack();
+
+  /**
+   * Waits until the events pushed so far have been written. Hooks call this before reading back
+   * what has been written.
+   */
+  public abstract void flushEvents();
   
   protected StatsWriteService<? extends Job> getStatsWriteService() {
     return statsWriteService;
@@ -182,6 +188,21 @@ public abstract class AmbroseHiveProgressReporter {
     }
   }
 
+  /**
+   * Forwards the configuration, counters and metrics of a job to the Ambrose server
+   * 
+   * @param queryId
+   * @param job
+   */
+  public void sendJob(String queryId, Job job) {
+    try {
+      statsWriteService.sendJob(queryId, job);
+    }
+    catch (IOException e) {
+      LOG.error("Couldn't send job details to StatsWriteService!", e);
+    }
+  }
+
   public void sendDagNodeNameMap(String queryId, Map<String, DAGNode<Job>> nodeIdToDAGNode) {
     try {
       statsWriteService.sendDagNodeNameMap(queryId, nodeIdToDAGNode);
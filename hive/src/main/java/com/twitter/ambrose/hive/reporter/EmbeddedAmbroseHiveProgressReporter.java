@@ -16,20 +16,30 @@ limitations under the License.
 package com.twitter.ambrose.hive.reporter;
 
 import java.io.IOException;
-import java.lang.reflect.Field;
-import java.util.SortedMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.twitter.ambrose.hive.AmbroseHiveUtil;
+import com.twitter.ambrose.model.DAGNode;
 import com.twitter.ambrose.model.Event;
+import com.twitter.ambrose.model.Job;
+import com.twitter.ambrose.service.ReplayableStatsService;
+import com.twitter.ambrose.service.impl.AsyncStatsWriteService;
 import com.twitter.ambrose.service.impl.InMemoryStatsService;
+import com.twitter.ambrose.service.impl.JournalStatsService;
 
 /**
  * Subclass of {@link AmbroseHiveProgressReporter} that starts a ScriptStatusServer embedded in
  * the running Hive client VM. Stats are collected using by this class via InMemoryStatsService,
- * which is what serves stats to ScriptStatusServer.
+ * which is what serves stats to ScriptStatusServer. Events are handed to InMemoryStatsService
+ * through an {@link AsyncStatsWriteService} so that hooks don't wait on the store.
+ * <p/>
+ * To keep stats on local disk instead of in Redis, set the <code>{@value #SERVICE_CLASS_PARAM}</code>
+ * system property to the name of {@link JournalStatsService} using <code>-D</code>, and point the
+ * web tier at the same journal directory.
  * 
  * @author Lorand Bendig <lbendig@gmail.com>
  *
@@ -38,42 +48,56 @@ public class EmbeddedAmbroseHiveProgressReporter extends AmbroseHiveProgressRepo
 
   private static final Log LOG = LogFactory.getLog(EmbeddedAmbroseHiveProgressReporter.class);
 
-  private InMemoryStatsService service;
+  /** Max time to wait for queued events to be written */
+  private static final long FLUSH_TIMEOUT_MS = 30000;
 
-  /**
-   * internal eventMap field unfolded from InMemoryStatsService
-   * Needed to be able to save events of workflows and restore all of the
-   * when script is replayed at the end
-   */
-  private SortedMap<Integer, Event<?>> _eventMap;
+  /** Same name as the web tier's backend setting, so both can be set at once */
+  private static final String SERVICE_CLASS_PARAM = "ambrose.stats.service.class";
+
+  private ReplayableStatsService<Job> service;
+  private AsyncStatsWriteService<Job> writer;
 
   EmbeddedAmbroseHiveProgressReporter() {
-    super(new InMemoryStatsService());
-    this.service = (InMemoryStatsService) getStatsWriteService();
-    initInternal();
+    this(newStatsService());
+  }
+
+  private EmbeddedAmbroseHiveProgressReporter(ReplayableStatsService<Job> service) {
+    super(AsyncStatsWriteService.fromSystemProperties(service));
+    this.service = service;
+    this.writer = (AsyncStatsWriteService<Job>) getStatsWriteService();
   }
   
-  @SuppressWarnings("unchecked")
-  private void initInternal() {
-    try {
-      Field eventMapField = AmbroseHiveUtil
-          .getInternalField(InMemoryStatsService.class, "eventMap");
-      _eventMap = (SortedMap<Integer, Event<?>>) eventMapField.get(service);
+  private static ReplayableStatsService<Job> newStatsService() {
+    String className = System.getProperty(SERVICE_CLASS_PARAM);
+    if (JournalStatsService.class.getName().equals(className)) {
+      try {
+        return new JournalStatsService();
+      }
+      catch (IOException e) {
+        // stats written elsewhere would never reach the web tier
+        throw new RuntimeException("Couldn't open event journal", e);
+      }
     }
-    catch (Exception e) {
-      LOG.fatal("Can't access to eventMap/dagNodeNameMap fields at "
-          + InMemoryStatsService.class.getName() + "!");
-      throw new RuntimeException("Incompatible Hive API found!", e);
+    if (className != null && !InMemoryStatsService.class.getName().equals(className)) {
+      throw new IllegalArgumentException("Unsupported stats service " + className);
     }
+    return new InMemoryStatsService();
   }
-  
+
   /**
    * Saves events and DAGNodes for a given workflow
    */
   @Override
   public void saveEventStack(String workflowId) {
-    allEvents.putAll(_eventMap);
-    allDagNodes.putAll(service.getDagNodeNameMap(workflowId));
+    try {
+      for (Event<?> event : service.getEventsSinceId(workflowId, -1)) {
+        allEvents.put(event.getId(), event);
+      }
+      allDagNodes.putAll(service.getDagNodeNameMap(workflowId));
+    }
+    catch (IOException e) {
+      LOG.warn("Couldn't save events of workflow " + workflowId, e);
+    }
   }
 
   /**
@@ -82,13 +106,46 @@ public class EmbeddedAmbroseHiveProgressReporter extends AmbroseHiveProgressRepo
    */
   @Override
   public void restoreEventStack(String workflowId) {
-    _eventMap.putAll(allEvents);
-    service.getDagNodeNameMap(workflowId).putAll(allDagNodes);
+    try {
+      service.replayEvents(workflowId, new ArrayList<Event>(allEvents.values()));
+      if (!allDagNodes.isEmpty()) {
+        Map<String, DAGNode<Job>> dagNodeNameMap =
+            new HashMap<String, DAGNode<Job>>(service.getDagNodeNameMap(workflowId));
+        dagNodeNameMap.putAll(allDagNodes);
+        service.replayDagNodeNameMap(workflowId, dagNodeNameMap);
+      }
+    }
+    catch (IOException e) {
+      LOG.warn("Couldn't replay events of earlier workflows", e);
+    }
   }
     
+  /**
+   * Waits until the events pushed so far have been written to InMemoryStatsService. Hooks call this
+   * before reading back what has been written.
+   */
+  @Override
+  public void flushEvents() {
+    try {
+      if (!writer.flush(FLUSH_TIMEOUT_MS)) {
+        LOG.warn("Timed out writing events, " + writer.getQueueDepth() + " still queued");
+      }
+    }
+    catch (InterruptedException e) {
+      LOG.warn("Interrupted while writing events", e);
+      Thread.currentThread().interrupt();
+    }
+    if (writer.getDroppedEventCount() > 0) {
+      LOG.info("Dropped " + writer.getDroppedEventCount() + " progress events so far");
+    }
+  }
+
   public void flushJsonToDisk() {
+    if (!(service instanceof InMemoryStatsService)) {
+      return;
+    }
     try {
-      service.flushJsonToDisk();
+      ((InMemoryStatsService) service).flushJsonToDisk();
     }
     catch (IOException e) {
       LOG.warn("Couldn't write json to disk", e);
@@ -97,7 +154,7 @@ public class EmbeddedAmbroseHiveProgressReporter extends AmbroseHiveProgressRepo
 
   @Override
   public void resetAdditionals() {
-    _eventMap.clear();
+    // events are kept per workflow by the stats service, nothing to clear
   }
 
 @Override
@@ -0,0 +1,184 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.hive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.conf.HiveConf;
+import org.apache.hadoop.hive.ql.QueryPlan;
+import org.apache.hadoop.hive.ql.hooks.HookContext;
+import org.apache.hadoop.hive.ql.session.SessionState;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.twitter.ambrose.hive.reporter.AmbroseHiveProgressReporter;
+import com.twitter.ambrose.model.DAGNode;
+import com.twitter.ambrose.model.Event;
+import com.twitter.ambrose.model.Job;
+import com.twitter.ambrose.service.StatsWriteService;
+
+/**
+ * Unit tests for {@link AmbroseHivePreHook}.
+ */
+public class AmbroseHivePreHookTest {
+
+  /**
+   * Records the plans it is run with, without transforming them.
+   */
+  private static class PlanRecorder extends AmbroseHivePreHook {
+    private final List<QueryPlan> plans = new ArrayList<QueryPlan>();
+    private int recompiled;
+
+    @Override
+    QueryPlan recompileQueryPlan(SessionState session) {
+      recompiled++;
+      return null;
+    }
+
+    @Override
+    void run(SessionState session, QueryPlan queryPlan) {
+      plans.add(queryPlan);
+    }
+  }
+
+  /** calls made to the reporter and its write service, in order */
+  private List<String> calls;
+  private AmbroseHiveProgressReporter reporter;
+  private AmbroseHivePreHook hook;
+  private Configuration conf;
+
+  @Before
+  public void setUp() {
+    calls = new ArrayList<String>();
+    StatsWriteService<Job> writes = new StatsWriteService<Job>() {
+      @Override
+      public void sendDagNodeNameMap(String workflowId,
+          Map<String, DAGNode<Job>> dagNodeNameMap) {
+        calls.add("sendDagNodeNameMap " + workflowId);
+      }
+
+      @Override
+      public void pushEvent(String workflowId, Event event) {
+        Map<?, ?> payload = (Map<?, ?>) event.getPayload();
+        calls.add("pushEvent " + workflowId + " " + event.getType() + " "
+            + payload.get(Event.WorkflowProgressField.workflowProgress));
+      }
+
+      @Override
+      public void sendJob(String workflowId, Job job) {
+        calls.add("sendJob " + workflowId);
+      }
+    };
+    reporter = new AmbroseHiveProgressReporter(writes) {
+      @Override
+      public void resetAdditionals() {
+        calls.add("resetAdditionals");
+      }
+
+      @Override
+      public void saveEventStack(String workflowId) {
+        calls.add("saveEventStack " + workflowId);
+      }
+
+      @Override
+      public void saveEventStack() { }
+
+      @Override
+      public void restoreEventStack(String workflowId) { }
+
+      @Override
+      public void restoreEventStack() { }
+
+      @Override
+      public void flushEvents() {
+        calls.add("flushEvents");
+      }
+    };
+    hook = new AmbroseHivePreHook();
+    conf = new Configuration(false);
+  }
+
+  @Test
+  public void testDriverPlanReused() throws Exception {
+    QueryPlan plan = new QueryPlan();
+    HookContext hookContext = new HookContext(plan, new HiveConf(), null, null, null);
+    PlanRecorder recorder = new PlanRecorder();
+    recorder.run(hookContext);
+    assertEquals(0, recorder.recompiled);
+    assertEquals(1, recorder.plans.size());
+    assertSame(plan, recorder.plans.get(0));
+  }
+
+  @Test
+  public void testPlanRecompiledWithoutDriverPlan() throws Exception {
+    HookContext hookContext = new HookContext(new QueryPlan(), new HiveConf(), null, null, null);
+    hookContext.setQueryPlan(null);
+    PlanRecorder recorder = new PlanRecorder();
+    recorder.run(hookContext);
+    assertEquals(1, recorder.recompiled);
+  }
+
+  @Test
+  public void testFirstWorkflowHasNothingToFinish() {
+    reporter.addCompletedJobIds("job_1");
+    hook.finishPreviousWorkflow(conf, reporter, "query-1");
+    assertTrue(calls.isEmpty());
+    assertTrue(reporter.getCompletedJobIds().contains("job_1"));
+  }
+
+  @Test
+  public void testPreviousWorkflowFinishedOnceWritten() {
+    hook.finishPreviousWorkflow(conf, reporter, "query-1");
+    reporter.addCompletedJobIds("job_1");
+    hook.finishPreviousWorkflow(conf, reporter, "query-2");
+
+    // the progress bar is reset, and the events are written before being saved for replay
+    List<String> expected = new ArrayList<String>();
+    expected.add("pushEvent query-2 WORKFLOW_PROGRESS 0");
+    expected.add("flushEvents");
+    expected.add("saveEventStack query-2");
+    expected.add("sendDagNodeNameMap null");
+    expected.add("resetAdditionals");
+    assertEquals(expected, calls);
+    assertTrue(reporter.getCompletedJobIds().isEmpty());
+    assertTrue(reporter.getNodeIdToDAGNode().isEmpty());
+  }
+
+  @Test
+  public void testEachLaterWorkflowFinishesThePreviousOne() {
+    hook.finishPreviousWorkflow(conf, reporter, "query-1");
+    hook.finishPreviousWorkflow(conf, reporter, "query-2");
+    calls.clear();
+    hook.finishPreviousWorkflow(conf, reporter, "query-3");
+    assertEquals("pushEvent query-3 WORKFLOW_PROGRESS 0", calls.get(0));
+    assertTrue(calls.contains("saveEventStack query-3"));
+  }
+
+  @Test
+  public void testNewScriptStartsOver() {
+    hook.finishPreviousWorkflow(conf, reporter, "query-1");
+    // another session, with a configuration of its own
+    hook.finishPreviousWorkflow(new Configuration(false), reporter, "query-2");
+    assertTrue(calls.isEmpty());
+  }
+}
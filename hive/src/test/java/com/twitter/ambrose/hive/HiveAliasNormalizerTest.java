@@ -0,0 +1,60 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.hive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link HiveAliasNormalizer}.
+ */
+public class HiveAliasNormalizerTest {
+
+  private HiveAliasNormalizer normalizer;
+
+  @Before
+  public void setUp() {
+    normalizer = new HiveAliasNormalizer("hdfs://nn/tmp/hive-user", "file:/tmp/user", 2);
+  }
+
+  @Test
+  public void testNormalize() {
+    assertEquals(HiveAliasNormalizer.TEMP_JOB_ID,
+        normalizer.normalize("hdfs://nn/tmp/hive-user/hive_2013/-mr-10002"));
+    assertEquals(HiveAliasNormalizer.TEMP_JOB_ID, normalizer.normalize("file:/tmp/user/-mr-1"));
+    assertEquals("a.t", normalizer.normalize("null-subquery1:a-subquery2:t"));
+    assertEquals("orders", normalizer.normalize("orders"));
+    assertEquals("orders", normalizer.normalize("o:orders"));
+    assertEquals(HiveAliasNormalizer.PENDING_JOB, normalizer.normalize("a:b:c"));
+  }
+
+  @Test
+  public void testSubqueryNames() {
+    assertEquals("a.t", HiveAliasNormalizer.getSubqueryNames("null-subquery1:a-subquery12:t"));
+    assertEquals("t", HiveAliasNormalizer.getSubqueryNames("-subquery:x-subquery-1:y-subquery3:t"));
+    assertEquals("", HiveAliasNormalizer.getSubqueryNames("-subquery1:-subquery"));
+    assertEquals("", HiveAliasNormalizer.getSubqueryNames("subquery"));
+  }
+
+  @Test
+  public void testCached() {
+    String alias = normalizer.normalize("null-subquery1:a-subquery2:t");
+    assertSame(alias, normalizer.normalize("null-subquery1:a-subquery2:t"));
+  }
+}
@@ -0,0 +1,329 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.hive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.apache.hadoop.hive.conf.HiveConf;
+import org.apache.hadoop.hive.conf.HiveConf.ConfVars;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RunningJob;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.twitter.ambrose.hive.reporter.AmbroseHiveProgressReporter;
+import com.twitter.ambrose.model.DAGNode;
+import com.twitter.ambrose.model.Event;
+import com.twitter.ambrose.model.Job;
+import com.twitter.ambrose.service.StatsWriteService;
+
+/**
+ * Unit tests for {@link HiveJobMonitor}.
+ */
+public class HiveJobMonitorTest {
+
+  private static final String QUERY_ID = "hive_20131010101010_1234-5678";
+  private static final String JOB_ID = "job_201310101010_0001";
+  private static final String NODE_ID = "Stage-1_" + QUERY_ID;
+  private static final long TIMEOUT_MS = 10000;
+  private static final String JOB_COUNTER = "org.apache.hadoop.mapreduce.JobCounter";
+
+  /**
+   * Records what is written, in order.
+   */
+  private static class RecordingWriteService implements StatsWriteService<Job> {
+    private final List<Event> events = Collections.synchronizedList(new ArrayList<Event>());
+    private final List<Job> jobs = Collections.synchronizedList(new ArrayList<Job>());
+
+    @Override
+    public void sendDagNodeNameMap(String workflowId, Map<String, DAGNode<Job>> dagNodeNameMap) { }
+
+    @Override
+    public void pushEvent(String workflowId, Event event) {
+      events.add(event);
+    }
+
+    @Override
+    public void sendJob(String workflowId, Job job) {
+      jobs.add(job);
+    }
+
+    private List<Event.Type> getEventTypes() {
+      List<Event.Type> types = new ArrayList<Event.Type>();
+      synchronized (events) {
+        for (Event event : events) {
+          types.add(event.getType());
+        }
+      }
+      return types;
+    }
+  }
+
+  /**
+   * Job which takes one more step each time its state is polled, and completes with the last one.
+   * Polls fail with an IOException while failures are left. Its counters are those of counters.
+   */
+  private static class ScriptedJob implements InvocationHandler {
+    private final String jobName;
+    private final float[] progress;
+    private int failures;
+    private int polls;
+    private int counterFetches;
+    private Counters counters = new Counters();
+
+    private ScriptedJob(String jobName, float... progress) {
+      this.jobName = jobName;
+      this.progress = progress;
+    }
+
+    private RunningJob create() {
+      return (RunningJob) Proxy.newProxyInstance(RunningJob.class.getClassLoader(),
+          new Class<?>[] { RunningJob.class }, this);
+    }
+
+    @Override
+    public synchronized Object invoke(Object proxy, Method method, Object[] args)
+        throws IOException {
+      String name = method.getName();
+      if ("getJobID".equals(name)) {
+        return JOB_ID;
+      }
+      if ("getJobName".equals(name)) {
+        return jobName;
+      }
+      if ("getTrackingURL".equals(name)) {
+        return "http://jobtracker/" + JOB_ID;
+      }
+      if ("isComplete".equals(name)) {
+        // read first by each poll
+        if (failures > 0) {
+          failures--;
+          throw new IOException("JobTracker unavailable");
+        }
+        polls++;
+        return polls >= progress.length;
+      }
+      if ("isSuccessful".equals(name)) {
+        return polls >= progress.length;
+      }
+      if ("mapProgress".equals(name) || "reduceProgress".equals(name)) {
+        return progress[Math.min(polls, progress.length) - 1];
+      }
+      if ("getCounters".equals(name)) {
+        counterFetches++;
+        return counters;
+      }
+      throw new UnsupportedOperationException(name);
+    }
+
+    private synchronized int getPolls() {
+      return polls;
+    }
+
+    private synchronized int getCounterFetches() {
+      return counterFetches;
+    }
+  }
+
+  private RecordingWriteService writes;
+  private AmbroseHiveProgressReporter reporter;
+  private HiveJob job;
+  private HiveConf conf;
+
+  @Before
+  public void setUp() {
+    writes = new RecordingWriteService();
+    reporter = new AmbroseHiveProgressReporter(writes) {
+      @Override
+      public void resetAdditionals() { }
+
+      @Override
+      public void saveEventStack(String workflowId) { }
+
+      @Override
+      public void saveEventStack() { }
+
+      @Override
+      public void restoreEventStack(String workflowId) { }
+
+      @Override
+      public void restoreEventStack() { }
+
+      @Override
+      public void flushEvents() { }
+    };
+    job = new HiveJob(new String[] { "src" }, new String[] { "SELECT" });
+    Map<String, DAGNode<Job>> nodeIdToDAGNode = new ConcurrentSkipListMap<String, DAGNode<Job>>();
+    nodeIdToDAGNode.put(NODE_ID, new DAGNode<Job>(NODE_ID, job));
+    reporter.setNodeIdToDAGNode(nodeIdToDAGNode);
+    reporter.setTotalMRJobs(1);
+
+    conf = new HiveConf();
+    HiveConf.setVar(conf, ConfVars.HIVEQUERYID, QUERY_ID);
+    conf.setLong(HiveJobMonitor.POLL_INTERVAL_MS_PARAM, 5);
+  }
+
+  private HiveJobMonitor newMonitor() {
+    return new HiveJobMonitor(conf, reporter);
+  }
+
+  private static ScriptedJob newJob(float... progress) {
+    return new ScriptedJob("INSERT OVERWRITE TABLE dst SELECT ...(Stage-1)", progress);
+  }
+
+  @Test
+  public void testJobPolledUntilCompleted() {
+    HiveJobMonitor monitor = newMonitor();
+    ScriptedJob scripted = newJob(0.5f, 1f);
+    scripted.counters.incrCounter(JOB_COUNTER, "TOTAL_LAUNCHED_MAPS", 2);
+    scripted.counters.incrCounter(JOB_COUNTER, "TOTAL_LAUNCHED_REDUCES", 1);
+    monitor.monitor(conf, new JobConf(), scripted.create());
+    assertTrue(monitor.awaitCompletion(TIMEOUT_MS));
+
+    assertEquals(2, scripted.getPolls());
+    assertEquals(1, scripted.getCounterFetches());
+    List<Event.Type> expected = new ArrayList<Event.Type>();
+    expected.add(Event.Type.JOB_STARTED);
+    expected.add(Event.Type.WORKFLOW_PROGRESS);
+    expected.add(Event.Type.JOB_PROGRESS);
+    expected.add(Event.Type.WORKFLOW_PROGRESS);
+    expected.add(Event.Type.JOB_FINISHED);
+    assertEquals(expected, writes.getEventTypes());
+    Map<?, ?> lastProgress = (Map<?, ?>) writes.events.get(3).getPayload();
+    assertEquals("100", lastProgress.get(Event.WorkflowProgressField.workflowProgress));
+
+    // task counts of the completed job are read from its counters
+    assertEquals(2, job.getMapReduceJobState().getTotalMappers());
+    assertEquals(1, job.getMapReduceJobState().getTotalReducers());
+    assertTrue(job.getMapReduceJobState().isSuccessful());
+    assertEquals(AmbroseHiveUtil.asDisplayId(QUERY_ID, JOB_ID, NODE_ID), job.getId());
+    assertTrue(reporter.getCompletedJobIds().contains(JOB_ID));
+    assertEquals(NODE_ID, reporter.getJobIdToNodeId().get(JOB_ID));
+    assertEquals(1, monitor.getMapRedStats().size());
+  }
+
+  @Test
+  public void testPollRetriedAfterIOException() {
+    HiveJobMonitor monitor = newMonitor();
+    ScriptedJob scripted = newJob(1f);
+    scripted.failures = 2;
+    monitor.monitor(conf, new JobConf(), scripted.create());
+    assertTrue(monitor.awaitCompletion(TIMEOUT_MS));
+
+    // the job is only started once
+    List<Event.Type> expected = new ArrayList<Event.Type>();
+    expected.add(Event.Type.JOB_STARTED);
+    expected.add(Event.Type.WORKFLOW_PROGRESS);
+    expected.add(Event.Type.JOB_FINISHED);
+    assertEquals(expected, writes.getEventTypes());
+    assertTrue(reporter.getCompletedJobIds().contains(JOB_ID));
+  }
+
+  @Test
+  public void testTaskCountsFromJobConfWithoutCounters() {
+    HiveJobMonitor monitor = newMonitor();
+    JobConf jobConf = new JobConf();
+    jobConf.setNumMapTasks(3);
+    jobConf.setNumReduceTasks(0);
+    monitor.monitor(conf, jobConf, newJob(1f).create());
+    assertTrue(monitor.awaitCompletion(TIMEOUT_MS));
+
+    assertEquals(3, job.getMapReduceJobState().getTotalMappers());
+    assertEquals(0, job.getMapReduceJobState().getTotalReducers());
+    assertEquals(1f, job.getMapReduceJobState().getReduceProgress(), 0);
+  }
+
+  @Test
+  public void testJobGivenUpAfterRepeatedFailures() {
+    conf.setInt(HiveJobMonitor.MAX_POLL_FAILURES_PARAM, 3);
+    HiveJobMonitor monitor = newMonitor();
+    ScriptedJob scripted = newJob(1f);
+    scripted.failures = 100;
+    monitor.monitor(conf, new JobConf(), scripted.create());
+    assertTrue(monitor.awaitCompletion(TIMEOUT_MS));
+
+    // the started job is sent as last known, but not reported as completed
+    assertEquals(0, scripted.getPolls());
+    assertEquals(97, scripted.failures);
+    List<Event.Type> expected = new ArrayList<Event.Type>();
+    expected.add(Event.Type.JOB_STARTED);
+    assertEquals(expected, writes.getEventTypes());
+    assertEquals(1, writes.jobs.size());
+    assertTrue(reporter.getCompletedJobIds().isEmpty());
+  }
+
+  @Test
+  public void testCountersOnlyFetchedOnCompletion() {
+    conf.setLong(HiveJobMonitor.COUNTERS_INTERVAL_MS_PARAM, 0);
+    HiveJobMonitor monitor = newMonitor();
+    ScriptedJob scripted = newJob(0.2f, 0.4f, 0.6f, 0.8f, 1f);
+    monitor.monitor(conf, new JobConf(), scripted.create());
+    assertTrue(monitor.awaitCompletion(TIMEOUT_MS));
+
+    assertEquals(5, scripted.getPolls());
+    assertEquals(1, scripted.getCounterFetches());
+    assertEquals(1, writes.jobs.size());
+  }
+
+  @Test
+  public void testCountersFetchedWhileRunning() {
+    conf.setLong(HiveJobMonitor.COUNTERS_INTERVAL_MS_PARAM, 1);
+    HiveJobMonitor monitor = newMonitor();
+    ScriptedJob scripted = newJob(0.2f, 0.4f, 0.6f, 0.8f, 1f);
+    monitor.monitor(conf, new JobConf(), scripted.create());
+    assertTrue(monitor.awaitCompletion(TIMEOUT_MS));
+
+    // polls are further apart than the interval, so all but maybe the first fetch counters
+    assertTrue(scripted.getCounterFetches() >= 4);
+    assertEquals(scripted.getCounterFetches(), writes.jobs.size());
+  }
+
+  @Test
+  public void testCompletedJobNotPolled() {
+    reporter.addCompletedJobIds(JOB_ID);
+    HiveJobMonitor monitor = newMonitor();
+    ScriptedJob scripted = newJob(1f);
+    monitor.monitor(conf, new JobConf(), scripted.create());
+    assertTrue(monitor.awaitCompletion(0));
+
+    assertEquals(0, scripted.getPolls());
+    assertTrue(writes.events.isEmpty());
+  }
+
+  @Test
+  public void testUnknownStageNotReported() {
+    HiveJobMonitor monitor = newMonitor();
+    ScriptedJob scripted = new ScriptedJob("INSERT OVERWRITE TABLE dst SELECT ...(Stage-7)", 1f);
+    monitor.monitor(conf, new JobConf(), scripted.create());
+    assertTrue(monitor.awaitCompletion(TIMEOUT_MS));
+
+    assertEquals(0, scripted.getPolls());
+    assertTrue(writes.events.isEmpty());
+    assertTrue(reporter.getCompletedJobIds().isEmpty());
+  }
+}
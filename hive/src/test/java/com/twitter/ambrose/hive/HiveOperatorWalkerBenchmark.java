@@ -0,0 +1,137 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.hive;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.hive.ql.exec.FileSinkOperator;
+import org.apache.hadoop.hive.ql.exec.FilterOperator;
+import org.apache.hadoop.hive.ql.exec.JoinOperator;
+import org.apache.hadoop.hive.ql.exec.Operator;
+import org.apache.hadoop.hive.ql.exec.SelectOperator;
+import org.apache.hadoop.hive.ql.exec.TableScanOperator;
+
+/**
+ * Compares {@link HiveOperatorWalker} with the list based breadth first search it replaced on
+ * synthetic operator plans: a single chain, and scans joined into one operator whose subtree is
+ * shared by all of them. Not run as part of the test suite; run the main method by hand,
+ * optionally passing the number of operators in each plan (default 1000).
+ */
+public class HiveOperatorWalkerBenchmark {
+  private static final int WARMUP_ROUNDS = 200;
+  private static final int MEASURED_ROUNDS = 1000;
+
+  private static class Counter implements HiveOperatorWalker.Visitor {
+    private long count;
+
+    @Override
+    public void visit(Operator<?> op) {
+      count++;
+    }
+  }
+
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  private static void setChildren(Operator<?> op, List<? extends Operator<?>> children) {
+    ((Operator) op).setChildOperators((List) children);
+  }
+
+  private static List<Operator<?>> chain(int numOps) {
+    Operator<?> root = new TableScanOperator();
+    Operator<?> last = root;
+    for (int i = 1; i < numOps; i++) {
+      Operator<?> op = i == numOps - 1 ? new FileSinkOperator() : new FilterOperator();
+      setChildren(last, Collections.singletonList(op));
+      last = op;
+    }
+    return Collections.<Operator<?>>singletonList(root);
+  }
+
+  /**
+   * Scans and filters joined into one operator followed by a chain of selects, half the operators
+   * on each side of the join.
+   */
+  private static List<Operator<?>> join(int numOps) {
+    Operator<?> join = new JoinOperator();
+    Operator<?> last = join;
+    for (int i = 0; i < numOps / 2 - 1; i++) {
+      Operator<?> op = new SelectOperator();
+      setChildren(last, Collections.singletonList(op));
+      last = op;
+    }
+    List<Operator<?>> roots = new ArrayList<Operator<?>>();
+    for (int i = 0; i < numOps / 4; i++) {
+      Operator<?> scan = new TableScanOperator();
+      Operator<?> filter = new FilterOperator();
+      setChildren(scan, Collections.singletonList(filter));
+      setChildren(filter, Collections.singletonList(join));
+      roots.add(scan);
+    }
+    return roots;
+  }
+
+  /**
+   * The traversal formerly in {@link HiveDAGTransformer#getAllOperators}.
+   */
+  private static long walkList(List<Operator<?>> roots) {
+    List<Operator<?>> opList = new ArrayList<Operator<?>>(roots);
+    List<Operator<?>> returnList = new ArrayList<Operator<?>>();
+    while (!opList.isEmpty()) {
+      Operator<?> op = opList.remove(0);
+      if (op.getChildOperators() != null) {
+        opList.addAll(op.getChildOperators());
+      }
+      returnList.add(op);
+    }
+    return returnList.size();
+  }
+
+  private static void run(String name, List<Operator<?>> roots, boolean print) {
+    int rounds = print ? MEASURED_ROUNDS : WARMUP_ROUNDS;
+    HiveOperatorWalker walker = new HiveOperatorWalker();
+    Counter counter = new Counter();
+    long walkerNanos = 0;
+    long listNanos = 0;
+    long listVisits = 0;
+    for (int round = 0; round < rounds; round++) {
+      counter.count = 0;
+      long start = System.nanoTime();
+      walker.walk(roots, counter);
+      walkerNanos += System.nanoTime() - start;
+
+      start = System.nanoTime();
+      listVisits = walkList(roots);
+      listNanos += System.nanoTime() - start;
+    }
+    if (print) {
+      System.out.println(String.format(
+          "%-6s walker %8d visits %8d ns/walk   list %8d visits %8d ns/walk", name,
+          counter.count, walkerNanos / rounds, listVisits, listNanos / rounds));
+    }
+  }
+
+  public static void main(String[] args) {
+    int numOps = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    List<Operator<?>> chain = chain(numOps);
+    List<Operator<?>> join = join(numOps);
+    run("chain", chain, false);
+    run("join", join, false);
+    System.out.println(numOps + " operators per plan");
+    run("chain", chain, true);
+    run("join", join, true);
+  }
+}
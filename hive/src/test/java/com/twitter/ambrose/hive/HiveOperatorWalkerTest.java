@@ -0,0 +1,165 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.hive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.hadoop.hive.ql.exec.FileSinkOperator;
+import org.apache.hadoop.hive.ql.exec.FilterOperator;
+import org.apache.hadoop.hive.ql.exec.JoinOperator;
+import org.apache.hadoop.hive.ql.exec.Operator;
+import org.apache.hadoop.hive.ql.exec.ReduceSinkOperator;
+import org.apache.hadoop.hive.ql.exec.SelectOperator;
+import org.apache.hadoop.hive.ql.exec.TableScanOperator;
+import org.apache.hadoop.hive.ql.exec.Task;
+import org.apache.hadoop.hive.ql.plan.MapredWork;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link HiveOperatorWalker} and the job features collected with it.
+ */
+public class HiveOperatorWalkerTest {
+
+  /**
+   * Records the operators visited, in order.
+   */
+  private static class Recorder implements HiveOperatorWalker.Visitor {
+    private final List<Operator<?>> visited = new ArrayList<Operator<?>>();
+
+    @Override
+    public void visit(Operator<?> op) {
+      visited.add(op);
+    }
+  }
+
+  private HiveOperatorWalker walker;
+  private Operator<?> scan;
+  private Operator<?> filter;
+  private Operator<?> left;
+  private Operator<?> right;
+  private Operator<?> join;
+  private Operator<?> sink;
+
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  private static void setChildren(Operator<?> op, Operator<?>... children) {
+    ((Operator) op).setChildOperators((List) Arrays.asList(children));
+  }
+
+  /**
+   * Builds a diamond: a scan and filter fanning out to two selects, which are joined back into
+   * one operator writing to a file sink.
+   */
+  @Before
+  public void setUp() {
+    walker = new HiveOperatorWalker();
+    scan = new TableScanOperator();
+    filter = new FilterOperator();
+    left = new SelectOperator();
+    right = new SelectOperator();
+    join = new JoinOperator();
+    sink = new FileSinkOperator();
+    setChildren(scan, filter);
+    setChildren(filter, left, right);
+    setChildren(left, join);
+    setChildren(right, join);
+    setChildren(join, sink);
+  }
+
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  private static MapredWork newWork(Operator<?> reducer, String alias, Operator<?> aliasWork,
+      String... aliases) {
+    MapredWork work = new MapredWork();
+    work.setReducer((Operator) reducer);
+    LinkedHashMap<String, ArrayList<String>> pathToAliases =
+        new LinkedHashMap<String, ArrayList<String>>();
+    pathToAliases.put("/tmp/" + alias, new ArrayList<String>(Arrays.asList(aliases)));
+    work.setPathToAliases(pathToAliases);
+    LinkedHashMap aliasToWork = new LinkedHashMap();
+    aliasToWork.put(alias, aliasWork);
+    work.setAliasToWork(aliasToWork);
+    return work;
+  }
+
+  private static Set<String> featuresOf(MapredWork work, int taskTagId) {
+    String[] features = HiveDAGTransformer.getFeatures(new HiveOperatorWalker(), work, taskTagId);
+    return new HashSet<String>(Arrays.asList(features));
+  }
+
+  @Test
+  public void testDiamondVisitedOnce() {
+    Recorder recorder = new Recorder();
+    walker.walk(Collections.singletonList(scan), recorder);
+    List<Operator<?>> expected = Arrays.<Operator<?>>asList(scan, filter, left, right, join, sink);
+    assertEquals(expected.size(), recorder.visited.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertSame(expected.get(i), recorder.visited.get(i));
+    }
+  }
+
+  @Test
+  public void testWalkerReused() {
+    walker.walk(Collections.singletonList(scan), new Recorder());
+    // operators visited by the first walk are visited again
+    Recorder recorder = new Recorder();
+    walker.walk(Arrays.<Operator<?>>asList(left, right), recorder);
+    assertEquals(4, recorder.visited.size());
+    assertSame(join, recorder.visited.get(2));
+    assertSame(sink, recorder.visited.get(3));
+  }
+
+  @Test
+  public void testWorkRootsSharingOperatorsVisitedOnce() {
+    // the reducer is also reachable from the map side, and the alias is listed twice
+    MapredWork work = newWork(join, "src", scan, "src", "src");
+    Recorder recorder = new Recorder();
+    walker.walk(work, recorder);
+    assertEquals(6, recorder.visited.size());
+    assertSame(join, recorder.visited.get(0));
+    assertSame(sink, recorder.visited.get(2));
+  }
+
+  @Test
+  public void testFeaturesSkipSinksAndScans() {
+    Operator<?> reduceSink = new ReduceSinkOperator();
+    setChildren(join, reduceSink);
+    MapredWork work = newWork(null, "src", scan, "src");
+    Set<String> expected = new HashSet<String>(Arrays.asList("FILTER", "SELECT", "JOIN"));
+    assertEquals(expected, featuresOf(work, Task.NO_TAG));
+
+    // a reducer writing to a file sink adds nothing either
+    setChildren(join, sink);
+    work = newWork(join, "src", scan, "src");
+    assertEquals(expected, featuresOf(work, Task.NO_TAG));
+  }
+
+  @Test
+  public void testFeaturesIncludeTaskTag() {
+    MapredWork work = newWork(null, "src", scan, "src");
+    Set<String> expected = new HashSet<String>(
+        Arrays.asList("FILTER", "SELECT", "JOIN", TaskTag.CONVERTED_MAPJOIN.toString()));
+    assertEquals(expected, featuresOf(work, TaskTag.CONVERTED_MAPJOIN.getId()));
+  }
+}
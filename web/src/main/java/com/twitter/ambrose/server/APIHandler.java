@@ -1,45 +1,150 @@
 package com.twitter.ambrose.server;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
 import com.google.common.io.BaseEncoding;
 
+import org.mortbay.util.ajax.Continuation;
+import org.mortbay.util.ajax.ContinuationSupport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.twitter.ambrose.model.CriticalPath;
 import com.twitter.ambrose.model.DAGNode;
 import com.twitter.ambrose.model.Event;
 import com.twitter.ambrose.model.Job;
 import com.twitter.ambrose.model.PaginatedList;
 import com.twitter.ambrose.model.WorkflowSummary;
 import com.twitter.ambrose.model.WorkflowSummary.Status;
+import com.twitter.ambrose.service.BlockingStatsReadService;
+import com.twitter.ambrose.service.SerializedDagReadService;
+import com.twitter.ambrose.service.SerializedDagReadService.SerializedDag;
 import com.twitter.ambrose.service.StatsReadService;
 import com.twitter.ambrose.service.WorkflowIndexReadService;
-import com.twitter.ambrose.service.impl.InMemoryStatsService;
+import com.twitter.ambrose.service.impl.WorkflowAnalytics;
 import com.twitter.ambrose.util.JSONUtil;
 
 /**
  * Handler for the API data responses.
+ * <p/>
+ * Requests for <code>/events</code> may pass a <code>waitMs</code> parameter, in which case the
+ * response is held until there are new events or until that many ms (at most
+ * {@value #MAX_WAIT_MS}) have passed. Held requests are suspended with a Jetty continuation, so on
+ * a connector which supports them, such as the <code>SelectChannelConnector</code>, they don't hold
+ * a thread while waiting; other connectors block a thread per held request. Requests accepting
+ * <code>text/event-stream</code> instead get a Server-Sent Events stream of the workflow's events,
+ * which stays open for up to {@value #STREAM_DURATION_MS} ms and is then resumed by the client from
+ * its <code>Last-Event-ID</code>. Each open stream holds a thread for its whole duration, so the
+ * server's thread pool has to be larger than the number of viewers streaming at once plus the
+ * threads needed for other requests.
+ * <p/>
+ * Each <code>/events</code> response holds at most <code>maxEvents</code> events (default
+ * {@value #DEFAULT_MAX_EVENTS}, at most {@value #MAX_MAX_EVENTS}). Events are streamed to the
+ * client as they are read from the store, {@value #EVENTS_CHUNK_SIZE} at a time. A response holding
+ * <code>maxEvents</code> events may not hold all of them; clients continue from the id of its last
+ * event.
+ * <p/>
+ * Responses to <code>/dag</code> and <code>/workflows</code> carry an ETag, and requests whose
+ * <code>If-None-Match</code> matches it get 304 Not Modified. JSON responses of at least
+ * {@value #GZIP_MIN_BYTES} bytes are gzipped for clients accepting it.
+ * <p/>
+ * <code>/critical-path</code> returns the critical path of a workflow's DAG, with the expected
+ * completion time of the workflow and the schedule and slack of each node, as computed by
+ * {@link WorkflowAnalytics}.
+ * <p/>
+ * Stats are read from the backend shared through {@link ServiceRegistry}, which must implement
+ * both {@link StatsReadService} and {@link WorkflowIndexReadService}.
  *
  * @author jy01649210
  */
 public class APIHandler extends HttpServlet {
   private static void sendJson(HttpServletRequest request,
       HttpServletResponse response, Object object) throws IOException {
-    JSONUtil.writeJson(response.getWriter(), object);
-    response.getWriter().close();
+    sendJsonBytes(request, response, JSONUtil.toJsonBytes(object), null);
     //setHandled(request);
   }
 
+  /**
+   * Writes json as the response body, gzipped if the client accepts it and json is at least
+   * {@value #GZIP_MIN_BYTES} bytes. Given the hash of json, the response carries it as an ETag and
+   * is answered with 304 Not Modified instead if the client already has it.
+   */
+  private static void sendJsonBytes(HttpServletRequest request, HttpServletResponse response,
+      byte[] json, String hash) throws IOException {
+    if (hash != null) {
+      // weak, since the gzipped and plain bodies share it
+      String etag = "W/\"" + hash + "\"";
+      response.setHeader(HEADER_ETAG, etag);
+      response.setHeader(HEADER_CACHE_CONTROL, "no-cache");
+      if (matchesETag(request.getHeader(HEADER_IF_NONE_MATCH), etag)) {
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+    }
+    response.addHeader(HEADER_VARY, HEADER_ACCEPT_ENCODING);
+    OutputStream out = response.getOutputStream();
+    if (json.length >= GZIP_MIN_BYTES && acceptsGzip(request)) {
+      response.setHeader(HEADER_CONTENT_ENCODING, GZIP);
+      out = new GZIPOutputStream(out);
+    } else {
+      response.setContentLength(json.length);
+    }
+    out.write(json);
+    out.close();
+  }
+
+  private static String hash(byte[] json) {
+    return Hashing.murmur3_128().hashBytes(json).toString();
+  }
+
+  private static boolean acceptsGzip(HttpServletRequest request) {
+    String acceptEncoding = request.getHeader(HEADER_ACCEPT_ENCODING);
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.trim().split(";");
+      if (parts[0].trim().equalsIgnoreCase(GZIP)) {
+        return parts.length == 1 || !parts[1].replace(" ", "").matches("q=0(\\.0*)?");
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return true if an If-None-Match header value contains etag, using weak comparison.
+   */
+  private static boolean matchesETag(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    String opaqueTag = etag.startsWith("W/") ? etag.substring(2) : etag;
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (tag.equals("*") || tag.equals(opaqueTag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
 //  private static void setHandled(HttpServletRequest request) {
 //    Request base_request = (request instanceof Request) ?
 //        (Request) request : HttpConnection.getCurrentConnection().getRequest();
@@ -88,17 +193,69 @@ public class APIHandler extends HttpServlet {
     return out;
   }
 
+  private static long getLong(String value, long defaultValue) {
+    long out = defaultValue;
+    if (value != null) {
+      try {
+        out = Long.parseLong(value);
+      } catch (NumberFormatException e) {
+        // ignore
+      }
+    }
+    return out;
+  }
+
   private static final Logger LOG = LoggerFactory.getLogger(APIHandler.class);
   private static final String QUERY_PARAM_CLUSTER = "cluster";
   private static final String QUERY_PARAM_USER = "user";
   private static final String QUERY_PARAM_STATUS = "status";
   private static final String QUERY_PARAM_START_KEY = "startKey";
   private static final String QUERY_PARAM_WORKFLOW_ID = "workflowId";
+  private static final String QUERY_PARAM_JOB_ID = "jobId";
   private static final String QUERY_PARAM_LAST_EVENT_ID = "lastEventId";
+  private static final String QUERY_PARAM_WAIT_MS = "waitMs";
+  private static final String QUERY_PARAM_MAX_EVENTS = "maxEvents";
+  private static final String HEADER_ACCEPT = "Accept";
+  private static final String HEADER_LAST_EVENT_ID = "Last-Event-ID";
+  private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+  private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+  private static final String HEADER_VARY = "Vary";
+  private static final String HEADER_ETAG = "ETag";
+  private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+  private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+  private static final String GZIP = "gzip";
+  private static final int GZIP_MIN_BYTES = 1024;
   private static final String MIME_TYPE_HTML = "text/html";
   private static final String MIME_TYPE_JSON = "application/json";
-  private WorkflowIndexReadService workflowIndexReadService = new InMemoryStatsService();
-  private StatsReadService<Job> statsReadService = new InMemoryStatsService();
+  private static final String MIME_TYPE_EVENT_STREAM = "text/event-stream";
+  private static final byte[] EMPTY_JSON_ARRAY = { '[', ']' };
+  private static final String EMPTY_JSON_ARRAY_HASH = hash(EMPTY_JSON_ARRAY);
+  private static final long MAX_WAIT_MS = 30000;
+  /** max time a held request is suspended before checking for events again */
+  private static final long EVENTS_RECHECK_MS = 1000;
+  private static final String ATTR_EVENTS_DEADLINE = APIHandler.class.getName() + ".eventsDeadline";
+  private static final int DEFAULT_MAX_EVENTS = 1000;
+  private static final int MAX_MAX_EVENTS = 10000;
+  private static final int EVENTS_CHUNK_SIZE = 1000;
+  private static final long STREAM_DURATION_MS = 5 * 60 * 1000;
+  private static final long STREAM_RETRY_MS = 1000;
+  private WorkflowIndexReadService workflowIndexReadService;
+  private StatsReadService<Job> statsReadService;
+  private WorkflowAnalytics workflowAnalytics;
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void init() throws ServletException {
+    Object service = ServiceRegistry.getService(getServletConfig());
+    if (!(service instanceof StatsReadService) || !(service instanceof WorkflowIndexReadService)) {
+      throw new ServletException(service.getClass().getName() + " must implement both "
+          + StatsReadService.class.getSimpleName() + " and "
+          + WorkflowIndexReadService.class.getSimpleName());
+    }
+    statsReadService = (StatsReadService<Job>) service;
+    workflowIndexReadService = (WorkflowIndexReadService) service;
+    workflowAnalytics = new WorkflowAnalytics(statsReadService);
+  }
 
   @Override
   public void service(HttpServletRequest request, HttpServletResponse response) 
@@ -122,31 +279,75 @@ public class APIHandler extends HttpServlet {
 
       response.setContentType(MIME_TYPE_JSON);
       response.setStatus(HttpServletResponse.SC_OK);
-      sendJson(request, response, workflows);
+      byte[] json = JSONUtil.toJsonBytes(workflows);
+      sendJsonBytes(request, response, json, hash(json));
 
     } else if (target.endsWith("/dag")) {
       String workflowId = normalize(request.getParameter(QUERY_PARAM_WORKFLOW_ID));
 
       LOG.info("Submitted request for workflowId={}", workflowId);
+      response.setContentType(MIME_TYPE_JSON);
+      response.setStatus(HttpServletResponse.SC_OK);
+      if (statsReadService instanceof SerializedDagReadService) {
+        // serialized and hashed once per version of the DAG
+        SerializedDag dag = ((SerializedDagReadService<Job>) statsReadService)
+            .getSerializedDag(workflowId);
+        sendJsonBytes(request, response,
+            dag != null ? dag.getJson() : EMPTY_JSON_ARRAY,
+            dag != null ? dag.getHash() : EMPTY_JSON_ARRAY_HASH);
+        return;
+      }
       Map<String, DAGNode<Job>> dagNodeNameMap =
           statsReadService.getDagNodeNameMap(workflowId);
-      Collection<DAGNode<Job>> nodes = dagNodeNameMap.values();
+      byte[] json = JSONUtil.toJsonBytes(dagNodeNameMap.values());
+      sendJsonBytes(request, response, json, hash(json));
+
+    } else if (target.endsWith("/job")) {
+      String workflowId = normalize(request.getParameter(QUERY_PARAM_WORKFLOW_ID));
+      String jobId = normalize(request.getParameter(QUERY_PARAM_JOB_ID));
+
+      LOG.info("Submitted request for workflowId={}, jobId={}", workflowId, jobId);
+      Job job = statsReadService.getJob(workflowId, jobId);
+      if (job == null) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        return;
+      }
 
       response.setContentType(MIME_TYPE_JSON);
       response.setStatus(HttpServletResponse.SC_OK);
-      sendJson(request, response, nodes.toArray(new DAGNode[nodes.size()]));
+      sendJson(request, response, job);
 
-    } else if (target.endsWith("/events")) {
-      String lastEventIdParam = normalize(request.getParameter(QUERY_PARAM_LAST_EVENT_ID));
-      Integer lastEventId = getInt(lastEventIdParam, -1);
+    } else if (target.endsWith("/critical-path")) {
+      String workflowId = normalize(request.getParameter(QUERY_PARAM_WORKFLOW_ID));
+
+      LOG.info("Submitted critical path request for workflowId={}", workflowId);
+      CriticalPath criticalPath = workflowAnalytics.getCriticalPath(workflowId);
+      if (criticalPath == null) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        return;
+      }
 
-      LOG.info("Submitted request for lastEventId={}", lastEventId);
-      Collection<Event> events = statsReadService
-          .getEventsSinceId(request.getParameter(QUERY_PARAM_WORKFLOW_ID), lastEventId);
-      
       response.setContentType(MIME_TYPE_JSON);
       response.setStatus(HttpServletResponse.SC_OK);
-      sendJson(request, response, events.toArray(new Event[events.size()]));
+      sendJson(request, response, criticalPath);
+
+    } else if (target.endsWith("/events")) {
+      String accept = request.getHeader(HEADER_ACCEPT);
+      if (accept != null && accept.contains(MIME_TYPE_EVENT_STREAM)
+          && statsReadService instanceof BlockingStatsReadService) {
+        streamEvents(request, response);
+        return;
+      }
+      String lastEventIdParam = normalize(request.getParameter(QUERY_PARAM_LAST_EVENT_ID));
+      long lastEventId = getLong(lastEventIdParam, -1);
+      String waitMsParam = normalize(request.getParameter(QUERY_PARAM_WAIT_MS));
+      long waitMs = Math.min(getInt(waitMsParam, 0), MAX_WAIT_MS);
+      int maxEvents = getMaxEvents(request);
+
+      LOG.info("Submitted request for lastEventId={}, maxEvents={}, waitMs={}",
+          new Object[] { lastEventId, maxEvents, waitMs });
+      sendEvents(request, response,
+          request.getParameter(QUERY_PARAM_WORKFLOW_ID), lastEventId, maxEvents, waitMs);
 
     } else if (target.endsWith(".html")) {
       response.setContentType(MIME_TYPE_HTML);
@@ -154,4 +355,179 @@ public class APIHandler extends HttpServlet {
       // handle html well. This is jank.
     }
   }
+
+  /**
+   * @return the requested max number of events per response, within 1 and
+   * {@value #MAX_MAX_EVENTS}.
+   */
+  private static int getMaxEvents(HttpServletRequest request) {
+    String maxEventsParam = normalize(request.getParameter(QUERY_PARAM_MAX_EVENTS));
+    int maxEvents = getInt(maxEventsParam, DEFAULT_MAX_EVENTS);
+    return maxEvents > 0 ? Math.min(maxEvents, MAX_MAX_EVENTS) : DEFAULT_MAX_EVENTS;
+  }
+
+  /**
+   * Writes up to maxEvents events since lastEventId as a JSON array, reading them from the store
+   * {@value #EVENTS_CHUNK_SIZE} at a time and writing each chunk before the next is read, so at most
+   * one chunk is held in memory however many events are sent. Only the first chunk waits for
+   * events, and each event is read once.
+   */
+  private void sendEvents(HttpServletRequest request, HttpServletResponse response,
+      String workflowId, long lastEventId, int maxEvents, long waitMs) throws IOException {
+    int chunkSize = Math.min(maxEvents, EVENTS_CHUNK_SIZE);
+    Collection<Event> events = getEvents(request, workflowId, lastEventId, chunkSize, waitMs);
+
+    response.setContentType(MIME_TYPE_JSON);
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.addHeader(HEADER_VARY, HEADER_ACCEPT_ENCODING);
+    // the length isn't known up front, so compression starts once the threshold is written
+    OutputStream out = acceptsGzip(request)
+        ? new GzipThresholdOutputStream(response, GZIP_MIN_BYTES)
+        : response.getOutputStream();
+    JsonGenerator generator = JSONUtil.newCompactGenerator(out);
+    generator.writeStartArray();
+    int requested = chunkSize;
+    int sent = 0;
+    while (true) {
+      for (Event event : events) {
+        generator.writeObject(event);
+        lastEventId = event.getId();
+        sent++;
+      }
+      // a chunk short of what was asked for is the last one
+      if (events.size() < requested || sent >= maxEvents) {
+        break;
+      }
+      requested = Math.min(maxEvents - sent, EVENTS_CHUNK_SIZE);
+      events = statsReadService.getEventsSinceId(workflowId, lastEventId, requested);
+    }
+    generator.writeEndArray();
+    generator.close();
+    out.close();
+  }
+
+  /**
+   * Resumes a suspended request when the events it waits for may have arrived.
+   */
+  private static class EventsListener implements Runnable {
+    private final Continuation continuation;
+    private volatile boolean run;
+
+    private EventsListener(Continuation continuation) {
+      this.continuation = continuation;
+    }
+
+    @Override
+    public void run() {
+      run = true;
+      continuation.resume();
+    }
+  }
+
+  /**
+   * Returns the first maxEvents events since lastEventId, waiting up to waitMs for some to arrive
+   * if the service supports it. While there are none the request is suspended, for at most
+   * {@value #EVENTS_RECHECK_MS} ms at a time, until the service reports new events; when a
+   * suspended request is resumed or times out Jetty runs it again from the start, so its deadline
+   * is kept as a request attribute and its listener as the continuation's object. Checking again
+   * every {@value #EVENTS_RECHECK_MS} ms bounds the delay if a resume arrives before the request is
+   * suspended, which the continuation ignores.
+   */
+  @SuppressWarnings("unchecked")
+  private Collection<Event> getEvents(HttpServletRequest request, String workflowId,
+      long lastEventId, int maxEvents, long waitMs) throws IOException {
+    if (waitMs <= 0 || !(statsReadService instanceof BlockingStatsReadService)) {
+      return statsReadService.getEventsSinceId(workflowId, lastEventId, maxEvents);
+    }
+    BlockingStatsReadService<Job> service = (BlockingStatsReadService<Job>) statsReadService;
+    Long deadline = (Long) request.getAttribute(ATTR_EVENTS_DEADLINE);
+    if (deadline == null) {
+      deadline = System.currentTimeMillis() + waitMs;
+      request.setAttribute(ATTR_EVENTS_DEADLINE, deadline);
+    }
+    Continuation continuation = ContinuationSupport.getContinuation(request, null);
+    EventsListener listener = (EventsListener) continuation.getObject();
+    if (listener == null) {
+      listener = new EventsListener(continuation);
+      continuation.setObject(listener);
+    }
+    while (true) {
+      // listen before reading so that events written in between still resume the request
+      service.removeEventListener(workflowId, listener);
+      listener.run = false;
+      service.addEventListener(workflowId, listener);
+      Collection<Event> events;
+      try {
+        events = service.getEventsSinceId(workflowId, lastEventId, maxEvents);
+      } catch (IOException e) {
+        service.removeEventListener(workflowId, listener);
+        throw e;
+      }
+      long remaining = deadline - System.currentTimeMillis();
+      if (!events.isEmpty() || remaining <= 0) {
+        service.removeEventListener(workflowId, listener);
+        return events;
+      }
+      if (!listener.run) {
+        // throws to release the thread on connectors supporting it, which then run the request
+        // again; blocks otherwise
+        continuation.suspend(Math.min(remaining, EVENTS_RECHECK_MS));
+      }
+    }
+  }
+
+  /**
+   * Writes events to a Server-Sent Events stream as they arrive, until the stream has been open for
+   * {@value #STREAM_DURATION_MS} ms or the client goes away.
+   */
+  @SuppressWarnings("unchecked")
+  private void streamEvents(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    String workflowId = request.getParameter(QUERY_PARAM_WORKFLOW_ID);
+    // set by browsers when resuming a stream
+    String lastEventIdParam = normalize(request.getHeader(HEADER_LAST_EVENT_ID));
+    if (lastEventIdParam == null) {
+      lastEventIdParam = normalize(request.getParameter(QUERY_PARAM_LAST_EVENT_ID));
+    }
+    long lastEventId = getLong(lastEventIdParam, -1);
+    int maxEvents = getMaxEvents(request);
+
+    LOG.info("Submitted stream request for workflowId={}, lastEventId={}", workflowId, lastEventId);
+    BlockingStatsReadService<Job> service = (BlockingStatsReadService<Job>) statsReadService;
+    response.setContentType(MIME_TYPE_EVENT_STREAM);
+    response.setCharacterEncoding("UTF-8");
+    response.setHeader("Cache-Control", "no-cache");
+    response.setStatus(HttpServletResponse.SC_OK);
+    PrintWriter writer = response.getWriter();
+    writer.write("retry: " + STREAM_RETRY_MS + "\n\n");
+    writer.flush();
+
+    long deadline = System.currentTimeMillis() + STREAM_DURATION_MS;
+    long remaining;
+    while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+      Collection<Event> events;
+      try {
+        events = service.waitForEventsSinceId(
+            workflowId, lastEventId, maxEvents, Math.min(remaining, MAX_WAIT_MS));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      if (events.isEmpty()) {
+        // comment line, keeps proxies from timing out and tells us if the client has gone
+        writer.write(":\n\n");
+      }
+      for (Event event : events) {
+        // compact json is a single line, so it fits in one data field
+        writer.write("id: " + event.getId() + "\n");
+        writer.write("data: " + JSONUtil.toJson(event) + "\n\n");
+        lastEventId = event.getId();
+      }
+      writer.flush();
+      if (writer.checkError()) {
+        break;
+      }
+    }
+    writer.close();
+  }
 }
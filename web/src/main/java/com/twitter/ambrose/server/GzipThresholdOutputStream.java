@@ -0,0 +1,88 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Body of a response whose length isn't known up front, gzipped only once it reaches a threshold.
+ * Until then the body is buffered, and a body closed below the threshold is sent as is with its
+ * Content-Length. Flushing doesn't send a buffered body, since the encoding isn't known yet.
+ */
+class GzipThresholdOutputStream extends OutputStream {
+  private final HttpServletResponse response;
+  private final int threshold;
+  private ByteArrayOutputStream buffer;
+  /** stream the body is written to once the threshold is reached */
+  private OutputStream out;
+
+  /**
+   * @param response response to send the body of, with no body written yet.
+   * @param threshold min size of gzipped bodies, in bytes.
+   */
+  GzipThresholdOutputStream(HttpServletResponse response, int threshold) {
+    this.response = response;
+    this.threshold = threshold;
+    this.buffer = new ByteArrayOutputStream(threshold);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (out != null) {
+      out.write(b, off, len);
+      return;
+    }
+    buffer.write(b, off, len);
+    if (buffer.size() >= threshold) {
+      response.setHeader("Content-Encoding", "gzip");
+      out = new GZIPOutputStream(response.getOutputStream());
+      buffer.writeTo(out);
+      buffer = null;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (out != null) {
+      out.flush();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (out != null) {
+      out.close();
+      return;
+    }
+    if (buffer != null) {
+      response.setContentLength(buffer.size());
+      OutputStream body = response.getOutputStream();
+      buffer.writeTo(body);
+      buffer = null;
+      body.close();
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.twitter.ambrose.service.impl.InMemoryStatsService;
+
+/**
+ * Holds the stats service backends of the web tier, one instance per implementation class and
+ * JVM, so that every handler shares the same connections and caches. The implementation is chosen
+ * by the <code>{@value #SERVICE_CLASS_PARAM}</code> servlet init-param, or else by the system
+ * property of the same name set using <code>-D</code>, and defaults to
+ * {@link InMemoryStatsService}. Implementations need a public no-arg constructor.
+ * <p/>
+ * Code running the web tier in-process, e.g. an embedded server, can hand its own instance to
+ * {@link #register} before the first request so that handlers read from it.
+ */
+public class ServiceRegistry {
+  public static final String SERVICE_CLASS_PARAM = "ambrose.stats.service.class";
+  private static final Logger LOG = LoggerFactory.getLogger(ServiceRegistry.class);
+  private static final String DEFAULT_SERVICE_CLASS = InMemoryStatsService.class.getName();
+
+  /** service instances by implementation class name, guarded by the class */
+  private static final Map<String, Object> services = new HashMap<String, Object>();
+
+  private ServiceRegistry() { }
+
+  /**
+   * @param config config of the servlet asking, may be null.
+   * @return name of the implementation class configured for the servlet.
+   */
+  public static String getServiceClassName(ServletConfig config) {
+    String className = config != null ? config.getInitParameter(SERVICE_CLASS_PARAM) : null;
+    if (className == null || className.trim().isEmpty()) {
+      className = System.getProperty(SERVICE_CLASS_PARAM, DEFAULT_SERVICE_CLASS);
+    }
+    return className.trim();
+  }
+
+  /**
+   * Returns the shared service configured for a servlet, creating it on first use.
+   *
+   * @param config config of the servlet asking, may be null.
+   * @return the shared service instance.
+   * @throws ServletException if the service couldn't be created.
+   */
+  public static Object getService(ServletConfig config) throws ServletException {
+    return getService(getServiceClassName(config));
+  }
+
+  /**
+   * Returns the shared instance of a service class, creating it on first use.
+   *
+   * @param className name of the implementation class.
+   * @return the shared service instance.
+   * @throws ServletException if the service couldn't be created.
+   */
+  public static synchronized Object getService(String className) throws ServletException {
+    Object service = services.get(className);
+    if (service == null) {
+      LOG.info("Creating stats service {}", className);
+      try {
+        service = Class.forName(className).newInstance();
+      } catch (Exception e) {
+        throw new ServletException("Could not create stats service " + className, e);
+      }
+      services.put(className, service);
+    }
+    return service;
+  }
+
+  /**
+   * Registers an existing instance as the shared instance of its class, replacing any previous
+   * one.
+   *
+   * @param service the service to share.
+   */
+  public static synchronized void register(Object service) {
+    services.put(service.getClass().getName(), service);
+  }
+}
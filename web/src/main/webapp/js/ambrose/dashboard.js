@@ -84,8 +84,14 @@ define(['lib/jquery', './core', './client'], function($, Ambrose, Client) {
       $('#user-form').submit(function() {
         self.setUser($('#user-field').val()); self.loadFlows(); return false;
       });
-      $('#page-prev-link').click(function() { self.prevPage(); });
-      $('#page-next-link').click(function() { self.nextPage(); });
+      $('#page-prev-link').click(function() {
+        if (!$(this).hasClass('disabled')) self.prevPage();
+        return false;
+      });
+      $('#page-next-link').click(function() {
+        if (!$(this).hasClass('disabled')) self.nextPage();
+        return false;
+      });
 
       // set default values
       self.setStatus('any');
@@ -137,7 +143,7 @@ define(['lib/jquery', './core', './client'], function($, Ambrose, Client) {
       $('.cluster').removeClass('active');
       $('#cluster_' + cluster).addClass('active');
       $('#current-cluster').text(cluster);
-      return this;
+      return this.resetPages();
     },
 
     setStatus: function(status) {
@@ -145,12 +151,18 @@ define(['lib/jquery', './core', './client'], function($, Ambrose, Client) {
       $('.status').removeClass('active');
       $('#status_' + status).addClass('active');
       $('#current-status').text(status);
-      return this;
+      return this.resetPages();
     },
 
     setUser: function(user) {
       this.user = user;
       $('#current-user').text(user || 'any');
+      return this.resetPages();
+    },
+
+    resetPages: function() {
+      this.currentStartKey = '';
+      this.prevStartKeys = [];
       return this;
     },
 
@@ -207,9 +219,9 @@ define(['lib/jquery', './core', './client'], function($, Ambrose, Client) {
         $('#page-next-link').addClass('disabled');
       }
       if (self.prevStartKeys.length > 0) {
-        $('#page-next-link').removeClass('disabled');
+        $('#page-prev-link').removeClass('disabled');
       } else {
-        $('#page-next-link').addClass('disabled');
+        $('#page-prev-link').addClass('disabled');
       }
       return this;
     },
@@ -41,6 +41,7 @@ define(['lib/jquery', 'lib/uri', './core'], function($, URI, Ambrose) {
       var workflowsUri = 'workflows';
       var jobsUri = 'dag';
       var eventsUri = 'events';
+      var canWaitForEvents = true;
 
       if (baseUri == null) {
         // look for 'localdata' param in current href
@@ -51,6 +52,7 @@ define(['lib/jquery', 'lib/uri', './core'], function($, URI, Ambrose) {
           workflowsUri = 'data/workflows.json';
           jobsUri = 'data/jobs.json';
           eventsUri = 'data/events.json';
+          canWaitForEvents = false;
         }
       } else {
         // resolve relative paths given base uri
@@ -65,6 +67,8 @@ define(['lib/jquery', 'lib/uri', './core'], function($, URI, Ambrose) {
       this.workflowsUri = new URI(workflowsUri);
       this.jobsUri = new URI(jobsUri);
       this.eventsUri = new URI(eventsUri);
+      // true if the events endpoint can hold requests until new events arrive
+      this.canWaitForEvents = canWaitForEvents;
     },
 
     /**
@@ -122,14 +126,21 @@ define(['lib/jquery', 'lib/uri', './core'], function($, URI, Ambrose) {
      * @param workflowId id of workflow for which to retrieve events.
      * @param lastEventId retrieve events which occurred after the event associated with this id. If
      * null, defaults to -1.
+     * @param waitMs if there are no such events yet, have the server wait up to this many ms for
+     * some to arrive before responding. If null, the server responds immediately.
+     * @param maxEvents max number of events to retrieve. If null, the server's default limit
+     * applies; later events are retrieved by the next request.
      * @return a jQuery Promise on which success and error callbacks may be registered.
      */
-    getEvents: function(workflowId, lastEventId) {
+    getEvents: function(workflowId, lastEventId, waitMs, maxEvents) {
       if (lastEventId == null) lastEventId = -1;
-      return this.sendRequest(this.eventsUri, {
+      var params = {
         workflowId: workflowId,
         lastEventId: lastEventId,
-      });
+      };
+      if (waitMs != null) params.waitMs = waitMs;
+      if (maxEvents != null && maxEvents > 0) params.maxEvents = maxEvents;
+      return this.sendRequest(this.eventsUri, params);
     },
   };
 
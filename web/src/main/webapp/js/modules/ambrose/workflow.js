@@ -25,6 +25,14 @@ define(['lib/jquery', 'lib/uri', './core', './client', './graph'], function(
   // Maximum number of consecutive client failures before event polling is stopped.
   var MAX_CLIENT_FAILURES = 10;
 
+  // Max time (ms) the server may hold an event poll while waiting for new events.
+  var EVENT_WAIT_MS = 25000;
+
+  // Bursts of events polled while watching a workflow are played back one at a time, each shown
+  // for at most TIMELINE_STEP_MS (ms) and the whole burst within TIMELINE_WINDOW_MS (ms).
+  var TIMELINE_STEP_MS = 250;
+  var TIMELINE_WINDOW_MS = 2000;
+
   // return data.job, throwing error if it's undefined
   function getJob(data) {
     var job = data.job;
@@ -64,6 +72,8 @@ define(['lib/jquery', 'lib/uri', './core', './client', './graph'], function(
       this.jobsByName = {};
       this.jobsById = {};
       this.lastEventId = -1;
+      this.timeline = [];
+      this.timelineTimeoutId = null;
       this.current = {
         selected: null,
         mouseover: null,
@@ -194,7 +204,9 @@ define(['lib/jquery', 'lib/uri', './core', './client', './graph'], function(
     },
 
     /**
-     * Starts event polling if not already started.
+     * Starts event polling if not already started. Without an event limit each poll is held by the
+     * server until new events arrive, and the next one is sent as soon as it returns. With a limit,
+     * and after failures, polls are sent at the given frequency instead.
      *
      * @param frequency poll events at this frequency (ms). Defaults to 1000.
      * @param maxEvents max number of events to process on each request. Defaults to -1 (no limit).
@@ -202,13 +214,30 @@ define(['lib/jquery', 'lib/uri', './core', './client', './graph'], function(
      */
     startEventPolling: function(frequency, maxEvents) {
       var self = this;
-      if (self.eventPollingIntervalId != null) return;
+      if (self.eventPolling != null) return;
       if (frequency == null) frequency = 1000;
       if (maxEvents == null) maxEvents = -1;
       console.info('Starting event polling');
       self.clientFailureCount = 0;
-      var pollEvents = function() { self.pollEvents(maxEvents); };
-      self.eventPollingIntervalId = setInterval(pollEvents, frequency);
+      var polling = self.eventPolling = {};
+      var waitMs = (maxEvents > 0 || !self.client.canWaitForEvents) ? null : EVENT_WAIT_MS;
+      var pollEvents = function() {
+        if (self.eventPolling !== polling) return;
+        var startTime = new Date().getTime();
+        var request = self.pollEvents(maxEvents, waitMs);
+        if (request == null) return;
+        request.always(function(data, textStatus) {
+          if (self.eventPolling !== polling) return;
+          var delay = frequency;
+          if (waitMs != null && textStatus == 'success') {
+            // poll again right away if events came in, otherwise keep to the given frequency in
+            // case the server returned without waiting
+            delay = (data != null && data.length > 0) ? 0
+                : Math.max(0, frequency - (new Date().getTime() - startTime));
+          }
+          polling.timeoutId = setTimeout(pollEvents, delay);
+        });
+      };
       self.trigger('eventPollingStarted');
       // poll once right now to kick things off
       pollEvents();
@@ -216,15 +245,21 @@ define(['lib/jquery', 'lib/uri', './core', './client', './graph'], function(
     },
 
     /**
-     * Stops event polling if running.
+     * Stops event polling if running. Events still queued for playback are processed right away.
      *
      * @return this.
      */
     stopEventPolling: function() {
-      if (this.eventPollingIntervalId == null) return;
+      if (this.eventPolling == null) return;
       console.info('Stopping event polling');
-      clearInterval(this.eventPollingIntervalId);
-      this.eventPollingIntervalId = null;
+      clearTimeout(this.eventPolling.timeoutId);
+      this.eventPolling = null;
+      clearTimeout(this.timelineTimeoutId);
+      this.timelineTimeoutId = null;
+      var timeline = this.timeline;
+      this.timeline = [];
+      var self = this;
+      $.each(timeline, function(i, event) { self.processEvent(event); });
       this.trigger('eventPollingStopped');
       return this;
     },
@@ -234,14 +269,16 @@ define(['lib/jquery', 'lib/uri', './core', './client', './graph'], function(
      * completion status. If complete, event polling is stopped and 'workflowComplete' event is
      * triggered. Otherwise, events from last event id are requested. On request failure,
      * 'error.pollEvents' event is triggered. On success, one or more Workflow events are processed
-     * sequentially, triggering events in set {'workflowProgress', 'jobStarted', 'jobProgress',
-     * 'jobComplete', 'jobFailed'}.
+     * sequentially, see processEvent. The events of the first poll after polling starts are
+     * processed right away, later ones are queued for playback, see playTimeline.
      *
      * @param maxEvents max number of events to process. Defaults to -1.
+     * @param waitMs max time (ms) the server may wait for new events. If null, it responds
+     * immediately.
      * @return Promise configured with error and success callbacks which update state of this
      * Workflow and trigger events.
      */
-    pollEvents: function(maxEvents) {
+    pollEvents: function(maxEvents, waitMs) {
       if (maxEvents == null) maxEvents = -1;
 
       // stop polling if all jobs are done
@@ -271,7 +308,9 @@ define(['lib/jquery', 'lib/uri', './core', './client', './graph'], function(
         // reset client failure count
         self.clientFailureCount = 0;
 
-        // process events
+        // process events, pacing all but those of the first poll
+        var polling = self.eventPolling;
+        var paced = polling != null && polling.paced;
         var eventCount = 0;
         $.each(data, function(i, event) {
           // validate event data
@@ -289,64 +328,21 @@ define(['lib/jquery', 'lib/uri', './core', './client', './graph'], function(
           // don't process more than specified number of events
           if (maxEvents > 0 && eventCount >= maxEvents) return;
 
-          // check for workflow event
-          if (type == 'WORKFLOW_PROGRESS') {
-            self.setProgress(data.workflowProgress);
-            return;
-          }
-
-          // collect job data
-          var node = data;
-          var job = node.job;
-          job.name = node.name;
-
-          // retrieve and update job with new data
-          job = self.updateJob(job);
-          self.jobsById[job.id] = job;
-
-          // process job event
-          switch (type) {
-          case 'JOB_STARTED':
-            console.info('Job started:', job);
-            job.status = 'RUNNING';
-            break;
-          case 'JOB_PROGRESS':
-            console.info('Job progress:', job);
-            if (job.isComplete == 'true') {
-              if (job.isSuccessful == 'true') {
-                job.status = 'COMPLETE';
-              } else {
-                job.status = 'FAILED';
-              }
-            }
-            break;
-          case 'JOB_FINISHED':
-            // TODO(Andy Schlaikjer): rename JOB_FINISHED to JOB_COMPLETE in server
-            type = 'JOB_COMPLETE';
-            console.info('Job complete:', job);
-            job.status = 'COMPLETE';
-            break;
-          case 'JOB_FAILED':
-            console.info('Job failed:', job);
-            job.status = 'FAILED';
-            break;
-          default:
-            console.error("Unsupported event type '" + type + "':", self, event);
-            return;
-          }
-
-          // update state and trigger event
-          eventCount++;
+          // workflow events don't count towards the limit
+          if (type != 'WORKFLOW_PROGRESS') eventCount++;
           self.lastEventId = id;
-          self.trigger(type.toLowerCase().camelCase(), [job, event]);
+          if (paced) self.timeline.push(event);
+          else self.processEvent(event);
         });
+        if (polling != null) polling.paced = true;
+        if (paced) self.playTimeline();
 
         // update state and trigger event
         self.trigger('eventsPolled', [data, textStatus, null]);
       };
 
       // initiate request
-      return this.client.getEvents(this.id, this.lastEventId)
+      return this.client.getEvents(this.id, this.lastEventId, waitMs, maxEvents)
         .error(function(jqXHR, textStatus, errorThrown) {
           handleError(textStatus, errorThrown);
         })
@@ -355,6 +351,98 @@ define(['lib/jquery', 'lib/uri', './core', './client', './graph'], function(
         });
     },
 
+    /**
+     * Processes a single event, updating the state of this Workflow and triggering one of the
+     * events in set {'workflowProgress', 'jobStarted', 'jobProgress', 'jobComplete', 'jobFailed'}.
+     *
+     * @param event a valid event polled from the server.
+     * @return this.
+     */
+    processEvent: function(event) {
+      var type = event.type;
+      var data = event.payload;
+
+      // check for workflow event
+      if (type == 'WORKFLOW_PROGRESS') {
+        this.setProgress(data.workflowProgress);
+        return this;
+      }
+
+      // collect job data
+      var node = data;
+      var job = node.job;
+      job.name = node.name;
+
+      // retrieve and update job with new data
+      job = this.updateJob(job);
+      this.jobsById[job.id] = job;
+
+      // process job event
+      switch (type) {
+      case 'JOB_STARTED':
+        console.info('Job started:', job);
+        job.status = 'RUNNING';
+        break;
+      case 'JOB_PROGRESS':
+        console.info('Job progress:', job);
+        if (job.isComplete == 'true') {
+          if (job.isSuccessful == 'true') {
+            job.status = 'COMPLETE';
+          } else {
+            job.status = 'FAILED';
+          }
+        }
+        break;
+      case 'JOB_FINISHED':
+        // TODO(Andy Schlaikjer): rename JOB_FINISHED to JOB_COMPLETE in server
+        type = 'JOB_COMPLETE';
+        console.info('Job complete:', job);
+        job.status = 'COMPLETE';
+        break;
+      case 'JOB_FAILED':
+        console.info('Job failed:', job);
+        job.status = 'FAILED';
+        break;
+      default:
+        console.error("Unsupported event type '" + type + "':", this, event);
+        return this;
+      }
+
+      // trigger event
+      this.trigger(type.toLowerCase().camelCase(), [job, event]);
+      return this;
+    },
+
+    /**
+     * Plays back queued events one at a time, so every transition stays visible even when the
+     * server writes events faster than they can be seen, e.g. when a script moves on to its next
+     * statement right away. Each event is shown for at most TIMELINE_STEP_MS, and the queue is
+     * played back within TIMELINE_WINDOW_MS however long it gets. Completion is checked once the
+     * queue runs empty, rather than on the next poll.
+     *
+     * @return this.
+     */
+    playTimeline: function() {
+      var self = this;
+      if (self.timelineTimeoutId != null) return this;
+      var step = function() {
+        self.timelineTimeoutId = null;
+        var event = self.timeline.shift();
+        if (event == null) return;
+        self.processEvent(event);
+        if (self.timeline.length > 0) {
+          self.timelineTimeoutId = setTimeout(step,
+            Math.min(TIMELINE_STEP_MS, TIMELINE_WINDOW_MS / self.timeline.length));
+        } else if (self.eventPolling != null && self.isComplete()) {
+          console.info('Workflow complete');
+          self.stopEventPolling();
+          self.trigger('workflowComplete');
+        }
+      };
+      step();
+      return this;
+    },
+
     /**
      * @return true if this Workflow is complete, false otherwise.
      */
@@ -0,0 +1,216 @@
+/*
+Copyright 2013 Twitter, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.twitter.ambrose.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.nio.SelectChannelConnector;
+import org.mortbay.jetty.servlet.Context;
+import org.mortbay.jetty.servlet.ServletHolder;
+
+import com.twitter.ambrose.model.DAGNode;
+import com.twitter.ambrose.model.Event;
+import com.twitter.ambrose.model.Job;
+import com.twitter.ambrose.service.impl.JournalStatsService;
+import com.twitter.ambrose.service.impl.StorageCodec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link APIHandler} served by an embedded Jetty server.
+ */
+public class APIHandlerTest {
+  private static final String WORKFLOW_ID = "id1";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private JournalStatsService service;
+  private Server server;
+  private SelectChannelConnector connector;
+
+  @Before
+  public void setUp() throws Exception {
+    service = new JournalStatsService(folder.getRoot(), StorageCodec.SMILE, 1 << 20, 64);
+    ServiceRegistry.register(service);
+    server = new Server();
+    connector = new SelectChannelConnector();
+    connector.setPort(0);
+    server.addConnector(connector);
+    Context context = new Context(server, "/", Context.NO_SESSIONS);
+    ServletHolder holder = new ServletHolder(new APIHandler());
+    holder.setInitParameter(ServiceRegistry.SERVICE_CLASS_PARAM,
+        JournalStatsService.class.getName());
+    context.addServlet(holder, "/*");
+    server.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.stop();
+  }
+
+  private HttpURLConnection open(String path) throws IOException {
+    URL url = new URL("http://localhost:" + connector.getLocalPort() + path);
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setReadTimeout(30000);
+    return connection;
+  }
+
+  /**
+   * @return the body of a response, gunzipped if need be.
+   */
+  private static String read(HttpURLConnection connection) throws IOException {
+    InputStream in = connection.getInputStream();
+    if ("gzip".equals(connection.getHeaderField("Content-Encoding"))) {
+      in = new GZIPInputStream(in);
+    }
+    try {
+      return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+    } finally {
+      in.close();
+    }
+  }
+
+  private void pushEvents(int count) throws IOException {
+    List<Event> events = new ArrayList<Event>();
+    for (int i = 0; i < count; i++) {
+      events.add(new Event.JobStartedEvent(new DAGNode<Job>("job-" + i, null)));
+    }
+    service.pushEvents(WORKFLOW_ID, events);
+  }
+
+  @Test
+  public void testDagNotModified() throws Exception {
+    service.sendDagNodeNameMap(WORKFLOW_ID,
+        ImmutableMap.of("scope-1", new DAGNode<Job>("scope-1", null)));
+    HttpURLConnection first = open("/dag?workflowId=" + WORKFLOW_ID);
+    assertEquals(200, first.getResponseCode());
+    String etag = first.getHeaderField("ETag");
+    assertNotNull(etag);
+    assertTrue(read(first).contains("\"scope-1\""));
+
+    HttpURLConnection cached = open("/dag?workflowId=" + WORKFLOW_ID);
+    cached.setRequestProperty("If-None-Match", etag);
+    assertEquals(304, cached.getResponseCode());
+    assertEquals(etag, cached.getHeaderField("ETag"));
+
+    // a new DAG gets a new tag
+    service.sendDagNodeNameMap(WORKFLOW_ID,
+        ImmutableMap.of("scope-2", new DAGNode<Job>("scope-2", null)));
+    HttpURLConnection changed = open("/dag?workflowId=" + WORKFLOW_ID);
+    changed.setRequestProperty("If-None-Match", etag);
+    assertEquals(200, changed.getResponseCode());
+    assertFalse(etag.equals(changed.getHeaderField("ETag")));
+    assertTrue(read(changed).contains("\"scope-2\""));
+  }
+
+  @Test
+  public void testEventsGzippedAboveThreshold() throws Exception {
+    pushEvents(1);
+    HttpURLConnection small = open("/events?workflowId=" + WORKFLOW_ID);
+    small.setRequestProperty("Accept-Encoding", "gzip");
+    assertEquals(200, small.getResponseCode());
+    assertNull(small.getHeaderField("Content-Encoding"));
+    String body = read(small);
+    assertTrue(body.length() < 1024);
+    assertEquals(body.getBytes(Charsets.UTF_8).length, small.getContentLength());
+
+    pushEvents(100);
+    HttpURLConnection large = open("/events?workflowId=" + WORKFLOW_ID);
+    large.setRequestProperty("Accept-Encoding", "gzip");
+    assertEquals(200, large.getResponseCode());
+    assertEquals("gzip", large.getHeaderField("Content-Encoding"));
+    body = read(large);
+    assertTrue(body.startsWith("[") && body.endsWith("]"));
+    assertTrue(body.contains("\"job-0\"") && body.contains("\"job-99\""));
+
+    // not gzipped for clients which don't accept it
+    HttpURLConnection plain = open("/events?workflowId=" + WORKFLOW_ID);
+    assertNull(plain.getHeaderField("Content-Encoding"));
+    assertEquals(body, read(plain));
+  }
+
+  @Test
+  public void testFullResponseContinuedFromLastEvent() throws Exception {
+    pushEvents(2500);
+    HttpURLConnection full = open("/events?workflowId=" + WORKFLOW_ID + "&maxEvents=2000");
+    assertEquals(200, full.getResponseCode());
+    JsonNode events = new ObjectMapper().readTree(read(full));
+    assertEquals(2000, events.size());
+
+    HttpURLConnection rest = open("/events?workflowId=" + WORKFLOW_ID + "&maxEvents=2000"
+        + "&lastEventId=" + events.get(1999).get("id").asText());
+    JsonNode restEvents = new ObjectMapper().readTree(read(rest));
+    assertEquals(500, restEvents.size());
+    assertEquals(events.get(1999).get("id").asLong() + 1, restEvents.get(0).get("id").asLong());
+  }
+
+  @Test
+  public void testHeldEventsRequestAnsweredOnWrite() throws Exception {
+    pushEvents(1);
+    long lastEventId = service.getEventsSinceId(WORKFLOW_ID, -1).iterator().next().getId();
+    Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(200);
+          pushEvents(1);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    long start = System.currentTimeMillis();
+    writer.start();
+    HttpURLConnection held = open("/events?workflowId=" + WORKFLOW_ID
+        + "&waitMs=20000&lastEventId=" + lastEventId);
+    assertEquals(200, held.getResponseCode());
+    String body = read(held);
+    assertTrue(body.contains("\"job-0\""));
+    assertTrue(System.currentTimeMillis() - start < 10000);
+    writer.join();
+
+    // times out with no events
+    HttpURLConnection timedOut = open("/events?workflowId=" + WORKFLOW_ID
+        + "&waitMs=100&lastEventId=" + (lastEventId + 1000));
+    assertEquals(200, timedOut.getResponseCode());
+    assertEquals("[]", read(timedOut));
+  }
+}